@@ -31,6 +31,17 @@ public interface Allocator {
      */
     public int alloc(int count) throws OutOfSpaceException;
 
+    /**
+     * Allocates a continuous number of items, preferring a position at or near
+     * the hint so that related pages end up close to each other in the file.
+     * The hint is only a preference, the items may be allocated anywhere.
+     * A hint of 0 asks for the lowest free position, which is what page file
+     * compaction uses to move pages toward the front of the file.
+     *
+     * @param hint the preferred position of the first item or -1 for no preference.
+     */
+    public int alloc(int count, int hint) throws OutOfSpaceException;
+
     /**
      * Frees a given number of items at a given position.
      */
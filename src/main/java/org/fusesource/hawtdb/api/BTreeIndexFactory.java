@@ -18,9 +18,13 @@ package org.fusesource.hawtdb.api;
 
 import org.fusesource.hawtbuf.codec.Codec;
 import org.fusesource.hawtdb.internal.index.BTreeIndex;
+import org.fusesource.hawtdb.internal.page.Redo;
 import org.fusesource.hawtbuf.codec.ObjectCodec;
 
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -59,7 +63,12 @@ public class BTreeIndexFactory<Key, Value> implements IndexFactory<Key, Value> {
     private Codec<Value> valueCodec = new ObjectCodec<Value>();
     private boolean deferredEncoding=true;
     private Prefixer<Key> prefixer;
+    private FrontCoder<Key> frontCoder;
     private Comparator comparator = null;
+    private boolean counted;
+    private float mergeThreshold;
+    private float fillFactor = 0.9f;
+    private int loadChunkSize = 1024;
 
     /**
      * Creates a new BTree index on the Paged object.
@@ -72,9 +81,32 @@ public class BTreeIndexFactory<Key, Value> implements IndexFactory<Key, Value> {
         return index;
     }
 
+    /**
+     * Creates a new BTree index on the Paged object and loads the sorted
+     * entries into it.  The tree is built bottom-up, which is a lot faster
+     * than putting the entries one by one, and its nodes are packed to the
+     * configured fill factor.
+     *
+     * If the Paged object is a transaction, it gets committed every time
+     * the configured number of nodes were stored, so that the deferred
+     * updates of a big load don't have to be kept in memory.  The index
+     * can't be seen until the load is done, and if it fails after a commit,
+     * the pages of the index get freed and committed again.
+     *
+     * @param entries the entries, in ascending order of their keys.
+     */
+    public SortedIndex<Key, Value> create(Paged paged, Iterator<? extends Map.Entry<Key, Value>> entries) {
+        traceStart(LOG, "BTreeIndexFactory.create(%s, ...)", paged.getClass());
+        BTreeIndex<Key, Value> index = createInstance(paged, paged.alloc());
+        index.create();
+        index.load(entries, fillFactor, loadChunkSize);
+        traceEnd(LOG, "BTreeIndexFactory.create -> %s", index);
+        return index;
+    }
+
     @Override
     public String toString() {
-        return "{ deferredEncoding: "+deferredEncoding+" }";
+        return "{ deferredEncoding: "+deferredEncoding+", counted: "+counted+" }";
     }
 
     /**
@@ -97,6 +129,28 @@ public class BTreeIndexFactory<Key, Value> implements IndexFactory<Key, Value> {
         return ret;
     }
 
+    /**
+     * Applies a logged operation to the index it was logged for.
+     */
+    public void replay(Paged paged, Redo redo) {
+        traceStart(LOG, "BTreeIndexFactory.replay(%s, %s)", paged.getClass(), redo);
+        createInstance(paged, redo.getIndex()).replay(redo);
+        traceEnd(LOG, "BTreeIndexFactory.replay");
+    }
+
+    /**
+     * Loads the nodes of an index which are stored at one of the given
+     * pages, so that they are in the read cache when they get used.
+     *
+     * @return the number of nodes loaded.
+     */
+    public int warm(Paged paged, int indexNumber, Set<Integer> pages) {
+        traceStart(LOG, "BTreeIndexFactory.warm(%s, %d)", paged.getClass(), indexNumber);
+        int ret = createInstance(paged, indexNumber).warm(pages);
+        traceEnd(LOG, "BTreeIndexFactory.warm -> %d", ret);
+        return ret;
+    }
+
     private BTreeIndex<Key, Value> createInstance(Paged paged, int page) {
         traceStart(LOG, "BTreeIndexFactory.createInstance(%s, %d)", paged.getClass(), page);
         BTreeIndex<Key, Value> ret = new BTreeIndex<Key, Value>(paged, page, this);
@@ -172,6 +226,31 @@ public class BTreeIndexFactory<Key, Value> implements IndexFactory<Key, Value> {
         this.prefixer = prefixer;
     }
 
+    public FrontCoder<Key> getFrontCoder() {
+        return frontCoder;
+    }
+
+    /**
+     * <p>
+     * Configures the front coding of the keys in the nodes.  Every key
+     * but the first one of a node is stored as the length of the prefix
+     * it shares with the key in front of it and the rest of the key,
+     * which gets encoded with the key codec.  It works well with long keys
+     * which share a prefix, since more of them fit on a page and the tree
+     * gets wider and less deep.  The keys have to be cut and joined when
+     * nodes are stored and loaded, and with deferred encoding also when
+     * the size of a node is estimated.
+     * </p><p>
+     * It is ignored if the key codec has a fixed size.  It has to be
+     * configured the same way every time the index is opened.  Defaults
+     * to null, which stores every key in full.
+     * </p>
+     * @param frontCoder
+     */
+    public void setFrontCoder(FrontCoder<Key> frontCoder) {
+        this.frontCoder = frontCoder;
+    }
+
     /**
      * Gets the custom configured Comparator used to sort the keys
      * in the index.  Defaults to null.
@@ -192,4 +271,94 @@ public class BTreeIndexFactory<Key, Value> implements IndexFactory<Key, Value> {
     public void setComparator(Comparator comparator) {
         this.comparator = comparator;
     }
+
+    /**
+     * @return true if the branches count the entries under them.
+     */
+    public boolean isCounted() {
+        return counted;
+    }
+
+    /**
+     * <p>
+     * When enabled, the branch nodes store the number of entries under
+     * each of their children, so that {@link SortedIndex#size()},
+     * {@link SortedIndex#rank(Object)} and {@link SortedIndex#iteratorAt(int)}
+     * only take a walk down the tree instead of reading every leaf.
+     * </p><p>
+     * The counts of the branches above a leaf have to be stored whenever
+     * an entry is added or removed, so puts and removes get more expensive.
+     * It has to be configured the same way every time the index is opened.
+     * Defaults to false.
+     * </p>
+     * @param counted should the branches count their entries.
+     */
+    public void setCounted(boolean counted) {
+        this.counted = counted;
+    }
+
+    /**
+     * @return how full a node has to stay when entries are removed.
+     */
+    public float getMergeThreshold() {
+        return mergeThreshold;
+    }
+
+    /**
+     * <p>
+     * Configures how full a node has to stay when entries are removed
+     * from it.  Once it is filled below the threshold, it gets merged with
+     * a sibling if both fit on one page, else the entries of the two get
+     * split evenly between them.  A branch which is left with one child
+     * gets merged the same way, so that the leaves stay at the same depth.
+     * </p><p>
+     * Defaults to 0, which only frees leaves once they are empty.  That
+     * keeps removes cheap, but removing most of the entries leaves behind
+     * a lot of nearly empty leaves which still take up pages and have to
+     * be read by iterations.
+     * </p>
+     * @param mergeThreshold the fraction of a page used, in [0, 0.5].
+     */
+    public void setMergeThreshold(float mergeThreshold) {
+        if( mergeThreshold < 0 || mergeThreshold > 0.5f ) {
+            throw new IllegalArgumentException("The merge threshold has to be in [0, 0.5]: "+mergeThreshold);
+        }
+        this.mergeThreshold = mergeThreshold;
+    }
+
+    /**
+     * @return how full the nodes get packed when entries are loaded.
+     */
+    public float getFillFactor() {
+        return fillFactor;
+    }
+
+    /**
+     * Configures how full the nodes get packed when sorted entries are
+     * loaded with {@link #create(Paged, Iterator)}.  Defaults to 0.9, which
+     * leaves some room so that later puts don't split every node right away.
+     *
+     * @param fillFactor the fraction of a page used, in (0, 1].
+     */
+    public void setFillFactor(float fillFactor) {
+        this.fillFactor = fillFactor;
+    }
+
+    /**
+     * @return the number of nodes stored per commit when entries are loaded.
+     */
+    public int getLoadChunkSize() {
+        return loadChunkSize;
+    }
+
+    /**
+     * Configures how many nodes get stored between the commits of a
+     * transaction which entries are loaded in.  Defaults to 1024, 0 does
+     * not commit at all.
+     *
+     * @param loadChunkSize the number of nodes stored per commit.
+     */
+    public void setLoadChunkSize(int loadChunkSize) {
+        this.loadChunkSize = loadChunkSize;
+    }
 }
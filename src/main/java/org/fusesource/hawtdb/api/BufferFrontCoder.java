@@ -0,0 +1,47 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.api;
+
+import org.fusesource.hawtbuf.Buffer;
+
+/**
+ * BufferFrontCoder is a {@link FrontCoder} implementation that works on buffers.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class BufferFrontCoder implements FrontCoder<Buffer> {
+
+    public int getSharedLength(Buffer value1, Buffer value2) {
+        int n = Math.min(value1.length, value2.length);
+        int i = 0;
+        while (i < n && value1.data[value1.offset + i] == value2.data[value2.offset + i]) {
+            i++;
+        }
+        return i;
+    }
+
+    public Buffer getSuffix(Buffer value, int length) {
+        return new Buffer(value.data, value.offset + length, value.length - length);
+    }
+
+    public Buffer join(Buffer prefix, int length, Buffer suffix) {
+        byte[] data = new byte[length + suffix.length];
+        System.arraycopy(prefix.data, prefix.offset, data, 0, length);
+        System.arraycopy(suffix.data, suffix.offset, data, length, suffix.length);
+        return new Buffer(data);
+    }
+}
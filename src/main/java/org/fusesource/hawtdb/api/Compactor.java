@@ -0,0 +1,153 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.api;
+
+import java.util.ArrayList;
+
+/**
+ * Shrinks a {@link TxPageFile} while it stays in use.
+ *
+ * The pages of the registered indexes which sit past the space that the
+ * allocated pages would need are moved to free pages closer to the front
+ * of the file.  Every batch of moves is a regular transaction, so readers
+ * and writers keep on running.  Once the moves are done the file is
+ * truncated.  Only pages of registered indexes move, any other page in the
+ * tail of the file limits how much can be truncated.
+ *
+ * <pre>
+ * Compactor compactor = new Compactor(pageFile);
+ * compactor.add(factory, indexPage);
+ * compactor.setPagesPerSecond(1000);
+ * compactor.compact();
+ * </pre>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class Compactor {
+
+    private final TxPageFile pageFile;
+    private final ArrayList<IndexFactory<?, ?>> factories = new ArrayList<IndexFactory<?, ?>>();
+    private final ArrayList<Integer> pages = new ArrayList<Integer>();
+
+    private int pagesPerTransaction = 100;
+    private int pagesPerSecond;
+
+    public Compactor(TxPageFile pageFile) {
+        this.pageFile = pageFile;
+    }
+
+    /**
+     * Registers an index whose pages can be moved.
+     *
+     * @param factory the factory the index was created with.
+     * @param page the location of the index.
+     */
+    public void add(IndexFactory<?, ?> factory, int page) {
+        factories.add(factory);
+        pages.add(page);
+    }
+
+    /**
+     * Moves the pages of the registered indexes toward the front of the
+     * file and then truncates it.
+     *
+     * @return the number of pages moved.
+     */
+    public int compact() {
+        int moved = 0;
+        int rc;
+        do {
+            // Concurrent transactions can fill up the free pages in front of
+            // the boundary and allocate past it, so every transaction gets the
+            // current boundary and passes go on until one has nothing left to move.
+            rc = 0;
+            for (int i = 0; i < factories.size(); i++) {
+                Relocation relocation = new Relocation(pageFile.getPagesInUse());
+                while( !relocation.isDone() ) {
+                    relocation.setBoundary(pageFile.getPagesInUse());
+                    long start = System.currentTimeMillis();
+                    int count = relocate(factories.get(i), pages.get(i), relocation);
+                    rc += count;
+                    throttle(count, start);
+                }
+            }
+            moved += rc;
+        } while( rc > 0 );
+        pageFile.truncate();
+        return moved;
+    }
+
+    private int relocate(IndexFactory<?, ?> factory, int page, Relocation relocation) {
+        Object position = relocation.getPosition();
+        while( true ) {
+            Transaction tx = pageFile.tx();
+            try {
+                int rc = factory.open(tx, page).relocate(relocation, pagesPerTransaction);
+                tx.commit();
+                return rc;
+            } catch (OptimisticUpdateException e) {
+                // A concurrent transaction updated one of the pages, try again
+                // from where this transaction started.
+                tx.rollback();
+                relocation.setPosition(position);
+                relocation.setDone(false);
+            }
+        }
+    }
+
+    /**
+     * Sleeps long enough to keep the moves within the pages per second budget.
+     */
+    private void throttle(int moved, long start) {
+        if( pagesPerSecond <= 0 || moved == 0 ) {
+            return;
+        }
+        long delay = start + (moved * 1000L / pagesPerSecond) - System.currentTimeMillis();
+        if( delay > 0 ) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public int getPagesPerTransaction() {
+        return pagesPerTransaction;
+    }
+
+    /**
+     * @param pagesPerTransaction the maximum number of pages moved by one transaction.
+     */
+    public void setPagesPerTransaction(int pagesPerTransaction) {
+        this.pagesPerTransaction = pagesPerTransaction;
+    }
+
+    public int getPagesPerSecond() {
+        return pagesPerSecond;
+    }
+
+    /**
+     * Sets the I/O budget of the compaction.
+     *
+     * @param pagesPerSecond the maximum rate at which pages get moved, 0 for no limit.
+     */
+    public void setPagesPerSecond(int pagesPerSecond) {
+        this.pagesPerSecond = pagesPerSecond;
+    }
+
+}
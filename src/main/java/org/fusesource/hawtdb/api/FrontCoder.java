@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.api;
+
+/**
+ * Interface used to front code the keys stored in the nodes of BTree
+ * indexes.  A key which follows another one in a node is stored as the
+ * length of the prefix they share and the rest of the key, so that long
+ * keys which share a prefix take up less room and more of them fit on a page.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public interface FrontCoder<Key> {
+
+    /**
+     * @param value1
+     * @param value2
+     * @return the length of the prefix both values start with.
+     */
+    public int getSharedLength(Key value1, Key value2);
+
+    /**
+     * @param value
+     * @param length the length of the prefix, it is not 0.
+     * @return the value without its prefix of the given length.
+     */
+    public Key getSuffix(Key value, int length);
+
+    /**
+     * Reverses {@link #getSuffix(Object, int)}.
+     *
+     * @param prefix the value the prefix is taken from.
+     * @param length the length of the prefix, it is not 0.
+     * @param suffix
+     * @return the prefix of the given length followed by the suffix.
+     */
+    public Key join(Key prefix, int length, Key suffix);
+}
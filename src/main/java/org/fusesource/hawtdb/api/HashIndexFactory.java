@@ -62,6 +62,7 @@ public class HashIndexFactory<Key, Value> implements IndexFactory<Key, Value> {
     private int minimumBucketCapacity = DEFAULT_MINIMUM_BUCKET_CAPACITY;
     private int loadFactor = DEFAULT_LOAD_FACTOR;
     private boolean deferredEncoding=true;
+    private boolean counted;
 
     /**
      * Loads an existing hash index from the paged object.
@@ -232,4 +233,23 @@ public class HashIndexFactory<Key, Value> implements IndexFactory<Key, Value> {
         this.deferredEncoding = enable;
     }
 
+    /**
+     * @return true if the b+trees of the buckets count their entries.
+     */
+    public boolean isCounted() {
+        return counted;
+    }
+
+    /**
+     * When enabled, the b+trees of the buckets count their entries, so
+     * that the size of a bucket is read from its root instead of its leaves.
+     * It has to be configured the same way every time the index is opened.
+     *
+     * @see BTreeIndexFactory#setCounted(boolean)
+     * @param counted should the buckets count their entries.
+     */
+    public void setCounted(boolean counted) {
+        this.counted = counted;
+    }
+
 }
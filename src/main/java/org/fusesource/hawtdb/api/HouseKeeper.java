@@ -0,0 +1,278 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of threads which does the house keeping work of many
+ * stores, so that a JVM running lots of small stores does not need a
+ * worker thread for each of them.
+ *
+ * Every store gets its own queue.  The tasks of a queue run one at a
+ * time and in order, and the queues take turns running a task, so a busy
+ * store can not hold up the others.  Syncs of stores on the same device
+ * can be coalesced: while one sync runs, the syncs requested by other
+ * stores are collected and then run back to back.
+ *
+ * <pre>
+ * HouseKeeper houseKeeper = new HouseKeeper(2);
+ * factory.setHouseKeeper(houseKeeper);
+ * ...
+ * houseKeeper.shutdown();
+ * </pre>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class HouseKeeper {
+
+    private final ExecutorService pool;
+    private final ScheduledExecutorService timer;
+    private final HashMap<String, SyncGroup> syncGroups = new HashMap<String, SyncGroup>();
+    private boolean coalesceSyncs;
+
+    /**
+     * @param threads the number of threads doing the house keeping work.
+     */
+    public HouseKeeper(int threads) {
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread rc = new Thread(r);
+                rc.setName("HawtDB House Keeper");
+                rc.setDaemon(true);
+                return rc;
+            }
+        });
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread rc = new Thread(r);
+                rc.setName("HawtDB House Keeping Timer");
+                rc.setDaemon(true);
+                return rc;
+            }
+        });
+    }
+
+    /**
+     * @return a new queue which runs its tasks one at a time, in order.
+     */
+    public Executor createQueue() {
+        return new Queue();
+    }
+
+    /**
+     * Runs a task on a queue every period.  The timer only hands the task
+     * to the queue, so the task takes its turn with the other queues.
+     *
+     * @return the future used to cancel the task.
+     */
+    public ScheduledFuture<?> executePeriodically(final Executor queue, final Runnable task, long period) {
+        return timer.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                queue.execute(task);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a sync of a file.  When syncs are coalesced, the syncs of files on
+     * the same device which are requested while one is running are run
+     * together once it is done.
+     */
+    public void sync(File file, Runnable sync) {
+        if( !isCoalesceSyncs() ) {
+            sync.run();
+            return;
+        }
+        String device = device(file);
+        SyncGroup group;
+        synchronized (syncGroups) {
+            group = syncGroups.get(device);
+            if( group==null ) {
+                group = new SyncGroup();
+                syncGroups.put(device, group);
+            }
+        }
+        group.sync(sync);
+    }
+
+    /**
+     * Maps a file to the device it is stored on.  Java can not tell which
+     * device a file is on, so files in the same directory are considered to
+     * be on the same device.  Override to map the files to mount points.
+     */
+    protected String device(File file) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        try {
+            return dir.getCanonicalPath();
+        } catch (IOException e) {
+            return dir.getPath();
+        }
+    }
+
+    /**
+     * Stops the threads.  The stores using the house keeper should be
+     * closed first.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        pool.shutdown();
+    }
+
+    public synchronized boolean isCoalesceSyncs() {
+        return coalesceSyncs;
+    }
+
+    /**
+     * Sets whether the syncs of stores on the same device are coalesced.
+     * Defaults to false.
+     */
+    public synchronized void setCoalesceSyncs(boolean coalesceSyncs) {
+        this.coalesceSyncs = coalesceSyncs;
+    }
+
+    /**
+     * Only takes one slot in the pool at a time.  After running a task it
+     * goes to the back of the pool's queue if it has more, which gives the
+     * other queues their turn.
+     */
+    private final class Queue implements Executor, Runnable {
+
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+        private boolean scheduled;
+
+        public void execute(Runnable task) {
+            synchronized (this) {
+                tasks.addLast(task);
+                if( scheduled ) {
+                    return;
+                }
+                scheduled = true;
+            }
+            pool.execute(this);
+        }
+
+        public void run() {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.removeFirst();
+            }
+            try {
+                task.run();
+            } finally {
+                synchronized (this) {
+                    if( tasks.isEmpty() ) {
+                        scheduled = false;
+                        task = null;
+                    }
+                }
+                if( task!=null ) {
+                    pool.execute(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * The syncs requested for one device.  The first thread to show up runs
+     * the pending syncs while the others wait for their sync to be done.
+     */
+    private static final class SyncGroup {
+
+        private static final class Request {
+            final Runnable sync;
+            Throwable failure;
+
+            Request(Runnable sync) {
+                this.sync = sync;
+            }
+        }
+
+        private ArrayList<Request> pending = new ArrayList<Request>();
+        /** the round the pending requests will run in */
+        private long round;
+        /** the last round that is done */
+        private long done = -1;
+        private boolean syncing;
+
+        void sync(Runnable sync) {
+            Request request = new Request(sync);
+            ArrayList<Request> requests;
+            long myRound;
+            synchronized (this) {
+                pending.add(request);
+                myRound = round;
+                while( syncing && done < myRound ) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new PagingException("Interrupted while waiting for a sync", e);
+                    }
+                }
+                if( done < myRound ) {
+                    // Nobody picked up our round, so we run it.
+                    syncing = true;
+                    requests = pending;
+                    pending = new ArrayList<Request>();
+                    round++;
+                } else {
+                    requests = null;
+                }
+            }
+
+            if( requests!=null ) {
+                try {
+                    for (Request r : requests) {
+                        try {
+                            r.sync.run();
+                        } catch (Throwable e) {
+                            r.failure = e;
+                        }
+                    }
+                } finally {
+                    synchronized (this) {
+                        syncing = false;
+                        done = myRound;
+                        notifyAll();
+                    }
+                }
+            }
+
+            if( request.failure instanceof RuntimeException ) {
+                throw (RuntimeException) request.failure;
+            }
+            if( request.failure instanceof Error ) {
+                throw (Error) request.failure;
+            }
+            if( request.failure!=null ) {
+                throw new PagingException(request.failure);
+            }
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package org.fusesource.hawtdb.api;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -65,6 +66,22 @@ public interface Index<Key,Value> {
      */
     Value put(Key key, Value entry);
 
+    /**
+     * Stores a batch of entries.  The entries are applied in key order, so
+     * that the entries which are stored together only get updated once.
+     *
+     * @param entries
+     */
+    void putAll(Map<? extends Key, ? extends Value> entries);
+
+    /**
+     * Removes a batch of keys.  The keys are removed in key order, so that
+     * the entries which are stored together only get updated once.
+     *
+     * @param keys
+     */
+    void removeAll(Collection<? extends Key> keys);
+
     /**
      * get the value at the given key, or put it if null.
      *
@@ -90,4 +107,21 @@ public interface Index<Key,Value> {
      */
     int getIndexLocation();
 
+    /**
+     * Moves the pages of the index which are stored at or past the boundary
+     * page to the lowest free pages and rewrites the references to them.
+     * The page holding the root of the index does not move.
+     *
+     * The walk starts where the relocation's previous call stopped, and
+     * stops once the budget is used up.  The relocation is done once the
+     * whole index was walked or there is no free page left in front of the
+     * page to move.
+     *
+     * @param relocation the progress of the moves, updated by the call.
+     * @param budget the maximum number of pages to move.
+     * @return the number of pages moved.
+     * @see Compactor
+     */
+    int relocate(Relocation relocation, int budget);
+
 }
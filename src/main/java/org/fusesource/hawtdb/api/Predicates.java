@@ -16,7 +16,9 @@
  */
 package org.fusesource.hawtdb.api;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
@@ -27,13 +29,100 @@ import java.util.List;
  */
 final public class Predicates {
     
+    /**
+     * A range of keys.  A null bound leaves that end of the range open.
+     *
+     * @param <Key>
+     */
+    public static final class Range<Key> {
+        private final Key first;
+        private final boolean firstInclusive;
+        private final Key last;
+        private final boolean lastInclusive;
+
+        public Range(Key first, boolean firstInclusive, Key last, boolean lastInclusive) {
+            this.first = first;
+            this.firstInclusive = firstInclusive;
+            this.last = last;
+            this.lastInclusive = lastInclusive;
+        }
+
+        /**
+         * @return the first key of the range, null if the range has no lower bound.
+         */
+        public Key getFirst() {
+            return first;
+        }
+
+        public boolean isFirstInclusive() {
+            return firstInclusive;
+        }
+
+        /**
+         * @return the last key of the range, null if the range has no upper bound.
+         */
+        public Key getLast() {
+            return last;
+        }
+
+        public boolean isLastInclusive() {
+            return lastInclusive;
+        }
+
+        /**
+         * @return true if the range starts after the key.
+         */
+        public boolean startsAfter(Key key, Comparator<Key> comparator) {
+            if( first==null ) {
+                return false;
+            }
+            int rc = compare(key, first, comparator);
+            return rc < 0 || (rc==0 && !firstInclusive);
+        }
+
+        /**
+         * @return true if the range ends before the key.
+         */
+        public boolean endsBefore(Key key, Comparator<Key> comparator) {
+            if( last==null ) {
+                return false;
+            }
+            int rc = compare(key, last, comparator);
+            return rc > 0 || (rc==0 && !lastInclusive);
+        }
+
+        boolean isEmpty(Comparator<Key> comparator) {
+            if( first==null || last==null ) {
+                return false;
+            }
+            int rc = compare(first, last, comparator);
+            return rc > 0 || (rc==0 && !(firstInclusive && lastInclusive));
+        }
+
+        @Override
+        public String toString() {
+            return (first==null ? "(*" : (firstInclusive ? "[" : "(")+first)+", "+(last==null ? "*)" : last+(lastInclusive ? "]" : ")"));
+        }
+    }
+
+    /**
+     * Implemented by the predicates which can tell which ranges of keys
+     * they are interested in.
+     */
+    interface Bounded<Key> {
+        /**
+         * @return the ranges in ascending order, not overlapping.
+         */
+        List<Range<Key>> ranges(Comparator<Key> comparator);
+    }
+
     /**
      * Implements a logical OR predicate over a list of predicate expressions.
      *
      * @param <Key>
      * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
      */
-    static class OrPredicate<Key> implements Predicate<Key> {
+    static class OrPredicate<Key> implements Predicate<Key>, Bounded<Key> {
         private final List<Predicate<Key>> conditions;
 
         public OrPredicate(List<Predicate<Key>> conditions) {
@@ -58,6 +147,18 @@ final public class Predicates {
             return false;
         }
 
+        public List<Range<Key>> ranges(Comparator<Key> comparator) {
+            ArrayList<Range<Key>> rc = new ArrayList<Range<Key>>();
+            for (Predicate<Key> condition : conditions) {
+                List<Range<Key>> ranges = Predicates.ranges(condition, comparator);
+                if( ranges==null ) {
+                    return null;
+                }
+                rc.addAll(ranges);
+            }
+            return union(rc, comparator);
+        }
+
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder();
@@ -81,7 +182,7 @@ final public class Predicates {
      * @param <Key> 
      * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
      */
-    static class AndPredicate<Key> implements Predicate<Key> {
+    static class AndPredicate<Key> implements Predicate<Key>, Bounded<Key> {
         private final List<Predicate<Key>> conditions;
 
         public AndPredicate(List<Predicate<Key>> conditions) {
@@ -106,6 +207,21 @@ final public class Predicates {
             return true;
         }
 
+        /**
+         * The conditions which can't be bounded only narrow down the keys
+         * in the ranges of the others.
+         */
+        public List<Range<Key>> ranges(Comparator<Key> comparator) {
+            List<Range<Key>> rc = null;
+            for (Predicate<Key> condition : conditions) {
+                List<Range<Key>> ranges = Predicates.ranges(condition, comparator);
+                if( ranges!=null ) {
+                    rc = rc==null ? ranges : intersection(rc, ranges, comparator);
+                }
+            }
+            return rc;
+        }
+
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder();
@@ -144,7 +260,7 @@ final public class Predicates {
      * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
      */
     @SuppressWarnings({"unchecked"})
-    static class BetweenPredicate<Key> extends ComparingPredicate<Key> {
+    static class BetweenPredicate<Key> extends ComparingPredicate<Key> implements Bounded<Key> {
         private final Key first;
         private final Key last;
 
@@ -162,6 +278,10 @@ final public class Predicates {
             return compare(key, first, comparator) >=0 && compare(key, last, comparator) <0;
         }
 
+        public List<Range<Key>> ranges(Comparator<Key> comparator) {
+            return range(new Range<Key>(first, true, last, false), comparator);
+        }
+
         @Override
         public String toString() {
             return first+" <= key < "+last;
@@ -176,7 +296,7 @@ final public class Predicates {
      * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
      */
     @SuppressWarnings({"unchecked"})
-    static class GTPredicate<Key> extends ComparingPredicate<Key> {
+    static class GTPredicate<Key> extends ComparingPredicate<Key> implements Bounded<Key> {
         final private Key value;
 
         public GTPredicate(Key value) {
@@ -191,6 +311,10 @@ final public class Predicates {
             return compare(key, value, comparator) > 0;
         }
 
+        public List<Range<Key>> ranges(Comparator<Key> comparator) {
+            return range(new Range<Key>(value, false, null, false), comparator);
+        }
+
         @Override
         public String toString() {
             return "key > "+ value;
@@ -205,7 +329,7 @@ final public class Predicates {
      * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
      */
     @SuppressWarnings({"unchecked"})
-    static class GTEPredicate<Key> extends ComparingPredicate<Key> {
+    static class GTEPredicate<Key> extends ComparingPredicate<Key> implements Bounded<Key> {
         final private Key value;
 
         public GTEPredicate(Key value) {
@@ -220,6 +344,10 @@ final public class Predicates {
             return compare(key, value, comparator)>=0;
         }
 
+        public List<Range<Key>> ranges(Comparator<Key> comparator) {
+            return range(new Range<Key>(value, true, null, false), comparator);
+        }
+
         @Override
         public String toString() {
             return "key >= "+ value;
@@ -234,7 +362,7 @@ final public class Predicates {
      * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
      */
     @SuppressWarnings({"unchecked"})
-    static class LTPredicate<Key> extends ComparingPredicate<Key> {
+    static class LTPredicate<Key> extends ComparingPredicate<Key> implements Bounded<Key> {
         final private Key value;
 
         public LTPredicate(Key value) {
@@ -249,6 +377,10 @@ final public class Predicates {
             return compare(key, value, comparator)<0;
         }
 
+        public List<Range<Key>> ranges(Comparator<Key> comparator) {
+            return range(new Range<Key>(null, false, value, false), comparator);
+        }
+
         @Override
         public String toString() {
             return "key < "+ value;
@@ -263,7 +395,7 @@ final public class Predicates {
      * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
      */
     @SuppressWarnings({"unchecked"})
-    static class LTEPredicate<Key> extends ComparingPredicate<Key> {
+    static class LTEPredicate<Key> extends ComparingPredicate<Key> implements Bounded<Key> {
         final private Key value;
 
         public LTEPredicate(Key value) {
@@ -278,6 +410,10 @@ final public class Predicates {
             return compare(key, value, comparator)<=0;
         }
 
+        public List<Range<Key>> ranges(Comparator<Key> comparator) {
+            return range(new Range<Key>(null, false, value, true), comparator);
+        }
+
         @Override
         public String toString() {
             return "key <= "+ value;
@@ -291,13 +427,16 @@ final public class Predicates {
      * @param <Key> the class being compared
      * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
      */
-    final static class AllPredicate<Key> implements Predicate<Key> {
+    final static class AllPredicate<Key> implements Predicate<Key>, Bounded<Key> {
         public boolean isInterestedInKeysBetween(Key first, Key second, Comparator comparator) {
             return true;
         }
         public boolean isInterestedInKey(Key key, Comparator comparator) {
             return true;
         }
+        public List<Range<Key>> ranges(Comparator<Key> comparator) {
+            return range(new Range<Key>(null, false, null, false), comparator);
+        }
         @Override
         public String toString() {
             return "all";
@@ -310,13 +449,16 @@ final public class Predicates {
      * @param <Key> the class being compared
      * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
      */
-    final static class NonePredicate<Key> implements Predicate<Key> {
+    final static class NonePredicate<Key> implements Predicate<Key>, Bounded<Key> {
         public boolean isInterestedInKeysBetween(Key first, Key second, Comparator comparator) {
             return false;
         }
         public boolean isInterestedInKey(Key key, Comparator comparator) {
             return false;
         }
+        public List<Range<Key>> ranges(Comparator<Key> comparator) {
+            return new ArrayList<Range<Key>>(0);
+        }
         @Override
         public String toString() {
             return "none";
@@ -367,6 +509,123 @@ final public class Predicates {
         return new BetweenPredicate<Key>(first, last);
     }
 
+    /**
+     * Plans the scan of a sorted index for a predicate.  The ranges of keys
+     * the predicate can be interested in let the index seek to the start of
+     * each range and scan it up to its end, instead of asking the predicate
+     * about every node on the way.  The keys in the ranges still have to be
+     * checked with the predicate.
+     *
+     * @param predicate
+     * @param comparator the Comparator configured for the index, may be null.
+     * @return the ranges in ascending order, not overlapping, or null if the
+     *         predicate can't be bounded, like a custom predicate or an OR
+     *         over one.
+     */
+    @SuppressWarnings("unchecked")
+    public static <Key> List<Range<Key>> ranges(Predicate<Key> predicate, Comparator<Key> comparator) {
+        if( predicate instanceof Bounded ) {
+            return ((Bounded<Key>) predicate).ranges(comparator);
+        }
+        return null;
+    }
+
+    private static <Key> List<Range<Key>> range(Range<Key> range, Comparator<Key> comparator) {
+        ArrayList<Range<Key>> rc = new ArrayList<Range<Key>>(1);
+        if( !range.isEmpty(comparator) ) {
+            rc.add(range);
+        }
+        return rc;
+    }
+
+    /**
+     * Compares the lower bounds of two ranges, an open one comes first.
+     */
+    private static <Key> int compareFirst(Range<Key> a, Range<Key> b, Comparator<Key> comparator) {
+        if( a.first==null || b.first==null ) {
+            return a.first==null ? (b.first==null ? 0 : -1) : 1;
+        }
+        int rc = compare(a.first, b.first, comparator);
+        if( rc==0 && a.firstInclusive!=b.firstInclusive ) {
+            rc = a.firstInclusive ? -1 : 1;
+        }
+        return rc;
+    }
+
+    /**
+     * Compares the upper bounds of two ranges, an open one comes last.
+     */
+    private static <Key> int compareLast(Range<Key> a, Range<Key> b, Comparator<Key> comparator) {
+        if( a.last==null || b.last==null ) {
+            return a.last==null ? (b.last==null ? 0 : 1) : -1;
+        }
+        int rc = compare(a.last, b.last, comparator);
+        if( rc==0 && a.lastInclusive!=b.lastInclusive ) {
+            rc = a.lastInclusive ? 1 : -1;
+        }
+        return rc;
+    }
+
+    private static <Key> List<Range<Key>> intersection(List<Range<Key>> a, List<Range<Key>> b, Comparator<Key> comparator) {
+        ArrayList<Range<Key>> rc = new ArrayList<Range<Key>>();
+        int i = 0;
+        int j = 0;
+        while( i < a.size() && j < b.size() ) {
+            Range<Key> x = a.get(i);
+            Range<Key> y = b.get(j);
+            Range<Key> first = compareFirst(x, y, comparator) >= 0 ? x : y;
+            int last = compareLast(x, y, comparator);
+            Range<Key> end = last <= 0 ? x : y;
+            Range<Key> range = new Range<Key>(first.first, first.firstInclusive, end.last, end.lastInclusive);
+            if( !range.isEmpty(comparator) ) {
+                rc.add(range);
+            }
+            if( last <= 0 ) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return rc;
+    }
+
+    private static <Key> List<Range<Key>> union(List<Range<Key>> ranges, final Comparator<Key> comparator) {
+        Collections.sort(ranges, new Comparator<Range<Key>>() {
+            public int compare(Range<Key> a, Range<Key> b) {
+                return compareFirst(a, b, comparator);
+            }
+        });
+        ArrayList<Range<Key>> rc = new ArrayList<Range<Key>>();
+        Range<Key> current = null;
+        for (Range<Key> range : ranges) {
+            if( current!=null && current.last!=null && range.first!=null ) {
+                int gap = compare(range.first, current.last, comparator);
+                if( gap > 0 || (gap==0 && !range.firstInclusive && !current.lastInclusive) ) {
+                    rc.add(current);
+                    current = null;
+                }
+            }
+            if( current==null ) {
+                current = range;
+            } else if( compareLast(range, current, comparator) > 0 ) {
+                current = new Range<Key>(current.first, current.firstInclusive, range.last, range.lastInclusive);
+            }
+        }
+        if( current!=null ) {
+            rc.add(current);
+        }
+        return rc;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <Key> int compare(Key key, Key value, Comparator<Key> comparator) {
+        if( comparator==null ) {
+            return ((Comparable<Key>)key).compareTo(value);
+        } else {
+            return comparator.compare(key, value);
+        }
+    }
+
     /**
      * Uses a predicates to select the keys that will be visited.
      *
@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.api;
+
+/**
+ * Tracks how far the moves of the pages of an index in front of a boundary
+ * page got.  The moves are split over many transactions, and each one hands
+ * the same relocation to {@link Index#relocate(Relocation, int)} so that it
+ * picks up where the previous one stopped instead of walking the index
+ * from the start again.
+ *
+ * @see Compactor
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public final class Relocation {
+
+    private int boundary;
+    private Object position;
+    private boolean done;
+
+    /**
+     * @param boundary pages at or past this page get moved.
+     */
+    public Relocation(int boundary) {
+        this.boundary = boundary;
+    }
+
+    public int getBoundary() {
+        return boundary;
+    }
+
+    /**
+     * Moves the boundary between two calls, as concurrent transactions
+     * change how many pages are in use.  Pages the walk already passed are
+     * not looked at again.
+     */
+    public void setBoundary(int boundary) {
+        this.boundary = boundary;
+    }
+
+    /**
+     * @return where the index stopped, null to start at the beginning.  Only
+     *         the index knows what it means.
+     */
+    public Object getPosition() {
+        return position;
+    }
+
+    public void setPosition(Object position) {
+        this.position = position;
+    }
+
+    /**
+     * @return true once the whole index was walked, or there was no free
+     *         page left in front of the page to move.
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    public void setDone(boolean done) {
+        this.done = done;
+    }
+
+    @Override
+    public String toString() {
+        return "{ boundary: "+boundary+", position: "+position+", done: "+done+" }";
+    }
+}
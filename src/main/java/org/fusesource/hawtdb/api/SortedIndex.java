@@ -46,6 +46,58 @@ public interface SortedIndex<Key,Value> extends Index<Key,Value>, Iterable<Map.E
      */
     public Iterator<Map.Entry<Key, Value>> iterator(Key initialKey);
 
+    /**
+     * @return an iterator over the entries in descending key order.
+     */
+    public Iterator<Map.Entry<Key,Value>> descendingIterator();
+
+    /**
+     * @param initialKey the first key, or null to start at the first or last entry.
+     * @param descending iterate in descending key order, starting at the
+     *        last key which is not above the initial key.
+     * @return
+     */
+    public Iterator<Map.Entry<Key, Value>> iterator(Key initialKey, boolean descending);
+
+    /**
+     * @param predicate
+     * @param descending iterate in descending key order.
+     * @return
+     */
+    public Iterator<Map.Entry<Key,Value>> iterator(Predicate<Key> predicate, boolean descending);
+
+    /**
+     * Iterates the entries starting at a position, so that the entries
+     * can be paged through by offset.  It takes a walk down the tree if
+     * the index counts its entries, else the entries in front of the
+     * offset get counted.
+     *
+     * @param offset the position of the first entry, starting at 0.
+     * @return
+     */
+    public Iterator<Map.Entry<Key, Value>> iteratorAt(int offset);
+
+    /**
+     * Gets the position of a key.  It takes a walk down the tree if the
+     * index counts its entries, else the entries in front of the key get
+     * counted.
+     *
+     * @param key
+     * @return the number of entries with keys below the key, which is the
+     *         position of the key if the index contains it.
+     */
+    public int rank(Key key);
+
+    /**
+     * Removes the entries with keys in a range.  The nodes which only hold
+     * entries of the range are freed as a whole instead of removing the
+     * entries one by one, so that only the nodes at the ends of the range
+     * get changed.
+     *
+     * @param from the first key of the range, or null to start at the first entry.
+     * @param to the key the range ends in front of, or null to end after the last entry.
+     */
+    public void removeRange(Key from, Key to);
 
     /**
      * Traverses the visitor over the stored entries in this index.  The visitor can control
@@ -0,0 +1,43 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.api;
+
+
+/**
+ * StringFrontCoder is a {@link FrontCoder} implementation that works on strings.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class StringFrontCoder implements FrontCoder<String> {
+
+    public int getSharedLength(String value1, String value2) {
+        int n = Math.min(value1.length(), value2.length());
+        int i = 0;
+        while (i < n && value1.charAt(i) == value2.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    public String getSuffix(String value, int length) {
+        return value.substring(length);
+    }
+
+    public String join(String prefix, int length, String suffix) {
+        return new StringBuilder(length + suffix.length()).append(prefix, 0, length).append(suffix).toString();
+    }
+}
@@ -16,7 +16,7 @@
  */
 package org.fusesource.hawtdb.api;
 
-
+import java.util.concurrent.Future;
 
 /**
  * Provides transactional access to a {@link Paged} resource.
@@ -75,5 +75,26 @@ public interface Transaction extends Paged {
      * @param runnable
      */
     void onFlush(Runnable runnable);
+
+    /**
+     * Commits the transaction without waiting for it to be secured to physical
+     * media.  The returned future completes once the batch holding the commit
+     * has been synced to disk.  Completion is signaled from the page file's
+     * completion thread, so a single producer thread can keep many durable
+     * commits in flight.
+     *
+     * Blocking on the returned future without a timeout forces the page
+     * file to flush on the blocking thread, so don't block on it from within
+     * a flush callback.  With a timeout, the flush only gets queued.  If
+     * storing or syncing the commit fails, or the page file gets closed
+     * first, the future throws the failure as the cause of an
+     * ExecutionException.
+     *
+     * @return a future which completes once the commit is durable.
+     * @throws OptimisticUpdateException
+     *      is thrown if the update would conflict with a concurrent
+     *      updated performed by another thread.
+     */
+    Future<Void> commitAsync() throws OptimisticUpdateException;
 	
 }
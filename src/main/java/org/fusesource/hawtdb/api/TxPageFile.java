@@ -37,4 +37,33 @@ public interface TxPageFile {
      */
     public void flush(Runnable onComplete);
 
+    /**
+     * @return the number of pages which are currently allocated.  A fully
+     *         compacted file holds just these pages.
+     */
+    public int getPagesInUse();
+
+    /**
+     * @return the number of pages which can not be reused yet because open
+     *         snapshots may still read them.  Long running snapshots keep
+     *         this number growing.
+     */
+    public int getPinnedPages();
+
+    /**
+     * @return how many milliseconds ago the oldest open snapshot was opened,
+     *         0 if no snapshot is open.
+     */
+    public long getOldestSnapshotAge();
+
+    /**
+     * Flushes the page file and then shrinks it so that it ends after the
+     * last page in use.  Pages freed by transactions can only be reclaimed
+     * once the snapshots that could still read them are closed.
+     *
+     * @return the new size of the file in bytes.
+     * @see Compactor
+     */
+    public long truncate();
+
 }
\ No newline at end of file
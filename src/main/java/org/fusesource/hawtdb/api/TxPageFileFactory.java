@@ -17,6 +17,8 @@
 package org.fusesource.hawtdb.api;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.fusesource.hawtdb.internal.page.HawtPageFile;
 import org.fusesource.hawtdb.internal.page.HawtTxPageFile;
@@ -41,6 +43,18 @@ public class TxPageFileFactory {
     protected boolean sync = true;
     protected boolean useWorkerThread;
     private int cacheSize = 1024;
+    private int allocationStripes;
+    private boolean usePageTable;
+    private int encodingThreads;
+    private int spillThreshold;
+    private HouseKeeper houseKeeper;
+    private boolean lazyRecovery;
+    private boolean warmUp;
+    private long warmUpPeriod = 60*1000;
+    private int warmUpRate;
+    private int warmUpThreads = 1;
+    private final HashMap<Integer, BTreeIndexFactory<?, ?>> warmUpIndexes = new HashMap<Integer, BTreeIndexFactory<?, ?>>();
+    private final HashMap<Integer, BTreeIndexFactory<?, ?>> redoIndexes = new HashMap<Integer, BTreeIndexFactory<?, ?>>();
 
     public TxPageFileFactory() {
         pageFileFactory.setHeaderSize(HawtTxPageFile.FILE_HEADER_SIZE);
@@ -59,12 +73,18 @@ public class TxPageFileFactory {
         boolean existed = getFile().isFile();
         pageFileFactory.open();
         if (txPageFile == null) {
-            txPageFile = new HawtTxPageFile(this, (HawtPageFile) pageFileFactory.getPageFile());
-            if( existed ) {
-                txPageFile.recover();
-            } else {
-                txPageFile.reset();
+            HawtTxPageFile rc = new HawtTxPageFile(this, (HawtPageFile) pageFileFactory.getPageFile());
+            try {
+                if( existed ) {
+                    rc.recover();
+                } else {
+                    rc.reset();
+                }
+            } catch (RuntimeException e) {
+                pageFileFactory.close();
+                throw e;
             }
+            txPageFile = rc;
         }
         traceEnd(LOG, "TxPageFileFactory.open");
     }
@@ -155,4 +175,184 @@ public class TxPageFileFactory {
     public void setCacheSize(int cacheSize) {
         this.cacheSize = cacheSize;
     }
+
+    public int getAllocationStripes() {
+        return allocationStripes;
+    }
+
+    /**
+     * Sets the number of allocation arenas that concurrent transactions
+     * allocate pages from.  Each arena caches a small chunk of free pages so
+     * that transaction threads do not all contend on one allocator lock.
+     * A good value is about twice the number of cores.  Defaults to 0, which
+     * disables the arenas.
+     */
+    public void setAllocationStripes(int allocationStripes) {
+        this.allocationStripes = allocationStripes;
+    }
+
+    public boolean isUsePageTable() {
+        return usePageTable;
+    }
+
+    /**
+     * Sets whether the file keeps a page table which maps pages to the
+     * location of their current contents.  Committed updates are then applied
+     * by updating the table instead of copying each updated page back onto
+     * its original location, which about halves the pages written.  The
+     * setting is stored in the file when it is created and has to match when
+     * the file is opened again.  Defaults to false.
+     */
+    public void setUsePageTable(boolean usePageTable) {
+        this.usePageTable = usePageTable;
+    }
+
+    public int getEncodingThreads() {
+        return encodingThreads;
+    }
+
+    /**
+     * Sets the number of threads which encode the deferred updates of a
+     * batch when it gets stored.  With more than one thread the encoders of
+     * the stored objects are called concurrently, so they must be thread
+     * safe.  Defaults to 0, which encodes the updates on the house keeping
+     * thread.
+     */
+    public void setEncodingThreads(int encodingThreads) {
+        this.encodingThreads = encodingThreads;
+    }
+
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * Sets how many values put with the cache API a transaction keeps in
+     * memory.  Once a transaction goes over the threshold, the values get
+     * encoded onto the pages they will be stored at and only the page
+     * references are kept, which bounds the memory used by bulk loads done
+     * in a single transaction.  Commit and rollback work the same.
+     * Defaults to 0, which keeps all the values in memory until the batch
+     * gets stored.
+     */
+    public void setSpillThreshold(int spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    public HouseKeeper getHouseKeeper() {
+        return houseKeeper;
+    }
+
+    /**
+     * Sets the house keeper which does the house keeping work of the page
+     * file instead of a worker thread of its own.  Many page files can share
+     * one house keeper.  Defaults to null.
+     */
+    public void setHouseKeeper(HouseKeeper houseKeeper) {
+        this.houseKeeper = houseKeeper;
+    }
+
+    public boolean isLazyRecovery() {
+        return lazyRecovery;
+    }
+
+    /**
+     * Sets whether opening a file which was not closed cleanly returns as
+     * soon as the stored batches are loaded.  The updates of those batches
+     * get applied in the background, on the worker thread if there is one,
+     * and transactions read through them until then.  Files with logged
+     * index operations to replay are still recovered before open returns.
+     * Defaults to false.
+     */
+    public void setLazyRecovery(boolean lazyRecovery) {
+        this.lazyRecovery = lazyRecovery;
+    }
+
+    public boolean isWarmUp() {
+        return warmUp;
+    }
+
+    /**
+     * Sets whether the ids of the hottest pages in the read cache get
+     * recorded in a manifest next to the file, every warm up period and on
+     * close.  When the file gets opened again, background threads read
+     * those pages in so they are not faulted in by the first lookups, and
+     * load the nodes of the warm up indexes which are stored at them into
+     * the read cache.  Defaults to false.
+     */
+    public void setWarmUp(boolean warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    public long getWarmUpPeriod() {
+        return warmUpPeriod;
+    }
+
+    /**
+     * Sets how often, in milliseconds, the manifest of hot pages gets
+     * recorded.  Defaults to 60000.
+     */
+    public void setWarmUpPeriod(long warmUpPeriod) {
+        this.warmUpPeriod = warmUpPeriod;
+    }
+
+    public int getWarmUpRate() {
+        return warmUpRate;
+    }
+
+    /**
+     * Sets how many pages per second the warm up reads, so that it does not
+     * starve the lookups done while it runs.  Defaults to 0, which does not
+     * limit the rate.
+     */
+    public void setWarmUpRate(int warmUpRate) {
+        this.warmUpRate = warmUpRate;
+    }
+
+    public int getWarmUpThreads() {
+        return warmUpThreads;
+    }
+
+    /**
+     * Sets how many threads read the pages in parallel.  Defaults to 1.
+     */
+    public void setWarmUpThreads(int warmUpThreads) {
+        this.warmUpThreads = warmUpThreads;
+    }
+
+    public Map<Integer, BTreeIndexFactory<?, ?>> getWarmUpIndexes() {
+        return warmUpIndexes;
+    }
+
+    /**
+     * Registers an index whose nodes get loaded into the read cache by the
+     * warm up.  Only the nodes the index reaches from its root are loaded,
+     * so a manifest which is out of date does not load stale pages.
+     *
+     * @param page the location of the index.
+     * @param factory the factory the index was created with.
+     */
+    public void addWarmUpIndex(int page, BTreeIndexFactory<?, ?> factory) {
+        warmUpIndexes.put(page, factory);
+    }
+
+    public Map<Integer, BTreeIndexFactory<?, ?>> getRedoIndexes() {
+        return redoIndexes;
+    }
+
+    /**
+     * Logs the operations of an index instead of the node pages they update.
+     * Flushing commits which only did operations on logged indexes just
+     * writes their operations, the updated nodes are written once the batch
+     * fills up or the file gets closed.  On recovery the operations which
+     * were not written as nodes yet are replayed, so the index has to be
+     * registered before the file is opened.  The index has to be created
+     * before its operations can be logged.
+     *
+     * @param page the location of the index.
+     * @param factory the factory the index was created with.
+     */
+    public void addRedoIndex(int page, BTreeIndexFactory<?, ?> factory) {
+        redoIndexes.put(page, factory);
+    }
 }
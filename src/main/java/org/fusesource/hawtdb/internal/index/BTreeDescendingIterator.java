@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.index;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Map.Entry;
+
+/**
+ * Iterates the entries of a BTree in descending order.  The leaves only
+ * point to the next one, so it keeps the path from the root to the
+ * current leaf and gets to the previous leaf by going up to the first
+ * branch which has a child left of the path, and then down the right
+ * edge of that child.  Like the forward iteration, that loads about one
+ * node per leaf, and it seeks to the key in front of the last one it
+ * returned if the tree got changed in the meantime.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class BTreeDescendingIterator<Key, Value> implements Iterator<Map.Entry<Key, Value>> {
+
+    private final BTreeIndex<Key, Value> index;
+    // The branches on the path to the current leaf, and the positions of
+    // the children the path goes through.
+    private final ArrayList<BTreeNode<Key, Value>> path = new ArrayList<BTreeNode<Key, Value>>();
+    private int[] positions = new int[8];
+    BTreeNode<Key, Value> current;
+    int nextIndex;
+    Map.Entry<Key, Value> nextEntry;
+    // The key of the last entry, and the changes of the index up to then.
+    private Key last;
+    private int changes;
+
+    /**
+     * @param startKey the iteration starts at the last key which is not
+     *        above it, null to start at the last key.
+     */
+    BTreeDescendingIterator(BTreeIndex<Key, Value> index, BTreeNode<Key, Value> root, Key startKey) {
+        this.index = index;
+        seek(root, startKey);
+    }
+
+    /**
+     * Goes down from the root to the last key which is not above the
+     * start key.
+     */
+    private void seek(BTreeNode<Key, Value> root, Key startKey) {
+        path.clear();
+        changes = index.getChanges();
+        BTreeNode<Key, Value> node = root.share(index);
+        while (node.isBranch()) {
+            int idx = node.data.size;
+            if (startKey != null) {
+                idx = BTreeNode.search(node.data, startKey, index.getComparator());
+                idx = idx < 0 ? -(idx + 1) : idx + 1;
+            }
+            node = push(node, idx);
+        }
+        current = node;
+        nextIndex = node.data.size - 1;
+        if (startKey != null) {
+            int idx = BTreeNode.search(node.data, startKey, index.getComparator());
+            nextIndex = idx < 0 ? -(idx + 1) - 1 : idx;
+        }
+    }
+
+    private BTreeNode<Key, Value> push(BTreeNode<Key, Value> branch, int idx) {
+        if (path.size() == positions.length) {
+            int[] grown = new int[positions.length * 2];
+            System.arraycopy(positions, 0, grown, 0, path.size());
+            positions = grown;
+        }
+        positions[path.size()] = idx;
+        path.add(branch);
+        return branch.getChild(index, idx).share(index);
+    }
+
+    /**
+     * Moves to the leaf in front of the current one.
+     *
+     * @return false if it is the first leaf.
+     */
+    private boolean previousLeaf() {
+        int depth = path.size() - 1;
+        while (depth >= 0 && positions[depth] == 0) {
+            path.remove(depth--);
+        }
+        if (depth < 0) {
+            return false;
+        }
+        BTreeNode<Key, Value> node = path.remove(depth);
+        node = push(node, positions[depth] - 1);
+        while (node.isBranch()) {
+            node = push(node, node.data.size);
+        }
+        current = node;
+        nextIndex = node.data.size - 1;
+        return true;
+    }
+
+    private void findNextPage() {
+        if (nextEntry != null) {
+            return;
+        }
+
+        while (current != null) {
+            if (nextIndex < 0) {
+                // we need to roll to the previous leaf..
+                if (last != null && changes != index.getChanges()) {
+                    seek(index.root(), last);
+                    if (nextIndex >= 0 && index.compare(current.data.keys[nextIndex], last) == 0) {
+                        nextIndex--;
+                    }
+                    if (nextIndex >= 0) {
+                        continue;
+                    }
+                }
+                if (!previousLeaf()) {
+                    current = null;
+                }
+            } else {
+                nextEntry = new MapEntry<Key, Value>(current.data.keys[nextIndex], current.data.values[nextIndex]);
+                last = nextEntry.getKey();
+                nextIndex--;
+                break;
+            }
+        }
+    }
+
+    public boolean hasNext() {
+        findNextPage();
+        return nextEntry != null;
+    }
+
+    public Entry<Key, Value> next() {
+        findNextPage();
+        if (nextEntry != null) {
+            Entry<Key, Value> lastEntry = nextEntry;
+            nextEntry = null;
+            return lastEntry;
+        } else {
+            throw new NoSuchElementException();
+        }
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
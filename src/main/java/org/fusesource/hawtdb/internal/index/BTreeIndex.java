@@ -19,15 +19,23 @@ package org.fusesource.hawtdb.internal.index;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.fusesource.hawtbuf.codec.Codec;
 import org.fusesource.hawtdb.api.*;
 import org.fusesource.hawtdb.internal.index.BTreeNode.Data;
 import org.fusesource.hawtdb.internal.page.Extent;
+import org.fusesource.hawtdb.internal.page.PrivateUpdates;
+import org.fusesource.hawtdb.internal.page.Redo;
+import org.fusesource.hawtdb.internal.page.RedoLogger;
 import org.fusesource.hawtbuf.Buffer;
 import org.fusesource.hawtbuf.DataByteArrayInputStream;
 import org.fusesource.hawtbuf.DataByteArrayOutputStream;
@@ -54,8 +62,14 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
     private final Codec<Key> keyCodec;
     private final Codec<Value> valueCodec;
     private final Prefixer<Key> prefixer;
+    private final FrontCoder<Key> frontCoder;
     private final boolean deferredEncoding;
+    private final boolean counted;
+    private final float mergeThreshold;
     private final Comparator comparator;
+    // Counts the nodes stored or freed through this index, so that its
+    // iterators can tell when the nodes they hold are out of date.
+    private int changes;
 
     public BTreeIndex(Paged paged, int page, BTreeIndexFactory<Key, Value> factory) {
         traceStart(LOG, "BTreeIndex.BTreeIndex(%s, %d, %s)", paged.getClass(), page, factory);
@@ -76,13 +90,18 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
         trace(LOG, "deferredEncoding = %b", this.deferredEncoding);
 
         this.prefixer = factory.getPrefixer();
+        // The suffix of a key can't be encoded with a fixed size.
+        this.frontCoder = keyCodec.getFixedSize()>=0 ? null : factory.getFrontCoder();
+        trace(LOG, "frontCoder = %s", this.frontCoder);
         this.comparator = factory.getComparator();
+        this.counted = factory.isCounted();
+        this.mergeThreshold = factory.getMergeThreshold();
         traceEnd(LOG, "BTreeIndex.BTreeIndex");
     }
 
     @Override
     public String toString() {
-        return "{ page: "+page+", deferredEncoding: "+deferredEncoding+" }";
+        return "{ page: "+page+", deferredEncoding: "+deferredEncoding+", counted: "+counted+" }";
     }
 
     public void create() {
@@ -109,25 +128,126 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
 
     public Value put(Key key, Value value) {
         traceStart(LOG, "BTreeIndex.put(%s, %s)", key, value);
-        Value ret = root().put(this, key, value);
+        RedoLogger log = beginRedo();
+        Value ret;
+        try {
+            ret = root().put(this, key, value);
+            log = endRedo(log, Redo.PUT, key, value);
+        } finally {
+            abortRedo(log);
+        }
         traceEnd(LOG, "BTreeIndex.put -> %s", ret);
         return ret;
     }
 
     public Value putIfAbsent(Key key, Value value) {
         traceStart(LOG, "BTreeIndex.putIfAbsent(%s, %s)", key, value);
-        Value ret = root().putIfAbsent(this, key, value);
+        RedoLogger log = beginRedo();
+        Value ret;
+        try {
+            ret = root().putIfAbsent(this, key, value);
+            log = endRedo(log, Redo.PUT_IF_ABSENT, key, value);
+        } finally {
+            abortRedo(log);
+        }
         traceEnd(LOG, "BTreeIndex.putIfAbsent -> %s", ret);
         return ret;
     }
 
     public Value remove(Key key) {
         traceStart(LOG, "BTreeIndex.remove(%s)", key);
-        Value ret = root().remove(this, key);
+        RedoLogger log = beginRedo();
+        Value ret;
+        try {
+            ret = root().remove(this, key);
+            log = endRedo(log, Redo.REMOVE, key, null);
+        } finally {
+            abortRedo(log);
+        }
         traceEnd(LOG, "BTreeIndex.remove -> %s", ret);
         return ret;
     }
 
+    @SuppressWarnings("unchecked")
+    public void putAll(Map<? extends Key, ? extends Value> entries) {
+        traceStart(LOG, "BTreeIndex.putAll(%d entries)", entries.size());
+        if (entries.isEmpty()) {
+            traceEnd(LOG, "BTreeIndex.putAll");
+            return;
+        }
+        List<Map.Entry<? extends Key, ? extends Value>> sorted = new ArrayList<Map.Entry<? extends Key, ? extends Value>>(entries.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<? extends Key, ? extends Value>>() {
+            public int compare(Map.Entry<? extends Key, ? extends Value> a, Map.Entry<? extends Key, ? extends Value> b) {
+                return BTreeIndex.this.compare(a.getKey(), b.getKey());
+            }
+        });
+        int count = sorted.size();
+        Key[] keys = (Key[]) new Object[count];
+        Value[] values = (Value[]) new Object[count];
+        for (int i = 0; i < count; i++) {
+            Map.Entry<? extends Key, ? extends Value> entry = sorted.get(i);
+            keys[i] = entry.getKey();
+            values[i] = entry.getValue();
+            if (keys[i] == null) {
+                throw new IllegalArgumentException("Key cannot be null");
+            }
+        }
+        RedoLogger log = beginRedo();
+        try {
+            for (int i = 0; i < count; ) {
+                i = root().putAll(this, keys, values, i, count);
+            }
+            log = endRedoAll(log, Redo.PUT, keys, values);
+        } finally {
+            abortRedo(log);
+        }
+        traceEnd(LOG, "BTreeIndex.putAll");
+    }
+
+    @SuppressWarnings("unchecked")
+    public void removeAll(Collection<? extends Key> keys) {
+        traceStart(LOG, "BTreeIndex.removeAll(%d keys)", keys.size());
+        if (keys.isEmpty()) {
+            traceEnd(LOG, "BTreeIndex.removeAll");
+            return;
+        }
+        Key[] sorted = (Key[]) keys.toArray();
+        Arrays.sort(sorted, new Comparator<Key>() {
+            public int compare(Key a, Key b) {
+                return BTreeIndex.this.compare(a, b);
+            }
+        });
+        RedoLogger log = beginRedo();
+        try {
+            for (int i = 0; i < sorted.length; ) {
+                i = root().removeAll(this, sorted, i, sorted.length);
+            }
+            log = endRedoAll(log, Redo.REMOVE, sorted, null);
+        } finally {
+            abortRedo(log);
+        }
+        traceEnd(LOG, "BTreeIndex.removeAll");
+    }
+
+    public void removeRange(Key from, Key to) {
+        traceStart(LOG, "BTreeIndex.removeRange(%s, %s)", from, to);
+        RedoLogger log = beginRedo();
+        try {
+            root().removeRange(this, from, to);
+            if( log!=null ) {
+                try {
+                    log.endRedo(new Redo(page, Redo.REMOVE_RANGE, from==null ? null : encode(keyCodec, from), to==null ? null : encode(keyCodec, to)));
+                } catch (IOException e) {
+                    throw new IndexException(e);
+                }
+                log = null;
+            }
+        } finally {
+            abortRedo(log);
+        }
+        traceEnd(LOG, "BTreeIndex.removeRange");
+    }
+
     public int size() {
         traceStart(LOG, "BTreeIndex.size()");
         int ret = root().size(this);
@@ -135,6 +255,13 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
         return ret;
     }
 
+    public int rank(Key key) {
+        traceStart(LOG, "BTreeIndex.rank(%s)", key);
+        int ret = root().rank(this, key);
+        traceEnd(LOG, "BTreeIndex.rank -> %d", ret);
+        return ret;
+    }
+
     public boolean isEmpty() {
         traceStart(LOG, "BTreeIndex.isEmpty()");
         boolean ret = root().isEmpty(this);
@@ -144,10 +271,50 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
 
     public void clear() {
         traceStart(LOG, "BTreeIndex.clear()");
-        root().clear(this);
+        RedoLogger log = beginRedo();
+        try {
+            root().clear(this);
+            log = endRedo(log, Redo.CLEAR, null, null);
+        } finally {
+            abortRedo(log);
+        }
         traceEnd(LOG, "BTreeIndex.clear");
     }
 
+    /**
+     * Applies a logged operation of this index.
+     */
+    @SuppressWarnings("unchecked")
+    public void replay(Redo redo) {
+        traceStart(LOG, "BTreeIndex.replay(%s)", redo);
+        try {
+            Key key = decode(keyCodec, redo.getKey());
+            switch( redo.getOp() ) {
+                case Redo.PUT:
+                    put(key, decode(valueCodec, redo.getValue()));
+                    break;
+                case Redo.PUT_IF_ABSENT:
+                    putIfAbsent(key, decode(valueCodec, redo.getValue()));
+                    break;
+                case Redo.REMOVE:
+                    remove(key);
+                    break;
+                case Redo.CLEAR:
+                    clear();
+                    break;
+                case Redo.REMOVE_RANGE:
+                    removeRange(key, decode(keyCodec, redo.getValue()));
+                    break;
+                default:
+                    throw new IndexException("Unknown redo operation: "+redo.getOp());
+            }
+        } catch (IOException e) {
+            throw new IndexException(e);
+        } finally {
+            traceEnd(LOG, "BTreeIndex.replay");
+        }
+    }
+
     public int getMinLeafDepth() {
         traceStart(LOG, "BTreeIndex.getMinLeafDepth()");
         int ret = root().getMinLeafDepth(this, 0);
@@ -181,13 +348,32 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
     }
 
     public Iterator<Map.Entry<Key, Value>> iterator(Predicate<Key> predicate) {
-        return root().iterator(this, predicate);
+        return root().iterator(this, predicate, false);
+    }
+
+    public Iterator<Map.Entry<Key, Value>> iterator(Predicate<Key> predicate, boolean descending) {
+        return root().iterator(this, predicate, descending);
     }
 
     public Iterator<Map.Entry<Key, Value>> iterator(final Key initialKey) {
         return root().iterator(this, initialKey);
     }
 
+    public Iterator<Map.Entry<Key, Value>> iterator(Key initialKey, boolean descending) {
+        if( descending ) {
+            return root().descendingIterator(this, initialKey);
+        }
+        return root().iterator(this, initialKey);
+    }
+
+    public Iterator<Map.Entry<Key, Value>> descendingIterator() {
+        return root().descendingIterator(this, null);
+    }
+
+    public Iterator<Map.Entry<Key, Value>> iteratorAt(int offset) {
+        return root().iteratorAt(this, offset);
+    }
+
     public void visit(IndexVisitor<Key, Value> visitor) {
         root().visit(this, visitor);
     }
@@ -200,10 +386,199 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
         return root().getLast(this);
     }
 
+    @SuppressWarnings("unchecked")
+    public int relocate(Relocation relocation, int budget) {
+        traceStart(LOG, "BTreeIndex.relocate(%s, %d)", relocation, budget);
+        BTreeNode.Relocator<Key, Value> relocator = new BTreeNode.Relocator<Key, Value>(relocation.getBoundary(), budget, (Key) relocation.getPosition());
+        BTreeNode<Key, Value> root = root();
+        if (root.relocate(this, relocator)) {
+            relocator.resume = null;
+        }
+        relocation.setPosition(relocator.resume);
+        relocation.setDone(relocator.resume == null);
+        int ret = budget - relocator.budget;
+        traceEnd(LOG, "BTreeIndex.relocate -> %d", ret);
+        return ret;
+    }
+
+    /**
+     * Moves the root of the index to the lowest free page, which moves the
+     * index.  Only the owner of the reference to the index can do that, like
+     * a HashIndex for its buckets.
+     *
+     * @return the new location of the index, -1 if no free page is left in
+     *         front of it.
+     */
+    int relocateRoot() {
+        traceStart(LOG, "BTreeIndex.relocateRoot()");
+        BTreeNode<Key, Value> root = root();
+        int ret = -1;
+        if (moveNode(root)) {
+            storeNode(root);
+            ret = root.page;
+        }
+        traceEnd(LOG, "BTreeIndex.relocateRoot -> %d", ret);
+        return ret;
+    }
+
+    /**
+     * Loads sorted entries into this index, which has to be empty.  The
+     * tree is built bottom-up with its nodes packed to the fill factor.
+     * If the index is used in a transaction, it gets committed every time
+     * the given number of nodes were stored, and if the load fails after
+     * that, the pages of the index are freed, the root included.
+     *
+     * @param entries the entries, in ascending order of their keys.
+     * @param fillFactor how full the nodes get packed, in (0, 1].
+     * @param chunkSize the number of nodes stored per commit, 0 to never commit.
+     * @return the number of entries loaded.
+     */
+    public int load(Iterator<? extends Map.Entry<Key, Value>> entries, float fillFactor, int chunkSize) {
+        traceStart(LOG, "BTreeIndex.load(%f, %d)", fillFactor, chunkSize);
+        int ret = new BTreeLoader<Key, Value>(this, fillFactor, chunkSize).load(entries);
+        traceEnd(LOG, "BTreeIndex.load -> %d", ret);
+        return ret;
+    }
+
+    /**
+     * Loads the nodes of the index which are stored at one of the given
+     * pages into the read cache of the paged object, starting at the root.
+     *
+     * @return the number of nodes loaded.
+     */
+    public int warm(Set<Integer> pages) {
+        traceStart(LOG, "BTreeIndex.warm(%d pages)", pages.size());
+        int ret = 1 + root().warm(this, pages);
+        traceEnd(LOG, "BTreeIndex.warm -> %d", ret);
+        return ret;
+    }
+
     // /////////////////////////////////////////////////////////////////
     // Internal implementation methods
     // /////////////////////////////////////////////////////////////////
-    private BTreeNode<Key, Value> root() {
+
+    /**
+     * @return the logger the operation has to be logged to, null if the
+     *         operations of this index do not get logged.
+     */
+    private RedoLogger beginRedo() {
+        if( paged instanceof RedoLogger ) {
+            RedoLogger log = (RedoLogger) paged;
+            if( log.isRedoLogged(page) ) {
+                log.beginRedo();
+                return log;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Logs the operation.  If the operation can't be encoded, the caller
+     * still holds the logger and aborts the operation.
+     *
+     * @return null so that the operation does not get aborted.
+     */
+    private RedoLogger endRedo(RedoLogger log, byte op, Key key, Value value) throws IndexException {
+        if( log!=null ) {
+            try {
+                log.endRedo(new Redo(page, op, key==null ? null : encode(keyCodec, key), value==null ? null : encode(valueCodec, value)));
+            } catch (IOException e) {
+                throw new IndexException(e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Logs a batch as one operation per entry, so that the batch gets
+     * replayed like the single operations it stands for.
+     *
+     * @return null so that the operation does not get aborted.
+     */
+    private RedoLogger endRedoAll(RedoLogger log, byte op, Key[] keys, Value[] values) throws IndexException {
+        if( log!=null ) {
+            for (int i = 0; i < keys.length; i++) {
+                if( i > 0 ) {
+                    log.beginRedo();
+                }
+                try {
+                    log.endRedo(new Redo(page, op, encode(keyCodec, keys[i]), values==null ? null : encode(valueCodec, values[i])));
+                } catch (IOException e) {
+                    throw new IndexException(e);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Ends an operation which failed.  Its updates are not covered by a
+     * logged operation.
+     */
+    private void abortRedo(RedoLogger log) {
+        if( log!=null ) {
+            log.endRedo(null);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    int compare(Key a, Key b) {
+        return comparator == null ? ((Comparable) a).compareTo(b) : comparator.compare(a, b);
+    }
+
+    /**
+     * @return the encoded size of a key or value.  It has to be encoded
+     *         if the codec can't tell.
+     */
+    static <T> int encodedSize(Codec<T> codec, T value) {
+        int rc = codec.getFixedSize();
+        if( rc >= 0 ) {
+            return rc;
+        }
+        if( codec.isEstimatedSizeSupported() ) {
+            return codec.estimatedSize(value);
+        }
+        try {
+            return encode(codec, value).length;
+        } catch (IOException e) {
+            throw new IndexException(e);
+        }
+    }
+
+    /**
+     * @return the encoded size of a key which follows the previous one in
+     *         a node, the previous one is null if it is the first key.
+     */
+    int keySize(Key previous, Key key) {
+        if( frontCoder==null ) {
+            return encodedSize(keyCodec, key);
+        }
+        int shared = previous==null ? 0 : frontCoder.getSharedLength(previous, key);
+        if( shared==0 ) {
+            return 1 + encodedSize(keyCodec, key);
+        }
+        return varIntSize(shared) + encodedSize(keyCodec, frontCoder.getSuffix(key, shared));
+    }
+
+    static int varIntSize(int value) {
+        int rc = 1;
+        while( (value >>>= 7) != 0 ) {
+            rc++;
+        }
+        return rc;
+    }
+
+    private static <T> Buffer encode(Codec<T> codec, T value) throws IOException {
+        DataByteArrayOutputStream os = new DataByteArrayOutputStream();
+        codec.encode(value, os);
+        return os.toBuffer();
+    }
+
+    private static <T> T decode(Codec<T> codec, Buffer buffer) throws IOException {
+        return buffer==null ? null : codec.decode(new DataByteArrayInputStream(buffer));
+    }
+
+    BTreeNode<Key, Value> root() {
         traceStart(LOG, "BTreeIndex.root()");
         BTreeNode<Key, Value> root = loadNode(null, page);
         traceEnd(LOG, "BTreeIndex.root -> %s", root);
@@ -238,6 +613,7 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
      */
     boolean storeNode(BTreeNode<Key, Value> node) {
         traceStart(LOG, "BTreeIndex.storeNode(%s)", node);
+        changes++;
         if (deferredEncoding) {
             trace(LOG, "deferred encoding");
             int size = BTreeNode.estimatedSize(this, node.data);
@@ -343,6 +719,7 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
 
     void free( BTreeNode<Key, Value> node ) {
         traceStart(LOG, "BTreeIndex.free(%s)", node);
+        changes++;
         if( deferredEncoding ) {
             trace(LOG, "deferred encoding, freeing linked pages");
             paged.clear(DATA_ENCODER_DECODER, node.page);
@@ -360,6 +737,59 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
         traceEnd(LOG, "BTreeIndex.free");
     }
 
+    /**
+     * @return the number of nodes stored or freed so far.  It changes
+     *         whenever the entries or the structure of the tree change.
+     */
+    int getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return true if the node's data is only visible to the transaction
+     *         the index is used in, so that it can be changed in place.
+     */
+    boolean isPrivate(BTreeNode<Key, Value> node) {
+        return deferredEncoding && paged instanceof PrivateUpdates && ((PrivateUpdates) paged).isPrivate(node.page);
+    }
+
+    /**
+     * @return the private scope of the transaction the index is used in,
+     *         null if its nodes can't be changed in place.
+     */
+    Object privateScope() {
+        return deferredEncoding && paged instanceof PrivateUpdates ? ((PrivateUpdates) paged).privateScope() : null;
+    }
+
+    /**
+     * Frees the page of the node and assigns it the lowest free page.  The
+     * caller has to store the node and update the references to it.
+     *
+     * @return false if there is no free page in front of the node.
+     */
+    boolean moveNode(BTreeNode<Key, Value> node) {
+        traceStart(LOG, "BTreeIndex.moveNode(%s)", node);
+        int target;
+        try {
+            target = paged.allocator().alloc(1, 0);
+        } catch (OutOfSpaceException e) {
+            traceEnd(LOG, "BTreeIndex.moveNode -> false");
+            return false;
+        }
+        // Concurrent transactions may have used up the free pages in front
+        // of the relocation boundary, a page closer to the front still helps.
+        if( target > node.page ) {
+            paged.allocator().free(target, 1);
+            traceEnd(LOG, "BTreeIndex.moveNode -> false");
+            return false;
+        }
+        free(node);
+        node.page = target;
+        node.storedInExtent = false;
+        traceEnd(LOG, "BTreeIndex.moveNode -> true");
+        return true;
+    }
+
     // /////////////////////////////////////////////////////////////////
     // Property Accessors
     // /////////////////////////////////////////////////////////////////
@@ -384,10 +814,23 @@ public class BTreeIndex<Key, Value> implements SortedIndex<Key, Value> {
         return prefixer;
     }
 
-    public Comparator getComparator() {
+    public FrontCoder<Key> getFrontCoder() {
+        return frontCoder;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Comparator<Key> getComparator() {
         return comparator;
     }
 
+    public boolean isCounted() {
+        return counted;
+    }
+
+    public float getMergeThreshold() {
+        return mergeThreshold;
+    }
+
     public void destroy() {
         clear();
         paged.free(page);
@@ -22,7 +22,11 @@ import java.util.NoSuchElementException;
 import java.util.Map.Entry;
 
 /**
- * 
+ * Iterates the entries of a BTree by following the leaves.  If the tree
+ * gets changed while it iterates, it seeks to the key after the last one
+ * it returned before it moves on to the next leaf, since the entries may
+ * have moved to other leaves.
+ *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 final class BTreeIterator<Key, Value> implements Iterator<Map.Entry<Key, Value>> {
@@ -31,11 +35,25 @@ final class BTreeIterator<Key, Value> implements Iterator<Map.Entry<Key, Value>>
     BTreeNode<Key, Value> current;
     int nextIndex;
     Map.Entry<Key, Value> nextEntry;
+    // The key of the last entry, and the changes of the index up to then.
+    private Key last;
+    private int changes;
 
     BTreeIterator(BTreeIndex<Key, Value> index, BTreeNode<Key, Value> current, int nextIndex) {
         this.index = index;
-        this.current = current;
+        this.current = current.share(index);
         this.nextIndex = nextIndex;
+        this.changes = index.getChanges();
+    }
+
+    /**
+     * Moves to the key after the last one in the current tree.
+     */
+    private void seek() {
+        current = BTreeNode.getLeafNode(index, index.root(), last).share(index);
+        int idx = BTreeNode.search(current.data, last, index.getComparator());
+        nextIndex = idx < 0 ? -(idx + 1) : idx + 1;
+        changes = index.getChanges();
     }
 
     private void findNextPage() {
@@ -44,16 +62,23 @@ final class BTreeIterator<Key, Value> implements Iterator<Map.Entry<Key, Value>>
         }
 
         while (current != null) {
-            if (nextIndex >= current.data.keys.length) {
+            if (nextIndex >= current.data.size) {
                 // we need to roll to the next leaf..
+                if (last != null && changes != index.getChanges()) {
+                    seek();
+                    if (nextIndex < current.data.size) {
+                        continue;
+                    }
+                }
                 if (current.data.next >= 0) {
-                    current = index.loadNode(null, current.data.next);
+                    current = index.loadNode(null, current.data.next).share(index);
                     nextIndex = 0;
                 } else {
                     break;
                 }
             } else {
                 nextEntry = new MapEntry<Key, Value>(current.data.keys[nextIndex], current.data.values[nextIndex]);
+                last = nextEntry.getKey();
                 nextIndex++;
                 break;
             }
@@ -0,0 +1,353 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.index;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fusesource.hawtbuf.codec.Codec;
+import org.fusesource.hawtdb.api.IndexException;
+import org.fusesource.hawtdb.api.Paged;
+import org.fusesource.hawtdb.api.Prefixer;
+import org.fusesource.hawtdb.api.Transaction;
+import org.fusesource.hawtdb.internal.index.BTreeNode.Data;
+import org.fusesource.hawtdb.internal.util.Ranges;
+
+import static org.fusesource.hawtdb.internal.page.Tracer.*;
+
+/**
+ * Builds a BTree bottom-up from sorted entries.  Leaves are packed to the
+ * fill factor and stored as soon as they are full, and every full node
+ * adds its separator to the open node of the level above, so only one node
+ * per level is kept in memory.  The nodes of a level are allocated in runs
+ * of pages, so that the leaves end up next to each other in the file.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class BTreeLoader<Key, Value> {
+
+    private final static Log LOG = LogFactory.getLog(BTreeLoader.class);
+
+    // The extent header, see BTreeIndex.storeNode
+    private static final int HEADER = 9;
+    // magic + key count
+    private static final int NODE = 4;
+    private static final int MAX_RUN = 256;
+
+    private final BTreeIndex<Key, Value> index;
+    private final Paged paged;
+    private final Codec<Value> valueCodec;
+    private final Prefixer<Key> prefixer;
+    private final boolean counted;
+    private final int limit;
+    private final int chunkSize;
+
+    private final ArrayList<Level> levels = new ArrayList<Level>();
+    // The pages allocated and the nodes stored since the last commit, and
+    // the ones which were committed.
+    private final Ranges allocated = new Ranges();
+    private final Ranges stored = new Ranges();
+    private final Ranges committedPages = new Ranges();
+    private final Ranges committedNodes = new Ranges();
+    private int nodes;
+    private int chunks;
+
+    BTreeLoader(BTreeIndex<Key, Value> index, float fillFactor, int chunkSize) {
+        if( fillFactor <= 0 || fillFactor > 1 ) {
+            throw new IllegalArgumentException("The fill factor has to be in (0, 1]: "+fillFactor);
+        }
+        this.index = index;
+        this.paged = index.getPaged();
+        this.valueCodec = index.getValueMarshaller();
+        this.prefixer = index.getPrefixer();
+        this.counted = index.isCounted();
+        this.limit = (int) ((paged.getPageSize() - HEADER) * fillFactor);
+        this.chunkSize = paged instanceof Transaction ? chunkSize : 0;
+    }
+
+    /**
+     * One level of the tree, with the node which is being filled.  Leaves
+     * get their page when the next leaf is started, since they have to
+     * point to it.  Branches get it when they are full.
+     */
+    private final class Level {
+        final int depth;
+        final boolean leaf;
+        // The run of pages the nodes of this level get allocated from.
+        int run = 1;
+        int nextPage;
+        int endPage;
+        // The number of nodes of this level which were stored.
+        int count;
+
+        // The open node, its separator goes into the parent.
+        int page = -1;
+        Key separator;
+        final ArrayList<Key> keys = new ArrayList<Key>();
+        final ArrayList<Value> values = new ArrayList<Value>();
+        int[] children = new int[16];
+        // The number of entries under each child.
+        int[] counts = new int[16];
+        int entries;
+        // The number of entries under the node.
+        int total;
+        int size;
+
+        Level(int depth) {
+            this.depth = depth;
+            this.leaf = depth==0;
+            reset();
+        }
+
+        private void reset() {
+            page = -1;
+            separator = null;
+            keys.clear();
+            values.clear();
+            entries = 0;
+            total = 0;
+            // The leaves also hold the next pointer.
+            size = leaf ? NODE + 4 : NODE;
+        }
+
+        int alloc() {
+            if( nextPage==endPage ) {
+                nextPage = paged.allocator().alloc(run);
+                endPage = nextPage + run;
+                allocated.add(nextPage, run);
+                run = Math.min(run*2, MAX_RUN);
+            }
+            return nextPage++;
+        }
+
+        /**
+         * Frees the pages left over in the run.
+         */
+        void free() {
+            if( nextPage!=endPage ) {
+                paged.allocator().free(nextPage, endPage-nextPage);
+                allocated.remove(nextPage, endPage-nextPage);
+                nextPage = endPage;
+            }
+        }
+
+        void add(Key key, Value value) {
+            int valueSize = BTreeIndex.encodedSize(valueCodec, value);
+            Key last = entries==0 ? null : keys.get(keys.size()-1);
+            int entry = index.keySize(last, key) + valueSize;
+            if( entries > 0 && size + entry > limit ) {
+                if( page==-1 ) {
+                    page = alloc();
+                }
+                int next = alloc();
+                store(next);
+                page = next;
+                separator = prefixer==null ? key : prefixer.getSimplePrefix(last, key);
+                entry = index.keySize(null, key) + valueSize;
+            }
+            keys.add(key);
+            values.add(value);
+            entries++;
+            total++;
+            size += entry;
+        }
+
+        void add(Key key, int child, int count) {
+            // The child pointer, and the count of its entries.
+            int pointer = counted ? 8 : 4;
+            Key last = keys.isEmpty() ? null : keys.get(keys.size()-1);
+            int entry = entries==0 ? pointer : index.keySize(last, key) + pointer;
+            // A branch needs two children, or the tree would not get narrower.
+            if( entries > 1 && size + entry > limit ) {
+                page = alloc();
+                store(-1);
+                entry = pointer;
+            }
+            if( entries==0 ) {
+                separator = key;
+            } else {
+                keys.add(key);
+            }
+            if( entries==children.length ) {
+                children = grow(children, entries);
+                counts = grow(counts, entries);
+            }
+            children[entries] = child;
+            counts[entries++] = count;
+            total += count;
+            size += entry;
+        }
+
+        @SuppressWarnings("unchecked")
+        Data<Key, Value> data(int next) {
+            Key[] k = (Key[]) keys.toArray();
+            if( leaf ) {
+                return new Data<Key, Value>(k, null, (Value[]) values.toArray(), next);
+            } else {
+                int[] c = new int[entries];
+                System.arraycopy(children, 0, c, 0, entries);
+                if( !counted ) {
+                    return new Data<Key, Value>(k, c, null, -1);
+                }
+                int[] n = new int[entries];
+                System.arraycopy(counts, 0, n, 0, entries);
+                return new Data<Key, Value>(k, c, n);
+            }
+        }
+
+        /**
+         * Stores the open node and adds it to the level above.
+         */
+        void store(int next) {
+            int p = page;
+            Key s = separator;
+            int t = total;
+            BTreeLoader.this.store(new BTreeNode<Key, Value>(null, p, data(next)));
+            count++;
+            reset();
+            level(depth+1).add(s, p, t);
+        }
+
+        /**
+         * Stores the open node as the root of the tree.
+         */
+        void storeRoot(BTreeNode<Key, Value> root) {
+            root.data = data(-1);
+            BTreeLoader.this.store(root);
+            reset();
+        }
+    }
+
+    private static int[] grow(int[] array, int size) {
+        int[] grown = new int[array.length*2];
+        System.arraycopy(array, 0, grown, 0, size);
+        return grown;
+    }
+
+    private Level level(int depth) {
+        if( depth==levels.size() ) {
+            levels.add(new Level(depth));
+        }
+        return levels.get(depth);
+    }
+
+    /**
+     * Loads the entries into the index, which has to be empty.
+     *
+     * @return the number of entries loaded.
+     */
+    int load(Iterator<? extends Map.Entry<Key, Value>> entries) {
+        traceStart(LOG, "BTreeLoader.load()");
+        BTreeNode<Key, Value> root = index.loadNode(null, index.getIndexLocation());
+        if( root.isBranch() || root.data.size!=0 ) {
+            traceEnd(LOG, "BTreeLoader.load -> not empty");
+            throw new IllegalStateException("The index is not empty");
+        }
+        int rc = 0;
+        try {
+            Level leaves = level(0);
+            Key last = null;
+            while( entries.hasNext() ) {
+                Map.Entry<Key, Value> entry = entries.next();
+                Key key = entry.getKey();
+                if( key==null ) {
+                    throw new IllegalArgumentException("Key cannot be null");
+                }
+                if( rc > 0 && index.compare(last, key) >= 0 ) {
+                    throw new IllegalArgumentException("The keys are not in ascending order: "+last+", "+key);
+                }
+                leaves.add(key, entry.getValue());
+                last = key;
+                rc++;
+            }
+
+            // Store the open nodes bottom up, the first one which is the
+            // only node of its level is the root.
+            for (int i = 0; i < levels.size(); i++) {
+                Level level = levels.get(i);
+                if( level.count==0 ) {
+                    level.storeRoot(root);
+                    break;
+                }
+                if( level.page==-1 ) {
+                    level.page = level.alloc();
+                }
+                level.store(-1);
+            }
+            for (Level level : levels) {
+                level.free();
+            }
+        } catch (RuntimeException e) {
+            abort();
+            traceEnd(LOG, "BTreeLoader.load -> %s", e);
+            throw e;
+        }
+        traceEnd(LOG, "BTreeLoader.load -> %d entries, %d nodes, %d chunks", rc, nodes, chunks);
+        return rc;
+    }
+
+    private void store(BTreeNode<Key, Value> node) {
+        if( !index.storeNode(node) ) {
+            throw new IndexException("The node at page "+node.page+" does not fit on a page");
+        }
+        stored.add(node.page);
+        nodes++;
+        if( chunkSize > 0 && nodes % chunkSize == 0 ) {
+            ((Transaction) paged).commit();
+            for (Ranges.Range range : allocated) {
+                committedPages.add(range.start, range.size());
+            }
+            for (Ranges.Range range : stored) {
+                committedNodes.add(range.start, range.size());
+            }
+            allocated.clear();
+            stored.clear();
+            chunks++;
+        }
+    }
+
+    /**
+     * Frees what an aborted load committed, together with the index.
+     * Nothing got committed unless the load was chunked.
+     */
+    private void abort() {
+        if( chunks==0 ) {
+            return;
+        }
+        Transaction tx = (Transaction) paged;
+        try {
+            tx.rollback();
+            for (Ranges.Range range : committedPages) {
+                for (int page = range.start; page < range.end; page++) {
+                    if( committedNodes.contains(page) ) {
+                        index.free(index.loadNode(null, page));
+                    } else {
+                        paged.allocator().free(page, 1);
+                    }
+                }
+            }
+            index.free(index.loadNode(null, index.getIndexLocation()));
+            tx.commit();
+        } catch (RuntimeException e) {
+            LOG.warn("Could not free the pages of an aborted load: "+e, e);
+        }
+    }
+
+}
@@ -17,12 +17,18 @@
 package org.fusesource.hawtdb.internal.index;
 
 import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.codec.Codec;
+import org.fusesource.hawtbuf.codec.IntegerCodec;
+import org.fusesource.hawtbuf.codec.LongCodec;
+import org.fusesource.hawtbuf.codec.VarIntegerCodec;
 import org.fusesource.hawtdb.api.*;
 
 import java.io.*;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -45,10 +51,21 @@ public final class BTreeNode<Key, Value> {
 
     public static final Buffer BRANCH_MAGIC = new Buffer(new byte[]{ 'b', 'b'});
     public static final Buffer LEAF_MAGIC = new Buffer(new byte[]{ 'b', 'l'});
+    public static final Buffer COUNTED_BRANCH_MAGIC = new Buffer(new byte[]{ 'b', 'c'});
+    // The nodes of indexes with a front coder.
+    public static final Buffer FRONT_CODED_BRANCH_MAGIC = new Buffer(new byte[]{ 'f', 'b'});
+    public static final Buffer FRONT_CODED_LEAF_MAGIC = new Buffer(new byte[]{ 'f', 'l'});
+    public static final Buffer FRONT_CODED_COUNTED_BRANCH_MAGIC = new Buffer(new byte[]{ 'f', 'c'});
 
     /**
-     * This is the persistent data of each node.  Declared immutable so that
-     * it can behave nicely in the page cache.
+     * This is the persistent data of each node.  Once it is shared through
+     * the page cache or a commit it is immutable so that it can behave
+     * nicely in the page cache.  Only a writable copy which just one
+     * transaction can see gets changed in place, so that filling up a node
+     * does not copy it on every put.  Other threads only get to see it
+     * through the commit, which synchronizes with them, and it is never
+     * changed after that.  An iterator also stops it from being changed in
+     * place, since it reads the entries by their position.
      *
      * TODO: Consider refactoring into branch/leaf sub classes.
      *
@@ -57,60 +74,135 @@ public final class BTreeNode<Key, Value> {
      */
     static class Data<Key, Value> {
 
-        // Order list of keys in the node
-        final Key[] keys;
+        // Order list of keys in the node.  Only the first size slots are used.
+        Key[] keys;
 
         // Values associated with the Keys. Null if this is a branch node.
-        final Value[] values;
+        Value[] values;
 
-        // nodeId pointers to children BTreeNodes. Null if this is a leaf node.
-        final int[] children;
+        // nodeId pointers to children BTreeNodes, size+1 slots are used.
+        // Null if this is a leaf node.
+        int[] children;
+
+        // The number of entries under each child, size+1 slots are used.
+        // Null unless this is a branch of a counted index.
+        int[] counts;
 
         // The next leaf node after this one. Used for fast iteration of the
         // entries. -1 if this is the last node.
         final int next;
 
+        // The number of keys in the node.
+        int size;
+
+        // The private scope of the transaction which copied the arrays for
+        // this object alone, with spare slots so that it can change them in
+        // place.  Null if it is shared, and stale once the transaction ends.
+        Object owner;
+
+        // The keys unboxed, if they are Longs or Integers in their natural
+        // order.  Created when the node is read, or by its first search.
+        LongKeys longKeys;
+
         @SuppressWarnings("unchecked")
         public Data() {
             this((Key[])EMPTY_ARRAY, null, (Value[])EMPTY_ARRAY, -1);
         }
 
         public Data(Key[] keys, int[] children, Value[] values, int next) {
+            this(keys, children, null, values, next, keys.length, null);
+        }
+
+        public Data(Key[] keys, int[] children, int[] counts) {
+            this(keys, children, counts, null, -1, keys.length, null);
+        }
+
+        private Data(Key[] keys, int[] children, int[] counts, Value[] values, int next, int size, Object owner) {
             this.keys = keys;
             this.values = values;
             this.children = children;
+            this.counts = counts;
             this.next = next;
+            this.size = size;
+            this.owner = owner;
         }
 
         @Override
         public String toString() {
-            return "{ next: "+next+", type: "+(isBranch()?"branch":"leaf")+", keys: "+Arrays.toString(keys)+" }";
+            return "{ next: "+next+", type: "+(isBranch()?"branch":"leaf")+", keys: "+Arrays.asList(keys).subList(0, size)+" }";
         }
 
         public boolean isBranch() {
             return children != null;
         }
 
+        public int childCount() {
+            return size + 1;
+        }
+
+        /**
+         * @return the number of entries under this node, -1 if it is a
+         *         branch which does not count them.
+         */
+        public int count() {
+            if (!isBranch()) {
+                return size;
+            }
+            if (counts == null) {
+                return -1;
+            }
+            int rc = 0;
+            for (int i = 0; i < childCount(); i++) {
+                rc += counts[i];
+            }
+            return rc;
+        }
+
         public Data<Key, Value> values(Value[] values) {
-            return new Data<Key, Value>(keys, children, values, next);
+            return new Data<Key, Value>(keys, children, counts, values, next, size, null);
         }
 
         public Data<Key, Value> children(int[] children) {
-            return new Data<Key, Value>(keys, children, values, next);
+            return new Data<Key, Value>(keys, children, counts, values, next, size, null);
         }
 
         public Data<Key, Value> next(int next) {
-            return new Data<Key, Value>(keys, children, values, next);
+            return new Data<Key, Value>(keys, children, counts, values, next, size, null);
         }
 
-        public Data<Key, Value> change(Key[] keys, int[] children, Value[] values) {
-            return new Data<Key, Value>(keys, children, values, next);
+        /**
+         * Takes over the entries of another node.  The arrays get copied
+         * since the other node's data may be shared.
+         */
+        @SuppressWarnings("unchecked")
+        public Data<Key, Value> change(Data<Key, Value> other) {
+            Key[] keys = (Key[]) new Object[other.size];
+            System.arraycopy(other.keys, 0, keys, 0, other.size);
+            int[] children = null;
+            int[] counts = null;
+            Value[] values = null;
+            if (other.isBranch()) {
+                children = new int[other.size + 1];
+                System.arraycopy(other.children, 0, children, 0, other.size + 1);
+                if (other.counts != null) {
+                    counts = new int[other.size + 1];
+                    System.arraycopy(other.counts, 0, counts, 0, other.size + 1);
+                }
+            } else {
+                values = (Value[]) new Object[other.size];
+                System.arraycopy(other.values, 0, values, 0, other.size);
+            }
+            return new Data<Key, Value>(keys, children, counts, values, next, keys.length, null);
         }
 
         public Data<Key, Value> branch(Key[] keys, int[] children) {
             return new Data<Key, Value>(keys, children, null, next);
         }
 
+        public Data<Key, Value> branch(Key[] keys, int[] children, int[] counts) {
+            return new Data<Key, Value>(keys, children, counts, null, next, keys.length, null);
+        }
+
         public Data<Key, Value> leaf(Key[] keys, Value[] values) {
             return new Data<Key, Value>(keys, null, values, next);
         }
@@ -119,6 +211,165 @@ public final class BTreeNode<Key, Value> {
             return new Data<Key, Value>(keys, null, values, next);
         }
 
+        /**
+         * @return a copy which has room for more entries and can be changed
+         *         in place by the owner.
+         */
+        @SuppressWarnings("unchecked")
+        public Data<Key, Value> writable(Object owner) {
+            int capacity = grow(size);
+            Key[] keys = (Key[]) new Object[capacity];
+            System.arraycopy(this.keys, 0, keys, 0, size);
+            int[] children = null;
+            int[] counts = null;
+            Value[] values = null;
+            if (isBranch()) {
+                children = new int[capacity + 1];
+                System.arraycopy(this.children, 0, children, 0, size + 1);
+                if (this.counts != null) {
+                    counts = new int[capacity + 1];
+                    System.arraycopy(this.counts, 0, counts, 0, size + 1);
+                }
+            } else {
+                values = (Value[]) new Object[capacity];
+                System.arraycopy(this.values, 0, values, 0, size);
+            }
+            return new Data<Key, Value>(keys, children, counts, values, next, size, owner);
+        }
+
+        /**
+         * Inserts an entry into a writable leaf.
+         */
+        @SuppressWarnings("unchecked")
+        void insert(int idx, Key key, Value value) {
+            if (size == keys.length) {
+                int capacity = grow(size);
+                keys = copyOf(keys, size, (Key[]) new Object[capacity]);
+                values = copyOf(values, size, (Value[]) new Object[capacity]);
+            }
+            System.arraycopy(keys, idx, keys, idx + 1, size - idx);
+            System.arraycopy(values, idx, values, idx + 1, size - idx);
+            keys[idx] = key;
+            values[idx] = value;
+            if (longKeys != null) {
+                longKeys = longKeys.insert(idx, ((Number) key).longValue(), size);
+            }
+            size++;
+        }
+
+        /**
+         * Inserts a key and the child to the right of it into a writable
+         * branch.  The entries of the child are taken from the counts of
+         * the child to the left of it, which it was split from.
+         */
+        @SuppressWarnings("unchecked")
+        void insert(int idx, Key key, int child, int count) {
+            if (size == keys.length) {
+                int capacity = grow(size);
+                keys = copyOf(keys, size, (Key[]) new Object[capacity]);
+                children = copyOf(children, size + 1, new int[capacity + 1]);
+                if (counts != null) {
+                    counts = copyOf(counts, size + 1, new int[capacity + 1]);
+                }
+            }
+            System.arraycopy(keys, idx, keys, idx + 1, size - idx);
+            System.arraycopy(children, idx + 1, children, idx + 2, size - idx);
+            keys[idx] = key;
+            children[idx + 1] = child;
+            if (longKeys != null) {
+                longKeys = longKeys.insert(idx, ((Number) key).longValue(), size);
+            }
+            if (counts != null) {
+                System.arraycopy(counts, idx + 1, counts, idx + 2, size - idx);
+                counts[idx + 1] = count;
+                counts[idx] -= count;
+            }
+            size++;
+        }
+
+        /**
+         * Removes an entry from a writable leaf.
+         */
+        void delete(int idx) {
+            if (longKeys != null) {
+                longKeys.delete(idx, size);
+            }
+            size--;
+            System.arraycopy(keys, idx + 1, keys, idx, size - idx);
+            System.arraycopy(values, idx + 1, values, idx, size - idx);
+            keys[size] = null;
+            values[size] = null;
+        }
+
+        private static int grow(int size) {
+            return size + (size >> 1) + 1;
+        }
+
+        private static <T> T[] copyOf(T[] from, int size, T[] to) {
+            System.arraycopy(from, 0, to, 0, size);
+            return to;
+        }
+
+        private static int[] copyOf(int[] from, int size, int[] to) {
+            System.arraycopy(from, 0, to, 0, size);
+            return to;
+        }
+    }
+
+    /**
+     * The keys of a node unboxed into a long array, so that a search does
+     * not have to call compareTo on boxed keys spread around the heap.
+     * Like the keys, the array only gets changed in place while the node
+     * is writable.  It is only reachable through a final field, so that a
+     * node shared through the page cache can hand it to other threads
+     * without locking.
+     */
+    static final class LongKeys {
+        // Only the slots of the keys of the node are used.
+        final long[] keys;
+
+        LongKeys(Object[] keys, int size) {
+            this.keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                this.keys[i] = ((Number) keys[i]).longValue();
+            }
+        }
+
+        LongKeys(long[] keys) {
+            this.keys = keys;
+        }
+
+        LongKeys insert(int idx, long key, int size) {
+            LongKeys rc = this;
+            if (size == keys.length) {
+                rc = new LongKeys(new long[Data.grow(size)]);
+                System.arraycopy(keys, 0, rc.keys, 0, idx);
+            }
+            System.arraycopy(keys, idx, rc.keys, idx + 1, size - idx);
+            rc.keys[idx] = key;
+            return rc;
+        }
+
+        void delete(int idx, int size) {
+            System.arraycopy(keys, idx + 1, keys, idx, size - idx - 1);
+        }
+
+        int search(long key, int size) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long value = keys[mid];
+                if (value < key) {
+                    low = mid + 1;
+                } else if (value > key) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
     }
 
     static <Key, Value> int estimatedSize(BTreeIndex<Key, Value> index, Data<Key, Value> data) {
@@ -128,25 +379,32 @@ public final class BTreeNode<Key, Value> {
 
         // calculate the size of the keys.
         int v = index.getKeyMarshaller().getFixedSize();
-        if( v >=0 ) {
-            rc += v*data.keys.length;
+        if( index.getFrontCoder()!=null ) {
+            for (int i = 0; i < data.size; i++) {
+                rc += index.keySize(i==0 ? null : data.keys[i-1], data.keys[i]);
+            }
+        } else if( v >=0 ) {
+            rc += v*data.size;
         } else {
-            for (Key key : data.keys) {
-                rc += index.getKeyMarshaller().estimatedSize(key);
+            for (int i = 0; i < data.size; i++) {
+                rc += index.getKeyMarshaller().estimatedSize(data.keys[i]);
             }
         }
 
         if( data.isBranch() ) {
             // calculate the size of the children.
-            rc += 4*data.children.length;
+            rc += 4*data.childCount();
+            if( data.counts!=null ) {
+                rc += 4*data.childCount();
+            }
         } else {
             // calculate the size of the values.
             v = index.getValueMarshaller().getFixedSize();
             if( v >=0 ) {
-                rc += v*data.values.length;
+                rc += v*data.size;
             } else {
-                for (Value value : data.values) {
-                    rc += index.getValueMarshaller().estimatedSize(value);
+                for (int i = 0; i < data.size; i++) {
+                    rc += index.getValueMarshaller().estimatedSize(data.values[i]);
                 }
             }
             rc += 4; // for the next pointer.
@@ -155,35 +413,73 @@ public final class BTreeNode<Key, Value> {
         return rc;
     }
 
+    /**
+     * @return the size of the node once it is encoded.  Unlike
+     *         {@link #estimatedSize(BTreeIndex, Data)} it encodes the keys
+     *         and values if their codecs can't estimate their size.
+     */
+    static <Key, Value> int encodedSize(BTreeIndex<Key, Value> index, Data<Key, Value> data) {
+        int rc = 4;
+        for (int i = 0; i < data.size; i++) {
+            rc += index.keySize(i==0 ? null : data.keys[i-1], data.keys[i]);
+        }
+        if( data.isBranch() ) {
+            rc += (data.counts==null ? 4 : 8) * data.childCount();
+        } else {
+            for (int i = 0; i < data.size; i++) {
+                rc += BTreeIndex.encodedSize(index.getValueMarshaller(), data.values[i]);
+            }
+            rc += 4;
+        }
+        return rc;
+    }
+
     static <Key, Value> void write(DataOutput os, BTreeIndex<Key, Value> index, Data<Key, Value> data) throws IOException {
         traceStart(LOG, "BTreeNode.write(...,..., %s)", data);
         try {
-            if( data.isBranch() ) {
-                os.write(BRANCH_MAGIC.data, BRANCH_MAGIC.offset, BRANCH_MAGIC.length);
-                trace(LOG, "Wrote branch magic");
+            FrontCoder<Key> coder = index.getFrontCoder();
+            Buffer magic;
+            if( data.counts!=null ) {
+                magic = coder==null ? COUNTED_BRANCH_MAGIC : FRONT_CODED_COUNTED_BRANCH_MAGIC;
+            } else if( data.isBranch() ) {
+                magic = coder==null ? BRANCH_MAGIC : FRONT_CODED_BRANCH_MAGIC;
             } else {
-                os.write(LEAF_MAGIC.data, LEAF_MAGIC.offset, LEAF_MAGIC.length);
-                trace(LOG, "Wrote leaf magic");
+                magic = coder==null ? LEAF_MAGIC : FRONT_CODED_LEAF_MAGIC;
             }
+            os.write(magic.data, magic.offset, magic.length);
+            trace(LOG, "Wrote magic: %s", magic);
 
-            int count = data.keys.length;
+            int count = data.size;
             os.writeShort(count);
             trace(LOG, "Wrote key count: %d", count);
-            for (int i = 0; i < data.keys.length; i++) {
-                index.getKeyMarshaller().encode(data.keys[i], os);
+            for (int i = 0; i < count; i++) {
+                Key key = data.keys[i];
+                if( coder!=null ) {
+                    int shared = i==0 ? 0 : coder.getSharedLength(data.keys[i-1], key);
+                    VarIntegerCodec.INSTANCE.encode(shared, os);
+                    if( shared!=0 ) {
+                        key = coder.getSuffix(key, shared);
+                    }
+                }
+                index.getKeyMarshaller().encode(key, os);
             }
-            trace(LOG, "Wrote keys: %s", Arrays.toString(data.keys));
+            trace(LOG, "Wrote keys: %s", data);
 
             if (data.isBranch()) {
                 for (int i = 0; i < count + 1; i++) {
                     os.writeInt(data.children[i]);
                 }
-                trace(LOG, "Wrote children: %s", Arrays.toString(data.children));
+                trace(LOG, "Wrote %d children", count + 1);
+                if (data.counts != null) {
+                    for (int i = 0; i < count + 1; i++) {
+                        os.writeInt(data.counts[i]);
+                    }
+                }
             } else {
                 for (int i = 0; i < count; i++) {
                     index.getValueMarshaller().encode(data.values[i], os);
                 }
-                trace(LOG, "Wrote values: %s", Arrays.toString(data.values));
+                trace(LOG, "Wrote %d values", count);
                 os.writeInt(data.next);
                 trace(LOG, "Wrote leaf sibling: %d", data.next);
             }
@@ -199,12 +495,27 @@ public final class BTreeNode<Key, Value> {
         is.readFully(magic.data, magic.offset, magic.length);
         trace(LOG, "Read magic: %s", magic);
         boolean branch;
+        boolean counted = false;
+        boolean frontCoded = false;
         if (magic.equals(BRANCH_MAGIC)) {
             trace(LOG, "it's a branch!");
             branch = true;
+        } else if (magic.equals(COUNTED_BRANCH_MAGIC)) {
+            trace(LOG, "it's a counted branch!");
+            branch = counted = true;
         } else if (magic.equals(LEAF_MAGIC)) {
             trace(LOG, "it's a leaf!");
             branch = false;
+        } else if (magic.equals(FRONT_CODED_BRANCH_MAGIC)) {
+            trace(LOG, "it's a front coded branch!");
+            branch = frontCoded = true;
+        } else if (magic.equals(FRONT_CODED_COUNTED_BRANCH_MAGIC)) {
+            trace(LOG, "it's a front coded counted branch!");
+            branch = counted = frontCoded = true;
+        } else if (magic.equals(FRONT_CODED_LEAF_MAGIC)) {
+            trace(LOG, "it's a front coded leaf!");
+            branch = false;
+            frontCoded = true;
         } else {
             traceEnd(LOG, "BTreeNode.read -> It's not a branch or a leaf!");
             throw new IndexException("Page did not contain the expected btree headers");
@@ -214,11 +525,37 @@ public final class BTreeNode<Key, Value> {
         trace(LOG, "Key count: %d", count);
         Key[] keys = (Key[]) new Object[count];
         int[] children = null;
+        int[] counts = null;
         Value[] values = null;
         int next = -1;
 
-        for (int i = 0; i < count; i++) {
-            keys[i] = index.getKeyMarshaller().decode(is);
+        FrontCoder<Key> coder = index.getFrontCoder();
+        if (frontCoded && coder == null) {
+            traceEnd(LOG, "BTreeNode.read -> It's front coded!");
+            throw new IndexException("The btree node is front coded, but no front coder is configured");
+        }
+        Codec<Key> keyCodec = index.getKeyMarshaller();
+        long[] longKeys = null;
+        if (index.getComparator() == null && (keyCodec == LongCodec.INSTANCE || keyCodec == IntegerCodec.INSTANCE)) {
+            // Decode them straight into the array searches go through.
+            longKeys = new long[count];
+            for (int i = 0; i < count; i++) {
+                if (keyCodec == LongCodec.INSTANCE) {
+                    longKeys[i] = is.readLong();
+                    keys[i] = (Key) Long.valueOf(longKeys[i]);
+                } else {
+                    longKeys[i] = is.readInt();
+                    keys[i] = (Key) Integer.valueOf((int) longKeys[i]);
+                }
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                int shared = frontCoded ? VarIntegerCodec.INSTANCE.decode(is) : 0;
+                keys[i] = keyCodec.decode(is);
+                if (shared != 0) {
+                    keys[i] = coder.join(keys[i-1], shared, keys[i]);
+                }
+            }
         }
         trace(LOG, "Read keys: %s", Arrays.toString(keys));
 
@@ -228,6 +565,13 @@ public final class BTreeNode<Key, Value> {
                 children[i] = is.readInt();
             }
             trace(LOG, "Read children: %s", Arrays.toString(children));
+            if (counted) {
+                counts = new int[count + 1];
+                for (int i = 0; i < count + 1; i++) {
+                    counts[i] = is.readInt();
+                }
+                trace(LOG, "Read counts: %s", Arrays.toString(counts));
+            }
         } else {
             values = (Value[]) new Object[count];
             for (int i = 0; i < count; i++) {
@@ -237,7 +581,10 @@ public final class BTreeNode<Key, Value> {
             next = is.readInt();
             trace(LOG, "Read next: %d", next);
         }
-        Data<Key, Value> ret = new Data<Key, Value>(keys, children, values, next);
+        Data<Key, Value> ret = counted ? new Data<Key, Value>(keys, children, counts) : new Data<Key, Value>(keys, children, values, next);
+        if (longKeys != null) {
+            ret.longKeys = new LongKeys(longKeys);
+        }
         traceEnd(LOG, "BTreeNode.read -> %s", ret);
         return ret;
     }
@@ -295,7 +642,7 @@ public final class BTreeNode<Key, Value> {
      * @throws IOException
      */
     BTreeNode<Key, Value> getChild(BTreeIndex<Key, Value> index, int idx) {
-        if (data.isBranch() && idx >= 0 && idx < data.children.length) {
+        if (data.isBranch() && idx >= 0 && idx < data.childCount()) {
             traceStart(LOG, "BTreeNode.getChild(..., %d)", idx);
             BTreeNode<Key, Value> result = index.loadNode(this, data.children[idx]);
             traceEnd(LOG, "BTreeNode.getChild -> %s", result);
@@ -314,7 +661,7 @@ public final class BTreeNode<Key, Value> {
     private BTreeNode<Key,Value> getRightLeaf(BTreeIndex<Key, Value> index) {
         BTreeNode<Key,Value> cur = this;
         while(cur.isBranch()) {
-            cur = cur.getChild(index, cur.data.keys.length);
+            cur = cur.getChild(index, cur.data.size);
         }
         return cur;
     }
@@ -341,7 +688,7 @@ public final class BTreeNode<Key, Value> {
             if( cur.parent.data.children[0] == cur.page ) {
                 cur = cur.parent;
             } else {
-                for( int i=0; i < cur.parent.data.children.length; i ++) {
+                for( int i=0; i < cur.parent.data.childCount(); i ++) {
                     if( cur.parent.data.children[i]==cur.page ) {
                         return cur.parent.getChild(index, i-1);
                     }
@@ -357,7 +704,7 @@ public final class BTreeNode<Key, Value> {
 
         Value oldValue = null;
         if (data.isBranch()) {
-            int idx = Arrays.binarySearch(data.keys, key, index.getComparator());
+            int idx = search(data, key, index.getComparator());
             idx = idx < 0 ? -(idx + 1) : idx + 1;
             BTreeNode<Key, Value> child = getChild(index, idx);
             if (child.getPage() == index.getIndexLocation()) {
@@ -365,14 +712,22 @@ public final class BTreeNode<Key, Value> {
             }
             oldValue = child.remove(index, key);
 
-            // child node is now empty.. remove it from the branch node.
-            if (child.data.keys.length == 0) {
+            if ((child.data.isBranch() || child.data.size > 0) && rebalance(index, idx, child)) {
+                // The child was merged with a sibling or took some of its entries.
+                collapseRoot(index);
+                if (!index.storeNode(this)) {
+                    split(index);
+                }
+            } else if (child.data.size == 0) {
+                // child node is now empty.. remove it from the branch node.
 
                 // If the child node is a branch, promote
                 if (child.data.isBranch()) {
                     // This is cause branches are never really empty.. they just
                     // go down to 1 child..
-                    data = data.children(arrayUpdate(data.children, idx, child.data.children[0]));
+                    data = data.children(arrayUpdate(data.children, data.childCount(), idx, child.data.children[0]));
+                    // nothing refers to the child page anymore.
+                    index.free(child);
                 } else {
 
                     // The child was a leaf. Then we need to actually remove it
@@ -398,37 +753,31 @@ public final class BTreeNode<Key, Value> {
                     }
 
 
-                    if (idx < data.children.length - 1) {
+                    int[] counts = data.counts==null ? null : arrayDelete(data.counts, data.childCount(), idx);
+                    if (idx < data.size) {
                         // Delete it and key to the right.
-                        data = data.branch(arrayDelete(data.keys, idx), arrayDelete(data.children, idx));
+                        data = data.branch(arrayDelete(data.keys, data.size, idx), arrayDelete(data.children, data.childCount(), idx), counts);
                     } else {
                         // It was the last child.. Then delete it and key to the
                         // left
-                        data = data.branch(arrayDelete(data.keys, idx-1), arrayDelete(data.children, idx));
-                    }
-
-                    // If we are the root node, and only have 1 child left. Then
-                    // make the root be the leaf node.
-                    if (data.children.length == 1 && parent == null) {
-                        child = getChild(index, 0);
-                        data = data.change(child.data.keys, child.data.children, child.data.values);
-                        // free up the page..
-                        index.free(child);
+                        data = data.branch(arrayDelete(data.keys, data.size, idx-1), arrayDelete(data.children, data.childCount(), idx), counts);
                     }
 
+                    collapseRoot(index);
                 }
                 index.storeNode(this);
             }
         } else {
-            int idx = Arrays.binarySearch(data.keys, key, index.getComparator());
+            int idx = search(data, key, index.getComparator());
             if (idx < 0) {
                 traceEnd(LOG, "BTreeNode.remove -> null");
                 return null;
             } else {
                 oldValue = data.values[idx];
-                data = data.leaf(arrayDelete(data.keys, idx), arrayDelete(data.values, idx));
+                writable(index).delete(idx);
+                updateCounts(index, -1);
 
-                if (data.keys.length == 0 && parent != null) {
+                if (data.size == 0 && parent != null) {
                     index.free(this);
                 } else {
                     index.storeNode(this);
@@ -439,6 +788,175 @@ public final class BTreeNode<Key, Value> {
         return oldValue;
     }
 
+    /**
+     * If this is the root node, and only has 1 child left, the child
+     * becomes the root.
+     */
+    private void collapseRoot(BTreeIndex<Key, Value> index) {
+        if (parent == null && data.isBranch() && data.size == 0) {
+            BTreeNode<Key, Value> child = getChild(index, 0);
+            data = data.change(child.data);
+            // free up the page..
+            index.free(child);
+        }
+    }
+
+    /**
+     * Merges the child at idx with a sibling if it is filled below the merge
+     * threshold of the index and both fit on one page.  Else the entries of
+     * the two are split evenly between them.  The separator between them
+     * comes down into a merged branch, and moves with the entries of
+     * branches.  The caller has to store this node.
+     *
+     * @return false if nothing changed.
+     */
+    private boolean rebalance(BTreeIndex<Key, Value> index, int idx, BTreeNode<Key, Value> child) {
+        int limit = index.getPaged().getPageSize() - 9;
+        float threshold = index.getMergeThreshold();
+        if (threshold <= 0 || data.size == 0 || encodedSize(index, child.data) >= limit * threshold) {
+            return false;
+        }
+        traceStart(LOG, "BTreeNode.rebalance(%s, %d, %s)", index, idx, child);
+        // Prefer the left sibling, since the leaf in front of it does not have to be relinked.
+        int left = idx > 0 ? idx - 1 : idx;
+        BTreeNode<Key, Value> l = left == idx ? child : getChild(index, left);
+        BTreeNode<Key, Value> r = left == idx ? getChild(index, idx + 1) : child;
+        boolean branch = child.data.isBranch();
+
+        // All the entries of both nodes, in order.
+        int lc = branch ? l.data.childCount() : l.data.size;
+        int rc = branch ? r.data.childCount() : r.data.size;
+        int n = lc + rc;
+        Key[] keys = createKeyArray(branch ? n - 1 : n);
+        System.arraycopy(l.data.keys, 0, keys, 0, l.data.size);
+        if (branch) {
+            keys[l.data.size] = data.keys[left];
+        }
+        System.arraycopy(r.data.keys, 0, keys, keys.length - r.data.size, r.data.size);
+        Value[] values = null;
+        int[] children = null;
+        int[] counts = null;
+        if (branch) {
+            children = new int[n];
+            System.arraycopy(l.data.children, 0, children, 0, lc);
+            System.arraycopy(r.data.children, 0, children, lc, rc);
+            if (l.data.counts != null && r.data.counts != null) {
+                counts = new int[n];
+                System.arraycopy(l.data.counts, 0, counts, 0, lc);
+                System.arraycopy(r.data.counts, 0, counts, lc, rc);
+            }
+        } else {
+            values = createValueArray(n);
+            System.arraycopy(l.data.values, 0, values, 0, lc);
+            System.arraycopy(r.data.values, 0, values, lc, rc);
+        }
+
+        Data<Key, Value> merged = branch ? l.data.branch(keys, children, counts) : l.data.leaf(keys, values, r.data.next);
+        int size = encodedSize(index, merged);
+        if (size <= limit) {
+            trace(LOG, "merging %d into %d", r.page, l.page);
+            int[] c = data.counts;
+            if (c != null) {
+                c = arrayUpdate(c, data.childCount(), left, c[left] + c[left + 1]);
+                c = arrayDelete(c, data.childCount(), left + 1);
+            }
+            data = data.branch(arrayDelete(data.keys, data.size, left), arrayDelete(data.children, data.childCount(), left + 1), c);
+            l.data = merged;
+            if (!index.storeNode(l)) {
+                l.split(index);
+            }
+            index.free(r);
+        } else {
+            // Find the entry which splits the encoded size in half.
+            int pivot = 1;
+            int half = 4;
+            for (; pivot < n - 1; pivot++) {
+                half += index.keySize(pivot < 2 ? null : keys[pivot - 2], keys[pivot - 1]) + (branch ? 4 : BTreeIndex.encodedSize(index.getValueMarshaller(), values[pivot - 1]));
+                if (half >= size / 2) {
+                    break;
+                }
+            }
+            trace(LOG, "moving entries between %d and %d, %d stay left", l.page, r.page, pivot);
+            Key separator;
+            int leftCount;
+            int rightCount;
+            if (branch) {
+                // The key between the children moves up.
+                separator = keys[pivot - 1];
+                Key[] lk = createKeyArray(pivot - 1);
+                Key[] rk = createKeyArray(n - pivot - 1);
+                System.arraycopy(keys, 0, lk, 0, lk.length);
+                System.arraycopy(keys, pivot, rk, 0, rk.length);
+                int[] lch = new int[pivot];
+                int[] rch = new int[n - pivot];
+                System.arraycopy(children, 0, lch, 0, lch.length);
+                System.arraycopy(children, pivot, rch, 0, rch.length);
+                int[] lcn = null;
+                int[] rcn = null;
+                if (counts != null) {
+                    lcn = new int[pivot];
+                    rcn = new int[n - pivot];
+                    System.arraycopy(counts, 0, lcn, 0, lcn.length);
+                    System.arraycopy(counts, pivot, rcn, 0, rcn.length);
+                }
+                l.data = l.data.branch(lk, lch, lcn);
+                r.data = r.data.branch(rk, rch, rcn);
+                leftCount = sum(lcn);
+                rightCount = sum(rcn);
+            } else {
+                Key[] lk = createKeyArray(pivot);
+                Key[] rk = createKeyArray(n - pivot);
+                Value[] lv = createValueArray(pivot);
+                Value[] rv = createValueArray(n - pivot);
+                System.arraycopy(keys, 0, lk, 0, pivot);
+                System.arraycopy(keys, pivot, rk, 0, rk.length);
+                System.arraycopy(values, 0, lv, 0, pivot);
+                System.arraycopy(values, pivot, rv, 0, rv.length);
+                separator = rk[0];
+                l.data = l.data.leaf(lk, lv, r.page);
+                r.data = r.data.leaf(rk, rv, r.data.next);
+                leftCount = lk.length;
+                rightCount = rk.length;
+            }
+            Key[] k = createKeyArray(data.size);
+            System.arraycopy(data.keys, 0, k, 0, data.size);
+            k[left] = separator;
+            int[] c = data.counts;
+            if (c != null) {
+                c = arrayUpdate(c, data.childCount(), left, leftCount);
+                c[left + 1] = rightCount;
+            }
+            data = data.branch(k, data.children, c);
+            index.storeNode(l);
+            index.storeNode(r);
+        }
+        traceEnd(LOG, "BTreeNode.rebalance");
+        return true;
+    }
+
+    /**
+     * Rebalances the nodes from this one up to the root, as long as they
+     * are filled below the merge threshold.
+     */
+    private void rebalanceUp(BTreeIndex<Key, Value> index) {
+        BTreeNode<Key, Value> node = this;
+        while (node.parent != null && node.parent.rebalance(index, node.parent.childIndex(node.page), node)) {
+            node = node.parent;
+            node.collapseRoot(index);
+            if (!index.storeNode(node)) {
+                node.split(index);
+            }
+        }
+    }
+
+    private int childIndex(int page) {
+        int idx = 0;
+        while (data.children[idx] != page) {
+            idx++;
+        }
+        return idx;
+    }
+
     private void setNext(BTreeIndex<Key, Value> index, int next) {
         data = data.next(next);
         index.storeNode(this);
@@ -456,19 +974,20 @@ public final class BTreeNode<Key, Value> {
             traceEnd(LOG, "BTreeNode.put -> %s", oldValue);
             return oldValue;
         } else {
-            int idx = Arrays.binarySearch(data.keys, key, index.getComparator());
+            int idx = search(data, key, index.getComparator());
             trace(LOG, "idx = %d", idx);
 
             Value oldValue = null;
             if (idx >= 0) {
                 // Key was found... Overwrite
                 oldValue = data.values[idx];
-                data = data.leaf(data.keys, arrayUpdate(data.values, idx, value));
+                writable(index).values[idx] = value;
             } else {
                 // Key was not found, Insert it
                 idx = -(idx + 1);
                 trace(LOG, "inserting at: %d", idx);
-                data = data.leaf(arrayInsert(data.keys, key, idx), arrayInsert(data.values, value, idx));
+                writable(index).insert(idx, key, value);
+                updateCounts(index, 1);
             }
 
 //            if (splitNeeded()) {
@@ -492,14 +1011,15 @@ public final class BTreeNode<Key, Value> {
         if (data.isBranch()) {
             return getLeafNode(index, this, key).putIfAbsent(index, key, value);
         } else {
-            int idx = Arrays.binarySearch(data.keys, key, index.getComparator());
+            int idx = search(data, key, index.getComparator());
             if (idx >= 0) {
                 // Key was found, return it
                 return data.values[idx];
             } else {
                 // Key was not found, insert it
                 idx = -(idx + 1);
-                data = data.leaf(arrayInsert(data.keys, key, idx), arrayInsert(data.values, value, idx));
+                writable(index).insert(idx, key, value);
+                updateCounts(index, 1);
                 if( !index.storeNode(this) ) {
                     split(index);
                 }
@@ -508,13 +1028,312 @@ public final class BTreeNode<Key, Value> {
         }
     }
 
-    private void promoteValue(BTreeIndex<Key, Value> index, Key key, int nodeId) {
+    /**
+     * Puts sorted entries into the leaf the entry at from belongs to.  All
+     * the following entries which belong to the same leaf are put in place
+     * and the leaf is stored once.  It stops after the entry which makes
+     * the leaf overflow, so that it only needs to be split once.
+     *
+     * @return the position of the first entry which was not put.
+     */
+    int putAll(BTreeIndex<Key, Value> index, Key[] keys, Value[] values, int from, int to) {
+        traceStart(LOG, "BTreeNode.putAll(%s, %d, %d)", index, from, to);
+        Object[] upper = new Object[1];
+        BTreeNode<Key, Value> leaf = getLeafNode(index, this, keys[from], upper);
+        int end = leaf.bound(index, keys, from, to, upper[0]);
+
+        Codec<Value> valueCodec = index.getValueMarshaller();
+        Data<Key, Value> data = leaf.writable(index);
+        int size = 8;
+        for (int i = 0; i < data.size; i++) {
+            size += index.keySize(i == 0 ? null : data.keys[i - 1], data.keys[i]) + BTreeIndex.encodedSize(valueCodec, data.values[i]);
+        }
+        int limit = index.getPaged().getPageSize() - 9;
+
+        int i = from;
+        int inserted = 0;
+        while (i < end && (i == from || size <= limit)) {
+            int idx = search(data, keys[i], index.getComparator());
+            if (idx >= 0) {
+                size += BTreeIndex.encodedSize(valueCodec, values[i]) - BTreeIndex.encodedSize(valueCodec, data.values[idx]);
+                data.values[idx] = values[i];
+            } else {
+                // The key it gets inserted in front of shares at least as
+                // much with it as with the one it followed so far.
+                idx = -(idx + 1);
+                size += index.keySize(idx == 0 ? null : data.keys[idx - 1], keys[i]) + BTreeIndex.encodedSize(valueCodec, values[i]);
+                data.insert(idx, keys[i], values[i]);
+                inserted++;
+            }
+            i++;
+        }
+        leaf.updateCounts(index, inserted);
+        if (!index.storeNode(leaf)) {
+            leaf.split(index);
+        }
+        traceEnd(LOG, "BTreeNode.putAll -> %d", i);
+        return i;
+    }
+
+    /**
+     * Removes sorted keys from the leaf the key at from belongs to.  All
+     * the following keys which belong to the same leaf are removed in place
+     * and the leaf is stored once.  The last entry of a leaf gets removed
+     * on its own, since the empty leaf has to be unlinked.
+     *
+     * @return the position of the first key which was not removed.
+     */
+    int removeAll(BTreeIndex<Key, Value> index, Key[] keys, int from, int to) {
+        traceStart(LOG, "BTreeNode.removeAll(%s, %d, %d)", index, from, to);
+        Object[] upper = new Object[1];
+        BTreeNode<Key, Value> leaf = getLeafNode(index, this, keys[from], upper);
+        int end = leaf.bound(index, keys, from, to, upper[0]);
+
+        Data<Key, Value> data = null;
+        int deleted = 0;
+        int i = from;
+        for (; i < end; i++) {
+            int idx = search(leaf.data, keys[i], index.getComparator());
+            if (idx >= 0) {
+                if (leaf.data.size == 1 && leaf.parent != null) {
+                    break;
+                }
+                if (data == null) {
+                    data = leaf.writable(index);
+                }
+                data.delete(idx);
+                deleted++;
+            }
+        }
+        if (data != null) {
+            leaf.updateCounts(index, -deleted);
+            index.storeNode(leaf);
+            leaf.rebalanceUp(index);
+        }
+        if (i < end) {
+            remove(index, keys[i++]);
+        }
+        traceEnd(LOG, "BTreeNode.removeAll -> %d", i);
+        return i;
+    }
+
+    /**
+     * @return the position of the first of the sorted keys which is not
+     *         below the upper bound of this leaf.
+     */
+    @SuppressWarnings("unchecked")
+    private int bound(BTreeIndex<Key, Value> index, Key[] keys, int from, int to, Object upper) {
+        if (upper == null) {
+            return to;
+        }
+        int i = from + 1;
+        while (i < to && index.compare(keys[i], (Key) upper) < 0) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Removes the entries with keys from the first key up to the last one,
+     * which is not included.  A null key leaves that end of the range open.
+     * The children of a branch which are entirely in the range get freed
+     * with everything under them, so only the nodes on the paths to the
+     * two ends of the range are changed.  The leaf in front of the range
+     * then gets linked to the one after it.
+     */
+    public void removeRange(BTreeIndex<Key, Value> index, Key from, Key to) {
+        traceStart(LOG, "BTreeNode.removeRange(%s, %s, %s)", index, from, to);
+        if (from != null && to != null && index.compare(from, to) >= 0) {
+            traceEnd(LOG, "BTreeNode.removeRange -> empty range");
+            return;
+        }
+
+        // The first leaf which keeps entries after the range.
+        int next = -1;
+        if (to != null) {
+            BTreeNode<Key, Value> leaf = getLeafNode(index, this, to);
+            int idx = search(leaf.data, to, index.getComparator());
+            idx = idx < 0 ? -(idx + 1) : idx;
+            next = idx < leaf.data.size ? leaf.page : leaf.data.next;
+        }
+
+        removeBetween(index, from, to);
+        while (parent == null && data.isBranch() && data.size == 0) {
+            collapseRoot(index);
+            index.storeNode(this);
+        }
+
+        if (from != null) {
+            // The last leaf which keeps entries in front of the range.
+            BTreeNode<Key, Value> leaf = getLeafNode(index, this, from);
+            if (leaf.data.size == 0 || index.compare(leaf.data.keys[0], from) >= 0) {
+                BTreeNode<Key, Value> peer = getLeftPeer(index, leaf);
+                leaf = peer == null ? null : peer.getRightLeaf(index);
+            }
+            if (leaf != null && leaf.page != next && leaf.data.next != next) {
+                leaf.setNext(index, next);
+            }
+        }
+
+        // Branches were left with a single child rather than promoting it,
+        // so that the leaves stay at the same depth.  Merging the nodes at
+        // the ends of the range gets rid of them.
+        if (index.getMergeThreshold() > 0) {
+            if (from != null) {
+                rebalancePath(index, getLeafNode(index, this, from));
+            }
+            if (to != null) {
+                rebalancePath(index, getLeafNode(index, this, to));
+            }
+        }
+        traceEnd(LOG, "BTreeNode.removeRange");
+    }
+
+    /**
+     * Removes the range from under this node.  A node which has nothing left
+     * ends up as an empty leaf, and gets freed by its parent unless it is
+     * the root.
+     */
+    private void removeBetween(BTreeIndex<Key, Value> index, Key from, Key to) {
+        Comparator<Key> comparator = index.getComparator();
+        if (!data.isBranch()) {
+            int start = 0;
+            if (from != null) {
+                start = search(data, from, comparator);
+                start = start < 0 ? -(start + 1) : start;
+            }
+            int end = data.size;
+            if (to != null) {
+                end = search(data, to, comparator);
+                end = end < 0 ? -(end + 1) : end;
+            }
+            if (start < end) {
+                Key[] keys = createKeyArray(data.size - (end - start));
+                Value[] values = createValueArray(keys.length);
+                System.arraycopy(data.keys, 0, keys, 0, start);
+                System.arraycopy(data.keys, end, keys, start, data.size - end);
+                System.arraycopy(data.values, 0, values, 0, start);
+                System.arraycopy(data.values, end, values, start, data.size - end);
+                data = data.leaf(keys, values);
+                updateCounts(index, start - end);
+                if (data.size > 0 || parent == null) {
+                    index.storeNode(this);
+                }
+            }
+            return;
+        }
+
+        int lo = 0;
+        if (from != null) {
+            lo = search(data, from, comparator);
+            lo = lo < 0 ? -(lo + 1) : lo + 1;
+        }
+        int hi = data.size;
+        if (to != null) {
+            hi = search(data, to, comparator);
+            hi = hi < 0 ? -(hi + 1) : hi + 1;
+        }
+
+        // The children between the ones holding the ends of the range are
+        // in it.  The key in front of the child at hi stays as the
+        // separator between the two.
+        if (hi - lo > 1) {
+            int removed = 0;
+            for (int i = lo + 1; i < hi; i++) {
+                if (data.counts != null) {
+                    removed += data.counts[i];
+                }
+                BTreeNode<Key, Value> child = getChild(index, i);
+                child.clear(index);
+                index.free(child);
+            }
+            int n = hi - lo - 1;
+            Key[] keys = createKeyArray(data.size - n);
+            System.arraycopy(data.keys, 0, keys, 0, lo);
+            System.arraycopy(data.keys, hi - 1, keys, lo, data.size - hi + 1);
+            int[] children = new int[keys.length + 1];
+            System.arraycopy(data.children, 0, children, 0, lo + 1);
+            System.arraycopy(data.children, hi, children, lo + 1, data.childCount() - hi);
+            int[] counts = null;
+            if (data.counts != null) {
+                counts = new int[children.length];
+                System.arraycopy(data.counts, 0, counts, 0, lo + 1);
+                System.arraycopy(data.counts, hi, counts, lo + 1, data.childCount() - hi);
+            }
+            data = data.branch(keys, children, counts);
+            updateCounts(index, -removed);
+            hi = lo + 1;
+        }
+
+        // The children at the ends can split when they are stored again,
+        // so they are found by page once they are done.
+        BTreeNode<Key, Value> low = getChild(index, lo);
+        BTreeNode<Key, Value> high = hi == lo ? null : getChild(index, hi);
+        if (high != null) {
+            high.removeBetween(index, from, to);
+        }
+        low.removeBetween(index, from, to);
+        if (high != null && high.isEmptyLeaf()) {
+            dropChild(index, high);
+        }
+        if (low.isEmptyLeaf()) {
+            dropChild(index, low);
+        }
+
+        if (data.isBranch()) {
+            if (!index.storeNode(this)) {
+                split(index);
+            }
+        } else if (parent == null) {
+            index.storeNode(this);
+        }
+    }
+
+    private boolean isEmptyLeaf() {
+        return !data.isBranch() && data.size == 0;
+    }
+
+    /**
+     * Removes an empty child from this branch and frees it.  This node
+     * becomes an empty leaf if it was its last child.
+     */
+    @SuppressWarnings("unchecked")
+    private void dropChild(BTreeIndex<Key, Value> index, BTreeNode<Key, Value> child) {
+        int idx = childIndex(child.page);
+        if (data.size == 0) {
+            data = data.leaf((Key[])EMPTY_ARRAY, (Value[])EMPTY_ARRAY, -1);
+        } else {
+            int[] counts = data.counts == null ? null : arrayDelete(data.counts, data.childCount(), idx);
+            // Delete the key on the right of it, or on the left if it is the last child.
+            int key = idx < data.size ? idx : idx - 1;
+            data = data.branch(arrayDelete(data.keys, data.size, key), arrayDelete(data.children, data.childCount(), idx), counts);
+        }
+        index.free(child);
+    }
+
+    /**
+     * Rebalances each node on the path from the leaf up to the root which
+     * is filled below the merge threshold.
+     */
+    private static <Key, Value> void rebalancePath(BTreeIndex<Key, Value> index, BTreeNode<Key, Value> leaf) {
+        for (BTreeNode<Key, Value> node = leaf; node.parent != null; node = node.parent) {
+            BTreeNode<Key, Value> branch = node.parent;
+            if (branch.rebalance(index, branch.childIndex(node.page), node)) {
+                branch.collapseRoot(index);
+                if (!index.storeNode(branch)) {
+                    branch.split(index);
+                }
+            }
+        }
+    }
+
+    private void promoteValue(BTreeIndex<Key, Value> index, Key key, int nodeId, int count) {
         traceStart(LOG, "BTreeNode.promoteValue(%s, %s, %d)", index, key, nodeId);
 
-        int idx = Arrays.binarySearch(data.keys, key, index.getComparator());
+        int idx = search(data, key, index.getComparator());
         idx = idx < 0 ? -(idx + 1) : idx + 1;
         trace(LOG, "idx = %d", idx);
-        data = data.branch(arrayInsert(data.keys, key, idx), arrayInsert(data.children, nodeId, idx + 1));
+        writable(index).insert(idx, key, nodeId, count);
         trace(LOG, "data = %s", data);
 
 //        if (splitNeeded()) {
@@ -540,9 +1359,13 @@ public final class BTreeNode<Key, Value> {
         Value[] rightValues = null;
         int[] leftChildren = null;
         int[] rightChildren = null;
+        int[] leftCounts = null;
+        int[] rightCounts = null;
+        int leftCount;
+        int rightCount;
         Key separator;
 
-        int vc = data.keys.length;
+        int vc = data.size;
         int pivot = vc / 2;
         trace(LOG, "vc = %d pivot = %d", vc, pivot);
 
@@ -562,6 +1385,12 @@ public final class BTreeNode<Key, Value> {
             System.arraycopy(data.children, 0, leftChildren, 0, leftChildren.length);
             System.arraycopy(data.keys, leftKeys.length + 1, rightKeys, 0, rightKeys.length);
             System.arraycopy(data.children, leftChildren.length, rightChildren, 0, rightChildren.length);
+            if (data.counts != null) {
+                leftCounts = new int[leftChildren.length];
+                rightCounts = new int[rightChildren.length];
+                System.arraycopy(data.counts, 0, leftCounts, 0, leftCounts.length);
+                System.arraycopy(data.counts, leftCounts.length, rightCounts, 0, rightCounts.length);
+            }
             trace(LOG, "leftKeys = %s", Arrays.toString(leftKeys));
             trace(LOG, "rightKeys = %s", Arrays.toString(rightKeys));
 
@@ -575,6 +1404,8 @@ public final class BTreeNode<Key, Value> {
                 separator = data.keys[pivot];
             }
             trace(LOG, "separator = %s", separator);
+            leftCount = sum(leftCounts);
+            rightCount = sum(rightCounts);
 
         } else {
             trace(LOG, "leaf");
@@ -597,6 +1428,8 @@ public final class BTreeNode<Key, Value> {
             // rightVals[0]);
             separator = rightKeys[0];
             trace(LOG, "separator = %s", separator);
+            leftCount = leftKeys.length;
+            rightCount = rightKeys.length;
         }
 
         // Promote the pivot to the parent branch
@@ -611,8 +1444,8 @@ public final class BTreeNode<Key, Value> {
             BTreeNode<Key, Value> rNode = index.createNode(this);
 
             if (data.isBranch()) {
-                rNode.data = data.branch(rightKeys, rightChildren);
-                lNode.data = data.branch(leftKeys, leftChildren);
+                rNode.data = data.branch(rightKeys, rightChildren, rightCounts);
+                lNode.data = data.branch(leftKeys, leftChildren, leftCounts);
             } else {
                 rNode.data = data.leaf(rightKeys, rightValues);
                 lNode.data = data.leaf(leftKeys, leftValues, rNode.getPage());
@@ -620,7 +1453,10 @@ public final class BTreeNode<Key, Value> {
 
             Key[] v = createKeyArray(1);
             v[0] = separator;
-            data = data.branch(v, new int[] { lNode.getPage(), rNode.getPage() });
+            // A branch which was split keeps on counting only if it did.
+            boolean counted = data.isBranch() ? data.counts != null : index.isCounted();
+            int[] counts = counted ? new int[] { leftCount, rightCount } : null;
+            data = data.branch(v, new int[] { lNode.getPage(), rNode.getPage() }, counts);
 
             index.storeNode(this);
             index.storeNode(rNode);
@@ -630,8 +1466,8 @@ public final class BTreeNode<Key, Value> {
             BTreeNode<Key, Value> rNode;
 
             if (data.isBranch()) {
-                rNode = index.createNode(parent, data.branch(rightKeys, rightChildren));
-                data = data.branch(leftKeys, leftChildren);
+                rNode = index.createNode(parent, data.branch(rightKeys, rightChildren, rightCounts));
+                data = data.branch(leftKeys, leftChildren, leftCounts);
             } else {
                 rNode = index.createNode(parent, data.leaf(rightKeys, rightValues, data.next));
                 data = data.leaf(leftKeys, leftValues, rNode.getPage());
@@ -639,7 +1475,7 @@ public final class BTreeNode<Key, Value> {
 
             index.storeNode(this);
             index.storeNode(rNode);
-            parent.promoteValue(index, separator, rNode.getPage());
+            parent.promoteValue(index, separator, rNode.getPage(), rightCount);
         }
         traceEnd(LOG, "BTreeNode.split");
     }
@@ -652,21 +1488,21 @@ public final class BTreeNode<Key, Value> {
         }
 
         if (data.isBranch()) {
-            out.println(firstLinePrefix+"branch @ "+page+ " contains "+data.keys.length+" keys");
-            for (int i = 0; i < data.children.length; i++) {
+            out.println(firstLinePrefix+"branch @ "+page+ " contains "+data.size+" keys");
+            for (int i = 0; i < data.childCount(); i++) {
                 BTreeNode<Key, Value> child = getChild(index, i);
-                if (i < data.keys.length) {
+                if (i < data.size) {
                     child.printStructure(index, out, prefix+"|-+ ", prefix+"|   ");
                 } else {
                     child.printStructure(index, out, prefix+"\\-+ ", prefix+"    ");
                 }
-                if (i < data.keys.length ) {
+                if (i < data.size ) {
                     out.println(prefix+": " + data.keys[i]);
                 }
             }
         } else {
-            out.println(firstLinePrefix+"leaf @ "+page+ " contains "+data.keys.length+" keys");
-            for (int i = 0; i < data.keys.length; i++) {
+            out.println(firstLinePrefix+"leaf @ "+page+ " contains "+data.size+" keys");
+            for (int i = 0; i < data.size; i++) {
                 out.println(prefix+": " + data.keys[i]);
             }
         }
@@ -677,7 +1513,7 @@ public final class BTreeNode<Key, Value> {
         depth++;
         if (data.isBranch()) {
             int min = Integer.MAX_VALUE;
-            for (int i = 0; i < data.children.length; i++) {
+            for (int i = 0; i < data.childCount(); i++) {
                 min = Math.min(min, getChild(index, i).getMinLeafDepth(index, depth));
             }
             return min;
@@ -688,14 +1524,18 @@ public final class BTreeNode<Key, Value> {
     }
 
     public int size(BTreeIndex<Key, Value> index) {
-        int rc=0;
+        int rc = data.count();
+        if (rc >= 0) {
+            return rc;
+        }
+        rc = 0;
 
         BTreeNode<Key, Value> node = this;
         while (node.data.isBranch()) {
             node = node.getChild(index, 0);
         }
         while (node!=null) {
-            rc += node.data.values.length;
+            rc += node.data.size;
             if( node.data.next!= -1 ) {
                 node = index.loadNode(null, node.data.next);
             } else {
@@ -705,15 +1545,95 @@ public final class BTreeNode<Key, Value> {
         return rc;
     }
 
+    /**
+     * @return the number of entries under the child.  The entries of a
+     *         child which is not counted get counted leaf by leaf.
+     */
+    private int count(BTreeIndex<Key, Value> index, int idx) {
+        if (data.counts != null) {
+            return data.counts[idx];
+        }
+        // Not with size(), which follows the leaves past the child.
+        BTreeNode<Key, Value> child = getChild(index, idx);
+        if (!child.data.isBranch()) {
+            return child.data.size;
+        }
+        int rc = 0;
+        for (int i = 0; i < child.data.childCount(); i++) {
+            rc += child.count(index, i);
+        }
+        return rc;
+    }
+
+    /**
+     * @return the number of entries with keys below the key.
+     */
+    public int rank(BTreeIndex<Key, Value> index, Key key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null");
+        }
+        int rc = 0;
+        BTreeNode<Key, Value> node = this;
+        while (node.data.isBranch()) {
+            int idx = search(node.data, key, index.getComparator());
+            idx = idx < 0 ? -(idx + 1) : idx + 1;
+            for (int i = 0; i < idx; i++) {
+                rc += node.count(index, i);
+            }
+            node = node.getChild(index, idx);
+        }
+        int idx = search(node.data, key, index.getComparator());
+        return rc + (idx < 0 ? -(idx + 1) : idx);
+    }
+
+    /**
+     * @return an iterator which starts at the entry at the offset.
+     */
+    public Iterator<Map.Entry<Key, Value>> iteratorAt(BTreeIndex<Key, Value> index, int offset) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("The offset cannot be negative: "+offset);
+        }
+        BTreeNode<Key, Value> node = this;
+        while (node.data.isBranch()) {
+            int idx = 0;
+            for (; idx < node.data.size; idx++) {
+                int count = node.count(index, idx);
+                if (offset < count) {
+                    break;
+                }
+                offset -= count;
+            }
+            node = node.getChild(index, idx);
+        }
+        return new BTreeIterator<Key, Value>(index, node, offset);
+    }
+
+    /**
+     * Adds the change in the number of entries of this node to the counts
+     * of the branches above it.  It has to be done before the node gets
+     * split, since the counts of the parent are split with it.
+     */
+    private void updateCounts(BTreeIndex<Key, Value> index, int delta) {
+        if (delta == 0) {
+            return;
+        }
+        for (BTreeNode<Key, Value> node = this; node.parent != null && node.parent.data.counts != null; node = node.parent) {
+            BTreeNode<Key, Value> branch = node.parent;
+            int idx = branch.childIndex(node.page);
+            branch.writable(index).counts[idx] += delta;
+            index.storeNode(branch);
+        }
+    }
+
     public boolean isEmpty(BTreeIndex<Key, Value> index) {
-        return data.keys.length==0;
+        return data.size==0;
     }
 
     public int getMaxLeafDepth(BTreeIndex<Key, Value> index, int depth) {
         depth++;
         if (data.isBranch()) {
             int v = 0;
-            for (int i = 0; i < data.children.length; i++) {
+            for (int i = 0; i < data.childCount(); i++) {
                 v = Math.max(v, getChild(index, i).getMaxLeafDepth(index, depth));
             }
             depth = v;
@@ -721,6 +1641,119 @@ public final class BTreeNode<Key, Value> {
         return depth;
     }
 
+    /**
+     * Tracks the progress of a {@link #relocate(BTreeIndex, Relocator)} walk.
+     */
+    static class Relocator<Key, Value> {
+        final int boundary;
+        int budget;
+        // Where the previous walk stopped.  The sub trees which only hold smaller
+        // keys get skipped.  Once the walk stops on the budget, where the next one starts.
+        Key resume;
+        // The last leaf visited.  Its next pointer has to follow the next leaf when it moves.
+        BTreeNode<Key, Value> previousLeaf;
+
+        Relocator(int boundary, int budget, Key resume) {
+            this.boundary = boundary;
+            this.budget = budget;
+            this.resume = resume;
+        }
+    }
+
+    /**
+     * Moves the nodes of this sub tree which are stored at or past the
+     * boundary page to the lowest free pages.  Children are visited first so
+     * that a branch gets stored just once with all the new pages of its children.
+     * The root never moves since its page identifies the index.
+     *
+     * @return false once the budget is used up or no free page is left in
+     *         front of a node to move.  Only in the first case the relocator
+     *         has a key to resume at.
+     */
+    boolean relocate(BTreeIndex<Key, Value> index, Relocator<Key, Value> relocator) {
+        boolean more = true;
+        boolean dirty = false;
+        if (data.isBranch()) {
+            int first = 0;
+            if (relocator.resume != null) {
+                first = search(data, relocator.resume, index.getComparator());
+                first = first < 0 ? -(first + 1) : first + 1;
+                if (first > 0) {
+                    BTreeNode<Key, Value> leaf = getChild(index, first - 1);
+                    while (leaf.data.isBranch()) {
+                        leaf = leaf.getChild(index, leaf.data.childCount() - 1);
+                    }
+                    relocator.previousLeaf = leaf;
+                }
+            }
+            for (int i = first; more && i < data.childCount(); i++) {
+                BTreeNode<Key, Value> child = getChild(index, i);
+                more = child.relocate(index, relocator);
+                if (child.page != data.children[i]) {
+                    data = data.children(arrayUpdate(data.children, data.childCount(), i, child.page));
+                    dirty = true;
+                }
+            }
+        } else {
+            // Past where the previous walk stopped.
+            relocator.resume = null;
+        }
+
+        boolean moved = false;
+        if (more && parent != null && page >= relocator.boundary) {
+            if (relocator.budget == 0) {
+                relocator.resume = getFirstKey(index);
+                more = false;
+            } else if (index.moveNode(this)) {
+                relocator.budget--;
+                moved = dirty = true;
+            } else {
+                more = false;
+            }
+        }
+        if (dirty) {
+            index.storeNode(this);
+        }
+
+        if (isLeaf()) {
+            if (moved && relocator.previousLeaf != null) {
+                relocator.previousLeaf.setNext(index, page);
+            }
+            relocator.previousLeaf = this;
+        }
+        return more;
+    }
+
+    /**
+     * @return the smallest key of this sub tree.
+     */
+    private Key getFirstKey(BTreeIndex<Key, Value> index) {
+        BTreeNode<Key, Value> node = this;
+        while (node.data.isBranch()) {
+            node = node.getChild(index, 0);
+        }
+        return node.data.keys[0];
+    }
+
+    /**
+     * Loads the children of this sub tree which are stored at one of the
+     * given pages.  Only the nodes reachable from this one get loaded, so
+     * pages which were freed or reused since they were listed are skipped.
+     *
+     * @return the number of nodes loaded.
+     */
+    int warm(BTreeIndex<Key, Value> index, Set<Integer> pages) {
+        int rc = 0;
+        if (data.isBranch()) {
+            for (int i = 0; i < data.childCount(); i++) {
+                if (pages.contains(data.children[i])) {
+                    rc += 1 + getChild(index, i).warm(index, pages);
+                }
+            }
+        }
+        return rc;
+    }
+
     public Value get(BTreeIndex<Key, Value> index, Key key) {
         if (key == null) {
             throw new IllegalArgumentException("Key cannot be null");
@@ -728,7 +1761,7 @@ public final class BTreeNode<Key, Value> {
         if (data.isBranch()) {
             return getLeafNode(index, this, key).get(index, key);
         } else {
-            int idx = Arrays.binarySearch(data.keys, key, index.getComparator());
+            int idx = search(data, key, index.getComparator());
             if (idx < 0) {
                 return null;
             } else {
@@ -747,13 +1780,13 @@ public final class BTreeNode<Key, Value> {
         }
 
         if (data.isBranch()) {
-            for (int i = 0; i < this.data.children.length; i++) {
+            for (int i = 0; i < this.data.childCount(); i++) {
                 Key key1 = null;
                 if (i != 0) {
                     key1 = data.keys[i - 1];
                 }
                 Key key2 = null;
-                if (i != this.data.children.length - 1) {
+                if (i != this.data.size) {
                     key2 = data.keys[i];
                 }
                 if (visitor.isInterestedInKeysBetween(key1, key2, index.getComparator())) {
@@ -762,7 +1795,7 @@ public final class BTreeNode<Key, Value> {
                 }
             }
         } else {
-            visitor.visit(Arrays.asList(data.keys), Arrays.asList(data.values), index.getComparator());
+            visitor.visit(Arrays.asList(data.keys).subList(0, data.size), Arrays.asList(data.values).subList(0, data.size), index.getComparator());
         }
     }
 
@@ -771,7 +1804,7 @@ public final class BTreeNode<Key, Value> {
         while (node.data.isBranch()) {
             node = node.getChild(index, 0);
         }
-        if (node.data.values.length > 0) {
+        if (node.data.size > 0) {
             return new MapEntry<Key, Value>(node.data.keys[0], node.data.values[0]);
         } else {
             return null;
@@ -781,10 +1814,10 @@ public final class BTreeNode<Key, Value> {
     public Map.Entry<Key, Value> getLast(BTreeIndex<Key, Value> index) {
         BTreeNode<Key, Value> node = this;
         while (node.data.isBranch()) {
-            node = node.getChild(index, node.data.children.length - 1);
+            node = node.getChild(index, node.data.size);
         }
-        if (node.data.values.length > 0) {
-            int idx = node.data.values.length - 1;
+        if (node.data.size > 0) {
+            int idx = node.data.size - 1;
             return new MapEntry<Key, Value>(node.data.keys[idx], node.data.values[idx]);
         } else {
             return null;
@@ -800,9 +1833,13 @@ public final class BTreeNode<Key, Value> {
     }
 
 
-    public Iterator<Map.Entry<Key,Value>> iterator(BTreeIndex<Key, Value> index, Predicate<Key> predicate) {
-        return new BTreePredicateIterator<Key,Value>(index, this, predicate);
+    public Iterator<Map.Entry<Key,Value>> iterator(BTreeIndex<Key, Value> index, Predicate<Key> predicate, boolean descending) {
+        return new BTreePredicateIterator<Key,Value>(index, this, predicate, descending);
+
+    }
 
+    public Iterator<Map.Entry<Key, Value>> descendingIterator(BTreeIndex<Key, Value> index, Key startKey) {
+        return new BTreeDescendingIterator<Key, Value>(index, this, startKey);
     }
 
     public Iterator<Map.Entry<Key, Value>> iterator(BTreeIndex<Key, Value> index, final Key startKey) {
@@ -812,7 +1849,7 @@ public final class BTreeNode<Key, Value> {
         if (data.isBranch()) {
             return getLeafNode(index, this, startKey).iterator(index, startKey);
         } else {
-            int idx = Arrays.binarySearch(data.keys, startKey, index.getComparator());
+            int idx = search(data, startKey, index.getComparator());
             if (idx < 0) {
                 idx = -(idx + 1);
             }
@@ -827,7 +1864,7 @@ public final class BTreeNode<Key, Value> {
     @SuppressWarnings("unchecked")
     public void clear(BTreeIndex<Key, Value> index) {
         if (data.isBranch()) {
-            for (int i = 0; i < data.children.length; i++) {
+            for (int i = 0; i < data.childCount(); i++) {
                 BTreeNode<Key, Value> node = index.loadNode(this, data.children[i]);
                 node.clear(index);
                 index.free(node);
@@ -840,14 +1877,26 @@ public final class BTreeNode<Key, Value> {
         }
     }
 
-    private static <Key, Value> BTreeNode<Key, Value> getLeafNode(BTreeIndex<Key, Value> index, final BTreeNode<Key, Value> node, Key key) {
+    static <Key, Value> BTreeNode<Key, Value> getLeafNode(BTreeIndex<Key, Value> index, final BTreeNode<Key, Value> node, Key key) {
+        return getLeafNode(index, node, key, null);
+    }
+
+    /**
+     * @param upper if not null, gets the separator right of the path to
+     *        the leaf, the keys of the leaf are below it.  Null if there
+     *        is none.
+     */
+    private static <Key, Value> BTreeNode<Key, Value> getLeafNode(BTreeIndex<Key, Value> index, final BTreeNode<Key, Value> node, Key key, Object[] upper) {
         traceStart(LOG, "BTreeNode.getLeafNode(..., %s, %s)", node, key);
         BTreeNode<Key, Value> current = node;
         while (true) {
             if (current.data.isBranch()) {
-                int idx = Arrays.binarySearch(current.data.keys, key, index.getComparator());
+                int idx = search(current.data, key, index.getComparator());
                 trace(LOG, "idx = %d", idx);
                 idx = idx < 0 ? -(idx + 1) : idx + 1;
+                if (upper != null && idx < current.data.size) {
+                    upper[0] = current.data.keys[idx];
+                }
                 BTreeNode<Key, Value> child = current.getChild(index, idx);
 
                 // A little cycle detection for sanity's sake
@@ -873,7 +1922,7 @@ public final class BTreeNode<Key, Value> {
         if (data.isBranch()) {
             return getLeafNode(index, this, key).contains(index, key);
         } else {
-            int idx = Arrays.binarySearch(data.keys, key, index.getComparator());
+            int idx = search(data, key, index.getComparator());
             if (idx < 0) {
                 return false;
             } else {
@@ -887,11 +1936,11 @@ public final class BTreeNode<Key, Value> {
     // /////////////////////////////////////////////////////////////////
 
     boolean allowPageOverflow() {
-        return data.keys.length < 4;
+        return data.size < 4;
     }
 
 //    private boolean splitNeeded() {
-//        if (pageCount > 1 && data.keys.length > 1) {
+//        if (pageCount > 1 && data.size > 1) {
 //            if (pageCount > 128 || !allowPageOverflow() ) {
 //                return true;
 //            }
@@ -909,24 +1958,26 @@ public final class BTreeNode<Key, Value> {
         return (Value[]) new Object[size];
     }
 
-    @SuppressWarnings("unchecked")
-    static private <T> T[] arrayUpdate(T[] vals, int idx, T value) {
-        T[] newVals = (T[]) new Object[vals.length];
-        System.arraycopy(vals, 0, newVals, 0, vals.length);
-        newVals[idx] = value;
-        return newVals;
+    static private int sum(int[] vals) {
+        int rc = 0;
+        if (vals != null) {
+            for (int v : vals) {
+                rc += v;
+            }
+        }
+        return rc;
     }
 
-    static private int[] arrayUpdate(int[] vals, int idx, int value) {
-        int[] newVals = new int[vals.length];
-        System.arraycopy(vals, 0, newVals, 0, vals.length);
+    static private int[] arrayUpdate(int[] vals, int length, int idx, int value) {
+        int[] newVals = new int[length];
+        System.arraycopy(vals, 0, newVals, 0, length);
         newVals[idx] = value;
         return newVals;
     }
 
     @SuppressWarnings("unchecked")
-    static private <T> T[] arrayDelete(T[] vals, int idx) {
-        T[] newVals = (T[]) new Object[vals.length - 1];
+    static private <T> T[] arrayDelete(T[] vals, int length, int idx) {
+        T[] newVals = (T[]) new Object[length - 1];
         if (idx > 0) {
             System.arraycopy(vals, 0, newVals, 0, idx);
         }
@@ -936,8 +1987,8 @@ public final class BTreeNode<Key, Value> {
         return newVals;
     }
 
-    static private int[] arrayDelete(int[] vals, int idx) {
-        int[] newVals = new int[vals.length - 1];
+    static private int[] arrayDelete(int[] vals, int length, int idx) {
+        int[] newVals = new int[length - 1];
         if (idx > 0) {
             System.arraycopy(vals, 0, newVals, 0, idx);
         }
@@ -947,30 +1998,63 @@ public final class BTreeNode<Key, Value> {
         return newVals;
     }
 
+    /**
+     * Like {@link Arrays#binarySearch(Object[], Object, Comparator)} but only
+     * searches the keys in use.  Long and Integer keys in their natural
+     * order are searched unboxed.
+     */
     @SuppressWarnings("unchecked")
-    static private <T> T[] arrayInsert(T[] vals, T val, int idx) {
-        T[] newVals = (T[]) new Object[vals.length + 1];
-        if (idx > 0) {
-            System.arraycopy(vals, 0, newVals, 0, idx);
+    static <Key> int search(Data<Key, ?> data, Key key, Comparator<Key> comparator) {
+        if (comparator == null && (key instanceof Long || key instanceof Integer)) {
+            LongKeys longKeys = data.longKeys;
+            if (longKeys == null) {
+                longKeys = new LongKeys(data.keys, data.size);
+                data.longKeys = longKeys;
+            }
+            return longKeys.search(((Number) key).longValue(), data.size);
         }
-        newVals[idx] = val;
-        if (idx < vals.length) {
-            System.arraycopy(vals, idx, newVals, idx + 1, vals.length - idx);
+        int low = 0;
+        int high = data.size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = comparator == null ? ((Comparable<Key>) data.keys[mid]).compareTo(key) : comparator.compare(data.keys[mid], key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
         }
-        return newVals;
+        return -(low + 1);
     }
 
-    static private int[] arrayInsert(int[] vals, int val, int idx) {
-
-        int[] newVals = new int[vals.length + 1];
-        if (idx > 0) {
-            System.arraycopy(vals, 0, newVals, 0, idx);
+    /**
+     * @return the data of the node, ready to be changed in place.  It gets
+     *         copied first unless it is a writable copy which only this
+     *         transaction can see.
+     */
+    private Data<Key, Value> writable(BTreeIndex<Key, Value> index) {
+        Object scope = index.privateScope();
+        if (scope == null || data.owner != scope || !index.isPrivate(this)) {
+            data = data.writable(scope);
         }
-        newVals[idx] = val;
-        if (idx < vals.length) {
-            System.arraycopy(vals, idx, newVals, idx + 1, vals.length - idx);
+        return data;
+    }
+
+    /**
+     * Keeps the data of the node from being changed in place while an
+     * iterator reads it.  The next change in this transaction copies it
+     * first, so that the iterator does not skip or repeat the entries it
+     * would shift.
+     *
+     * @return this node.
+     */
+    BTreeNode<Key, Value> share(BTreeIndex<Key, Value> index) {
+        if (data.owner != null && data.owner == index.privateScope()) {
+            data.owner = null;
         }
-        return newVals;
+        return this;
     }
 
     public BTreeNode<Key, Value> getParent() {
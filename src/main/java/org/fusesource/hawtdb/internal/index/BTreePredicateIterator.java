@@ -16,71 +16,180 @@
  */
 package org.fusesource.hawtdb.internal.index;
 
-import org.fusesource.hawtdb.api.Predicate;
-
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import org.fusesource.hawtdb.api.Predicate;
+import org.fusesource.hawtdb.api.Predicates;
+import org.fusesource.hawtdb.api.Predicates.Range;
 
 /**
+ * Iterates the entries a predicate is interested in.  If the predicate
+ * can be bounded, the iteration seeks to the start of each range of keys
+ * and follows the leaves up to its end.  Else it walks the tree and skips
+ * the children the predicate is not interested in.
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 final class BTreePredicateIterator<Key, Value> implements Iterator<Entry<Key, Value>> {
 
     private final BTreeIndex<Key, Value> index;
-    private Predicate<Key> predicate;
-    private final Stack<Data<Key, Value>> stack = new Stack<Data<Key, Value>>();
+    private final BTreeNode<Key, Value> root;
+    private final Predicate<Key> predicate;
+    private final Comparator<Key> comparator;
+    private final boolean descending;
+
+    // The ranges of keys to scan, null if the predicate can't be bounded.
+    private final List<Range<Key>> ranges;
+    private int nextRange;
+    private Range<Key> range;
+    private Iterator<Entry<Key, Value>> scan;
+    // The key the scan starts at if the range does not include it.
+    private Key excluded;
+
+    // Else the nodes on the path of the walk, and the positions of the
+    // next child or key in each of them.
+    private final ArrayList<BTreeNode<Key, Value>> path = new ArrayList<BTreeNode<Key, Value>>();
+    private int[] positions = new int[8];
+    // The key of the last entry of the walk, and the changes of the index
+    // up to then.
+    private Key last;
+    private int changes;
 
+    private Entry<Key, Value> nextEntry;
 
-    private class Data<Key, Value> {
-        private BTreeNode<Key, Value> node;
-        private int pos;
+    BTreePredicateIterator(BTreeIndex<Key, Value> index, BTreeNode<Key, Value> root, Predicate<Key> predicate, boolean descending) {
+        this.index = index;
+        this.root = root;
+        this.predicate = predicate;
+        this.comparator = index.getComparator();
+        this.descending = descending;
+        this.ranges = Predicates.ranges(predicate, comparator);
+        if (ranges == null) {
+            push(root);
+            changes = index.getChanges();
+        }
+    }
 
-        public Data(BTreeNode<Key, Value> node) {
-            this.node = node;
+    private void findNextEntry() {
+        if (ranges != null) {
+            scan();
+        } else {
+            walk();
         }
     }
 
-    private Entry<Key, Value> nextEntry;
+    private void scan() {
+        while (nextEntry == null) {
+            if (scan == null && !seek()) {
+                return;
+            }
+            if (!scan.hasNext()) {
+                // There are no keys left for the other ranges either.
+                scan = null;
+                nextRange = ranges.size();
+                continue;
+            }
+            Entry<Key, Value> entry = scan.next();
+            Key key = entry.getKey();
+            if (excluded != null) {
+                boolean skip = index.compare(key, excluded) == 0;
+                excluded = null;
+                if (skip) {
+                    continue;
+                }
+            }
+            if (descending ? range.startsAfter(key, comparator) : range.endsBefore(key, comparator)) {
+                // Seek to the next range.
+                scan = null;
+            } else if (predicate.isInterestedInKey(key, comparator)) {
+                nextEntry = entry;
+            }
+        }
+    }
 
-    BTreePredicateIterator(BTreeIndex<Key, Value> index, BTreeNode<Key, Value> root, Predicate<Key> predicate) {
-        this.index = index;
-        this.predicate = predicate;
-        stack.push(new Data<Key, Value>(root));
+    /**
+     * Starts the scan of the next range at the key it starts with, or just
+     * after it if the range does not include it.
+     *
+     * @return false if there are no ranges left.
+     */
+    private boolean seek() {
+        if (nextRange == ranges.size()) {
+            return false;
+        }
+        range = ranges.get(descending ? ranges.size() - 1 - nextRange : nextRange);
+        nextRange++;
+        Key start = descending ? range.getLast() : range.getFirst();
+        boolean inclusive = descending ? range.isLastInclusive() : range.isFirstInclusive();
+        scan = descending ? root.descendingIterator(index, start) : root.iterator(index, start);
+        excluded = inclusive ? null : start;
+        return true;
     }
 
-    private void findNextEntry() {
-        while ( nextEntry==null && !stack.isEmpty() ) {
-            final Data<Key, Value> current = stack.peek();
-            final BTreeNode<Key, Value> node = current.node;
-            final BTreeNode.Data<Key, Value> data = node.data;
+    private void push(BTreeNode<Key, Value> node) {
+        int depth = path.size();
+        if (depth == positions.length) {
+            int[] grown = new int[depth * 2];
+            System.arraycopy(positions, 0, grown, 0, depth);
+            positions = grown;
+        }
+        positions[depth] = descending ? (node.isBranch() ? node.data.childCount() : node.data.size) - 1 : 0;
+        path.add(node.share(index));
+    }
 
+    /**
+     * Goes down the current tree to the last key of the walk, so that it
+     * goes on after it like in the tree it came from.
+     */
+    private void seekLast() {
+        path.clear();
+        BTreeNode<Key, Value> node = index.root();
+        while (node.isBranch()) {
+            int idx = BTreeNode.search(node.data, last, comparator);
+            idx = idx < 0 ? -(idx + 1) : idx + 1;
+            push(node);
+            positions[path.size() - 1] = descending ? idx - 1 : idx + 1;
+            node = node.getChild(index, idx);
+        }
+        int idx = BTreeNode.search(node.data, last, comparator);
+        push(node);
+        if (descending) {
+            positions[path.size() - 1] = idx < 0 ? -(idx + 1) - 1 : idx - 1;
+        } else {
+            positions[path.size() - 1] = idx < 0 ? -(idx + 1) : idx + 1;
+        }
+        changes = index.getChanges();
+    }
+
+    private void walk() {
+        while (nextEntry == null && !path.isEmpty()) {
+            if (last != null && changes != index.getChanges()) {
+                seekLast();
+            }
+            int depth = path.size() - 1;
+            BTreeNode<Key, Value> node = path.get(depth);
+            BTreeNode.Data<Key, Value> data = node.data;
+            int pos = positions[depth];
+            int count = node.isBranch() ? data.childCount() : data.size;
+            if (pos < 0 || pos >= count) {
+                path.remove(depth);
+                continue;
+            }
+            positions[depth] = descending ? pos - 1 : pos + 1;
             if (node.isBranch()) {
-                if (current.pos < data.children.length) {
-                    Key key1 = null;
-                    if (current.pos != 0) {
-                        key1 = data.keys[current.pos - 1];
-                    }
-                    Key key2 = null;
-                    if (current.pos != data.children.length - 1) {
-                        key2 = data.keys[current.pos];
-                    }
-                    if (predicate.isInterestedInKeysBetween(key1, key2, index.getComparator())) {
-                        stack.push( new Data<Key, Value>(node.getChild(index, current.pos)) );
-                    }
-                    current.pos++;
-                } else {
-                    stack.pop();
-                }
-            } else {
-                if (current.pos < data.keys.length) {
-                    if( predicate.isInterestedInKey(data.keys[current.pos], index.getComparator()) ) {
-                        nextEntry = new MapEntry<Key, Value>(data.keys[current.pos], data.values[current.pos]);
-                    }
-                    current.pos++;
-                } else {
-                    stack.pop();
+                Key key1 = pos == 0 ? null : data.keys[pos - 1];
+                Key key2 = pos == data.size ? null : data.keys[pos];
+                if (predicate.isInterestedInKeysBetween(key1, key2, comparator)) {
+                    push(node.getChild(index, pos));
                 }
+            } else if (predicate.isInterestedInKey(data.keys[pos], comparator)) {
+                nextEntry = new MapEntry<Key, Value>(data.keys[pos], data.values[pos]);
+                last = data.keys[pos];
             }
         }
     }
@@ -105,6 +214,4 @@ final class BTreePredicateIterator<Key, Value> implements Iterator<Entry<Key, Va
         throw new UnsupportedOperationException();
     }
 
-
-    
-}
\ No newline at end of file
+}
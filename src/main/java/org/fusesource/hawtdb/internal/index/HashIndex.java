@@ -26,7 +26,10 @@ import org.fusesource.hawtdb.internal.page.ExtentOutputStream;
 import java.io.IOException;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -70,6 +73,7 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
         this.BIN_FACTORY.setKeyCodec(factory.getKeyCodec());
         this.BIN_FACTORY.setValueCodec(factory.getValueCodec());
         this.BIN_FACTORY.setDeferredEncoding(this.deferredEncoding);
+        this.BIN_FACTORY.setCounted(factory.isCounted());
         this.fixedCapacity = this.minimumBucketCapacity==this.maximumBucketCapacity && this.maximumBucketCapacity==this.initialBucketCapacity;
         traceEnd(LOG, "HashIndex");
     }
@@ -180,6 +184,77 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
         return rc;
     }
 
+    public void putAll(Map<? extends Key, ? extends Value> entries) {
+        traceStart(LOG, "HashIndex.putAll(%d entries)", entries.size());
+        HashMap<Integer, Map<Key, Value>> groups = new HashMap<Integer, Map<Key, Value>>();
+        for (Map.Entry<? extends Key, ? extends Value> entry : entries.entrySet()) {
+            Integer i = buckets.index(entry.getKey());
+            Map<Key, Value> group = groups.get(i);
+            if (group == null) {
+                group = new HashMap<Key, Value>();
+                groups.put(i, group);
+            }
+            group.put(entry.getKey(), entry.getValue());
+        }
+
+        int active = buckets.active;
+        for (Map.Entry<Integer, Map<Key, Value>> group : groups.entrySet()) {
+            Index<Key, Value> indexBucket = buckets.bucket(group.getKey());
+            if (!fixedCapacity && indexBucket.isEmpty()) {
+                buckets.active++;
+            }
+            indexBucket.putAll(group.getValue());
+        }
+
+        if (buckets.active != active) {
+            storeBuckets();
+        }
+        while (buckets.active >= buckets.increaseThreshold) {
+            int capacity = Math.min(this.maximumBucketCapacity, buckets.capacity * 4);
+            if (buckets.capacity == capacity) {
+                break;
+            }
+            this.changeCapacity(capacity);
+        }
+        traceEnd(LOG, "HashIndex.putAll");
+    }
+
+    public void removeAll(Collection<? extends Key> keys) {
+        traceStart(LOG, "HashIndex.removeAll(%d keys)", keys.size());
+        HashMap<Integer, List<Key>> groups = new HashMap<Integer, List<Key>>();
+        for (Key key : keys) {
+            Integer i = buckets.index(key);
+            List<Key> group = groups.get(i);
+            if (group == null) {
+                group = new ArrayList<Key>();
+                groups.put(i, group);
+            }
+            group.add(key);
+        }
+
+        int active = buckets.active;
+        for (Map.Entry<Integer, List<Key>> group : groups.entrySet()) {
+            Index<Key, Value> indexBucket = buckets.bucket(group.getKey());
+            boolean wasEmpty = indexBucket.isEmpty();
+            indexBucket.removeAll(group.getValue());
+            if (!fixedCapacity && !wasEmpty && indexBucket.isEmpty()) {
+                buckets.active--;
+            }
+        }
+
+        if (buckets.active != active) {
+            storeBuckets();
+        }
+        while (buckets.active <= buckets.decreaseThreshold) {
+            int capacity = Math.max(minimumBucketCapacity, buckets.capacity / 2);
+            if (buckets.capacity == capacity) {
+                break;
+            }
+            changeCapacity(capacity);
+        }
+        traceEnd(LOG, "HashIndex.removeAll");
+    }
+
     public void clear() {
         buckets.clear();
         if (buckets.capacity!=initialBucketCapacity) {
@@ -209,6 +284,54 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
         return page;
     }
 
+    /**
+     * Relocates the bucket b+trees, their roots included.  The bucket list
+     * page stays where it is.
+     */
+    public int relocate(Relocation relocation, int budget) {
+        traceStart(LOG, "HashIndex.relocate(%s, %d)", relocation, budget);
+        int boundary = relocation.getBoundary();
+        BucketPosition position = (BucketPosition) relocation.getPosition();
+        Relocation bucket = new Relocation(boundary);
+        int i = 0;
+        if (position != null) {
+            i = position.bucket;
+            bucket.setPosition(position.position);
+        }
+        int rc = 0;
+        boolean moved = false;
+        relocation.setPosition(null);
+        relocation.setDone(true);
+        for (; i < buckets.capacity; i++) {
+            if (rc == budget) {
+                relocation.setPosition(new BucketPosition(i, bucket.getPosition()));
+                relocation.setDone(false);
+                break;
+            }
+            if (buckets.bucketsIndex[i] >= boundary) {
+                int location = ((BTreeIndex<Key, Value>) buckets.bucket(i)).relocateRoot();
+                if (location < 0) {
+                    break;
+                }
+                buckets.bucketsIndex[i] = location;
+                moved = true;
+                rc++;
+            }
+            rc += buckets.bucket(i).relocate(bucket, budget-rc);
+            if (!bucket.isDone()) {
+                relocation.setPosition(new BucketPosition(i, bucket.getPosition()));
+                relocation.setDone(false);
+                break;
+            }
+            bucket = new Relocation(boundary);
+        }
+        if (moved) {
+            storeBuckets();
+        }
+        traceEnd(LOG, "HashIndex.relocate -> %d", rc);
+        return rc;
+    }
+
     // /////////////////////////////////////////////////////////////////
     // Helper methods Methods
     // /////////////////////////////////////////////////////////////////
@@ -271,6 +394,24 @@ public class HashIndex<Key,Value> implements Index<Key,Value> {
     // Helper classes
     // /////////////////////////////////////////////////////////////////
 
+    /**
+     * Where a relocation stopped: in which bucket, and where in its b+tree.
+     */
+    static private class BucketPosition {
+        final int bucket;
+        final Object position;
+
+        BucketPosition(int bucket, Object position) {
+            this.bucket = bucket;
+            this.position = position;
+        }
+
+        @Override
+        public String toString() {
+            return "{ bucket: "+bucket+", position: "+position+" }";
+        }
+    }
+
     /**
      * This is the data stored in the index header.  It knows where
      * the hash buckets are stored at an keeps usage statistics about
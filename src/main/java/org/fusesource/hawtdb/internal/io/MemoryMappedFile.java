@@ -208,7 +208,7 @@ final public class MemoryMappedFile {
 		return (ByteBuffer) buffer.duplicate().position(offset);
 	}
 
-	private MappedByteBuffer loadBuffer(int index) throws IOPagingException {
+	synchronized private MappedByteBuffer loadBuffer(int index) throws IOPagingException {
 		while (index >= buffers.size()) {
 			buffers.add(null);
 		}
@@ -240,6 +240,43 @@ final public class MemoryMappedFile {
         }
 	}
 
+	/**
+	 * Shrinks the file.  The length gets rounded up to a multiple of the
+	 * mapping segment size so that no mapped segment extends past the end
+	 * of the file.  Nothing may access the part of the file being cut off
+	 * while this runs.
+	 *
+	 * @return the new length of the file.
+	 */
+	synchronized public long truncate(long length) throws IOPagingException {
+		int segments = (int) ((length + bufferSize - 1) / bufferSize);
+		length = ((long)segments) * bufferSize;
+		try {
+			if( length >= channel.size() ) {
+				return channel.size();
+			}
+			for (int i = segments; i < buffers.size(); i++) {
+				MappedByteBuffer buffer = buffers.get(i);
+				if (buffer != null) {
+					buffers.set(i, null);
+					BYTE_BUFFER_RELEASER.release(buffer);
+				}
+			}
+			channel.truncate(length);
+			return length;
+		} catch (IOException e) {
+			throw new IOPagingException(e);
+		}
+	}
+
+	public long length() throws IOPagingException {
+		try {
+			return channel.size();
+		} catch (IOException e) {
+			throw new IOPagingException(e);
+		}
+	}
+
 	public void close() throws IOPagingException {
 		sync();
 		for (MappedByteBuffer buffer : buffers) {
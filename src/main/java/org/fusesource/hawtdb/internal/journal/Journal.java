@@ -19,6 +19,7 @@ package org.fusesource.hawtdb.internal.journal;
 import org.fusesource.hawtbuf.Buffer;
 import org.fusesource.hawtbuf.DataByteArrayInputStream;
 import org.fusesource.hawtdb.internal.journal.DataFileAppender.WriteCommand;
+import org.fusesource.hawtdb.api.HouseKeeper;
 import org.fusesource.hawtdb.util.Scheduler;
 import org.fusesource.hawtdb.util.list.LinkedNodeList;
 
@@ -28,6 +29,7 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.Adler32;
@@ -83,6 +85,9 @@ public class Journal {
 
     protected final AtomicReference<Location> lastAppendLocation = new AtomicReference<Location>();
     protected Runnable cleanupTask;
+    /** cancels the cleanup task when it runs on a house keeper */
+    protected ScheduledFuture<?> cleanupFuture;
+    protected HouseKeeper houseKeeper;
     protected final AtomicLong totalLength = new AtomicLong();
     protected boolean archiveDataLogs;
 	private ReplicationTarget replicationTarget;
@@ -148,7 +153,11 @@ public class Journal {
                 cleanup();
             }
         };
-        Scheduler.executePeriodically(cleanupTask, DEFAULT_CLEANUP_INTERVAL);
+        if( houseKeeper!=null ) {
+            cleanupFuture = houseKeeper.executePeriodically(houseKeeper.createQueue(), cleanupTask, DEFAULT_CLEANUP_INTERVAL);
+        } else {
+            Scheduler.executePeriodically(cleanupTask, DEFAULT_CLEANUP_INTERVAL);
+        }
         long end = System.currentTimeMillis();
         trace("Startup took: %d ms", (end-start));
     }
@@ -279,7 +288,12 @@ public class Journal {
         if (!started) {
             return;
         }
-        Scheduler.cancel(cleanupTask);
+        if( cleanupFuture!=null ) {
+            cleanupFuture.cancel(false);
+            cleanupFuture = null;
+        } else {
+            Scheduler.cancel(cleanupTask);
+        }
         accessorPool.close();
         appender.close();
         fileMap.clear();
@@ -657,4 +671,16 @@ public class Journal {
     public void setListener(JournalListener listener) {
         this.listener = listener;
     }
+
+    public HouseKeeper getHouseKeeper() {
+        return houseKeeper;
+    }
+
+    /**
+     * Sets the house keeper which runs the periodic cleanup instead of the
+     * global scheduler.
+     */
+    public void setHouseKeeper(HouseKeeper houseKeeper) {
+        this.houseKeeper = houseKeeper;
+    }
 }
@@ -18,6 +18,8 @@ package org.fusesource.hawtdb.internal.page;
 
 import org.fusesource.hawtdb.api.Allocator;
 import org.fusesource.hawtdb.api.Paged;
+import org.fusesource.hawtdb.api.PagingException;
+import org.fusesource.hawtdb.internal.util.Ranges;
 import org.fusesource.hawtdb.util.list.LinkedNode;
 import org.fusesource.hawtdb.util.list.LinkedNodeList;
 
@@ -30,10 +32,14 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import static org.fusesource.hawtdb.internal.page.Logging.trace;
 import static org.fusesource.hawtdb.internal.page.Logging.traced;
-import static org.fusesource.hawtdb.internal.page.Update.update;
 
 /**
  * Aggregates a group of commits so that they can be more efficiently
@@ -56,15 +62,43 @@ final class Batch extends LinkedNode<Batch> implements Externalizable, Iterable<
     final LinkedNodeList<Commit> commits = new LinkedNodeList<Commit>();
     /** tracks how many snapshots are referencing the redo */
     int snapshots;
+    /** tracks how many snapshots were opened on the commits of this batch */
+    int pins;
     /** the oldest commit in this redo */
     public long base=-1;
     /** the newest commit in this redo */
     public long head;
 
     boolean performed;
+    /** the pages which held the previous contents of pages remapped when the batch was performed, only read by its own snapshots */
+    Ranges superseded;
+    /** the superseded pages which older snapshots were still able to read, kept until the batch is released */
+    Ranges retained;
+    /** the own locations of pages moved away while older snapshots were open, held until the batch is released */
+    Ranges slots;
+    /**
+     * maps pages updated by the batch to a page holding their previous contents, kept
+     * for the snapshots opened before the batch which were still open when it was performed.
+     */
+    volatile ConcurrentHashMap<Integer, Integer> preserved;
+    /** the pages allocated to hold preserved contents */
+    Ranges copies;
+    /** were the pages only its own snapshots read freed before the batch got released? */
+    boolean unpinnedReleased;
 
     ArrayList<Runnable> flushCallbacks = new ArrayList<Runnable>();
 
+    /** the index operations of the commits, only tracked when the page file logs them */
+    final ArrayList<Redo> redo = new ArrayList<Redo>();
+    /** was a commit added whose updates are not covered by index operations? */
+    boolean physical;
+    /** how many of the index operations have been stored in redo records */
+    int redoStored;
+    /** the newest commit stored in a redo record */
+    long redoHead=-1;
+    /** the pages of the redo records, they can be freed once the batch is stored */
+    ArrayList<Integer> redoPages;
+
     public Batch() {
     }
 
@@ -107,7 +141,7 @@ final class Batch extends LinkedNode<Batch> implements Externalizable, Iterable<
     public int pageCount() {
         int rc = 0;
         for (Commit commit : this) {
-            rc += commit.updates.size();
+            rc += commit.entryCount();
         }
         return rc;
     }
@@ -150,7 +184,33 @@ final class Batch extends LinkedNode<Batch> implements Externalizable, Iterable<
         };
     }
 
-    public void performDeferredUpdates(Paged pageFile) {
+    /**
+     * Encodes one deferred update.  The encodes of a batch touch different
+     * pages, so they can run concurrently.
+     */
+    static final class Encode implements Callable<List<Integer>> {
+        final Commit commit;
+        final int page;
+        final DeferredUpdate update;
+        final Paged pageFile;
+
+        Encode(Commit commit, int page, DeferredUpdate update, Paged pageFile) {
+            this.commit = commit;
+            this.page = page;
+            this.update = update;
+            this.pageFile = pageFile;
+        }
+
+        public List<Integer> call() {
+            return update.marshaller.store(pageFile, update.translate(page), update.value);
+        }
+    }
+
+    public void performDeferredUpdates(HawtTxPageFile txPageFile) {
+        // The shadow pages are allocated up front so that the encodes
+        // don't race for them and they stay next to each other.
+        ArrayList<Encode> encodes = new ArrayList<Encode>();
+        int nextShadow = -1;
         for (Commit commit : this) {
             assert(commit.stillSane());
             if( commit.updates != null ) {
@@ -163,58 +223,247 @@ final class Batch extends LinkedNode<Batch> implements Externalizable, Iterable<
                         continue;
                     }
 
-                    assert !du.shadowed() : "deferred update should not have a shadow page.";
                     if( du.removed() ) {
+                        assert !du.shadowed() : "a removed deferred update should not have a shadow page.";
                         assert(!du.put());
 
                         // TODO: does this use of pagesLinked EXPECT the freeing behaviour?
-                        List<Integer> freePages = du.marshaller.pagesLinked(pageFile, page);
+                        List<Integer> freePages = du.marshaller.pagesLinked(txPageFile.pageView, page);
                         for (Integer linkedPage : freePages) {
-                            commit.merge(pageFile.allocator(), linkedPage, update().freed(true));
+                            commit.free(txPageFile.shadowAllocator, linkedPage, 1);
                         }
                     }
 
                     if( du.put() ) {
                         assert(!du.removed());
 
-                        if( !du.allocated() ) {
+                        if( du.spilled ) {
+                            // the transaction already encoded it.
+                            continue;
+                        }
+                        if( !du.shadowed() && !commit.allocated.contains(page) ) {
                             // update has to occur on a shadow page.
-                            du.shadow(pageFile.allocator().alloc(1));
+                            du.shadow(txPageFile.allocShadow(page, 1, nextShadow >= 0 ? nextShadow : page));
+                            if( du.shadow()!=page ) {
+                                nextShadow = du.shadow()+1;
+                            }
                         }
+                        encodes.add(new Encode(commit, page, du, txPageFile.pageFile));
+                    }
+                }
+            }
+        }
 
-                        List<Integer> linkedPages = du.marshaller.store(pageFile, du.translate(page), du.value);
-                        if( traced(page) ) {
-                            trace("storing update of %d at %d linked pages: %s", page, du.translate(page), linkedPages);
-                        }
+        List<List<Integer>> results = encode(txPageFile.encoder, encodes);
 
-                        for (Integer linkedPage : linkedPages) {
-                            // add any allocated pages to the update list so that the free
-                            // list gets properly adjusted.
-                            commit.merge(pageFile.allocator(), linkedPage, update().allocated(true));
-                        }
-                    }
+        // Merge the linked pages in update order so the commits come out
+        // the same no matter in which order the encodes finished.
+        for (int i = 0; i < encodes.size(); i++) {
+            Encode encode = encodes.get(i);
+            List<Integer> linkedPages = results.get(i);
+            if( traced(encode.page) ) {
+                trace("storing update of %d at %d linked pages: %s", encode.page, encode.update.translate(encode.page), linkedPages);
+            }
+            for (Integer linkedPage : linkedPages) {
+                // add any allocated pages to the update list so that the free
+                // list gets properly adjusted.
+                encode.commit.allocate(linkedPage, 1);
+            }
+        }
+    }
+
+    private static List<List<Integer>> encode(ExecutorService encoder, ArrayList<Encode> encodes) {
+        ArrayList<List<Integer>> rc = new ArrayList<List<Integer>>(encodes.size());
+        if( encoder==null || encodes.size() < 2 ) {
+            for (Encode encode : encodes) {
+                rc.add(encode.call());
+            }
+            return rc;
+        }
+        try {
+            for (Future<List<Integer>> future : encoder.invokeAll(encodes)) {
+                rc.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PagingException("Interrupted while encoding the deferred updates", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if( cause instanceof RuntimeException ) {
+                throw (RuntimeException)cause;
+            }
+            if( cause instanceof Error ) {
+                throw (Error)cause;
+            }
+            throw new PagingException(cause);
+        }
+        return rc;
+    }
+
+    /**
+     * Marks the pages a recovered batch allocated and its shadow pages as
+     * allocated, since the free list it was recovered with is older than the
+     * batch.
+     */
+    public void claim(Allocator allocator) {
+        for (Commit commit : this) {
+            for (Ranges.Range r : commit.allocated) {
+                allocator.unfree(r.start, r.size());
+            }
+            for (Update update : commit.updates.values()) {
+                if( update.shadowed() ) {
+                    allocator.unfree(update.shadow(), 1);
                 }
             }
         }
     }
 
-    public void release(Allocator allocator) {
+    /**
+     * Frees the pages the batch no longer needs.
+     *
+     * @param pageTable the page table of the page file, null if it does not use one.
+     */
+    public void release(Allocator allocator, PageTable pageTable) {
         for (Commit commit : this) {
-            for (Entry<Integer, Update> entry : commit.updates.entrySet()) {
-                int key = entry.getKey();
-                Update value = entry.getValue();
+            for (Ranges.Range r : commit.freed) {
+                if( pageTable!=null && pageTable.size() > 0 ) {
+                    for (int page = r.start; page < r.end; page++) {
+                        int physical = pageTable.unmap(page);
+                        if( physical >= 0 ) {
+                            allocator.free(physical, 1);
+                        }
+                    }
+                }
+                allocator.free(r.start, r.size());
+            }
+        }
+        releaseUnpinned(allocator, pageTable);
+        if( retained!=null ) {
+            for (Ranges.Range r : retained) {
+                allocator.free(r.start, r.size());
+            }
+        }
+        if( slots!=null ) {
+            for (Ranges.Range r : slots) {
+                for (int page = r.start; page < r.end; page++) {
+                    pageTable.releaseSlot(page);
+                }
+            }
+        }
+        if( copies!=null ) {
+            for (Ranges.Range r : copies) {
+                allocator.free(r.start, r.size());
+            }
+        }
+    }
 
-                if( value.freed() ) {
-                    assert(!value.shadowed());
-                    allocator.free(key, 1);
+    /**
+     * Frees the pages of a performed batch which only the snapshots opened
+     * on the batch read: the shadow pages which were copied back, and the
+     * superseded pages which older snapshots could not read.  They
+     * can go while older snapshots keep the batch from being released.
+     */
+    public void releaseUnpinned(Allocator allocator, PageTable pageTable) {
+        if( unpinnedReleased ) {
+            return;
+        }
+        if( pageTable==null ) {
+            for (Commit commit : this) {
+                for (Update value : commit.updates.values()) {
+                    if( value.shadowed() ) {
+                        // need to free the shadow page..
+                        allocator.free(value.shadow(), 1);
+                    }
                 }
-                if( value.shadowed()) {
-                    assert(!value.freed());
-                    // need to free the shadow page..
-                    allocator.free(value.shadow(), 1);
+            }
+        } else if( superseded!=null ) {
+            for (Ranges.Range r : superseded) {
+                allocator.free(r.start, r.size());
+            }
+            superseded = null;
+        }
+        unpinnedReleased = true;
+    }
+
+    /**
+     * Records a page which held the contents of a page remapped by the batch.
+     *
+     * @param pinned true if older snapshots which can still read the page were open.
+     */
+    void supersede(int page, boolean pinned) {
+        if( pinned ) {
+            if( retained==null ) {
+                retained = new Ranges();
+            }
+            retained.add(page, 1);
+        } else {
+            if( superseded==null ) {
+                superseded = new Ranges();
+            }
+            superseded.add(page, 1);
+        }
+    }
+
+    /**
+     * Records the own location of a page which was moved away while older
+     * snapshots were open, held in the page table until the batch is released.
+     */
+    void holdSlot(int page) {
+        if( slots==null ) {
+            slots = new Ranges();
+        }
+        slots.add(page, 1);
+    }
+
+    /**
+     * Records the page holding the contents of a page from before the batch was performed.
+     */
+    void preserve(int page, int copy) {
+        if( preserved==null ) {
+            preserved = new ConcurrentHashMap<Integer, Integer>();
+        }
+        preserved.put(page, copy);
+    }
+
+    /**
+     * @return the page holding the contents of the page from before the
+     *         batch was performed, or -1 if it was not preserved.
+     */
+    int preserved(int page) {
+        ConcurrentHashMap<Integer, Integer> map = preserved;
+        Integer rc = map==null ? null : map.get(page);
+        return rc==null ? -1 : rc;
+    }
+
+    /**
+     * @return the number of pages the performed batch keeps from being
+     *         reused until it gets released.
+     */
+    int pinnedPages(PageTable pageTable) {
+        int rc = 0;
+        for (Commit commit : this) {
+            rc += commit.freed.size();
+            if( pageTable==null && !unpinnedReleased ) {
+                for (Update value : commit.updates.values()) {
+                    if( value.shadowed() ) {
+                        rc++;
+                    }
                 }
             }
         }
+        if( superseded!=null ) {
+            rc += superseded.size();
+        }
+        if( retained!=null ) {
+            rc += retained.size();
+        }
+        if( slots!=null ) {
+            rc += slots.size();
+        }
+        if( copies!=null ) {
+            rc += copies.size();
+        }
+        return rc;
     }
 
 }
@@ -18,12 +18,14 @@ package org.fusesource.hawtdb.internal.page;
 
 import org.fusesource.hawtdb.api.Allocator;
 import org.fusesource.hawtdb.api.OptimisticUpdateException;
+import org.fusesource.hawtdb.internal.util.Ranges;
 import org.fusesource.hawtdb.util.list.LinkedNode;
 
 import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
@@ -41,6 +43,17 @@ import static org.fusesource.hawtdb.internal.page.Logging.traced;
  */
 final class Commit extends LinkedNode<Commit> implements Externalizable {
 
+    /**
+     * Stored in place of the base revision, which is never negative, to mark
+     * the format which keeps the allocated and freed pages as ranges.
+     * Commits stored without it track them with flags on their updates.
+     */
+    private static final long RANGES_FORMAT = -2;
+
+    /** The update flags of the stored commits which predate the ranges. */
+    private static final byte LEGACY_PAGE_ALLOCATED = 0x01 << 0;
+    private static final byte LEGACY_PAGE_FREED     = 0x01 << 1;
+
     /** Tracks open snapshots against this commit */
     SnapshotTracker snapshotTracker;
 
@@ -51,14 +64,20 @@ final class Commit extends LinkedNode<Commit> implements Externalizable {
     
     /** all the page updates that are part of the redo */
     ConcurrentHashMap<Integer, Update> updates;
+    /** the pages allocated by the commit */
+    Ranges allocated;
+    /** the pages freed by the commit */
+    Ranges freed;
 
 
     public Commit() {
     }
     
-    public Commit(long version, ConcurrentHashMap<Integer, Update> updates) {
+    public Commit(long version, ConcurrentHashMap<Integer, Update> updates, Ranges allocated, Ranges freed) {
         this.head = this.base = version;
-        this.updates = updates;
+        this.updates = updates!=null ? updates : new ConcurrentHashMap<Integer, Update>();
+        this.allocated = allocated!=null ? allocated : new Ranges();
+        this.freed = freed!=null ? freed : new Ranges();
     }
     
     
@@ -68,31 +87,120 @@ final class Commit extends LinkedNode<Commit> implements Externalizable {
     
     public String toString() {
         int updateSize = updates==null ? 0 : updates.size();
-        return "{ base: "+this.base+", head: "+this.head+", updates: "+updateSize+" }";
+        return "{ base: "+this.base+", head: "+this.head+", updates: "+updateSize+", allocated: "+allocated+", freed: "+freed+" }";
     }
 
-    public long commitCheck(Map<Integer, Update> newUpdate) {
-        for (Integer page : newUpdate.keySet()) {
-            if( updates.containsKey( page ) ) {
-                throw new OptimisticUpdateException();
+    public long commitCheck(Map<Integer, Update> newUpdates, Ranges newFreed) {
+        if( newUpdates!=null ) {
+            for (Integer page : newUpdates.keySet()) {
+                if( updates.containsKey( page ) || freed.contains( page ) ) {
+                    throw new OptimisticUpdateException();
+                }
+            }
+        }
+        if( newFreed!=null ) {
+            for (Ranges.Range r : newFreed) {
+                if( !freed.intersection(r.start, r.size()).isEmpty() ) {
+                    throw new OptimisticUpdateException();
+                }
+                if( !updates.isEmpty() ) {
+                    for (int page = r.start; page < r.end; page++) {
+                        if( updates.containsKey( page ) ) {
+                            throw new OptimisticUpdateException();
+                        }
+                    }
+                }
             }
         }
         return head;
     }
 
-    public void merge(Allocator allocator, long rev, ConcurrentHashMap<Integer, Update> updates) {
+    /**
+     * @return how many update entries the commit holds, an allocated or
+     *         freed range only counting as one.
+     */
+    public int entryCount() {
+        return updates.size() + allocated.rangeCount() + freed.rangeCount();
+    }
+
+    public void merge(Allocator allocator, long rev, ConcurrentHashMap<Integer, Update> updates, Ranges allocated, Ranges freed) {
         assert head+1 == rev;
         head=rev;
+        // frees and allocations are merged a range at a time..
+        if( freed!=null ) {
+            for (Ranges.Range r : freed) {
+                free(allocator, r.start, r.size());
+            }
+        }
+        if( allocated!=null ) {
+            for (Ranges.Range r : allocated) {
+                allocate(r.start, r.size());
+            }
+        }
         // merge all the entries in the update..
-        for (Entry<Integer, Update> entry : updates.entrySet()) {
-            merge(allocator, entry.getKey(), entry.getValue());
-            if( traced(entry.getKey()) ) {
-                trace("merged: %s", entry);
+        if( updates!=null ) {
+            for (Entry<Integer, Update> entry : updates.entrySet()) {
+                merge(allocator, entry.getKey(), entry.getValue());
+                if( traced(entry.getKey()) ) {
+                    trace("merged: %s", entry);
+                }
             }
         }
         assert(stillSane());
     }
 
+    /**
+     * Merges the free of a page range.
+     */
+    void free(Allocator allocator, int page, int count) {
+        if( !updates.isEmpty() ) {
+            int end = page+count;
+            for (int key = page; key < end; key++) {
+                Update previous = updates.remove(key);
+                if( previous!=null && previous.shadowed() ) {
+                    previous.note("free previous shadow: "+previous.shadow());
+                    allocator.free(previous.shadow(), 1);
+                }
+                if( previous!=null ) {
+                    unspill(allocator, previous);
+                }
+            }
+        }
+
+        int next = page;
+        for (Ranges.Range r : allocated.intersection(page, count)) {
+            // these pages never made it to disk, so the allocation and
+            // the free cancel out.
+            allocated.remove(r.start, r.size());
+            allocator.free(r.start, r.size());
+            if( next < r.start ) {
+                freed.add(next, r.start-next);
+            }
+            next = r.end;
+        }
+        if( next < page+count ) {
+            freed.add(next, page+count-next);
+        }
+    }
+
+    /**
+     * Merges the allocation of a page range.
+     */
+    void allocate(int page, int count) {
+        int next = page;
+        for (Ranges.Range r : freed.intersection(page, count)) {
+            // the page was freed and then allocated again, so it just stays allocated.
+            freed.remove(r.start, r.size());
+            if( next < r.start ) {
+                allocated.add(next, r.start-next);
+            }
+            next = r.end;
+        }
+        if( next < page+count ) {
+            allocated.add(next, page+count-next);
+        }
+    }
+
     /**
      * merges one update..
      * 
@@ -101,77 +209,51 @@ final class Commit extends LinkedNode<Commit> implements Externalizable {
      */
     void merge(Allocator allocator, int page, Update update) {
 
-        assert !(update.allocated() && update.shadowed() && update.freed()) : "This update can't be in multiple states";
-
         Update previous = this.updates.put(page, update);
         if (previous != null) {
             previous.history.addAll(update.history);
             update.history = previous.history;
-            if( update.freed() ) {
-
-                assert !previous.freed(): "free can not follow a free.";
-
-                // yes the previous page can be allocated and shadowed since
-                // a shadow update can be merged onto a an allocation
+            unspill(allocator, previous);
+            if(update.shadowed()) {
 
                 if( previous.shadowed() ) {
                     update.note("free previous shadow: "+previous.shadow());
                     allocator.free(previous.shadow(), 1);
                 }
 
-
-                if( previous.allocated() ) {
-                    allocator.free(page, 1);
-
-                    // in this case the update is canceled out since the
-                    // page never made it to disk.
-                    this.updates.remove(page);
-                }
-
-
-            } else if(update.allocated()) {
-
-                if( !previous.freed() ) {
-                    assert previous.freed(): "allocation updates can only follow freed updates.";
-                }
-                assert !(previous.allocated() && previous.shadowed()): "Unexpected previous state.";
-
-                if( !update.put() ) {
-                    // in this case the update cancels out.
-                    this.updates.remove(page);
-                }
-
-            } else if(update.shadowed()) {
-
-                // Yes.. it's possible to be allocated and then shadowed.
-                if( previous.allocated() ) {
-                    update.allocated(true);
-                }
-
+            } else if( update.deferredUpdate()!=null ) {
+                // Only a value spilled by its transaction has a shadow page.
                 if( previous.shadowed() ) {
+                    assert previous.deferredUpdate()!=null : "deferred updates should not have shadows assigned.";
                     update.note("free previous shadow: "+previous.shadow());
                     allocator.free(previous.shadow(), 1);
                 }
-
-            } else if( update.deferredUpdate()!=null ) {
-                assert !previous.shadowed() : "deferred updates should not have shadows assigned.";
-
-                if( previous.allocated() ) {
-                    update.allocated(true);
-                }
             } else {
                 throw new AssertionError("Unexpected update state");
             }
         }
     }
 
+    /**
+     * Frees the linked pages of a value which got spilled by its
+     * transaction, once a newer update replaced it.
+     */
+    private void unspill(Allocator allocator, Update update) {
+        DeferredUpdate du = update.deferredUpdate();
+        if( du!=null && du.spilled ) {
+            for (Integer page : du.unspill()) {
+                free(allocator, page, 1);
+            }
+        }
+    }
+
     public boolean stillSane() {
         for (Entry<Integer, Update> entry : updates.entrySet()) {
             int page = entry.getKey();
             Update update = entry.getValue();
 
-            // is a shadow update?
-            if( update.shadowed() ) {
+            // is a shadow update?  A page can be its own shadow page when it uses its page table slot.
+            if( update.shadowed() && update.shadow()!=page ) {
                 final Update badboy = updates.get(update.shadow());
                 if( badboy !=null ) {
                     throw new AssertionError("a normal page ("+page+") is also being used as a shadow page ("+update.shadow() +").");
@@ -184,15 +266,54 @@ final class Commit extends LinkedNode<Commit> implements Externalizable {
 
     @SuppressWarnings("unchecked")
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-        base = in.readLong();
-        head = in.readLong();
-        updates = (ConcurrentHashMap<Integer, Update>) in.readObject();
+        long format = in.readLong();
+        if( format==RANGES_FORMAT ) {
+            base = in.readLong();
+            head = in.readLong();
+            updates = (ConcurrentHashMap<Integer, Update>) in.readObject();
+            allocated = (Ranges) in.readObject();
+            freed = (Ranges) in.readObject();
+        } else if( format >= 0 ) {
+            base = format;
+            head = in.readLong();
+            updates = (ConcurrentHashMap<Integer, Update>) in.readObject();
+            readLegacyRanges();
+        } else {
+            throw new IOException("Unknown commit format: "+format);
+        }
+    }
+
+    /**
+     * Moves the allocated and freed flags of the updates of a commit stored
+     * in the older format into the ranges.  Only the updates which
+     * carry page content stay in the map.
+     */
+    private void readLegacyRanges() {
+        allocated = new Ranges();
+        freed = new Ranges();
+        for (Iterator<Entry<Integer, Update>> i = updates.entrySet().iterator(); i.hasNext();) {
+            Entry<Integer, Update> entry = i.next();
+            Update update = entry.getValue();
+            if( (update.flags & LEGACY_PAGE_ALLOCATED)!=0 ) {
+                allocated.add(entry.getKey(), 1);
+            }
+            if( (update.flags & LEGACY_PAGE_FREED)!=0 ) {
+                freed.add(entry.getKey(), 1);
+            }
+            update.flags &= ~(LEGACY_PAGE_ALLOCATED|LEGACY_PAGE_FREED);
+            if( !update.shadowed() ) {
+                i.remove();
+            }
+        }
     }
 
     public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeLong(RANGES_FORMAT);
         out.writeLong(base);
         out.writeLong(head);
         out.writeObject(updates);
+        out.writeObject(allocated);
+        out.writeObject(freed);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The completion handle returned by {@link HawtTransaction#commitAsync()}.
+ * It is registered as a flush callback of the commit, so it gets completed
+ * on the page file's completion executor once the batch holding the commit
+ * has been synced to disk.
+ *
+ * While the commit is not durable yet, {@link #get()} calls
+ * {@link HawtTxPageFile#flush()} on the caller's thread, so that a waiting
+ * thread does not depend on the open batch filling up.  That flush stores
+ * and syncs the batches under the page file's house-keeping lock, so the
+ * caller contends for that lock with the background flushes and can wait
+ * as long as a full sync.  {@link #get(long, TimeUnit)} only queues a
+ * flush, so that it does not wait longer than it was asked to.
+ * Do not block on the future from within a flush callback: callbacks run
+ * one after the other on the completion executor, which is the thread that
+ * would have to complete the future.
+ *
+ * If storing or syncing the batch fails, or the page file gets closed
+ * first, the future completes with the failure, which {@link #get()}
+ * throws as the cause of an {@link ExecutionException}.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class CommitFuture implements Future<Void>, Runnable {
+
+    private final HawtTxPageFile parent;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private Throwable failure;
+
+    CommitFuture(HawtTxPageFile parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Completes the future.
+     */
+    public synchronized void run() {
+        done.countDown();
+    }
+
+    /**
+     * Completes the future with a failure, unless it is done already.
+     */
+    synchronized void fail(Throwable failure) {
+        if( !isDone() ) {
+            this.failure = failure;
+            done.countDown();
+        }
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return false;
+    }
+
+    public boolean isDone() {
+        return done.getCount()==0;
+    }
+
+    public Void get() throws InterruptedException, ExecutionException {
+        if( !isDone() ) {
+            try {
+                parent.flush();
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+        done.await();
+        return result();
+    }
+
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if( !isDone() ) {
+            parent.flushLater();
+        }
+        if( !done.await(timeout, unit) ) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private synchronized Void result() throws ExecutionException {
+        if( failure!=null ) {
+            throw new ExecutionException(failure);
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "{ done: "+isDone()+", failure: "+failure+" }";
+    }
+}
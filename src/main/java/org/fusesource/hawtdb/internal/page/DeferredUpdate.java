@@ -37,6 +37,10 @@ class DeferredUpdate extends Update {
     
     PagedAccessor<Object> marshaller;
     Object value;
+    /** was the value encoded onto the page by its transaction? */
+    boolean spilled;
+    /** the linked pages the marshaller allocated when the value got spilled */
+    List<Integer> linked;
 
     public DeferredUpdate() {
         super();
@@ -58,6 +62,7 @@ class DeferredUpdate extends Update {
     }
     
     public DeferredUpdate put(Object value, PagedAccessor<?> marshaller) {
+        assert !spilled : "the pages of the spilled value have to be freed first.";
         this.value = value;
         this.marshaller = (PagedAccessor<Object>) marshaller;
         flags = (byte) ((flags & ~PAGE_REMOVE) | PAGE_PUT);
@@ -65,6 +70,7 @@ class DeferredUpdate extends Update {
     }
 
     public DeferredUpdate remove(PagedAccessor<?> marshaller) {
+        assert !spilled : "the pages of the spilled value have to be freed first.";
         this.marshaller= (PagedAccessor<Object>) marshaller;
         this.value=null;
         flags = (byte) ((flags & ~PAGE_PUT) | PAGE_REMOVE);
@@ -75,6 +81,41 @@ class DeferredUpdate extends Update {
     <T> T value() {
         return (T) value;
     }
+
+    /**
+     * @return the value, decoded from the page if it was spilled.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T value(Paged pageFile, int page) {
+        if( spilled ) {
+            return (T) marshaller.load(pageFile, translate(page));
+        }
+        return (T) value;
+    }
+
+    /**
+     * Encodes the value onto the page it is going to be stored at, so that
+     * only the page reference has to be kept in memory.  The page has to be
+     * allocated by the transaction or the update must have a shadow page.
+     */
+    void spill(Paged pageFile, int page) {
+        assert put() && !spilled;
+        linked = marshaller.store(pageFile, translate(page), value);
+        value = null;
+        spilled = true;
+    }
+
+    /**
+     * Drops the encoded value so that the update can take a new one.
+     *
+     * @return the linked pages of the encoded value, which are not used anymore.
+     */
+    List<Integer> unspill() {
+        List<Integer> rc = linked;
+        linked = null;
+        spilled = false;
+        return rc;
+    }
     
     public Object writeReplace() throws ObjectStreamException {
         return new Update(this);
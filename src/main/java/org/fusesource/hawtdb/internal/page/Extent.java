@@ -19,7 +19,6 @@ package org.fusesource.hawtdb.internal.page;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import org.fusesource.hawtdb.api.IOPagingException;
@@ -185,8 +184,7 @@ public class Extent {
     }
 
     public boolean write(Buffer source) {
-        traceStart(LOG, "Extent.write({ offset: %d length: %d })",
-                source.offset, source.length, Arrays.toString(source.data));
+        traceStart(LOG, "Extent.write({ offset: %d length: %d })", source.offset, source.length);
         while (source.length > 0) {
             if (atEnd()) {
                 trace(LOG, "Exhausted this extent");
@@ -197,7 +195,7 @@ public class Extent {
             buffer.put(source.data, source.offset, count);
             source.offset += count;
             source.length -= count;
-            trace(LOG, "buffer = { offset: %d length: %d }", source.offset, source.length, Arrays.toString(source.data));
+            trace(LOG, "buffer = { offset: %d length: %d }", source.offset, source.length);
         }
         trace(LOG, "Wrote all data");
         traceEnd(LOG, "Extent.write -> true");
@@ -211,12 +209,16 @@ public class Extent {
     }
 
     public void read(Buffer target) {
-        traceStart(LOG, "Extent.read(%s)", buf(target));
+        if (LOG.isTraceEnabled()) {
+            traceStart(LOG, "Extent.read(%s)", buf(target));
+        }
         while (target.length > 0 && !atEnd()) {
             int count = Math.min(buffer.remaining(), target.length);
             trace(LOG, "reading %d bytes", count);
             buffer.get(target.data, target.offset, count);
-            trace(LOG, "target = %s", buf(target));
+            if (LOG.isTraceEnabled()) {
+                trace(LOG, "target = %s", buf(target));
+            }
             target.offset += count;
             target.length -= count;
         }
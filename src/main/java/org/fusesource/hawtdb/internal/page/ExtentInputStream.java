@@ -83,7 +83,9 @@ public class ExtentInputStream extends InputStream {
         traceStart(LOG, "ExtentInputStream.read(byte[%d], %d, %d)", b.length, off, len);
         int rc = len;
         Buffer buffer = new Buffer(b, off, len);
-        trace(LOG, "buffer = %s", buf(buffer));
+        if (LOG.isTraceEnabled()) {
+            trace(LOG, "buffer = %s", buf(buffer));
+        }
         if( current == null ) {
             traceEnd(LOG, "ExtentInputStream.read -> -1");
             return -1;
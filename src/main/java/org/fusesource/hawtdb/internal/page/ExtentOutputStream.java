@@ -42,6 +42,7 @@ public class ExtentOutputStream extends OutputStream {
     private short nextExtentSize;
     private int page;
     private Extent current;
+    private short currentSize;
     private Ranges pages = new Ranges();
 
 
@@ -102,6 +103,7 @@ public class ExtentOutputStream extends OutputStream {
         this.nextExtentSize = nextExtentSize;
         this.page = page;
         current = new Extent(paged, page);
+        currentSize = extentSize;
         current.writeOpen(extentSize);
         traceEnd(LOG, "ExtentOutputStream.init");
     }
@@ -124,7 +126,9 @@ public class ExtentOutputStream extends OutputStream {
     public void write(byte[] b, int off, int len) {
         traceStart(LOG, "ExtentOutputStream.write()");
         Buffer buffer = new Buffer(b, off, len);
-        trace(LOG, "buffer = %s", buf(buffer));
+        if (LOG.isTraceEnabled()) {
+            trace(LOG, "buffer = %s", buf(buffer));
+        }
         while (buffer.length > 0) {
             if (!current.write(buffer)) {
                 current = nextExtent();
@@ -135,11 +139,13 @@ public class ExtentOutputStream extends OutputStream {
 
     protected Extent nextExtent() {
         traceStart(LOG, "ExtentOutputStream.nextExtent()");
-        int nextPageId = this.paged.allocator().alloc(nextExtentSize);
+        // try to continue right where the current extent ends.
+        int nextPageId = this.paged.allocator().alloc(nextExtentSize, current.getPage()+currentSize);
         current.writeCloseLinked(nextPageId);
         pages.add(current.getPage(), paged.pages(current.getLength()));
         Extent nextExtent = new Extent(paged, nextPageId);
         nextExtent.writeOpen(nextExtentSize);
+        currentSize = nextExtentSize;
 
         traceEnd(LOG, "ExtentOutputStream.nextExtent -> %s", nextExtent);
         return nextExtent;
@@ -161,7 +167,13 @@ public class ExtentOutputStream extends OutputStream {
     public void close(){
         traceStart(LOG, "ExtentOutputStream.close()");
         current.writeCloseEOF();
-        pages.add(current.getPage(), paged.pages(current.getLength()));
+        int used = paged.pages(current.getLength());
+        pages.add(current.getPage(), used);
+        // Extents are freed by their length, so give back the pages
+        // allocated for the last extent which it did not use.
+        if( used < currentSize ) {
+            paged.allocator().free(current.getPage()+used, currentSize-used);
+        }
         traceEnd(LOG, "ExtentOutputStream.close");
     }
 
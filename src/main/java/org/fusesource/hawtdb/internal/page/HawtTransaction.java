@@ -18,8 +18,9 @@ package org.fusesource.hawtdb.internal.page;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
 import org.fusesource.hawtdb.api.*;
 import org.fusesource.hawtdb.api.PagedAccessor;
@@ -36,7 +37,7 @@ import static org.fusesource.hawtdb.internal.page.Update.update;
  * 
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
-final class HawtTransaction implements Transaction {
+final class HawtTransaction implements Transaction, RedoLogger, PrivateUpdates {
 
     /**
      * 
@@ -51,33 +52,72 @@ final class HawtTransaction implements Transaction {
     }
 
     private ConcurrentHashMap<Integer, Update> updates;
+    /** The pages allocated by the transaction, tracked as ranges so an extent costs a single entry. */
+    private Ranges allocated;
+    /** The pages freed by the transaction. */
+    private Ranges freed;
     private ArrayList<Runnable> flushCallbacks;
     private Snapshot snapshot;
     private boolean closed;
+    /** The page right after the previous allocation, used as an allocation hint. */
+    private int nextAlloc = -1;
+    /** The logged index operations of the transaction. */
+    private ArrayList<Redo> redo;
+    /** How deep we are in logged index operations. */
+    private int redoDepth;
+    /** Was a page updated outside of a logged index operation? */
+    private boolean physical;
+    /** Identifies the values put by the transaction until it ends, created on demand. */
+    private Object privateScope;
+    /** How many of the values put by the transaction are held in memory. */
+    private int deferredValues;
     
     private final Allocator txallocator = new Allocator() {
         
         public void free(int pageId, int count) {
             assertOpen();
-            // TODO: this is not a very efficient way to handle allocation ranges.
+            updating();
             int end = pageId+count;
-            for (int key = pageId; key < end; key++) {
-                Update previous = getUpdates().put(key, update().freed(true).note("free "+key) );
-                if( previous!=null && previous.allocated() ) {
-                    getUpdates().remove(key);
-                    HawtTransaction.this.parent.allocator.free(key, 1);
+            if( updates!=null ) {
+                for (int key = pageId; key < end; key++) {
+                    Update previous = updates.remove(key);
+                    if( previous!=null && previous.shadowed() ) {
+                        // Nobody else has seen the shadow page, so it can go back right away.
+                        HawtTransaction.this.parent.shadowAllocator.free(previous.shadow(), 1);
+                    }
+                    if( previous!=null && previous.deferredUpdate()!=null ) {
+                        unspill(previous.deferredUpdate());
+                    }
                 }
             }
+
+            // Pages allocated by this transaction never made it to disk, so they
+            // can go right back to the allocator.
+            int next = pageId;
+            if( allocated!=null ) {
+                for (Ranges.Range r : allocated.intersection(pageId, count)) {
+                    allocated.remove(r.start, r.size());
+                    HawtTransaction.this.parent.allocator.free(r.start, r.size());
+                    if( next < r.start ) {
+                        getFreed().add(next, r.start-next);
+                    }
+                    next = r.end;
+                }
+            }
+            if( next < end ) {
+                getFreed().add(next, end-next);
+            }
         }
         
         public int alloc(int count) throws OutOfSpaceException {
+            return alloc(count, nextAlloc);
+        }
+
+        public int alloc(int count, int hint) throws OutOfSpaceException {
             assertOpen();
-            int pageId = palloc(count);
-            // TODO: this is not a very efficient way to handle allocation ranges.
-            int end = pageId+count;
-            for (int key = pageId; key < end; key++) {
-                getUpdates().put(key, update().allocated(true).note("alloc "+key) );
-            }
+            updating();
+            int pageId = palloc(count, hint);
+            getAllocated().add(pageId, count);
             return pageId;
         }
 
@@ -131,30 +171,49 @@ final class HawtTransaction implements Transaction {
 
     public <T> T get(PagedAccessor<T> marshaller, int page) {
         assertOpen();
+        if( freed!=null && freed.contains(page) ) {
+            throw new PagingException("That page was freed.");
+        }
         // Perhaps the page was updated in the current transaction...
         Update update = updates == null ? null : updates.get(page);
+        if( update == null && allocatedByTx(page) ) {
+            throw new PagingException("That page was updated with the 'put' method.");
+        }
         if( update != null ) {
-            if( update.freed() ) {
-                throw new PagingException("That page was freed.");
-            }
             DeferredUpdate deferred = update.deferredUpdate();
             if( deferred != null ) {
-                return deferred.<T>value();
+                return deferred.<T>value(parent.pageFile, page);
             } else {
                 throw new PagingException("That page was updated with the 'put' method.");
             }
         }
         
         // No?  Then ask the snapshot to load the object.
-        T rc = snapshot().getTracker().get(marshaller, page);
+        T rc = snapshot().getTracker().get(marshaller, parent.pageFile, page);
         if( rc == null ) {
-            rc = parent.readCache.cacheLoad(marshaller, page);
+            // The cache holds the latest version, which the snapshot may not see.
+            SnapshotTracker tracker = snapshot().getTracker();
+            parent.lockReads(page, 1);
+            try {
+                int preserved = tracker.preserved(page);
+                if( preserved >= 0 ) {
+                    rc = marshaller.load(parent.pageFile, preserved);
+                } else {
+                    rc = parent.readCache.cacheLoad(marshaller, page);
+                }
+            } finally {
+                parent.unlockReads(page, 1);
+            }
         }
         return rc;
     }
 
     public <T> void put(PagedAccessor<T> marshaller, int page, T value) {
         assertOpen();
+        if( freed!=null && freed.contains(page) ) {
+            throw new PagingException("You should never try to update a page that has been freed.");
+        }
+        updating();
         ConcurrentHashMap<Integer, Update> updates = getUpdates();
         Update update = updates.get(page);
         DeferredUpdate deferred = null;
@@ -165,36 +224,86 @@ final class HawtTransaction implements Transaction {
             updates.put(page, deferred);
         } else {
             // We have updated it before...
-            if( update.freed() ) {
-                throw new PagingException("You should never try to update a page that has been freed.");
-            }
             deferred = update.deferredUpdate();
             if( deferred==null ) {
                 deferred = deferred(update);
                 updates.put(page, deferred);
             }
         }
+        if( deferred.spilled || !deferred.put() ) {
+            deferredValues++;
+        }
+        unspill(deferred);
         deferred.note("put "+page);
         deferred.put(value, marshaller);
+
+        if( parent.spillThreshold > 0 && deferredValues > parent.spillThreshold ) {
+            spill();
+        }
+    }
+
+    /**
+     * Encodes the values held in memory onto the pages they will be stored
+     * at, so that a large transaction only keeps the page references around.
+     * Values which have to be stored on a shadow page get their shadow page
+     * now instead of when the batch gets stored.
+     */
+    private void spill() {
+        for (Entry<Integer, Update> entry : updates.entrySet()) {
+            int page = entry.getKey();
+            DeferredUpdate deferred = entry.getValue().deferredUpdate();
+            if( deferred==null || !deferred.put() || deferred.spilled ) {
+                continue;
+            }
+            if( !deferred.shadowed() && !allocatedByTx(page) ) {
+                deferred.shadow(shadow(page, 1));
+            }
+            deferred.spill(parent.pageFile, page);
+            for (Integer linked : deferred.linked) {
+                // the marshaller allocated them, so they go back on rollback.
+                getAllocated().add(linked, 1);
+            }
+        }
+        deferredValues = 0;
+    }
+
+    /**
+     * Frees the linked pages of a spilled value which is about to be replaced.
+     */
+    private void unspill(DeferredUpdate deferred) {
+        if( deferred.spilled ) {
+            for (Integer linked : deferred.unspill()) {
+                txallocator.free(linked, 1);
+            }
+        }
     }
 
     public <T> void clear(PagedAccessor<T> marshaller, int page) {
         assertOpen();
+        updating();
         ConcurrentHashMap<Integer, Update> updates = getUpdates();
         Update update = updates.get(page);
         
-        if( update == null ) {
+        if( update == null && !allocatedByTx(page) ) {
             updates.put(page, deferred().remove(marshaller).note("clear "+page+" deferred") );
         } else {
-            if( !update.put() ) {
+            if( update == null || !update.put() ) {
                 throw new PagingException("You should never try to clear a page that was not put.");
             }
+            DeferredUpdate deferred = (DeferredUpdate) update;
+            unspill(deferred);
+            if( deferred.shadowed() ) {
+                // the shadow page of a spilled value is not needed anymore.
+                parent.shadowAllocator.free(deferred.shadow(), 1);
+                deferred.shadow(-1);
+            }
 
-            if( update.allocated() ) {
-                updates.put(page, update(update).note("clear "+page+" back to un-deferred"));
+            if( allocatedByTx(page) ) {
+                // back to a plain allocation.
+                updates.remove(page);
             } else {
                 // was an update of a previous location....
-                updates.put(page, ((DeferredUpdate)update).remove(marshaller).note("clear "+page));
+                updates.put(page, deferred.remove(marshaller).note("clear "+page));
             }
         }
     }
@@ -220,12 +329,17 @@ final class HawtTransaction implements Transaction {
         Update update = updates == null ? null : updates.get(page);
         if (update != null && update.shadowed()) {
             // in this transaction..
-            page = update.shadow();
+            parent.pageFile.read(update.shadow(), buffer);
         } else {
             // in a committed transaction that has not yet been performed.
-            page = snapshot().getTracker().translatePage(page);
+            SnapshotTracker tracker = snapshot().getTracker();
+            parent.lockReads(page, 1);
+            try {
+                parent.pageFile.read(tracker.translatePage(page), buffer);
+            } finally {
+                parent.unlockReads(page, 1);
+            }
         }
-        parent.pageFile.read(page, buffer);
     }
 
     public ByteBuffer slice(SliceType type, int page, int count) throws IOPagingException {
@@ -237,29 +351,38 @@ final class HawtTransaction implements Transaction {
             if (update != null && update.shadowed() ) {
                 page = update.shadow();
             } else {
-                page = snapshot().getTracker().translatePage(page);
+                return snapshotSlice(page, count);
             }
         } else {
+            updating();
             Update update = getUpdates().get(page);
-            if (update == null) {
+            if (update == null && allocatedByTx(page)) {
+                // Pages we allocated are updated in place.
+                update = update();
+            } else if (update == null) {
 
                 // Allocate space of the update redo pages.
-                update = update().shadow(palloc(count));
-                int end = page+count;
-                for (int i = page; i < end; i++) {
-                    getUpdates().put(i, update().shadow(i));
+                update = update().shadow(shadow(page, count));
+                for (int i = 1; i < count; i++) {
+                    getUpdates().put(page+i, update().shadow(update.shadow()+i));
                 }
                 
                 if (type==SliceType.READ_WRITE) {
                     // Oh he's going to read it too?? then copy the original to the 
                     // redo pages..
-                    int originalPage = snapshot().getTracker().translatePage(page);
-                    ByteBuffer slice = parent.pageFile.slice(SliceType.READ, originalPage, count);
-
+                    SnapshotTracker tracker = snapshot().getTracker();
+                    parent.lockReads(page, count);
                     try {
-                        parent.pageFile.write(update.translate(page), slice);
-                    } finally { 
-                        parent.pageFile.unslice(slice);
+                        int originalPage = tracker.translatePage(page);
+                        ByteBuffer slice = parent.pageFile.slice(SliceType.READ, originalPage, count);
+
+                        try {
+                            parent.pageFile.write(update.translate(page), slice);
+                        } finally { 
+                            parent.pageFile.unslice(slice);
+                        }
+                    } finally {
+                        parent.unlockReads(page, count);
                     }
                 }
                 
@@ -273,8 +396,54 @@ final class HawtTransaction implements Transaction {
         
     }
 
-    private int palloc(int count) {
-        return parent.allocator.alloc(count);
+    /**
+     * Slices the pages as the snapshot sees them.  Pages which are read at
+     * their current location get copied, since a batch performed while the
+     * slice is in use would update them under the reader.
+     */
+    private ByteBuffer snapshotSlice(int page, int count) {
+        SnapshotTracker tracker = snapshot().getTracker();
+        parent.lockReads(page, count);
+        try {
+            int location = tracker.translatePage(page);
+            ByteBuffer slice = parent.pageFile.slice(SliceType.READ, location, count);
+            if( location != tracker.current(page) ) {
+                return slice;
+            }
+            try {
+                ByteBuffer copy = ByteBuffer.allocate(slice.remaining());
+                copy.put(slice.duplicate());
+                copy.flip();
+                return copy;
+            } finally {
+                parent.pageFile.unslice(slice);
+            }
+        } finally {
+            parent.unlockReads(page, count);
+        }
+    }
+
+    private int palloc(int count, int hint) {
+        int rc = parent.allocator.alloc(count, hint);
+        nextAlloc = rc+count;
+        return rc;
+    }
+
+    /**
+     * Shadow pages are best kept next to the other pages the transaction
+     * allocated so that the batch gets written sequentially.  Otherwise
+     * keep them near the original page.
+     */
+    private int shadowHint(int page) {
+        return nextAlloc >= 0 ? nextAlloc : page;
+    }
+
+    private int shadow(int page, int count) {
+        int rc = parent.allocShadow(page, count, shadowHint(page));
+        if( rc != page ) {
+            nextAlloc = rc+count;
+        }
+        return rc;
     }
 
     public void unslice(ByteBuffer buffer) {
@@ -284,15 +453,16 @@ final class HawtTransaction implements Transaction {
 
     public void write(int page, Buffer buffer) throws IOPagingException {
         assertOpen();
+        updating();
         Update update = getUpdates().get(page);
-        if (update == null) {
+        if (update == null && !allocatedByTx(page)) {
             // We are updating an existing page in the snapshot...
             snapshot();
-            update = update().shadow(palloc(1));
+            update = update().shadow(shadow(page, 1));
             getUpdates().put(page, update);
         }
 
-        if( update.shadowed() ) {
+        if( update!=null && update.shadowed() ) {
             page = update.shadow();
         }
         parent.pageFile.write(page, buffer);
@@ -303,9 +473,9 @@ final class HawtTransaction implements Transaction {
         assertOpen();
         boolean failed = true;
         try {
-            if (updates!=null) {
+            if (!isReadOnly()) {
                 // If the commit is successful it will release our snapshot..
-                parent.commit(snapshot, updates, flushCallbacks);
+                parent.commit(snapshot, updates, allocated, freed, physical ? null : redo, flushCallbacks);
                 snapshot = null;
             }
             failed = false;
@@ -316,7 +486,14 @@ final class HawtTransaction implements Transaction {
                 rollback();
             }
             updates = null;
+            allocated = null;
+            freed = null;
             flushCallbacks = null;
+            redo = null;
+            redoDepth = 0;
+            physical = false;
+            deferredValues = 0;
+            privateScope = null;
             if( snapshot!=null ) {
                 snapshot.close();
                 snapshot = null;
@@ -324,25 +501,95 @@ final class HawtTransaction implements Transaction {
         }
     }
 
+    public Future<Void> commitAsync() throws OptimisticUpdateException {
+        assertOpen();
+        CommitFuture future = new CommitFuture(parent);
+        if( isReadOnly() ) {
+            // Nothing to make durable.
+            commit();
+            future.run();
+        } else {
+            onFlush(future);
+            commit();
+        }
+        return future;
+    }
+
     public void rollback() throws IOPagingException {
         assertOpen();
         try {
             if (updates!=null) {
-                for (Map.Entry<Integer,Update> entry : updates.entrySet()) {
-                    Integer page = entry.getKey();
-                    Update update = entry.getValue();
-                    if( !update.freed() ) {
-                        parent.allocator.free(update.translate(page), 1);
+                for (Update update : updates.values()) {
+                    if( update.shadowed() ) {
+                        parent.shadowAllocator.free(update.shadow(), 1);
                     }
                 }
             }
+            if (allocated!=null) {
+                for (Ranges.Range r : allocated) {
+                    parent.allocator.free(r.start, r.size());
+                }
+            }
         } finally {
             if( snapshot!=null ) {
                 snapshot.close();
                 snapshot = null;
             }
             updates = null;
+            allocated = null;
+            freed = null;
             flushCallbacks = null;
+            redo = null;
+            redoDepth = 0;
+            physical = false;
+            deferredValues = 0;
+            privateScope = null;
+            nextAlloc = -1;
+        }
+    }
+
+    public boolean isPrivate(int page) {
+        Update update = updates == null ? null : updates.get(page);
+        DeferredUpdate deferred = update == null ? null : update.deferredUpdate();
+        return deferred != null && deferred.put() && !deferred.spilled;
+    }
+
+    public Object privateScope() {
+        if( privateScope==null ) {
+            privateScope = new Object();
+        }
+        return privateScope;
+    }
+
+    public boolean isRedoLogged(int index) {
+        return parent.redoIndexes.containsKey(index);
+    }
+
+    public void beginRedo() {
+        assertOpen();
+        redoDepth++;
+    }
+
+    public void endRedo(Redo op) {
+        assertOpen();
+        redoDepth--;
+        if( op==null ) {
+            physical = true;
+        } else if( redoDepth==0 ) {
+            if( redo==null ) {
+                redo = new ArrayList<Redo>();
+            }
+            redo.add(op);
+        }
+    }
+
+    /**
+     * Notes that a page is being updated.  Unless the update is part of a
+     * logged index operation, the transaction has to be stored as page updates.
+     */
+    private void updating() {
+        if( redoDepth==0 ) {
+            physical = true;
         }
     }
 
@@ -355,7 +602,7 @@ final class HawtTransaction implements Transaction {
 
     public boolean isReadOnly() {
         assertOpen();
-        return updates == null;
+        return updates == null && allocated == null && freed == null;
     }
 
     private ConcurrentHashMap<Integer, Update> getUpdates() {
@@ -365,6 +612,28 @@ final class HawtTransaction implements Transaction {
         return updates;
     }
 
+    private Ranges getAllocated() {
+        if (allocated == null) {
+            allocated = new Ranges();
+        }
+        return allocated;
+    }
+
+    private Ranges getFreed() {
+        if (freed == null) {
+            freed = new Ranges();
+        }
+        return freed;
+    }
+
+    /**
+     * @return true if the page was allocated by this transaction, such pages
+     *         are not visible to anybody else and get updated in place.
+     */
+    private boolean allocatedByTx(int page) {
+        return allocated!=null && allocated.contains(page);
+    }
+
     public int getPageSize() {
         assertOpen();
         return parent.pageFile.getPageSize();
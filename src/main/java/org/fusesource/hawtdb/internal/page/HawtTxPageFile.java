@@ -26,6 +26,7 @@ import org.fusesource.hawtdb.internal.util.Ranges;
 import org.fusesource.hawtdb.util.LRUCache;
 import org.fusesource.hawtdb.util.list.LinkedNodeList;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -34,6 +35,10 @@ import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.CRC32;
 
 import org.apache.commons.logging.Log;
@@ -57,6 +62,11 @@ import static org.fusesource.hawtdb.internal.page.Logging.traced;
  * snapshot version number and the update gets queued so that it can be applied
  * atomically at a later time.
  *
+ * Updates are normally applied by copying the temporary page back onto the
+ * original page.  A page file can instead keep a page table which maps pages
+ * to the page holding their current contents.  Applying an update then just
+ * points the page at the temporary page, so the page does not get written twice.
+ *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 public final class HawtTxPageFile implements TxPageFile {
@@ -64,12 +74,14 @@ public final class HawtTxPageFile implements TxPageFile {
     private final static Log LOG = LogFactory.getLog(HawtTxPageFile.class);
 
     public static final int FILE_HEADER_SIZE = 1024 * 4;
-    public static final  byte[] MAGIC = magic();
+    public static final  byte[] MAGIC = magic("HawtDB:1.0\n");
+    /** Identifies files which use a page table, their header also holds the page table location. */
+    public static final  byte[] PAGE_TABLE_MAGIC = magic("HawtDB:1.0:page-table\n");
 
-    private static byte[] magic() {
+    private static byte[] magic(String value) {
         try {
             byte rc[] = new byte[32];
-            byte[] tmp = "HawtDB:1.0\n".getBytes("UTF-8");
+            byte[] tmp = value.getBytes("UTF-8");
             System.arraycopy(tmp, 0, rc, 0, tmp.length);
             return rc;
         } catch (UnsupportedEncodingException e) {
@@ -101,11 +113,19 @@ public final class HawtTxPageFile implements TxPageFile {
          *  writes have not been synced to disk. */
         public int optimistic_recovery_page;
 
+        /** The page location of the page table, only stored in files which use one */
+        public int page_table_page = -1;
+
+        boolean hasPageTable() {
+            return Arrays.equals(PAGE_TABLE_MAGIC, magic);
+        }
+
         public String toString() {
             return "{ base_revision: "+this.base_revision+
             ", page_size: "+page_size+", free_list_page: "+free_list_page+
             ", pessimistic_recovery_page: "+ pessimistic_recovery_page +
             ", optimistic_recovery_page: "+ optimistic_recovery_page +
+            ", page_table_page: "+ page_table_page +
             " }";
         }
 
@@ -121,6 +141,9 @@ public final class HawtTxPageFile implements TxPageFile {
                 os.writeInt(free_list_page);
                 os.writeInt(pessimistic_recovery_page);
                 os.writeInt(optimistic_recovery_page);
+                if( hasPageTable() ) {
+                    os.writeInt(page_table_page);
+                }
 
                 int length = os.position();
                 byte[] data = os.getData();
@@ -179,6 +202,9 @@ public final class HawtTxPageFile implements TxPageFile {
             free_list_page = is.readInt();
             pessimistic_recovery_page = is.readInt();
             optimistic_recovery_page = is.readInt();
+            if( hasPageTable() ) {
+                page_table_page = is.readInt();
+            }
             length = is.getPos() - length;
             return length;
         }
@@ -191,9 +217,19 @@ public final class HawtTxPageFile implements TxPageFile {
     private final MemoryMappedFile file;
     final Allocator allocator;
     final HawtPageFile pageFile;
+    /** The in memory page table, null if the file does not use one. */
+    final PageTable pageTable;
+    /** Frees shadow pages, which can be spare page table slots. */
+    final Allocator shadowAllocator;
+    /** Reads pages at the location the page table maps them to. */
+    final Paged pageView;
     private static final int updateBatchSize = 1024;
     private final boolean synch;
     private int lastBatchPage = -1;
+    /** The last redo record stored for the open batch, -1 if there is none. */
+    private int lastRedoPage = -1;
+    /** The indexes whose operations get logged, keyed by index page. */
+    final Map<Integer, BTreeIndexFactory<?, ?>> redoIndexes;
 
     //
     // The following batch objects point to linked nodes in the previous batch list.
@@ -212,6 +248,13 @@ public final class HawtTxPageFile implements TxPageFile {
     /** A read cache used to speed up access to frequently used pages */
     ReadCache readCache;
 
+    /**
+     * Striped by page.  Batches performed while older snapshots are open
+     * update pages under the write lock, and those snapshots read the pages
+     * at their current location under the read lock.
+     */
+    private final ReadWriteLock[] pageLocks = new ReadWriteLock[64];
+
     //
     // Profilers like yourkit just tell which mutex class was locked.. so create a different class for each mutex
     // so we can more easily tell which mutex was locked.
@@ -244,7 +287,55 @@ public final class HawtTxPageFile implements TxPageFile {
      * tracked in the page file allocator.
      */
     private Ranges storedFreeList = new Ranges();
-    private final ExecutorService worker;
+
+    /**
+     * This is the page table at the base revision.  Like the stored free
+     * list it is only updated when the updates are performed, and it is
+     * used to initialize the page table on recovery.
+     */
+    private final PageTable storedPageTable;
+    /** The pages of the records the stored page table is made of, the full copy first. */
+    private final ArrayList<Integer> storedPageTablePages = new ArrayList<Integer>();
+    /** How many changes the records which follow the full copy hold. */
+    private int storedPageTableChanges;
+    /** Runs the house keeping work, null when it runs on the committing threads. */
+    private final Executor worker;
+
+    /**
+     * Runs the flush callbacks of synced batches so that they do not
+     * hold up the house keeping work.
+     */
+    private final Executor completer;
+    /** Is a flush queued by {@link #flushLater()} which has not started yet? */
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+
+    /** The shared house keeper the worker and completer queues belong to, if any. */
+    private final HouseKeeper houseKeeper;
+    /** The location of the file, used to tell which device it is on. */
+    private final File location;
+
+    /** Perform the recovered batches in the background? */
+    private final boolean lazyRecovery;
+    /** Performs the recovered batches when there is no worker. */
+    private Thread recovery;
+
+    /** Records the hot pages and reads them back in on open, null if disabled. */
+    final WarmUp warmUp;
+
+    /** The open snapshots, oldest first. */
+    final LinkedHashSet<Snapshot> openSnapshots = new LinkedHashSet<Snapshot>();
+
+    /**
+     * Encodes the deferred updates of a batch being stored, null when
+     * they get encoded by the house keeping thread.
+     */
+    final ExecutorService encoder;
+
+    /**
+     * How many values a transaction holds in memory before it encodes
+     * them onto their pages, 0 if transactions never spill.
+     */
+    final int spillThreshold;
 
     public HawtTxPageFile(TxPageFileFactory factory, HawtPageFile pageFile) {
         traceStart(LOG, "HawtTxPageFile(%s, %s)", factory, pageFile);
@@ -253,12 +344,40 @@ public final class HawtTxPageFile implements TxPageFile {
         trace(LOG, "sync = %b", this.synch);
         this.file = pageFile.getFile();
         trace(LOG, "file = %s", this.file);
-        this.allocator = pageFile.allocator();
+        if( factory.getAllocationStripes() > 0 ) {
+            this.allocator = new StripedAllocator(pageFile.allocator(), factory.getAllocationStripes());
+        } else {
+            this.allocator = pageFile.allocator();
+        }
         trace(LOG, "allocator = %s", this.allocator);
+        if( factory.isUsePageTable() ) {
+            this.pageTable = new PageTable();
+            this.storedPageTable = new PageTable(true);
+            this.shadowAllocator = pageTable.shadowAllocator(allocator);
+            this.pageView = pageTable.view(pageFile);
+        } else {
+            this.pageTable = null;
+            this.storedPageTable = null;
+            this.shadowAllocator = allocator;
+            this.pageView = pageFile;
+        }
+        trace(LOG, "page table = %s", this.pageTable);
+        this.redoIndexes = new HashMap<Integer, BTreeIndexFactory<?, ?>>(factory.getRedoIndexes());
 
         readCache = new ReadCache(factory.getCacheSize());
-
-        if( factory.isUseWorkerThread() ) {
+        for (int i = 0; i < pageLocks.length; i++) {
+            pageLocks[i] = new ReentrantReadWriteLock();
+        }
+        this.spillThreshold = factory.getSpillThreshold();
+        this.lazyRecovery = factory.isLazyRecovery();
+        this.warmUp = factory.isWarmUp() ? new WarmUp(this, factory) : null;
+
+        houseKeeper = factory.getHouseKeeper();
+        location = factory.getFile();
+        if( houseKeeper!=null ) {
+            trace(LOG, "Using house keeper");
+            worker = houseKeeper.createQueue();
+        } else if( factory.isUseWorkerThread() ) {
             trace(LOG, "Using worker thread");
             worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
                 public Thread newThread(Runnable r) {
@@ -271,29 +390,102 @@ public final class HawtTxPageFile implements TxPageFile {
         } else {
             worker = null;
         }
+
+        if( houseKeeper!=null ) {
+            completer = houseKeeper.createQueue();
+        } else {
+            completer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread rc = new Thread(r);
+                    rc.setName("HawtDB Completion");
+                    rc.setDaemon(true);
+                    return rc;
+                }
+            });
+        }
+
+        if( factory.getEncodingThreads() > 1 ) {
+            trace(LOG, "Using %d encoding threads", factory.getEncodingThreads());
+            encoder = Executors.newFixedThreadPool(factory.getEncodingThreads(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread rc = new Thread(r);
+                    rc.setName("HawtDB Encoder");
+                    rc.setDaemon(true);
+                    return rc;
+                }
+            });
+        } else {
+            encoder = null;
+        }
         traceEnd(LOG, "HawtTxPageFile");
     }
 
     public void close() {
         traceStart(LOG, "HawtTxPageFile.close()");
+        if( warmUp!=null ) {
+            warmUp.stop();
+        }
         if( worker!=null ) {
-            final CountDownLatch done = new CountDownLatch(1);
-            worker.execute(new Runnable(){
-                public void run() {
-                    done.countDown();
-                    worker.shutdownNow();
-                }
-            });
+            drain(worker);
+        }
+        if( recovery!=null ) {
             try {
-                done.await();
+                recovery.join();
             } catch (InterruptedException e) {
             }
+            recovery = null;
         }
-        flush();
+        checkpoint();
         performBatches();
+        if( warmUp!=null ) {
+            warmUp.record();
+        }
+        if( encoder!=null ) {
+            encoder.shutdown();
+        }
+
+        // Deliver any outstanding flush callbacks before we return.
+        drain(completer);
+        failCommits(storingBatches, null, new PagingException("The page file was closed before the commit was synced."));
         traceEnd(LOG, "HawtTxPageFile.close");
     }
 
+    /**
+     * Waits for the tasks queued on an executor to finish, and then shuts
+     * it down unless it's a queue of the shared house keeper.
+     */
+    private static void drain(Executor executor) {
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(new Runnable(){
+            public void run() {
+                done.countDown();
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+        }
+        if( executor instanceof ExecutorService ) {
+            ((ExecutorService)executor).shutdownNow();
+        }
+    }
+
+    /**
+     * Syncs the file, through the house keeper so that it can coalesce the
+     * syncs of the stores on the same device.
+     */
+    private void sync() {
+        if( houseKeeper!=null ) {
+            houseKeeper.sync(location, new Runnable() {
+                public void run() {
+                    file.sync();
+                }
+            });
+        } else {
+            file.sync();
+        }
+    }
+
     @Override
     public String toString() {
         return "{\n" +
@@ -342,10 +534,13 @@ public final class HawtTxPageFile implements TxPageFile {
      *
      * @param snapshot
      * @param pageUpdates
+     * @param allocated
+     * @param freed
+     * @param redo the logged index operations which cover all the updates, null if there are none.
      * @param flushCallbacks
      */
-    void commit(Snapshot snapshot, ConcurrentHashMap<Integer, Update> pageUpdates, ArrayList<Runnable> flushCallbacks) {
-        traceStart(LOG, "HawtTxPageFile.commit(%s, %s, %s)", snapshot, pageUpdates, flushCallbacks);
+    void commit(Snapshot snapshot, ConcurrentHashMap<Integer, Update> pageUpdates, Ranges allocated, Ranges freed, ArrayList<Redo> redo, ArrayList<Runnable> flushCallbacks) {
+        traceStart(LOG, "HawtTxPageFile.commit(%s, %s, %s, %s, %s, %s)", snapshot, pageUpdates, allocated, freed, redo, flushCallbacks);
 
         boolean fullBatch=false;
         Commit commit=null;
@@ -360,8 +555,9 @@ public final class HawtTxPageFile implements TxPageFile {
                 // subsequent to the snapshot that this commit started operating on.
 
                 // Note: every deferred update has an entry in the pageUpdates, so no need to
-                // check to see if that map also conflicts.
-                rev = snapshot.getTracker().commitCheck(pageUpdates);
+                // check to see if that map also conflicts.  Pages we allocated can't
+                // conflict since nobody else could have seen them.
+                rev = snapshot.getTracker().commitCheck(pageUpdates, freed);
                 snapshot.close();
             } else {
                 rev = openBatch.head;
@@ -380,9 +576,9 @@ public final class HawtTxPageFile implements TxPageFile {
                 // TODO: we are inside the TRANSACTION_MUTEX ... and this seems CPU intensive..
                 // but it's better than always creating more commit entries.. as that slows down
                 // page look up (the have to iterate through all the commits).
-                commit.merge(pageFile.allocator(), rev, pageUpdates);
+                commit.merge(shadowAllocator, rev, pageUpdates, allocated, freed);
             } else {
-                commit = new Commit(rev, pageUpdates);
+                commit = new Commit(rev, pageUpdates, allocated, freed);
                 openBatch.commits.addLast(commit);
             }
 
@@ -391,6 +587,14 @@ public final class HawtTxPageFile implements TxPageFile {
             }
             openBatch.head = rev;
 
+            if( !redoIndexes.isEmpty() ) {
+                if( redo==null ) {
+                    openBatch.physical = true;
+                } else {
+                    openBatch.redo.addAll(redo);
+                }
+            }
+
 
             if( openBatch.pageCount() > updateBatchSize ) {
                 fullBatch = true;
@@ -420,6 +624,17 @@ public final class HawtTxPageFile implements TxPageFile {
         traceEnd(LOG, "HawtTxPageFile.commit");
     }
 
+    /**
+     * Allocates the shadow page of an update.  With a page table, a page which
+     * was moved gets its own location back as its shadow page when it is spare.
+     */
+    int allocShadow(int page, int count, int hint) {
+        if( pageTable!=null && count==1 && pageTable.reserveSlot(page) ) {
+            return page;
+        }
+        return allocator.alloc(count, hint);
+    }
+
     /**
      * Used to initialize a new file or to clear out the
      * contents of an existing file.
@@ -432,20 +647,32 @@ public final class HawtTxPageFile implements TxPageFile {
             batches.addFirst(openBatch);
 
             lastBatchPage = -1;
+            lastRedoPage = -1;
             readCache.clear();
 
             allocator.clear();
             storedFreeList.clear();
             storedFreeList.add(0, allocator.getLimit());
+            if( pageTable!=null ) {
+                pageTable.clear();
+                storedPageTable.clear();
+                storedPageTablePages.clear();
+                storedPageTableChanges = 0;
+            }
 
             // Initialize the file header..
-            System.arraycopy(MAGIC, 0, header.magic, 0, MAGIC.length);
+            byte[] magic = pageTable!=null ? PAGE_TABLE_MAGIC : MAGIC;
+            System.arraycopy(magic, 0, header.magic, 0, magic.length);
             header.base_revision = -1;
             header.free_list_page = -1;
+            header.page_table_page = -1;
             header.page_size = pageFile.getPageSize();
             header.pessimistic_recovery_page = -1;
             header.optimistic_recovery_page = -1;
             storeHeader();
+            if( warmUp!=null ) {
+                warmUp.forget();
+            }
         }
         traceEnd(LOG, "HawtTxPageFile.reset");
     }
@@ -461,16 +688,23 @@ public final class HawtTxPageFile implements TxPageFile {
             performedBatches = storedBatches = storingBatches = openBatch = new Batch(-1);
             batches.addFirst(openBatch);
             lastBatchPage = -1;
+            lastRedoPage = -1;
             readCache.clear();
 
             Buffer buffer = new Buffer(FILE_HEADER_SIZE);
             file.read(0, buffer);
             header.decode(buffer);
 
-            if( !Arrays.equals(MAGIC, header.magic) ) {
+            if( !Arrays.equals(MAGIC, header.magic) && !header.hasPageTable() ) {
                 traceEnd(LOG, "HawtTxPageFile.recover -> file header not as expected");
                 throw new PagingException("The file header is not of the expected type.");
             }
+            if( header.hasPageTable() != (pageTable!=null) ) {
+                traceEnd(LOG, "HawtTxPageFile.recover -> page table setting does not match");
+                throw new PagingException(header.hasPageTable() ?
+                        "The file uses a page table, enable the usePageTable option to open it." :
+                        "The file does not use a page table, disable the usePageTable option to open it.");
+            }
 
             trace(LOG, "recovery started.  header: %s", header);
 
@@ -487,18 +721,31 @@ public final class HawtTxPageFile implements TxPageFile {
                 storedFreeList.add(0, allocator.getLimit());
             }
 
+            if( header.page_table_page >= 0 ) {
+                loadPageTable(header.page_table_page);
+                trace(LOG, "loaded page table: %s ", storedPageTable);
+                pageTable.copy(storedPageTable);
+            } else if( pageTable!=null ) {
+                pageTable.clear();
+                storedPageTable.clear();
+                storedPageTablePages.clear();
+                storedPageTableChanges = 0;
+            }
+
             int pageId = header.pessimistic_recovery_page;
             if( header.optimistic_recovery_page >= 0 ) {
                 pageId = header.optimistic_recovery_page;
             }
 
             LinkedList<Batch> loaded = new LinkedList<Batch>();
+            // The redo records are always in front of the stored batches.
+            LinkedList<RedoRecord> redone = new LinkedList<RedoRecord>();
 
             boolean consistencyCheckNeeded = true;
             while( pageId >= 0  ) {
 
                 trace(LOG, "loading batch at: %d", pageId);
-                Batch batch = null;
+                Object batch = null;
 
                 if( pageId == header.pessimistic_recovery_page) {
                     consistencyCheckNeeded = false;
@@ -513,6 +760,7 @@ public final class HawtTxPageFile implements TxPageFile {
                         // clear out any previously loaded batchs.. and
                         // resume from the pessimistic location.
                         loaded.clear();
+                        redone.clear();
                         pageId = header.pessimistic_recovery_page;
                         continue;
                     }
@@ -521,18 +769,28 @@ public final class HawtTxPageFile implements TxPageFile {
                     batch = loadObject(pageId);
                 }
 
-                batch.page = pageId;
-                batch.recovered = true;
-                loaded.add(batch);
-
                 trace(LOG, "loaded batch: %s", batch);
 
+                long base;
+                if( batch instanceof RedoRecord ) {
+                    RedoRecord record = (RedoRecord) batch;
+                    record.page = pageId;
+                    redone.addFirst(record);
+                    base = record.base;
+                    pageId = record.previous;
+                } else {
+                    Batch b = (Batch) batch;
+                    b.page = pageId;
+                    b.recovered = true;
+                    loaded.add(b);
+                    base = b.base;
+                    pageId = b.previous;
+                }
+
                 // is this the last batch we need to load?
-                if( header.base_revision+1 == batch.base ) {
+                if( header.base_revision+1 == base ) {
                     break;
                 }
-
-                pageId=batch.previous;
             }
 
             if( loaded.isEmpty() ) {
@@ -555,24 +813,120 @@ public final class HawtTxPageFile implements TxPageFile {
                     performedBatches = storedBatches = batch;
                 }
 
-                // Perform the updates..
-                performBatches();
-                syncBatches();
+                if( lazyRecovery && redone.isEmpty() ) {
+                    // Snapshots translate pages through the stored batches, so
+                    // the file can be used while they get performed.
+                    for (Batch batch : loaded) {
+                        batch.claim(allocator);
+                    }
+                    // New batches have to link to them in case we crash again.
+                    lastBatchPage = loaded.getFirst().page;
+                    catchUp();
+                } else {
+                    // Perform the updates..
+                    performBatches();
+                    syncBatches();
+                }
             }
+
+            if( !redone.isEmpty() ) {
+                replay(redone);
+            }
+        }
+        if( warmUp!=null ) {
+            warmUp.start();
         }
         traceEnd(LOG, "HawtTxPageFile.recover");
     }
 
+    /**
+     * Performs the recovered batches in the background.
+     */
+    private void catchUp() {
+        Runnable task = new Runnable() {
+            public void run() {
+                synchronized (HOUSE_KEEPING_MUTEX) {
+                    performBatches();
+                    syncBatches();
+                }
+            }
+        };
+        if( worker!=null ) {
+            worker.execute(task);
+        } else {
+            recovery = new Thread(task, "HawtDB Recovery");
+            recovery.setDaemon(true);
+            recovery.start();
+        }
+    }
+
+    /**
+     * Replays the index operations of the redo records which were stored
+     * after the last stored batch, and then stores them as a batch.
+     */
+    private void replay(List<RedoRecord> records) {
+        traceStart(LOG, "HawtTxPageFile.replay(%s)", records);
+        for (RedoRecord record : records) {
+            Extent.unfree(pageFile, record.page);
+        }
+        for (RedoRecord record : records) {
+            trace(LOG, "replaying redo record: %s", record);
+            Transaction tx = tx();
+            for (Redo redo : record.ops) {
+                BTreeIndexFactory<?, ?> factory = redoIndexes.get(redo.getIndex());
+                if( factory==null ) {
+                    tx.rollback();
+                    traceEnd(LOG, "HawtTxPageFile.replay -> index not registered");
+                    throw new PagingException("The file holds logged operations of the index at page "+redo.getIndex()+", register it with addRedoIndex to open the file.");
+                }
+                factory.replay(tx, redo);
+            }
+            tx.commit();
+        }
+        checkpoint();
+
+        // The records are not needed anymore.
+        for (RedoRecord record : records) {
+            if( header.pessimistic_recovery_page == record.page ) {
+                header.pessimistic_recovery_page = -1;
+            }
+            if( header.optimistic_recovery_page == record.page ) {
+                header.optimistic_recovery_page = -1;
+            }
+        }
+        storeHeader();
+        if( synch ) {
+            sync();
+        }
+        for (RedoRecord record : records) {
+            Extent.free(pageFile, record.page);
+        }
+        traceEnd(LOG, "HawtTxPageFile.replay");
+    }
+
     /* (non-Javadoc)
      * @see org.fusesource.hawtdb.internal.page.TransactionalPageFile#flush()
      */
     public void flush() {
         traceStart(LOG, "HawtTxPageFile.flush()");
+        synchronized (HOUSE_KEEPING_MUTEX) {
+            if( !storeRedo() ) {
+                storeBatches(true);
+                syncBatches();
+            }
+        }
+        traceEnd(LOG, "HawtTxPageFile.flush");
+    }
+
+    /**
+     * Stores all the committed updates, even the ones which could have
+     * been kept as logged index operations.
+     */
+    private void checkpoint() {
         synchronized (HOUSE_KEEPING_MUTEX) {
             storeBatches(true);
             syncBatches();
         }
-        traceEnd(LOG, "HawtTxPageFile.flush");
     }
 
     public void flush(final Runnable onComplete) {
@@ -591,6 +945,52 @@ public final class HawtTxPageFile implements TxPageFile {
         traceEnd(LOG, "HawtTxPageFile.flush");
     }
 
+    /**
+     * Queues a flush on the worker, or on the completion executor if there
+     * is no worker, without waiting for it.  A flush which is still queued
+     * covers the calls made in the meantime.
+     */
+    void flushLater() {
+        if( flushQueued.compareAndSet(false, true) ) {
+            Executor executor = worker!=null ? worker : completer;
+            executor.execute(new Runnable() {
+                public void run() {
+                    flushQueued.set(false);
+                    flush();
+                }
+            });
+        }
+    }
+
+    public int getPagesInUse() {
+        return pageFile.allocator().getAllocatedPages();
+    }
+
+    public long truncate() {
+        traceStart(LOG, "HawtTxPageFile.truncate()");
+        synchronized (HOUSE_KEEPING_MUTEX) {
+            // Pages freed by the batches performed in the first pass
+            // are only released by the second one.
+            for (int i = 0; i < 2; i++) {
+                storeBatches(true);
+                syncBatches();
+            }
+
+            if( allocator instanceof StripedAllocator ) {
+                ((StripedAllocator)allocator).drainAll();
+            }
+
+            // Nobody can allocate the pages being cut off while we hold the
+            // allocator lock.  If they get allocated later on, the file grows back.
+            SimpleAllocator global = pageFile.allocator();
+            synchronized (global) {
+                long rc = pageFile.getFile().truncate(pageFile.offset(global.getUsedPages()));
+                traceEnd(LOG, "HawtTxPageFile.truncate -> %d", rc);
+                return rc;
+            }
+        }
+    }
+
     // /////////////////////////////////////////////////////////////////
     //
     // Methods which transition bathes through their life cycle states:
@@ -629,6 +1029,65 @@ public final class HawtTxPageFile implements TxPageFile {
     //
     // /////////////////////////////////////////////////////////////////
 
+    /**
+     * Makes the commits of the open batch durable by storing their logged
+     * index operations in a redo record instead of storing the batch.  This
+     * is only possible when all the commits of the batch were logged.  The
+     * batch stays open, and gets stored once it is full or on a checkpoint.
+     *
+     * @return false if the batch has to be stored instead.
+     */
+    private boolean storeRedo() {
+        if( redoIndexes.isEmpty() ) {
+            return false;
+        }
+        Batch batch;
+        RedoRecord record;
+        ArrayList<Runnable> callbacks;
+        synchronized (TRANSACTION_MUTEX) {
+            batch = openBatch;
+            if( batch.base==-1 || batch.physical ) {
+                return false;
+            }
+            long base = batch.redoHead==-1 ? batch.base : batch.redoHead+1;
+            record = new RedoRecord(base, batch.head, batch.redo.subList(batch.redoStored, batch.redo.size()));
+            batch.redoStored = batch.redo.size();
+            batch.redoHead = batch.head;
+            callbacks = batch.flushCallbacks;
+            batch.flushCallbacks = new ArrayList<Runnable>();
+        }
+
+        if( !record.ops.isEmpty() ) {
+            try {
+                // Link it to the last record.
+                record.previous = lastRedoPage >= 0 ? lastRedoPage : lastBatchPage;
+                lastRedoPage = record.page = storeObject(record);
+                if( batch.redoPages==null ) {
+                    batch.redoPages = new ArrayList<Integer>();
+                }
+                batch.redoPages.add(record.page);
+                trace(LOG, "stored redo record: %s", record);
+
+                header.optimistic_recovery_page = record.page;
+                storeHeader();
+                if( synch ) {
+                    sync();
+                }
+                header.pessimistic_recovery_page = record.page;
+                header.optimistic_recovery_page = -1;
+                storeHeader();
+            } catch (RuntimeException e) {
+                failCommits(callbacks, e);
+                throw e;
+            }
+        }
+
+        if( !callbacks.isEmpty() ) {
+            complete(callbacks);
+        }
+        return true;
+    }
+
     /**
      * Attempts to perform a batch state change: open -> storing
      */
@@ -650,20 +1109,26 @@ public final class HawtTxPageFile implements TxPageFile {
             }
         }
 
-        // Write any outstanding deferred cache updates...
-        batch.performDeferredUpdates(pageFile);
+        try {
+            // Write any outstanding deferred cache updates...
+            batch.performDeferredUpdates(this);
 
-        // Link it to the last batch.
-        batch.previous = lastBatchPage;
+            // Link it to the last batch.
+            batch.previous = lastBatchPage;
 
-        // Store the batch record.
-        lastBatchPage = batch.page = storeObject(batch);
-        trace(LOG, "stored batch: %s", batch);
+            // Store the batch record.
+            lastBatchPage = batch.page = storeObject(batch);
+            lastRedoPage = -1;
+            trace(LOG, "stored batch: %s", batch);
 
 
-        // Update the header to know about the new batch page.
-        header.optimistic_recovery_page = batch.page;
-        storeHeader();
+            // Update the header to know about the new batch page.
+            header.optimistic_recovery_page = batch.page;
+            storeHeader();
+        } catch (RuntimeException e) {
+            failCommits(storingBatches, openBatch, e);
+            throw e;
+        }
         traceEnd(LOG, "HawtTxPageFile.storeBatches");
     }
 
@@ -680,7 +1145,12 @@ public final class HawtTxPageFile implements TxPageFile {
 
         // This is a slow operation..
         if( synch ) {
-            file.sync();
+            try {
+                sync();
+            } catch (RuntimeException e) {
+                failCommits(storingBatches, openBatch, e);
+                throw e;
+            }
         }
 
         // Update the base_revision with the last performed revision.
@@ -696,12 +1166,16 @@ public final class HawtTxPageFile implements TxPageFile {
             // fully flushed to disk.
             Batch cur = storingBatches;
             while( cur!=openBatch) {
-                for (Runnable runnable : storingBatches.flushCallbacks) {
-                    try {
-                        runnable.run();
-                    } catch (Throwable e){
-                        e.printStackTrace();
+                if( !cur.flushCallbacks.isEmpty() ) {
+                    complete(cur.flushCallbacks);
+                    cur.flushCallbacks = new ArrayList<Runnable>();
+                }
+                // The batch now covers its redo records.
+                if( cur.redoPages!=null ) {
+                    for (Integer page : cur.redoPages) {
+                        Extent.free(pageFile, page);
                     }
+                    cur.redoPages = null;
                 }
                 cur = cur.getNext();
             }
@@ -709,8 +1183,8 @@ public final class HawtTxPageFile implements TxPageFile {
 
             // The last stored is actually synced now..
             Batch lastStoredBatch = openBatch.getPrevious();
-            // Let the header know about it..
-            header.pessimistic_recovery_page = lastStoredBatch.page;
+            // Let the header know about it, redo records of the open batch are newer.
+            header.pessimistic_recovery_page = lastRedoPage >= 0 ? lastRedoPage : lastStoredBatch.page;
             if( header.optimistic_recovery_page == header.pessimistic_recovery_page ) {
                 header.optimistic_recovery_page = -1;
             }
@@ -734,10 +1208,12 @@ public final class HawtTxPageFile implements TxPageFile {
             }
 
             // Free the update pages associated with the batch.
-            performedBatches.release(allocator);
+            performedBatches.release(allocator, pageTable);
 
-            // Free the batch record itself.
-            Extent.free(pageFile, performedBatches.page);
+            // Free the batch record itself, unless that already happened.
+            if( performedBatches.page >= 0 ) {
+                Extent.free(pageFile, performedBatches.page);
+            }
 
             // don't need to sync /w transactions since they don't use the performedBatches variable.
             // Transition performed -> released
@@ -747,18 +1223,43 @@ public final class HawtTxPageFile implements TxPageFile {
             performedBatches.getPrevious().unlink();
         }
 
+        // Older snapshots keep the remaining batches from being released, but they
+        // only read the pages freed or preserved by them.  The rest can go now.
+        for (Batch b = performedBatches; b != storedBatches; b = b.getNext()) {
+            if( b.snapshots==0 && !b.unpinnedReleased ) {
+                b.releaseUnpinned(allocator, pageTable);
+                if( b.page == header.pessimistic_recovery_page ) {
+                    header.pessimistic_recovery_page = -1;
+                }
+                Extent.free(pageFile, b.page);
+                b.page = -1;
+            }
+        }
+
         // Store the free list..
         int previousFreeListPage = header.free_list_page;
         header.free_list_page = storeObject(storedFreeList);
+        // and the changes of the page table that go with it.
+        List<Integer> previousPageTablePages = Collections.emptyList();
+        if( pageTable!=null ) {
+            previousPageTablePages = storePageTable();
+        }
         storeHeader();
 
         // Release the previous free list.
         if (previousFreeListPage >= 0) {
             Extent.free(pageFile, previousFreeListPage);
         }
+        for (int page : previousPageTablePages) {
+            Extent.free(pageFile, page);
+        }
 
         // apply any batches that can be applied..
         performBatches();
+
+        if( warmUp!=null ) {
+            warmUp.recordPeriodically();
+        }
     }
 
     /**
@@ -777,77 +1278,63 @@ public final class HawtTxPageFile implements TxPageFile {
             return;
         }
 
-        // The last performed batch MIGHT still have an open snapshot.
-        // we can't transition from synced, until that snapshot closes.
-        Batch lastPerformed = storedBatches.getPrevious();
-        if( lastPerformed!=null && lastPerformed.snapshots!=0) {
-            trace(LOG, "last batch still open");
-            traceEnd(LOG, "HawtTxPageFile.performBatches");
-            return;
-        }
-
         while( storedBatches!=storingBatches ) {
 
             trace(LOG, "Performing batch: %s", storedBatches);
 
+            // Snapshots opened on or before the batch can still be open.  The pages
+            // they read get preserved before the batch updates them.
+            Batch pinned = null;
+            synchronized (TRANSACTION_MUTEX) {
+                for (Batch b = storedBatches; b != null; b = b.getPrevious()) {
+                    if( b.pins > 0 ) {
+                        pinned = b;
+                        break;
+                    }
+                }
+            }
+
+            if (storedBatches.recovered) {
+                // If we are recovering, the allocator MIGHT not have the pages of the
+                // batch as being allocated.  This makes sure they're allocated so that
+                // new transaction to get these pages and overwrite them in error.
+                storedBatches.claim(allocator);
+            }
+
             // Performing the batch actually applies the updates to the original page locations.
             for (Commit commit : storedBatches) {
+                for (Ranges.Range r : commit.allocated) {
+                    // Update the persistent free list.  This gets stored on the next sync.
+                    storedFreeList.remove(r.start, r.size());
+                }
+                for (Ranges.Range r : commit.freed) {
+                    storedFreeList.add(r.start, r.size());
+                    if( pageTable!=null && storedPageTable.size() > 0 ) {
+                        for (int page = r.start; page < r.end; page++) {
+                            int physical = storedPageTable.unmap(page);
+                            if( physical >= 0 ) {
+                                storedFreeList.add(physical, 1);
+                            }
+                        }
+                    }
+                }
+
                 for (Entry<Integer, Update> entry : commit.updates.entrySet()) {
                     int page = entry.getKey();
                     Update update = entry.getValue();
-
-                    if( traced(page) || (update.shadowed() && traced(update.shadow())) ) {
-                        trace(LOG, "performing update at %d %s", page, update);
-                    }
-                    // is it a shadow update?
-                    if( update.shadowed() ) {
-
-                        if( storedBatches.recovered ) {
-                            // If we are recovering, the allocator MIGHT not have the shadow
-                            // page as being allocated.  This makes sure it's allocated so that
-                            // new transaction to get this page and overwrite it in error.
-                            allocator.unfree(update.shadow(), 1);
-                        }
-
-                        // Perform the update by copying the updated page the original
-                        // page location.
-
-                        if( traced(page) || traced(update.shadow()) ) {
-                            trace(LOG, "performing shadow update on %d from %d",page,update.shadow());
-                        }
-                        ByteBuffer slice = pageFile.slice(SliceType.READ, update.shadow(), 1);
+                    if( pinned==null ) {
+                        performUpdate(pinned, page, update);
+                    } else {
+                        // The pinned snapshots must not see the page in between
+                        // its contents getting preserved and updated.
+                        Lock lock = pageLock(page).writeLock();
+                        lock.lock();
                         try {
-                            pageFile.write(page, slice);
+                            performUpdate(pinned, page, update);
                         } finally {
-                            pageFile.unslice(slice);
+                            lock.unlock();
                         }
-
                     }
-                    if (update.allocated()) {
-
-                        if (storedBatches.recovered) {
-                            // If we are recovering, the allocator MIGHT not have this
-                            // page as being allocated.  This makes sure it's allocated so that
-                            // new transaction to get this page and overwrite it in error.
-                            allocator.unfree(page, 1);
-                        }
-                        // Update the persistent free list.  This gets stored on the next sync.
-                        storedFreeList.remove(page, 1);
-
-                    } else if (update.freed()) {
-                        storedFreeList.add(page, 1);
-                    }
-
-                    // update the read cache..
-                    DeferredUpdate du = update.deferredUpdate();
-                    if( du != null ) {
-                        if (du.removed()) {
-                            readCache.map.remove(page);
-                        } else if (du.put()) {
-                            readCache.map.put(page, du.value);
-                        }
-                    }
-
                 }
             }
 
@@ -858,20 +1345,219 @@ public final class HawtTxPageFile implements TxPageFile {
                 // Transition synced -> performed
                 storedBatches = storedBatches.getNext();
             }
+        }
+        traceEnd(LOG, "HawtTxPageFile.performBatches");
+    }
+
+    /**
+     * Applies an update of a stored batch to the page location.
+     */
+    private void performUpdate(Batch pinned, int page, Update update) {
+        if( traced(page) || (update.shadowed() && traced(update.shadow())) ) {
+            trace(LOG, "performing update at %d %s", page, update);
+        }
+        // is it a shadow update?
+        if( update.shadowed() ) {
+
+            if( pageTable!=null ) {
+                // Perform the update by pointing the page at the shadow page.  The
+                // page that held the previous contents gets freed on release.
+                int physical = pageTable.translate(page);
+                boolean read = preserve(storedBatches, pinned, page, physical, false)
+                        || readByPins(pinned, page, physical);
+                if( read && physical==page ) {
+                    // Keep the page's own location from being reused as a shadow
+                    // page while the pinned snapshots can read it.
+                    pageTable.holdSlot(page);
+                    storedBatches.holdSlot(page);
+                }
+                storedFreeList.remove(update.shadow(), 1);
+                storedPageTable.remap(page, update.shadow());
+                int previous = pageTable.remap(page, update.shadow());
+                if( previous >= 0 ) {
+                    storedFreeList.add(previous, 1);
+                    storedBatches.supersede(previous, read);
+                }
+            } else {
+                // Perform the update by copying the updated page the original
+                // page location.
+
+                if( traced(page) || traced(update.shadow()) ) {
+                    trace(LOG, "performing shadow update on %d from %d",page,update.shadow());
+                }
+                preserve(storedBatches, pinned, page, page, true);
+                ByteBuffer slice = pageFile.slice(SliceType.READ, update.shadow(), 1);
+                try {
+                    pageFile.write(page, slice);
+                } finally {
+                    pageFile.unslice(slice);
+                }
+            }
+
+        }
+
+        // update the read cache..
+        DeferredUpdate du = update.deferredUpdate();
+        if( du != null ) {
+            if (du.removed()) {
+                readCache.map.remove(page);
+            } else if (du.spilled) {
+                readCache.map.remove(page);
+            } else if (du.put()) {
+                readCache.map.put(page, du.value);
+            }
+        }
+    }
 
-            lastPerformed = storedBatches.getPrevious();
-            // We have to stop if the last batch performed has an open snapshot.
-            if( lastPerformed.snapshots!=0 ) {
+    /**
+     * Keeps the contents a page had before a batch updates it, for the
+     * snapshots which were opened on or before the batch.  Those snapshots look
+     * for the page in the batches performed since they were opened, so it
+     * is only kept when none of those batches has already kept it.
+     *
+     * @param pinned the newest batch which has snapshots opened on it, null if there is none.
+     * @param physical the page which holds the contents.
+     * @param copy true if the contents have to be copied aside, otherwise
+     *        they stay at the physical page until the batch is released.
+     * @return true if the contents were kept by this call.
+     */
+    private boolean preserve(Batch batch, Batch pinned, int page, int physical, boolean copy) {
+        if( pinned==null || batch.preserved(page) >= 0 ) {
+            return false;
+        }
+        for (Batch b = pinned; b != batch; b = b.getNext()) {
+            if( b.preserved(page) >= 0 ) {
+                return false;
+            }
+        }
+        int location = physical;
+        if( copy ) {
+            location = allocator.alloc(1);
+            ByteBuffer slice = pageFile.slice(SliceType.READ, physical, 1);
+            try {
+                pageFile.write(location, slice);
+            } finally {
+                pageFile.unslice(slice);
+            }
+            if( batch.copies==null ) {
+                batch.copies = new Ranges();
+            }
+            batch.copies.add(location, 1);
+        }
+        if( traced(page) ) {
+            trace(LOG, "preserved the contents of %d at %d", page, location);
+        }
+        batch.preserve(page, location);
+        return true;
+    }
+
+    /**
+     * With a page table the shadow pages of a performed batch hold the
+     * current contents of their pages, and the snapshots opened on the
+     * batch keep on reading them there.
+     *
+     * @return true if a snapshot opened on a performed batch can read the
+     *         page at the location through the commits of its batch.
+     */
+    private boolean readByPins(Batch pinned, int page, int location) {
+        if( pinned==null ) {
+            return false;
+        }
+        for (Batch b = pinned; b != null; b = b.getPrevious()) {
+            if( b.pins > 0 ) {
+                for (Commit commit : b) {
+                    Update update = commit.updates.get(page);
+                    if( update!=null && update.shadowed() && update.shadow()==location ) {
+                        return true;
+                    }
+                }
+            }
+            if( b == performedBatches ) {
                 break;
             }
         }
-        traceEnd(LOG, "HawtTxPageFile.performBatches");
+        return false;
+    }
+
+    public int getPinnedPages() {
+        synchronized (HOUSE_KEEPING_MUTEX) {
+            int rc = 0;
+            for (Batch b = performedBatches; b != storedBatches; b = b.getNext()) {
+                rc += b.pinnedPages(pageTable);
+            }
+            return rc;
+        }
+    }
+
+    public long getOldestSnapshotAge() {
+        synchronized (TRANSACTION_MUTEX) {
+            Iterator<Snapshot> i = openSnapshots.iterator();
+            return i.hasNext() ? System.currentTimeMillis() - i.next().opened : 0;
+        }
+    }
+
+    /**
+     * Completes the commit futures of the batches from the first one up to
+     * the last one, or the end if it is null, with a failure.  Their flush
+     * callbacks will not run.
+     */
+    private void failCommits(Batch first, Batch last, Throwable failure) {
+        synchronized (TRANSACTION_MUTEX) {
+            for (Batch b = first; b != null && b != last; b = b.getNext()) {
+                failCommits(b.flushCallbacks, failure);
+            }
+        }
+    }
+
+    private static void failCommits(List<Runnable> callbacks, Throwable failure) {
+        for (Runnable callback : callbacks) {
+            if( callback instanceof CommitFuture ) {
+                ((CommitFuture) callback).fail(failure);
+            }
+        }
+    }
+
+    /**
+     * Hands the flush callbacks of a synced batch over to the completion executor.
+     */
+    private void complete(final ArrayList<Runnable> callbacks) {
+        completer.execute(new Runnable() {
+            public void run() {
+                for (Runnable runnable : callbacks) {
+                    try {
+                        runnable.run();
+                    } catch (Throwable e){
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
     }
 
     // /////////////////////////////////////////////////////////////////
     // Snapshot management
     // /////////////////////////////////////////////////////////////////
 
+    private ReadWriteLock pageLock(int page) {
+        return pageLocks[page & (pageLocks.length-1)];
+    }
+
+    /**
+     * Keeps the batches being performed from updating the given pages
+     * until {@link #unlockReads(int, int)} gets called.
+     */
+    void lockReads(int page, int count) {
+        for (int i = 0; i < Math.min(count, pageLocks.length); i++) {
+            pageLock(page+i).readLock().lock();
+        }
+    }
+
+    void unlockReads(int page, int count) {
+        for (int i = Math.min(count, pageLocks.length)-1; i >= 0; i--) {
+            pageLock(page+i).readLock().unlock();
+        }
+    }
+
     Snapshot openSnapshot() {
         synchronized(TRANSACTION_MUTEX) {
 
@@ -882,11 +1568,11 @@ public final class HawtTxPageFile implements TxPageFile {
             if( commit !=null ) {
                 if( commit.snapshotTracker == null ) {
                     // So we can track the new snapshot...
-                    commit.snapshotTracker = new SnapshotTracker(openBatch, commit);
+                    commit.snapshotTracker = new SnapshotTracker(openBatch, commit, pageTable);
                 }
                 tracker = commit.snapshotTracker;
             } else {
-                tracker = new SnapshotTracker(openBatch, null);
+                tracker = new SnapshotTracker(openBatch, null, pageTable);
             }
 
             // Open the snapshot
@@ -933,6 +1619,66 @@ public final class HawtTxPageFile implements TxPageFile {
         }
     }
 
+    /**
+     * Stores the changes made to the stored page table since the last sync,
+     * as a record which links to the one stored before it.  Once the records
+     * hold more changes than the table has entries, or take more pages than
+     * the whole table, the whole table gets stored again.  So does a table
+     * which fits in a page or two, since a record of its changes would not
+     * take less space.
+     *
+     * @return the pages of the records which can be freed once the header
+     *         no longer points at them.
+     */
+    private List<Integer> storePageTable() {
+        PageTable.Changes changes = storedPageTable.changes(header.page_table_page);
+        if( header.page_table_page >= 0 ) {
+            if( changes==null ) {
+                return Collections.emptyList();
+            }
+            int size = storedPageTable.size();
+            // About how many pages the whole table takes, at 8 bytes an entry.
+            int pages = size / (pageFile.getPageSize() / 8);
+            if( pages > 1 && storedPageTableChanges + changes.size() <= size && storedPageTablePages.size() <= pages ) {
+                header.page_table_page = storeObject(changes);
+                storedPageTablePages.add(header.page_table_page);
+                storedPageTableChanges += changes.size();
+                return Collections.emptyList();
+            }
+        }
+        ArrayList<Integer> rc = new ArrayList<Integer>(storedPageTablePages);
+        storedPageTablePages.clear();
+        header.page_table_page = storeObject(storedPageTable);
+        storedPageTablePages.add(header.page_table_page);
+        storedPageTableChanges = 0;
+        return rc;
+    }
+
+    /**
+     * Loads the stored page table from the chain of records which ends at
+     * the page.
+     */
+    private void loadPageTable(int page) {
+        LinkedList<PageTable.Changes> chain = new LinkedList<PageTable.Changes>();
+        storedPageTablePages.clear();
+        Object record = loadObject(page);
+        Extent.unfree(pageFile, page);
+        storedPageTablePages.add(0, page);
+        while( record instanceof PageTable.Changes ) {
+            PageTable.Changes changes = (PageTable.Changes) record;
+            chain.addFirst(changes);
+            record = loadObject(changes.previous);
+            Extent.unfree(pageFile, changes.previous);
+            storedPageTablePages.add(0, changes.previous);
+        }
+        storedPageTable.copy((PageTable) record);
+        storedPageTableChanges = 0;
+        for (PageTable.Changes changes : chain) {
+            storedPageTable.apply(changes);
+            storedPageTableChanges += changes.size();
+        }
+    }
+
     private void storeHeader() {
         traceStart(LOG, "HawtTxPageFile.storeHeader()");
         trace(LOG, "header = %s", header);
@@ -954,7 +1700,7 @@ public final class HawtTxPageFile implements TxPageFile {
         @SuppressWarnings("unchecked") <T> T cacheLoad(PagedAccessor<T> marshaller, int pageId) {
             T rc = (T) map.get(pageId);
             if( rc ==null ) {
-                rc = marshaller.load(pageFile, pageId);
+                rc = marshaller.load(pageView, pageId);
                 map.put(pageId, rc);
             }
             return rc;
@@ -0,0 +1,349 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdb.api.Allocator;
+import org.fusesource.hawtdb.api.OutOfSpaceException;
+import org.fusesource.hawtdb.api.Paged;
+import org.fusesource.hawtdb.api.PagedAccessor;
+import org.fusesource.hawtdb.internal.util.Ranges;
+
+/**
+ * Maps page ids to the physical page which holds their current contents.
+ *
+ * When a page file uses a page table, performing an update just points
+ * the page at its shadow page instead of copying the shadow page back
+ * onto the original location.  Pages which are not in the table are
+ * stored at their own location.
+ *
+ * Once a page has been moved to another location its own location is a
+ * spare slot.  Only that page can use the slot as a shadow page, which
+ * moves the page back home on its next update.  Since a page id is never
+ * handed out while the page is in use, nobody else can be using the slot.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class PageTable implements Serializable {
+
+    private static final long serialVersionUID = 3947025783436471256L;
+
+    /**
+     * The changes made to a table since it was last stored.  A stored table
+     * is a full copy of the table followed by a chain of these records,
+     * each one linking to the record stored before it.
+     */
+    static final class Changes implements Serializable {
+
+        private static final long serialVersionUID = -6206232948313385317L;
+
+        /** The page of the previous record of the chain. */
+        final int previous;
+        /** The changed pages... */
+        final int[] pages;
+        /** and their new locations, a page's own location if it went back home. */
+        final int[] locations;
+
+        Changes(int previous, int[] pages, int[] locations) {
+            this.previous = previous;
+            this.pages = pages;
+            this.locations = locations;
+        }
+
+        public int size() {
+            return pages.length;
+        }
+
+        @Override
+        public String toString() {
+            return "{ previous: "+previous+", changes: "+pages.length+" }";
+        }
+    }
+
+    private transient ConcurrentHashMap<Integer, Integer> map = new ConcurrentHashMap<Integer, Integer>();
+    /** The spare slots which are in use as shadow pages. */
+    private transient Ranges slots = new Ranges();
+    /** The pages changed since the last {@link #changes(int)}, null if they are not tracked. */
+    private transient HashMap<Integer, Integer> changes;
+
+    public PageTable() {
+        this(false);
+    }
+
+    /**
+     * @param tracked keep track of the changes so that they can be stored
+     *        without storing the whole table.
+     */
+    public PageTable(boolean tracked) {
+        if( tracked ) {
+            changes = new HashMap<Integer, Integer>();
+        }
+    }
+
+    /**
+     * @return the physical page holding the contents of the page.
+     */
+    public int translate(int page) {
+        Integer rc = map.get(page);
+        return rc==null ? page : rc;
+    }
+
+    /**
+     * Reserves the own location of a page that has been moved so that it
+     * can be used as the page's shadow page.
+     *
+     * @return false if the location is not a spare slot.
+     */
+    synchronized public boolean reserveSlot(int page) {
+        if( !map.containsKey(page) || slots.contains(page) ) {
+            return false;
+        }
+        slots.add(page);
+        return true;
+    }
+
+    /**
+     * Keeps the own location of a page which is about to be moved away from
+     * being used as a shadow page until {@link #releaseSlot(int)} gets called.
+     */
+    synchronized public void holdSlot(int page) {
+        slots.add(page);
+    }
+
+    /**
+     * Gives back a slot reserved by {@link #reserveSlot(int)} which did not
+     * end up in the table.
+     *
+     * @return false if the page was not a reserved slot.
+     */
+    synchronized public boolean releaseSlot(int page) {
+        if( !slots.contains(page) ) {
+            return false;
+        }
+        slots.remove(page);
+        return true;
+    }
+
+    /**
+     * Points a page at a new location.
+     *
+     * @return the location which held the page before, or -1 if that was its
+     *         own location which is now a spare slot.
+     */
+    synchronized public int remap(int page, int physical) {
+        Integer rc;
+        if( physical == page ) {
+            slots.remove(page);
+            rc = map.remove(page);
+        } else {
+            rc = map.put(page, physical);
+        }
+        if( changes!=null ) {
+            changes.put(page, physical);
+        }
+        return rc==null ? -1 : rc;
+    }
+
+    /**
+     * Removes a page which is being freed from the table.
+     *
+     * @return the location which held the page, or -1 if that was its own location.
+     */
+    synchronized public int unmap(int page) {
+        Integer rc = map.remove(page);
+        if( rc!=null && changes!=null ) {
+            changes.put(page, page);
+        }
+        return rc==null ? -1 : rc;
+    }
+
+    /**
+     * Hands out the changes made since the last call.
+     *
+     * @param previous the page of the record the changes follow.
+     * @return the changes, or null if there were none.
+     */
+    synchronized public Changes changes(int previous) {
+        if( changes.isEmpty() ) {
+            return null;
+        }
+        int[] pages = new int[changes.size()];
+        int[] locations = new int[pages.length];
+        int i = 0;
+        for (Entry<Integer, Integer> entry : changes.entrySet()) {
+            pages[i] = entry.getKey();
+            locations[i] = entry.getValue();
+            i++;
+        }
+        changes.clear();
+        return new Changes(previous, pages, locations);
+    }
+
+    /**
+     * Replays the changes of a stored record.
+     */
+    synchronized public void apply(Changes changes) {
+        for (int i = 0; i < changes.pages.length; i++) {
+            if( changes.pages[i] == changes.locations[i] ) {
+                map.remove(changes.pages[i]);
+            } else {
+                map.put(changes.pages[i], changes.locations[i]);
+            }
+        }
+    }
+
+    synchronized public void copy(PageTable source) {
+        map.clear();
+        map.putAll(source.map);
+        slots.clear();
+        if( changes!=null ) {
+            changes.clear();
+        }
+    }
+
+    synchronized public void clear() {
+        map.clear();
+        slots.clear();
+        if( changes!=null ) {
+            changes.clear();
+        }
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public String toString() {
+        return "{ moved pages: "+map.size()+", reserved slots: "+slots+" }";
+    }
+
+    /**
+     * Wraps an allocator so that freeing a reserved slot gives it back to
+     * this table instead of the allocator.
+     */
+    public Allocator shadowAllocator(final Allocator allocator) {
+        return new Allocator() {
+            public int alloc(int count) throws OutOfSpaceException {
+                return allocator.alloc(count);
+            }
+            public int alloc(int count, int hint) throws OutOfSpaceException {
+                return allocator.alloc(count, hint);
+            }
+            public void free(int page, int count) {
+                if( count != 1 || !releaseSlot(page) ) {
+                    allocator.free(page, count);
+                }
+            }
+            public void unfree(int page, int count) {
+                allocator.unfree(page, count);
+            }
+            public void clear() throws UnsupportedOperationException {
+                allocator.clear();
+            }
+            public int getLimit() {
+                return allocator.getLimit();
+            }
+            public boolean isAllocated(int page) {
+                return allocator.isAllocated(page);
+            }
+            public void setFreeRanges(Ranges freeList) {
+                allocator.setFreeRanges(freeList);
+            }
+            public Ranges getFreeRanges() {
+                return allocator.getFreeRanges();
+            }
+        };
+    }
+
+    /**
+     * @return a view of the page file which reads and writes the pages at
+     *         the locations this table maps them to.
+     */
+    public Paged view(final Paged paged) {
+        return new Paged() {
+            public Allocator allocator() {
+                return paged.allocator();
+            }
+            public int alloc() {
+                return paged.alloc();
+            }
+            public void free(int page) {
+                paged.free(page);
+            }
+            public ByteBuffer slice(SliceType mode, int page, int count) {
+                return paged.slice(mode, translate(page), count);
+            }
+            public void unslice(ByteBuffer buffer) {
+                paged.unslice(buffer);
+            }
+            public void read(int page, Buffer buffer) {
+                paged.read(translate(page), buffer);
+            }
+            public void write(int page, Buffer buffer) {
+                paged.write(translate(page), buffer);
+            }
+            public int getPageSize() {
+                return paged.getPageSize();
+            }
+            public int pages(int length) {
+                return paged.pages(length);
+            }
+            public void flush() {
+                paged.flush();
+            }
+            public <T> T get(PagedAccessor<T> accessor, int page) {
+                return accessor.load(this, page);
+            }
+            public <T> void put(PagedAccessor<T> accessor, int page, T value) {
+                accessor.store(this, page, value);
+            }
+            public <T> void clear(PagedAccessor<T> accessor, int page) {
+                accessor.pagesLinked(this, page);
+            }
+        };
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(map.size());
+        for (Entry<Integer, Integer> entry : map.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        map = new ConcurrentHashMap<Integer, Integer>();
+        slots = new Ranges();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            map.put(in.readInt(), in.readInt());
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+/**
+ * Implemented by transactions which hand the values they put back as is
+ * until they commit.  Nobody else can see such a value, so the code which
+ * put it can keep changing it in place instead of copying it for every
+ * update.  Once the transaction commits, the value is shared and has to be
+ * treated as immutable again.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public interface PrivateUpdates {
+
+    /**
+     * @return true if the value at the page was put by this transaction and
+     *         is only visible to it.
+     */
+    boolean isPrivate(int page);
+
+    /**
+     * @return an object which stays the same until the transaction commits
+     *         or rolls back.  Code which changes a value in place can record
+     *         it in the value, so that it knows not to change the value
+     *         anymore once it is shared.
+     */
+    Object privateScope();
+
+}
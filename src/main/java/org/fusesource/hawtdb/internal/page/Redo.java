@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.fusesource.hawtbuf.Buffer;
+
+/**
+ * A logical redo record of an index operation.  Replaying the operation
+ * against the index it was applied to redoes all the page updates it
+ * caused.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public final class Redo {
+
+    public static final byte PUT = 1;
+    public static final byte PUT_IF_ABSENT = 2;
+    public static final byte REMOVE = 3;
+    public static final byte CLEAR = 4;
+    // The key is the start of the range and the value its end, both
+    // encoded with the key codec.
+    public static final byte REMOVE_RANGE = 5;
+
+    private final int index;
+    private final byte op;
+    private final Buffer key;
+    private final Buffer value;
+
+    public Redo(int index, byte op, Buffer key, Buffer value) {
+        this.index = index;
+        this.op = op;
+        this.key = key;
+        this.value = value;
+    }
+
+    /**
+     * @return the page of the index the operation was applied to.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public byte getOp() {
+        return op;
+    }
+
+    /**
+     * @return the encoded key, null if the operation has no key.
+     */
+    public Buffer getKey() {
+        return key;
+    }
+
+    /**
+     * @return the encoded value, null if the operation has no value.
+     */
+    public Buffer getValue() {
+        return value;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(index);
+        out.writeByte(op);
+        writeBuffer(out, key);
+        writeBuffer(out, value);
+    }
+
+    static Redo read(DataInput in) throws IOException {
+        int index = in.readInt();
+        byte op = in.readByte();
+        Buffer key = readBuffer(in);
+        Buffer value = readBuffer(in);
+        return new Redo(index, op, key, value);
+    }
+
+    private static void writeBuffer(DataOutput out, Buffer buffer) throws IOException {
+        if( buffer==null ) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(buffer.length);
+            out.write(buffer.data, buffer.offset, buffer.length);
+        }
+    }
+
+    private static Buffer readBuffer(DataInput in) throws IOException {
+        int length = in.readInt();
+        if( length < 0 ) {
+            return null;
+        }
+        byte data[] = new byte[length];
+        in.readFully(data);
+        return new Buffer(data);
+    }
+
+    @Override
+    public String toString() {
+        return "{ index: "+index+", op: "+op+", key: "+key+", value: "+value+" }";
+    }
+
+}
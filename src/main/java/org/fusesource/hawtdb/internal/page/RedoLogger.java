@@ -0,0 +1,45 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+/**
+ * Implemented by transactions which can log index operations instead of
+ * the page updates the operations cause.
+ *
+ * An index brackets each of its operations with {@link #beginRedo()} and
+ * {@link #endRedo(Redo)}.  The page updates done in between are covered by
+ * the redo record.  A transaction which does any other page update has to
+ * be stored as page updates.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public interface RedoLogger {
+
+    /**
+     * @return true if the operations of the index at the page get logged.
+     */
+    boolean isRedoLogged(int index);
+
+    void beginRedo();
+
+    /**
+     * @param redo the record of the operation, null if the operation failed
+     *        and its updates are not covered by a record.
+     */
+    void endRedo(Redo redo);
+
+}
@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds the index operations of the commits which were flushed while
+ * their batch was still open.  The records of a batch are linked in front
+ * of the previous stored batch and are dropped once the batch itself is
+ * stored.  On recovery the records which are not covered by a stored
+ * batch get replayed.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class RedoRecord implements Externalizable {
+
+    private static final long serialVersionUID = -2915382785023414407L;
+
+    /** the pageId that this record is stored at */
+    int page=-1;
+    /** points to the previous redo record or batch */
+    int previous=-1;
+    /** the oldest commit in this record */
+    long base;
+    /** the newest commit in this record */
+    long head;
+
+    final ArrayList<Redo> ops = new ArrayList<Redo>();
+
+    public RedoRecord() {
+    }
+
+    public RedoRecord(long base, long head, List<Redo> ops) {
+        this.base = base;
+        this.head = head;
+        this.ops.addAll(ops);
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeLong(head);
+        out.writeLong(base);
+        out.writeInt(previous);
+        out.writeInt(ops.size());
+        for (Redo redo : ops) {
+            redo.write(out);
+        }
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        head = in.readLong();
+        base = in.readLong();
+        previous = in.readInt();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            ops.add(Redo.read(in));
+        }
+    }
+
+    public String toString() {
+        return "{ page: "+page+", base: "+base+", head: "+head+", ops: "+ops.size()+", previous: "+previous+" }";
+    }
+
+}
@@ -16,12 +16,9 @@
  */
 package org.fusesource.hawtdb.internal.page;
 
-import java.util.Iterator;
-
 import org.fusesource.hawtdb.api.Allocator;
 import org.fusesource.hawtdb.api.OutOfSpaceException;
 import org.fusesource.hawtdb.internal.util.Ranges;
-import org.fusesource.hawtdb.internal.util.Ranges.Range;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,6 +28,7 @@ import static org.fusesource.hawtdb.internal.page.Logging.traced;
 
 /**
  * This class is used to provides allocation management of pages.
+ * Allocations are best fit, using a size index of the free ranges.
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
@@ -38,7 +36,10 @@ public class SimpleAllocator implements Allocator {
 
     private final static Log LOG = LogFactory.getLog(SimpleAllocator.class);
 
-    private final Ranges freeRanges = new Ranges();
+    /** How many pages away from an allocation hint we look for free space. */
+    static final int LOCALITY_WINDOW = 256;
+
+    private final Ranges freeRanges = new Ranges(true);
     private int limit;
 
     public SimpleAllocator(int limit) {
@@ -59,22 +60,40 @@ public class SimpleAllocator implements Allocator {
      */
     synchronized public int alloc(int size) throws OutOfSpaceException {
         traceStart(LOG, "SimpleAllocator.alloc(%d)", size);
-        for (Iterator<Range> i = freeRanges.iterator(); i.hasNext();) {
-            Range r = (Range) i.next();
-            if( r.size() >= size ) {
-                int rc = r.start;
+        // Best fit lookup in the size index so that allocation does not slow
+        // down as the free space gets fragmented.
+        int rc = freeRanges.bestFit(size);
+        if( rc < 0 ) {
+            traceEnd(LOG, "SimpleAllocator.alloc -> OutOfSpaceException");
+            throw new OutOfSpaceException();
+        }
+        op_trace("ALLOC", rc, size);
+        freeRanges.remove(rc, size);
+        trace(LOG, "Allocated %d pages starting at %d", size, rc);
+        traceEnd(LOG, "SimpleAllocator.alloc -> %d", rc);
+        return rc;
+    }
+
+
+    /**
+     * Looks for free space within LOCALITY_WINDOW pages of the hint before
+     * falling back to a best fit allocation.  Nothing comes before page 0,
+     * so a hint of 0 searches the whole file for the lowest free space.
+     *
+     * @see Allocator#alloc(int, int)
+     */
+    synchronized public int alloc(int size, int hint) throws OutOfSpaceException {
+        if( hint >= 0 ) {
+            int rc = freeRanges.nearFit(size, hint, hint==0 ? limit : LOCALITY_WINDOW);
+            if( rc >= 0 ) {
                 op_trace("ALLOC", rc, size);
                 freeRanges.remove(rc, size);
-                trace(LOG, "Allocated %d pages starting at %d", size, rc);
-                traceEnd(LOG, "SimpleAllocator.alloc -> %d", rc);
                 return rc;
             }
         }
-        traceEnd(LOG, "SimpleAllocator.alloc -> OutOfSpaceException");
-        throw new OutOfSpaceException();
+        return alloc(size);
     }
 
-
     /**
      * @see Allocator#free(int, int)
      */
@@ -84,6 +103,15 @@ public class SimpleAllocator implements Allocator {
         op_trace("FREE", pageId, count);
     }
 
+    /**
+     * Frees all the given ranges while holding the allocator lock just once.
+     */
+    synchronized public void free(Ranges ranges) {
+        for (Ranges.Range r : ranges) {
+            free(r.start, r.size());
+        }
+    }
+
     /**
      * @see Allocator#unfree(int, int)
      */
@@ -115,6 +143,41 @@ public class SimpleAllocator implements Allocator {
         return freeRanges;
     }
 
+    /**
+     * @return the number of pages up to and including the last allocated page.
+     */
+    synchronized public int getUsedPages() {
+        Ranges.Range last = freeRanges.last();
+        return last!=null && last.end==limit ? last.start : limit;
+    }
+
+    /**
+     * @return the number of allocated pages.
+     */
+    synchronized public int getAllocatedPages() {
+        return limit - freeRanges.size();
+    }
+
+    /**
+     * Measures how scattered the free pages below the end of the used space
+     * are.  The free range running up to the limit is not counted.
+     *
+     * @return 0 when those free pages form a single run and close to 1 when
+     *         they are all single page holes.
+     */
+    synchronized public double getFragmentation() {
+        long free = 0;
+        int largest = 0;
+        for (Ranges.Range r : freeRanges) {
+            if( r.end == limit ) {
+                break;
+            }
+            free += r.size();
+            largest = Math.max(largest, r.size());
+        }
+        return free == 0 ? 0 : 1.0 - ((double)largest / free);
+    }
+
     @Override
     public String toString() {
         return "{ free pages: "+freeRanges.toString()+" }";
@@ -37,6 +37,8 @@ final class Snapshot {
     private final HawtTxPageFile parent;
     private final SnapshotTracker tracker;
     private final Batch base;
+    /** when the snapshot was opened */
+    long opened;
     
     public  Snapshot(HawtTxPageFile hawtPageFile, SnapshotTracker tracker, Batch base) {
         parent = hawtPageFile;
@@ -45,6 +47,9 @@ final class Snapshot {
     }
     
     public Snapshot open() {
+        opened = System.currentTimeMillis();
+        parent.openSnapshots.add(this);
+        tracker.parentBatch.pins++;
         tracker.snapshots++;
         Batch cur = base;
         while( true ) {
@@ -59,6 +64,8 @@ final class Snapshot {
     
     public void close() {
         synchronized(parent.TRANSACTION_MUTEX) {
+            parent.openSnapshots.remove(this);
+            tracker.parentBatch.pins--;
             tracker.snapshots--;
             Batch cur = base;
             while( true ) {
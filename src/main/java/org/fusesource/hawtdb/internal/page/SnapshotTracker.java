@@ -18,7 +18,9 @@ package org.fusesource.hawtdb.internal.page;
 
 import java.util.Map;
 
+import org.fusesource.hawtdb.api.Paged;
 import org.fusesource.hawtdb.api.PagedAccessor;
+import org.fusesource.hawtdb.internal.util.Ranges;
 
 /**
  * 
@@ -33,10 +35,13 @@ final class SnapshotTracker {
     final Batch parentBatch;
     final Commit parentCommit;
     final long headRevision;
+    /** maps the pages which are not in a commit, null if the page file does not use a page table */
+    final PageTable pageTable;
     
-    public SnapshotTracker(Batch parentBatch, Commit parentCommit) {
+    public SnapshotTracker(Batch parentBatch, Commit parentCommit, PageTable pageTable) {
         this.parentBatch = parentBatch;
         this.parentCommit = parentCommit;
+        this.pageTable = pageTable;
         Commit lastEntry = this.parentBatch.commits.getTail();
         this.headRevision = (lastEntry == null ? this.parentBatch.head : lastEntry.getHeadRevision())+1;
     }
@@ -54,15 +59,16 @@ final class SnapshotTracker {
 
     public int translatePage(int page) {
         if( parentCommit == null ) {
-            return page;
+            return original(page);
         }
 
-        int rc = page;
         // Look for the page in the previous commits..
         Batch batch = parentBatch;
         Commit commit = parentCommit;
         outer: while( true ) {
-            if( batch.isPerformed() ) {
+            // The batch the snapshot was opened on may have been performed
+            // with newer commits, so its own commits still have to be checked.
+            if( batch!=parentBatch && batch.isPerformed() ) {
                 break;
             }
             
@@ -74,10 +80,10 @@ final class SnapshotTracker {
                     break;
                 }
                 
-                Update update = commit.updates.get(rc);
+                Update update = commit.updates.get(page);
                 if( update!=null ) {
                     if( update.shadowed() ) {
-                        rc = update.shadow();
+                        return update.shadow();
                     }
                     break outer;
                 }
@@ -90,11 +96,53 @@ final class SnapshotTracker {
             }
             commit = batch.commits.getTail();
         }
-        return rc;
+        return original(page);
+    }
+
+    /**
+     * @return the page holding the contents the page had before the snapshot
+     *         was opened, for a page which was not updated by the commits
+     *         the snapshot sees.
+     */
+    private int original(int page) {
+        int rc = preserved(page);
+        if( rc >= 0 ) {
+            return rc;
+        }
+        return current(page);
+    }
+
+    /**
+     * @return where the page is stored since the last batch which updated
+     *         it was performed.
+     */
+    public int current(int page) {
+        return pageTable==null ? page : pageTable.translate(page);
+    }
+
+    /**
+     * Batches performed while the snapshot is open keep the previous
+     * contents of the pages they update.  The oldest batch which updated
+     * the page holds the contents the snapshot has to see.  That includes
+     * the batch the snapshot was opened on, since it can hold newer commits;
+     * pages updated by the commits the snapshot sees are found before this
+     * gets checked.
+     *
+     * @return the page holding the preserved contents, or -1 if no batch
+     *         performed since the snapshot was opened updated the page.
+     */
+    public int preserved(int page) {
+        for (Batch batch = parentBatch; batch != null; batch = batch.getNext()) {
+            int rc = batch.preserved(page);
+            if( rc >= 0 ) {
+                return rc;
+            }
+        }
+        return -1;
     }
     
     
-    public <T> T get(PagedAccessor<T> marshaller, int page) {
+    public <T> T get(PagedAccessor<T> marshaller, Paged pageFile, int page) {
         if( parentCommit == null ) {
             return null;
         }
@@ -104,7 +152,7 @@ final class SnapshotTracker {
 
 
         while( true ) {
-            if( batch.isPerformed() ) {
+            if( batch!=parentBatch && batch.isPerformed() ) {
                 break;
             }
             
@@ -120,7 +168,11 @@ final class SnapshotTracker {
                 if( update!=null ) {
                     DeferredUpdate du  = update.deferredUpdate();
                     if (du!=null) {
-                        return du.<T>value();
+                        return du.<T>value(pageFile, page);
+                    }
+                    if( update.shadowed() ) {
+                        // Recovered updates are only around in their encoded form.
+                        return marshaller.load(pageFile, update.shadow());
                     }
                 }
                 commit = commit.getPreviousCircular();
@@ -135,14 +187,14 @@ final class SnapshotTracker {
         return null;
     }
 
-    public long commitCheck(Map<Integer, Update> pageUpdates) {
+    public long commitCheck(Map<Integer, Update> pageUpdates, Ranges freed) {
         long rc= parentBatch.head;
         Batch batch = parentBatch;
         Commit commit = parentCommit==null ? batch.commits.getHead() : parentCommit.getNext();
 
         while( true ) {
             while( commit!=null ) {
-                rc = commit.commitCheck(pageUpdates);
+                rc = commit.commitCheck(pageUpdates, freed);
                 commit = commit.getNext();
             }
 
@@ -0,0 +1,212 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import org.fusesource.hawtdb.api.Allocator;
+import org.fusesource.hawtdb.api.OutOfSpaceException;
+import org.fusesource.hawtdb.internal.util.Ranges;
+
+/**
+ * An allocator which spreads small allocations over a number of arenas so
+ * that concurrent transaction threads do not all contend on the monitor of
+ * the {@link SimpleAllocator}.
+ *
+ * A thread is mapped to an arena by its thread id.  An arena grabs a chunk
+ * of pages from the global allocator when it runs dry and hands its free
+ * pages back to the global allocator in bulk once it caches too many of them.
+ * Pages sitting in an arena are only reserved in memory, the stored free list
+ * of the page file never sees them, so recovery is not affected.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class StripedAllocator implements Allocator {
+
+    /** Number of pages an arena grabs from the global allocator at a time. */
+    static final int CHUNK_SIZE = 64;
+    /** Once an arena caches more free pages than this it returns them to the global allocator. */
+    static final int MAX_ARENA_PAGES = CHUNK_SIZE * 4;
+    /** Allocations and frees bigger than this go straight to the global allocator. */
+    static final int MAX_ARENA_ALLOC = 8;
+
+    private static final class Arena {
+        final Ranges free = new Ranges(true);
+        int pages;
+    }
+
+    private final SimpleAllocator global;
+    private final Arena[] arenas;
+
+    StripedAllocator(SimpleAllocator global, int stripes) {
+        if( stripes < 1 ) {
+            throw new IllegalArgumentException("stripes must be at least 1");
+        }
+        this.global = global;
+        this.arenas = new Arena[stripes];
+        for (int i = 0; i < stripes; i++) {
+            arenas[i] = new Arena();
+        }
+    }
+
+    private Arena arena() {
+        return arenas[(int)(Thread.currentThread().getId() % arenas.length)];
+    }
+
+    /**
+     * @see Allocator#alloc(int)
+     */
+    public int alloc(int count) throws OutOfSpaceException {
+        if( count > MAX_ARENA_ALLOC ) {
+            return global.alloc(count);
+        }
+        Arena arena = arena();
+        synchronized(arena) {
+            int rc = arena.free.bestFit(count);
+            if( rc < 0 ) {
+                int chunk;
+                try {
+                    chunk = global.alloc(CHUNK_SIZE);
+                } catch (OutOfSpaceException e) {
+                    // Not enough contiguous space left for a whole chunk.
+                    return global.alloc(count);
+                }
+                arena.free.add(chunk, CHUNK_SIZE);
+                arena.pages += CHUNK_SIZE;
+                rc = chunk;
+            }
+            arena.free.remove(rc, count);
+            arena.pages -= count;
+            return rc;
+        }
+    }
+
+    /**
+     * Hints are only honored within the pages cached by the thread's arena,
+     * except for a hint of 0 which asks the global allocator for its lowest
+     * free space.
+     *
+     * @see Allocator#alloc(int, int)
+     */
+    public int alloc(int count, int hint) throws OutOfSpaceException {
+        if( count > MAX_ARENA_ALLOC || hint==0 ) {
+            return global.alloc(count, hint);
+        }
+        if( hint >= 0 ) {
+            Arena arena = arena();
+            synchronized(arena) {
+                int rc = arena.free.nearFit(count, hint, SimpleAllocator.LOCALITY_WINDOW);
+                if( rc >= 0 ) {
+                    arena.free.remove(rc, count);
+                    arena.pages -= count;
+                    return rc;
+                }
+            }
+        }
+        return alloc(count);
+    }
+
+    /**
+     * @see Allocator#free(int, int)
+     */
+    public void free(int page, int count) {
+        if( count > MAX_ARENA_ALLOC ) {
+            global.free(page, count);
+            return;
+        }
+        Arena arena = arena();
+        synchronized(arena) {
+            arena.free.add(page, count);
+            arena.pages += count;
+            if( arena.pages > MAX_ARENA_PAGES ) {
+                drain(arena);
+            }
+        }
+    }
+
+    /**
+     * @see Allocator#unfree(int, int)
+     */
+    public void unfree(int page, int count) {
+        for (Arena arena : arenas) {
+            synchronized(arena) {
+                arena.free.remove(page, count);
+                arena.pages = arena.free.size();
+            }
+        }
+        global.unfree(page, count);
+    }
+
+    public void clear() {
+        drainAll();
+        global.clear();
+    }
+
+    public void setFreeRanges(Ranges freeList) {
+        drainAll();
+        global.setFreeRanges(freeList);
+    }
+
+    /**
+     * @return the free ranges of the global allocator.  Pages cached in the
+     *         arenas are not included.
+     */
+    public Ranges getFreeRanges() {
+        return global.getFreeRanges();
+    }
+
+    public int getLimit() {
+        return global.getLimit();
+    }
+
+    public boolean isAllocated(int page) {
+        if( !global.isAllocated(page) ) {
+            return false;
+        }
+        for (Arena arena : arenas) {
+            synchronized(arena) {
+                if( arena.free.contains(page) ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the pages cached in all the arenas to the global allocator.
+     */
+    void drainAll() {
+        for (Arena arena : arenas) {
+            synchronized(arena) {
+                drain(arena);
+            }
+        }
+    }
+
+    private void drain(Arena arena) {
+        if( arena.pages > 0 ) {
+            global.free(arena.free);
+            arena.free.clear();
+            arena.pages = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "{ stripes: "+arenas.length+", global: "+global+" }";
+    }
+
+}
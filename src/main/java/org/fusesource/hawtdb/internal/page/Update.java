@@ -45,17 +45,16 @@ import java.util.ArrayList;
  * that page.  In this case Update is not assigned a shadow page.
  * </p>
  * <p>
- * An update maintains some bit flags to know if the page was a new allocation
- * or if the update was just freeing a previously allocated page, etc.  This data
- * is used to properly maintain the persisted free page list.
+ * Page allocations and frees are not tracked with Update objects.  They are
+ * kept as page ranges next to the updates map so that a whole extent costs a
+ * single entry.  Those ranges are used to properly maintain the persisted
+ * free page list.
  * </p>
  * 
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 class Update implements Externalizable {
     
-    public static final byte PAGE_ALLOCATED   = 0x01 << 0;
-    public static final byte PAGE_FREED       = 0x01 << 1;
     public static final byte PAGE_PUT         = 0x01 << 2;
     public static final byte PAGE_REMOVE      = 0x01 << 3;
 
@@ -76,7 +75,6 @@ class Update implements Externalizable {
     
     public Update(Update update) {
         this.shadow = update.shadow;
-        this.flags = (byte) (update.flags & (PAGE_ALLOCATED|PAGE_FREED));
         this.history = update.history;
     }
 
@@ -94,7 +92,7 @@ class Update implements Externalizable {
     }
 
     public int shadow() {
-        assert !freed() && shadowed() : "The page does not have a shadow set.";
+        assert shadowed() : "The page does not have a shadow set.";
         return shadow;
     }
 
@@ -106,31 +104,6 @@ class Update implements Externalizable {
         return null;
     }
     
-    public Update allocated(boolean value) {
-        if( value ) {
-            flags = (byte) ((flags & ~PAGE_FREED) | PAGE_ALLOCATED);
-        } else {
-            flags = (byte) (flags & ~PAGE_ALLOCATED);
-        }
-        return this;
-    }
-    
-    public Update freed(boolean value) {
-        if( value ) {
-            flags = (byte) ((flags & ~PAGE_ALLOCATED) | PAGE_FREED);
-        } else {
-            flags = (byte) (flags & ~PAGE_FREED);
-        }
-        return this;
-    }
-
-    public boolean freed() {
-        return (flags & PAGE_FREED)!=0 ;
-    }
-    public boolean allocated() {
-        return (flags & PAGE_ALLOCATED)!=0;
-    }
-
     public boolean put() {
         return (flags & PAGE_PUT)!=0 ;
     }
@@ -0,0 +1,285 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fusesource.hawtdb.api.BTreeIndexFactory;
+import org.fusesource.hawtdb.api.Paged.SliceType;
+import org.fusesource.hawtdb.api.Transaction;
+import org.fusesource.hawtdb.api.TxPageFileFactory;
+
+/**
+ * Records the pages held by the read cache of a page file in a manifest
+ * next to it, hottest first, and reads them back in when the file is
+ * opened again.  The pages are read by background threads at a limited
+ * rate, and then the nodes of the registered indexes which are stored at
+ * them get loaded into the read cache.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class WarmUp {
+
+    private final static Log LOG = LogFactory.getLog(WarmUp.class);
+
+    private static final int MAGIC = 0x48574d31;
+
+    private final HawtTxPageFile parent;
+    private final File manifest;
+    private final long period;
+    private final int rate;
+    private final int threads;
+    private final Map<Integer, BTreeIndexFactory<?, ?>> indexes;
+
+    private long lastRecorded = System.currentTimeMillis();
+
+    private volatile boolean stopped;
+    private final ArrayList<Thread> running = new ArrayList<Thread>();
+    private CountDownLatch done = new CountDownLatch(0);
+    /** when the next page may be read, in nanos */
+    private long next;
+
+    WarmUp(HawtTxPageFile parent, TxPageFileFactory factory) {
+        this.parent = parent;
+        this.manifest = new File(factory.getFile().getPath()+".warm");
+        this.period = factory.getWarmUpPeriod();
+        this.rate = factory.getWarmUpRate();
+        this.threads = Math.max(1, factory.getWarmUpThreads());
+        this.indexes = new HashMap<Integer, BTreeIndexFactory<?, ?>>(factory.getWarmUpIndexes());
+    }
+
+    File getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Records the manifest if it was not recorded for a period.
+     */
+    void recordPeriodically() {
+        long now = System.currentTimeMillis();
+        if( now - lastRecorded >= period ) {
+            record();
+        }
+    }
+
+    /**
+     * Records the pages in the read cache, hottest first.  A manifest
+     * which can't be written just leaves the next open cold.
+     */
+    void record() {
+        lastRecorded = System.currentTimeMillis();
+        Map<Integer, Object> map = parent.readCache.map;
+        ArrayList<Integer> pages;
+        synchronized (map) {
+            pages = new ArrayList<Integer>(map.keySet());
+        }
+        // The cache keeps the least recently used page first.
+        Collections.reverse(pages);
+
+        File tmp = new File(manifest.getPath()+".tmp");
+        try {
+            DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                os.writeInt(MAGIC);
+                os.writeInt(pages.size());
+                for (Integer page : pages) {
+                    os.writeInt(page);
+                }
+            } finally {
+                os.close();
+            }
+            manifest.delete();
+            if( !tmp.renameTo(manifest) ) {
+                throw new IOException("Could not rename "+tmp+" to "+manifest);
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not record the warm up manifest: "+e, e);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Removes the manifest, the pages it lists do not hold the same data anymore.
+     */
+    void forget() {
+        manifest.delete();
+    }
+
+    private ArrayList<Integer> load() {
+        ArrayList<Integer> rc = new ArrayList<Integer>();
+        if( !manifest.isFile() ) {
+            return rc;
+        }
+        try {
+            DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)));
+            try {
+                if( is.readInt()!=MAGIC ) {
+                    throw new IOException("Not a warm up manifest");
+                }
+                int size = is.readInt();
+                for (int i = 0; i < size; i++) {
+                    rc.add(is.readInt());
+                }
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not load the warm up manifest: "+e, e);
+            rc.clear();
+        }
+        return rc;
+    }
+
+    /**
+     * Starts reading in the pages of the manifest in the background.
+     */
+    void start() {
+        final ArrayList<Integer> pages = load();
+        if( pages.isEmpty() ) {
+            return;
+        }
+        final HashSet<Integer> hot = new HashSet<Integer>(pages);
+        final AtomicInteger position = new AtomicInteger();
+        final LinkedList<Map.Entry<Integer, BTreeIndexFactory<?, ?>>> pending = new LinkedList<Map.Entry<Integer, BTreeIndexFactory<?, ?>>>(indexes.entrySet());
+
+        done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread("HawtDB Warm Up") {
+                public void run() {
+                    try {
+                        int i;
+                        while( !stopped && (i=position.getAndIncrement()) < pages.size() ) {
+                            throttle();
+                            prefetch(pages.get(i));
+                        }
+                        while( !stopped ) {
+                            Map.Entry<Integer, BTreeIndexFactory<?, ?>> index;
+                            synchronized (pending) {
+                                index = pending.poll();
+                            }
+                            if( index==null ) {
+                                break;
+                            }
+                            warm(index.getKey(), index.getValue(), hot);
+                        }
+                    } catch (InterruptedException e) {
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+            running.add(thread);
+        }
+    }
+
+    /**
+     * Waits for the warm up to finish.
+     *
+     * @return false if it did not finish in time.
+     */
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    /**
+     * Stops the warm up and waits for its threads to exit.
+     */
+    void stop() {
+        stopped = true;
+        for (Thread thread : running) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+            }
+        }
+        running.clear();
+    }
+
+    /**
+     * Waits until the rate allows reading the next page.
+     */
+    private void throttle() throws InterruptedException {
+        if( rate <= 0 ) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if( next < now ) {
+                next = now;
+            }
+            wait = next - now;
+            next += TimeUnit.SECONDS.toNanos(1) / rate;
+        }
+        if( wait > 0 ) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Reads a page so that it does not get faulted in by a lookup.  Pages
+     * which were freed since the manifest was recorded are skipped, and
+     * the allocator lock keeps them from being truncated while they are read.
+     */
+    private void prefetch(int page) {
+        SimpleAllocator allocator = parent.pageFile.allocator();
+        synchronized (allocator) {
+            if( page >= allocator.getLimit() || !allocator.isAllocated(page) ) {
+                return;
+            }
+            ByteBuffer slice = parent.pageView.slice(SliceType.READ, page, 1);
+            try {
+                slice.get(slice.position());
+            } finally {
+                parent.pageView.unslice(slice);
+            }
+        }
+    }
+
+    private void warm(int page, BTreeIndexFactory<?, ?> factory, HashSet<Integer> hot) {
+        Transaction tx = parent.tx();
+        try {
+            factory.warm(tx, page, hot);
+        } catch (RuntimeException e) {
+            LOG.warn("Could not warm up the index at page "+page+": "+e, e);
+        } finally {
+            tx.rollback();
+        }
+    }
+
+}
@@ -16,12 +16,15 @@
  */
 package org.fusesource.hawtdb.internal.util;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.Map.Entry;
 
 import org.fusesource.hawtdb.util.TreeMap;
 import org.fusesource.hawtdb.util.TreeMap.TreeEntry;
@@ -29,14 +32,32 @@ import org.fusesource.hawtdb.util.TreeMap.TreeEntry;
 /**
  * Tracks numeric ranges.  Handy for keeping track of things like allocation or free lists.
  *
+ * The ranges are kept in sorted parallel int arrays holding the start and end
+ * of each range, so tracking a range does not cost any objects.  The arrays are
+ * split into blocks of at most BLOCK_SIZE ranges so that an add or remove only
+ * shifts the entries of one block.  Lookups gallop out from the position of the
+ * previous lookup, which makes runs of nearby adds and removes cheap.
+ *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 final public class Ranges implements Serializable, Iterable<Ranges.Range> {
     private static final long serialVersionUID = 8340484139329633582L;
 
+    /**
+     * The ranges are serialized as a packed byte array.  The "ranges" field
+     * is the tree map that older versions serialized, it is still read so that
+     * existing free lists can be loaded.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("ranges", TreeMap.class),
+        new ObjectStreamField("packed", byte[].class),
+    };
+
+    private static final int BLOCK_SIZE = 512;
+
     final public static class Range implements Serializable {
         private static final long serialVersionUID = -4904483630105365841L;
-        
+
         public int start;
         public int end;
 
@@ -48,7 +69,7 @@ final public class Ranges implements Serializable, Iterable<Ranges.Range> {
         public int size() {
             return end - start;
         }
-                
+
         @Override
         public String toString() {
             if( start == end-1 ) {
@@ -56,7 +77,7 @@ final public class Ranges implements Serializable, Iterable<Ranges.Range> {
             }
             return start+"-"+(end-1);
         }
-        
+
         @Override
         public boolean equals(Object obj) {
             if( obj == this ) {
@@ -66,9 +87,9 @@ final public class Ranges implements Serializable, Iterable<Ranges.Range> {
                 return false;
             }
             Range r = (Range)obj;
-            return start == r.start && end==r.end; 
+            return start == r.start && end==r.end;
         }
-        
+
         @Override
         public int hashCode() {
             return start*77+end;
@@ -79,137 +100,499 @@ final public class Ranges implements Serializable, Iterable<Ranges.Range> {
         }
     }
 
-    private final TreeMap<Integer, Range> ranges = new TreeMap<Integer, Range>();
+    /**
+     * A run of consecutive ranges.  The arrays grow up to BLOCK_SIZE entries,
+     * then the block gets split.
+     */
+    private static final class Block {
+        int[] starts;
+        int[] ends;
+        int size;
+
+        Block(int capacity) {
+            starts = new int[capacity];
+            ends = new int[capacity];
+        }
+
+        void ensureCapacity(int capacity) {
+            if( capacity > starts.length ) {
+                capacity = Math.min(Math.max(starts.length*2, capacity), BLOCK_SIZE);
+                int[] s = new int[capacity];
+                int[] e = new int[capacity];
+                System.arraycopy(starts, 0, s, 0, size);
+                System.arraycopy(ends, 0, e, 0, size);
+                starts = s;
+                ends = e;
+            }
+        }
+    }
+
+    private transient Block[] blocks = new Block[1];
+    private transient int blockCount;
+    private transient int count;
+
+    /**
+     * The position of the range found by the last lookup.  Lookups gallop out
+     * from here, and the add and remove operations work on the range it points at.
+     */
+    private transient int block;
+    private transient int index;
+
+    /**
+     * Optional secondary index of the ranges ordered by size and then by start
+     * position.  Lets {@link #bestFit(int)} find a range in O(log n) time no
+     * matter how fragmented the tracked ranges are.  Only the keys are used.
+     */
+    private transient TreeMap<Long, Object> sizeIndex;
+
+    public Ranges() {
+    }
+
+    /**
+     * @param indexBySize should the ranges also be indexed by size so that
+     *        {@link #bestFit(int)} does not need to scan all the ranges.
+     */
+    public Ranges(boolean indexBySize) {
+        if( indexBySize ) {
+            sizeIndex = new TreeMap<Long, Object>();
+        }
+    }
+
+    private static long sizeKey(int size, int start) {
+        return (((long)size) << 32) | (start & 0xFFFFFFFFL);
+    }
+
+    private void indexRange(int start, int end) {
+        if( sizeIndex!=null ) {
+            sizeIndex.put(sizeKey(end-start, start), null);
+        }
+    }
+
+    private void unindexRange(int start, int end) {
+        if( sizeIndex!=null ) {
+            sizeIndex.remove(sizeKey(end-start, start));
+        }
+    }
+
+    /**
+     * Positions the cursor at the last range which starts at or before the value.
+     *
+     * @return false if there is no such range.
+     */
+    private boolean floor(int value) {
+        long pos = find(value);
+        if( pos < 0 ) {
+            block = 0;
+            index = -1;
+            return false;
+        }
+        block = (int)(pos >>> 32);
+        index = (int)pos;
+        return true;
+    }
+
+    /**
+     * Looks up the last range which starts at or before the value.  The
+     * cursor is only read as a starting point, so this is safe to use from
+     * lookups that do not hold the lock of the writer.
+     *
+     * @return the block and index of the range packed into a long, or -1 if
+     *         there is no such range.
+     */
+    private long find(int value) {
+        int blockCount = this.blockCount;
+        Block[] blocks = this.blocks;
+        if( count==0 || blocks[0].starts[0] > value ) {
+            return -1;
+        }
+
+        // Most lookups land in the same block as the previous one.
+        int block = this.block;
+        int index = this.index;
+        int b = block < blockCount ? block : blockCount-1;
+        if( blocks[b].starts[0] > value || (b+1 < blockCount && blocks[b+1].starts[0] <= value) ) {
+            int lo = 0, hi = blockCount;
+            while( hi-lo > 1 ) {
+                int mid = (lo+hi) >>> 1;
+                if( blocks[mid].starts[0] <= value ) {
+                    lo = mid;
+                } else {
+                    hi = mid;
+                }
+            }
+            b = lo;
+        }
+        Block blk = blocks[b];
+        int[] starts = blk.starts;
+        int size = blk.size;
+
+        // Gallop out from the last position to bracket the result so that
+        // starts[lo] <= value < starts[hi], hi == size standing in for the end.
+        int f = b == block && index > 0 && index < size ? index : 0;
+        int lo, hi;
+        int bound = 1;
+        if( starts[f] <= value ) {
+            lo = f;
+            while( lo+bound < size && starts[lo+bound] <= value ) {
+                lo += bound;
+                bound <<= 1;
+            }
+            hi = Math.min(lo+bound, size);
+        } else {
+            hi = f;
+            while( hi-bound >= 0 && starts[hi-bound] > value ) {
+                hi -= bound;
+                bound <<= 1;
+            }
+            lo = Math.max(hi-bound, 0);
+        }
+        while( hi-lo > 1 ) {
+            int mid = (lo+hi) >>> 1;
+            if( starts[mid] <= value ) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        return (((long)b) << 32) | lo;
+    }
+
+    /**
+     * Inserts a range which does not overlap or touch any of the tracked ranges.
+     */
+    private void insert(int start, int end) {
+        if( count==0 ) {
+            blocks[0] = new Block(2);
+            blockCount = 1;
+        }
+        if( floor(start) ) {
+            index++;
+        } else {
+            index = 0;
+        }
+        Block blk = blocks[block];
+        if( blk.size == BLOCK_SIZE ) {
+            // split the block in half.
+            Block next = new Block(BLOCK_SIZE);
+            int half = BLOCK_SIZE/2;
+            System.arraycopy(blk.starts, half, next.starts, 0, BLOCK_SIZE-half);
+            System.arraycopy(blk.ends, half, next.ends, 0, BLOCK_SIZE-half);
+            next.size = BLOCK_SIZE-half;
+            blk.size = half;
+            if( blockCount == blocks.length ) {
+                Block[] b = new Block[blocks.length*2];
+                System.arraycopy(blocks, 0, b, 0, blockCount);
+                blocks = b;
+            }
+            System.arraycopy(blocks, block+1, blocks, block+2, blockCount-(block+1));
+            blocks[block+1] = next;
+            blockCount++;
+            if( index > half ) {
+                block++;
+                index -= half;
+                blk = next;
+            }
+        }
+        blk.ensureCapacity(blk.size+1);
+        System.arraycopy(blk.starts, index, blk.starts, index+1, blk.size-index);
+        System.arraycopy(blk.ends, index, blk.ends, index+1, blk.size-index);
+        blk.starts[index] = start;
+        blk.ends[index] = end;
+        blk.size++;
+        count++;
+        indexRange(start, end);
+    }
+
+    /**
+     * Adds a range after all the tracked ranges.
+     */
+    private void append(int start, int end) {
+        Block blk = blockCount==0 ? null : blocks[blockCount-1];
+        if( blk==null || blk.size == BLOCK_SIZE ) {
+            blk = new Block(blk==null ? 2 : BLOCK_SIZE);
+            if( blockCount == blocks.length ) {
+                Block[] b = new Block[blocks.length*2];
+                System.arraycopy(blocks, 0, b, 0, blockCount);
+                blocks = b;
+            }
+            blocks[blockCount++] = blk;
+        }
+        blk.ensureCapacity(blk.size+1);
+        blk.starts[blk.size] = start;
+        blk.ends[blk.size] = end;
+        blk.size++;
+        count++;
+        indexRange(start, end);
+    }
+
+    /**
+     * Deletes the range at the cursor position.
+     */
+    private void delete() {
+        Block blk = blocks[block];
+        unindexRange(blk.starts[index], blk.ends[index]);
+        blk.size--;
+        count--;
+        System.arraycopy(blk.starts, index+1, blk.starts, index, blk.size-index);
+        System.arraycopy(blk.ends, index+1, blk.ends, index, blk.size-index);
+        if( blk.size==0 && blockCount > 1 ) {
+            blockCount--;
+            System.arraycopy(blocks, block+1, blocks, block, blockCount-block);
+            blocks[blockCount] = null;
+            block = 0;
+        } else if( count==0 ) {
+            blockCount = 0;
+        }
+        index = 0;
+    }
 
     public void add(int start) {
         add(start, 1);
     }
-    
+
     public void add(int start, int length) {
         int end = start+length;
-        
-        // look for entries starting from the end of the add range.
-        TreeEntry<Integer, Range> entry = ranges.floorEntry(end);
-        if( entry!=null ) {
-            while( entry!=null) {
-                Range range = entry.getValue();
-                TreeEntry<Integer, Range> curr = entry;
-                entry = entry.previous();
-                
-                // If tail of the range is not in the add range.
-                if( range.end < start ) {
-                    // we are done..
-                    break;
-                }
-                
-                // if the end of the range is not in the add range.
-                if( end < range.end  ) {
-                    // extend the length out..
-                    end = range.end;
-                }
 
-                if( start < range.start ) {
-                    // if the front of the range is in the add range.
-                    // just remove it..
-                    ranges.removeEntry(curr);
-                } else {
-                    // The front is not in the add range...
-                    // Then resize.. and we are done
-                    range.end = end;
-                    return;
+        // merge the ranges that overlap or touch the add range into it,
+        // working back from the end of the add range.
+        while( floor(end) && blocks[block].ends[index] >= start ) {
+            Block blk = blocks[block];
+            int s = blk.starts[index];
+            int e = blk.ends[index];
+            if( s <= start ) {
+                // The front is not in the add range...
+                // Then resize.. and we are done
+                if( end > e ) {
+                    unindexRange(s, e);
+                    blk.ends[index] = end;
+                    indexRange(s, end);
                 }
+                return;
             }
+            end = Math.max(end, e);
+            delete();
         }
-        
+
         // put the new range in.
-        ranges.put(start, range(start, end));
-    }    
-    
+        insert(start, end);
+    }
+
     public void remove(int start) {
         remove(start, 1);
     }
-    
+
     public void remove(int start, int length) {
         int end = start+length;
-        
-        // look for entries starting from the end of the remove range.
-        TreeEntry<Integer, Range> entry = ranges.lowerEntry(end);
-        while( entry!=null) {
-            Range range = entry.getValue();
-            TreeEntry<Integer, Range> curr = entry;
-            entry = entry.previous();
-            
-            // If tail of the range is not in the remove range.
-            if( range.end <= start ) {
-                // we are done..
-                break;
-            }
-            
-            // if the end if the range is not in the remove range.
-            if( end < range.end  ) {
-                // Then we need to add back the tail part.
-                ranges.put(end, range(end, range.end));
-            }
 
-            if( start <= range.start ) {
-                // if the front of the range is in the remove range.
-                // just remove it..
-                ranges.removeEntry(curr);
-                
-            } else {
+        // look for ranges starting from the end of the remove range.
+        while( floor(end-1) && blocks[block].ends[index] > start ) {
+            Block blk = blocks[block];
+            int s = blk.starts[index];
+            int e = blk.ends[index];
+            if( s < start ) {
                 // The front is not in the remove range...
                 // Then resize.. and we are done
-                range.end = start;
-                break;
+                unindexRange(s, e);
+                blk.ends[index] = start;
+                indexRange(s, start);
+                if( end < e ) {
+                    insert(end, e);
+                }
+                return;
+            }
+            if( end < e ) {
+                // keep the tail part.
+                unindexRange(s, e);
+                blk.starts[index] = end;
+                indexRange(end, e);
+            } else {
+                delete();
             }
         }
     }
 
     public boolean contains(int value) {
-        TreeEntry<Integer, Range> entry = ranges.floorEntry(value);
-        if( entry == null ) {
-            return false;
+        long pos = find(value);
+        return pos >= 0 && value < blocks[(int)(pos >>> 32)].ends[(int)pos];
+    }
+
+
+    /**
+     * @return copies of the parts of the tracked ranges which fall within
+     *         the given range, in order.
+     */
+    public ArrayList<Range> intersection(int start, int length) {
+        ArrayList<Range> rc = new ArrayList<Range>(2);
+        int end = start+length;
+        long pos = find(start);
+        int b = 0, i = 0;
+        if( pos >= 0 ) {
+            b = (int)(pos >>> 32);
+            i = (int)pos;
+        }
+        for (; b < blockCount; b++, i=0) {
+            Block blk = blocks[b];
+            for (; i < blk.size; i++) {
+                if( blk.starts[i] >= end ) {
+                    return rc;
+                }
+                if( blk.ends[i] > start ) {
+                    rc.add(range(Math.max(start, blk.starts[i]), Math.min(end, blk.ends[i])));
+                }
+            }
         }
-        return entry.getValue().contains(value);
+        return rc;
     }
 
-    
     public void clear() {
-        ranges.clear();
+        blocks = new Block[1];
+        blockCount = 0;
+        count = 0;
+        block = 0;
+        index = 0;
+        if( sizeIndex!=null ) {
+            sizeIndex.clear();
+        }
     }
 
     public void copy(Ranges source) {
-        ranges.clear();
-        for (Entry<Integer, Range> entry : source.ranges.entrySet()) {
-            Range value = entry.getValue();
-            ranges.put(entry.getKey(), range(value.start, value.end));
+        clear();
+        for (int b = 0; b < source.blockCount; b++) {
+            Block blk = source.blocks[b];
+            for (int i = 0; i < blk.size; i++) {
+                append(blk.starts[i], blk.ends[i]);
+            }
         }
     }
-    
+
+    /**
+     * Finds the smallest range that can hold the requested number of values.  Ties
+     * are broken by picking the lowest start position.  Only ranges indexed by size
+     * can do this in O(log n) time, otherwise it falls back to a first fit scan.
+     *
+     * @param size
+     * @return the start of the range found or -1 if no range is big enough.
+     */
+    public int bestFit(int size) {
+        if( sizeIndex!=null ) {
+            TreeEntry<Long, Object> entry = sizeIndex.ceilingEntry(sizeKey(size, 0));
+            return entry==null ? -1 : (int)entry.getKey().longValue();
+        }
+        for (int b = 0; b < blockCount; b++) {
+            Block blk = blocks[b];
+            for (int i = 0; i < blk.size; i++) {
+                if( blk.ends[i]-blk.starts[i] >= size ) {
+                    return blk.starts[i];
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds space for the requested number of values as close as possible to
+     * the hint.  Space starting right at the hint wins, then the closest space
+     * after or before it.
+     *
+     * @param size
+     * @param hint the preferred start position.
+     * @param window how far away from the hint to look.
+     * @return the start of the space found or -1 if there is none within the window.
+     */
+    public int nearFit(int size, int hint, int window) {
+        int rc = -1;
+        long distance = Long.MAX_VALUE;
+
+        // look forward from the range holding or preceding the hint.
+        boolean preceded = floor(hint);
+        int b = preceded ? block : 0;
+        int i = preceded ? index : 0;
+        for (; b < blockCount; b++, i = 0) {
+            Block blk = blocks[b];
+            for (; i < blk.size; i++) {
+                int start = Math.max(blk.starts[i], hint);
+                if( start-hint > window ) {
+                    b = blockCount;
+                    break;
+                }
+                if( blk.ends[i]-start >= size ) {
+                    rc = start;
+                    distance = start-hint;
+                    b = blockCount;
+                    break;
+                }
+            }
+        }
+        if( distance == 0 || !preceded ) {
+            return rc;
+        }
+
+        // then look backward, placing the space at the tail end of a range.
+        for (b = block, i = index; b >= 0; b--) {
+            Block blk = blocks[b];
+            if( i < 0 ) {
+                i = blk.size-1;
+            }
+            for (; i >= 0; i--) {
+                int end = Math.min(blk.ends[i], hint);
+                if( (long)hint-end+size >= distance || hint-end > window ) {
+                    return rc;
+                }
+                if( end-blk.starts[i] >= size ) {
+                    return end-size;
+                }
+            }
+        }
+        return rc;
+    }
+
+    /**
+     * @return a copy of the last range or null if there are no ranges.
+     */
+    public Range last() {
+        if( count==0 ) {
+            return null;
+        }
+        Block blk = blocks[blockCount-1];
+        return range(blk.starts[blk.size-1], blk.ends[blk.size-1]);
+    }
+
     public int size() {
         int rc=0;
-        TreeEntry<Integer, Range> entry = ranges.firstEntry();
-        while(entry!=null) {
-            rc += entry.getValue().size();
-            entry = entry.next();
+        for (int b = 0; b < blockCount; b++) {
+            Block blk = blocks[b];
+            for (int i = 0; i < blk.size; i++) {
+                rc += blk.ends[i]-blk.starts[i];
+            }
         }
         return rc;
     }
 
-    
+
+    /**
+     * @return the number of ranges, as opposed to {@link #size()} which counts the values.
+     */
+    public int rangeCount() {
+        return count;
+    }
+
     static public Range range(int start, int end) {
         return new Range(start, end);
     }
-    
+
     public ArrayList<Range> toArrayList() {
-        return new ArrayList<Range>(ranges.values());
+        ArrayList<Range> rc = new ArrayList<Range>(count);
+        for (Range r : this) {
+            rc.add(r);
+        }
+        return rc;
     }
-    
+
     @Override
     public String toString() {
-        StringBuilder sb  = new StringBuilder(20+(10*ranges.size()));
+        StringBuilder sb  = new StringBuilder(20+(10*count));
         sb.append("[ ");
-        
+
         boolean first=true;
         for (Range r : this) {
             if( !first ) {
@@ -218,20 +601,47 @@ final public class Ranges implements Serializable, Iterable<Ranges.Range> {
             first=false;
             sb.append(r);
         }
-        
+
         sb.append(" ]");
         return sb.toString();
     }
-    
+
+    /**
+     * The returned ranges are copies, changing them does not affect this object.
+     */
     public Iterator<Range> iterator() {
-        return ranges.values().iterator();
+        return new Iterator<Range>() {
+            int b;
+            int i;
+
+            public boolean hasNext() {
+                return b < blockCount && i < blocks[b].size;
+            }
+
+            public Range next() {
+                if( !hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                Block blk = blocks[b];
+                Range rc = range(blk.starts[i], blk.ends[i]);
+                if( ++i == blk.size ) {
+                    b++;
+                    i = 0;
+                }
+                return rc;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     public Iterator<Range> iteratorNotInRange(final Range mask) {
         
         return new Iterator<Range>() {
             
-            Iterator<Range> iter = ranges.values().iterator();
+            Iterator<Range> iter = iterator();
             Range last = new Range(mask.start, mask.start);
             Range next = null;
 
@@ -343,7 +753,80 @@ final public class Ranges implements Serializable, Iterable<Ranges.Range> {
     }
 
     public boolean isEmpty() {
-        return ranges.isEmpty();
+        return count==0;
     }
-    
+
+    /**
+     * Packs the ranges as variable length encoded gaps and sizes, which for
+     * page lists is typically just a couple of bytes per range.
+     */
+    private byte[] pack() {
+        byte[] rc = new byte[5 + (count*10)];
+        int pos = writeVarInt(rc, 0, count);
+        int last = 0;
+        for (int b = 0; b < blockCount; b++) {
+            Block blk = blocks[b];
+            for (int i = 0; i < blk.size; i++) {
+                pos = writeVarInt(rc, pos, blk.starts[i]-last);
+                pos = writeVarInt(rc, pos, blk.ends[i]-blk.starts[i]);
+                last = blk.ends[i];
+            }
+        }
+        byte[] trimmed = new byte[pos];
+        System.arraycopy(rc, 0, trimmed, 0, pos);
+        return trimmed;
+    }
+
+    private void unpack(byte[] data) {
+        int[] pos = new int[1];
+        int size = readVarInt(data, pos);
+        int last = 0;
+        for (int i = 0; i < size; i++) {
+            int start = last + readVarInt(data, pos);
+            last = start + readVarInt(data, pos);
+            append(start, last);
+        }
+    }
+
+    private static int writeVarInt(byte[] data, int pos, int value) {
+        while( (value & ~0x7F) != 0 ) {
+            data[pos++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[pos++] = (byte)value;
+        return pos;
+    }
+
+    private static int readVarInt(byte[] data, int[] pos) {
+        int rc = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[pos[0]++];
+            rc |= (b & 0x7F) << shift;
+            shift += 7;
+        } while( (b & 0x80) != 0 );
+        return rc;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("packed", pack());
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        blocks = new Block[1];
+        TreeMap<Integer, Range> old = (TreeMap<Integer, Range>) fields.get("ranges", null);
+        if( old!=null ) {
+            for (Range range : old.values()) {
+                append(range.start, range.end);
+            }
+        } else {
+            unpack((byte[]) fields.get("packed", null));
+        }
+    }
+
 }
@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.api;
+
+import org.fusesource.hawtbuf.codec.LongCodec;
+import org.fusesource.hawtbuf.codec.StringCodec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class CompactorTest {
+
+    private static final BTreeIndexFactory<Long,String> FACTORY = new BTreeIndexFactory<Long,String>();
+    static {
+        FACTORY.setKeyCodec(LongCodec.INSTANCE);
+        FACTORY.setValueCodec(StringCodec.INSTANCE);
+    }
+
+    private TxPageFileFactory pff;
+    private TxPageFile pf;
+
+    @Before
+    public void setUp() throws Exception {
+        pff = new TxPageFileFactory();
+        pff.setFile(new File("target/test-data/" + getClass().getName() + ".db"));
+        pff.setPageSize((short)512);
+        pff.setMappingSegementSize(1024*16);
+        pff.getFile().delete();
+        pff.open();
+        pf = pff.getTxPageFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pff.close();
+    }
+
+    @Test
+    public void compactWhileInUse() throws Exception {
+        final int COUNT = 20000;
+        final int KEPT = 1000;
+        Transaction tx = pf.tx();
+        SortedIndex<Long, String> index = FACTORY.create(tx);
+        final int page = index.getIndexLocation();
+        for (long i = 0; i < COUNT; i++) {
+            index.put(i, value(i, 0));
+        }
+        tx.commit();
+        // The keys left over were stored last, at the end of the file.
+        for (long i = 0; i < COUNT-KEPT; i++) {
+            index.remove(i);
+        }
+        tx.commit();
+        long before = pf.truncate();
+
+        // Writers keep updating the index while it gets compacted.  Each one
+        // updates its own share of the keys so that they don't conflict.
+        final int WRITERS = 4;
+        final int SHARE = KEPT / WRITERS;
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final int[] updates = new int[KEPT];
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < WRITERS; t++) {
+            final int first = t * SHARE;
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        int i = 0;
+                        while( !done.get() ) {
+                            int k = first + (i % SHARE);
+                            long key = COUNT - KEPT + k;
+                            Transaction tx = pf.tx();
+                            try {
+                                SortedIndex<Long, String> index = FACTORY.open(tx, page);
+                                assertEquals(value(key, updates[k]), index.get(key));
+                                index.put(key, value(key, updates[k] + 1));
+                                tx.commit();
+                                updates[k]++;
+                                i++;
+                            } catch (OptimisticUpdateException e) {
+                                tx.rollback();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+
+        Compactor compactor = new Compactor(pf);
+        compactor.setPagesPerTransaction(10);
+        compactor.add(FACTORY, page);
+        int moved;
+        try {
+            moved = compactor.compact();
+        } finally {
+            done.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        assertNull(failure.get());
+        assertTrue("pages moved", moved > 0);
+        long after = pf.truncate();
+        assertTrue("file shrunk from "+before+" to "+after, after < before);
+
+        tx = pf.tx();
+        index = FACTORY.open(tx, page);
+        for (int k = 0; k < KEPT; k++) {
+            long key = COUNT - KEPT + k;
+            assertEquals(value(key, updates[k]), index.get(key));
+        }
+        assertEquals(KEPT, index.size());
+        tx.commit();
+    }
+
+    private static String value(long key, int update) {
+        return update == 0 ? "value " + key : "update " + update + " of " + key;
+    }
+}
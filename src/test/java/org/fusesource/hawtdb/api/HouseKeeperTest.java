@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.api;
+
+import org.fusesource.hawtbuf.codec.LongCodec;
+import org.fusesource.hawtbuf.codec.StringCodec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class HouseKeeperTest {
+
+    protected static final BTreeIndexFactory<Long,String> FACTORY = new BTreeIndexFactory<Long,String>();
+    static {
+        FACTORY.setKeyCodec(LongCodec.INSTANCE);
+        FACTORY.setValueCodec(StringCodec.INSTANCE);
+        FACTORY.setDeferredEncoding(true);
+    }
+
+    private HouseKeeper houseKeeper;
+
+    @Before
+    public void setUp() throws Exception {
+        houseKeeper = new HouseKeeper(2);
+        houseKeeper.setCoalesceSyncs(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        houseKeeper.shutdown();
+    }
+
+    private TxPageFileFactory createFactory(int i) {
+        TxPageFileFactory rc = new TxPageFileFactory();
+        rc.setFile(new File("target/test-data/" + getClass().getName() + "-" + i + ".db"));
+        rc.setHouseKeeper(houseKeeper);
+        return rc;
+    }
+
+    @Test
+    public void storesShareTheHouseKeeper() throws Exception {
+        ArrayList<TxPageFileFactory> factories = new ArrayList<TxPageFileFactory>();
+        for (int i = 0; i < 10; i++) {
+            TxPageFileFactory factory = createFactory(i);
+            factory.getFile().delete();
+            factory.open();
+            factories.add(factory);
+        }
+
+        ArrayList<Future<Void>> commits = new ArrayList<Future<Void>>();
+        for (TxPageFileFactory factory : factories) {
+            TxPageFile pf = factory.getTxPageFile();
+            Transaction tx = pf.tx();
+            SortedIndex<Long, String> index = FACTORY.create(tx);
+            for (long i = 0; i < 100; i++) {
+                index.put(i, "value " + i);
+            }
+            commits.add(tx.commitAsync());
+            pf.flush(new Runnable() {
+                public void run() {
+                }
+            });
+        }
+        for (Future<Void> commit : commits) {
+            commit.get(30, TimeUnit.SECONDS);
+        }
+
+        for (TxPageFileFactory factory : factories) {
+            factory.close();
+            factory.open();
+            Transaction tx = factory.getTxPageFile().tx();
+            SortedIndex<Long, String> index = FACTORY.open(tx, 0);
+            assertEquals("value 99", index.get(99L));
+            tx.commit();
+            factory.close();
+        }
+    }
+
+    @Test
+    public void queuesTakeTurns() throws Exception {
+        HouseKeeper single = new HouseKeeper(1);
+        try {
+            final StringBuffer order = new StringBuffer();
+            final CountDownLatch done = new CountDownLatch(6);
+            // Keep the only thread busy until all the tasks are queued.
+            final CountDownLatch queued = new CountDownLatch(1);
+            single.createQueue().execute(new Runnable() {
+                public void run() {
+                    try {
+                        queued.await();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            });
+            Executor a = single.createQueue();
+            Executor b = single.createQueue();
+            for (int i = 0; i < 3; i++) {
+                a.execute(new Runnable() {
+                    public void run() {
+                        order.append("a");
+                        done.countDown();
+                    }
+                });
+            }
+            for (int i = 0; i < 3; i++) {
+                b.execute(new Runnable() {
+                    public void run() {
+                        order.append("b");
+                        done.countDown();
+                    }
+                });
+            }
+            queued.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals("ababab", order.toString());
+        } finally {
+            single.shutdown();
+        }
+    }
+
+    @Test
+    public void syncsAreCoalesced() throws Exception {
+        final File file = new File("target/test-data/sync.db");
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final AtomicInteger syncs = new AtomicInteger();
+        final Runnable sync = new Runnable() {
+            public void run() {
+                if( running.incrementAndGet() > 1 ) {
+                    overlaps.incrementAndGet();
+                }
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                }
+                syncs.incrementAndGet();
+                running.decrementAndGet();
+            }
+        };
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 10; j++) {
+                        houseKeeper.sync(file, sync);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // Every sync ran, one at a time.
+        assertEquals(80, syncs.get());
+        assertEquals(0, overlaps.get());
+    }
+}
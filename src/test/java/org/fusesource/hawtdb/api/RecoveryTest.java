@@ -33,8 +33,8 @@ import static org.junit.Assert.assertEquals;
  */
 public class RecoveryTest {
 
-    private TxPageFileFactory pff;
-    private TxPageFile pf;
+    protected TxPageFileFactory pff;
+    protected TxPageFile pf;
 
 
     protected TxPageFileFactory createConcurrentPageFileFactory() {
@@ -63,7 +63,7 @@ public class RecoveryTest {
         pf = pff.getTxPageFile();
     }
 
-    private static final BTreeIndexFactory<Long,String> ROOT_FACTORY = new BTreeIndexFactory<Long,String>();
+    protected static final BTreeIndexFactory<Long,String> ROOT_FACTORY = new BTreeIndexFactory<Long,String>();
     static {
         ROOT_FACTORY.setKeyCodec(LongCodec.INSTANCE);
         ROOT_FACTORY.setValueCodec(StringCodec.INSTANCE);
@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.api;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the recovery tests with the operations of the root index logged.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class RedoRecoveryTest extends RecoveryTest {
+
+    @Override
+    protected TxPageFileFactory createConcurrentPageFileFactory() {
+        TxPageFileFactory rc = super.createConcurrentPageFileFactory();
+        rc.addRedoIndex(0, ROOT_FACTORY);
+        return rc;
+    }
+
+    @Test
+    public void replaysLoggedOperations() {
+        Transaction tx = pf.tx();
+        SortedIndex<Long, String> root = ROOT_FACTORY.create(tx);
+        assertEquals(0, root.getIndexLocation());
+        tx.commit();
+        pf.flush();
+
+        for (long i = 0; i < 100; i++) {
+            tx = pf.tx();
+            root = ROOT_FACTORY.open(tx, 0);
+            root.put(i, "value "+i);
+            if( i%10 == 9 ) {
+                root.remove(i-5);
+            }
+            tx.commit();
+            if( i%20 == 19 ) {
+                pf.flush();
+            }
+        }
+
+        // Open the file while the nodes are only in memory, like after a crash.
+        TxPageFileFactory crashed = createConcurrentPageFileFactory();
+        crashed.open();
+        try {
+            tx = crashed.getTxPageFile().tx();
+            root = ROOT_FACTORY.open(tx, 0);
+            assertEquals(90, root.size());
+            assertEquals("value 3", root.get(3L));
+            assertNull(root.get(4L));
+            assertEquals("value 99", root.get(99L));
+            tx.commit();
+        } finally {
+            crashed.close();
+        }
+    }
+
+    @Test
+    public void replaysLoggedBatches() {
+        Transaction tx = pf.tx();
+        ROOT_FACTORY.create(tx);
+        tx.commit();
+        pf.flush();
+
+        tx = pf.tx();
+        SortedIndex<Long, String> root = ROOT_FACTORY.open(tx, 0);
+        HashMap<Long, String> batch = new HashMap<Long, String>();
+        for (long i = 0; i < 100; i++) {
+            batch.put(i, "value "+i);
+        }
+        root.putAll(batch);
+        tx.commit();
+        pf.flush();
+
+        tx = pf.tx();
+        root = ROOT_FACTORY.open(tx, 0);
+        ArrayList<Long> keys = new ArrayList<Long>();
+        for (long i = 0; i < 100; i += 10) {
+            keys.add(i);
+        }
+        root.removeAll(keys);
+        root.removeRange(50L, 70L);
+        tx.commit();
+        pf.flush();
+
+        TxPageFileFactory crashed = createConcurrentPageFileFactory();
+        crashed.open();
+        try {
+            tx = crashed.getTxPageFile().tx();
+            root = ROOT_FACTORY.open(tx, 0);
+            assertEquals(72, root.size());
+            assertNull(root.get(10L));
+            assertEquals("value 11", root.get(11L));
+            assertNull(root.get(51L));
+            assertEquals("value 71", root.get(71L));
+            tx.commit();
+        } finally {
+            crashed.close();
+        }
+    }
+
+    @Test
+    public void indexMustBeRegisteredToReplay() {
+        Transaction tx = pf.tx();
+        ROOT_FACTORY.create(tx);
+        tx.commit();
+        pf.flush();
+
+        tx = pf.tx();
+        ROOT_FACTORY.open(tx, 0).put(1L, "value");
+        tx.commit();
+        pf.flush();
+
+        TxPageFileFactory crashed = createConcurrentPageFileFactory();
+        crashed.getRedoIndexes().clear();
+        try {
+            crashed.open();
+            fail("expected PagingException");
+        } catch (PagingException expected) {
+        }
+    }
+
+}
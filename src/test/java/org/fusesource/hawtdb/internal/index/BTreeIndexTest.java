@@ -17,19 +17,32 @@
 package org.fusesource.hawtdb.internal.index;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.PrintWriter;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
 
+import org.fusesource.hawtbuf.codec.IntegerCodec;
 import org.fusesource.hawtbuf.codec.LongCodec;
 import org.fusesource.hawtbuf.codec.StringCodec;
 import org.fusesource.hawtdb.api.BTreeIndexFactory;
 import org.fusesource.hawtdb.api.Index;
 import org.fusesource.hawtdb.api.IndexVisitor;
+import org.fusesource.hawtdb.api.Predicate;
+import org.fusesource.hawtdb.api.Predicates;
+import org.fusesource.hawtdb.api.SortedIndex;
+import org.fusesource.hawtdb.api.Transaction;
 import org.fusesource.hawtbuf.Buffer;
 import org.junit.Before;
 import org.junit.Test;
@@ -91,6 +104,388 @@ public class BTreeIndexTest extends IndexTestSupport {
         }
     }
 
+    @Test
+    public void nodesChangedInATransactionStayPrivate() throws Exception {
+        createPageFileAndIndex((short) 512);
+        int page = index.getIndexLocation();
+        for (int i = 0; i < 200; i += 2) {
+            index.put(key(i), (long)i);
+        }
+        tx.commit();
+
+        Transaction writer = tx;
+        tx = pf.tx();
+        Index<String, Long> committed = createIndex(page);
+        assertEquals(100, committed.size());
+
+        // Fill up the nodes and overwrite their values in one transaction.
+        for (int i = 1; i < 200; i += 2) {
+            index.put(key(i), (long)i);
+        }
+        for (int i = 0; i < 200; i += 2) {
+            index.put(key(i), (long)-i);
+        }
+        assertEquals(200, index.size());
+        assertEquals(Long.valueOf(-10), index.get(key(10)));
+        assertEquals(Long.valueOf(11), index.get(key(11)));
+        assertEquals(100, committed.size());
+        assertEquals(Long.valueOf(10), committed.get(key(10)));
+        assertEquals(null, committed.get(key(11)));
+        writer.commit();
+        tx.commit();
+
+        // Once committed, the nodes get copied again before they change.
+        Index<String, Long> published = createIndex(page);
+        assertEquals(Long.valueOf(-10), published.get(key(10)));
+        for (int i = 0; i < 200; i += 4) {
+            index.remove(key(i));
+        }
+        index.put(key(11), 0L);
+        assertEquals(200, published.size());
+        assertEquals(Long.valueOf(-8), published.get(key(8)));
+        assertEquals(Long.valueOf(11), published.get(key(11)));
+        writer.commit();
+        tx.commit();
+        tx = writer;
+        assertEquals(150, index.size());
+        assertEquals(Long.valueOf(0), index.get(key(11)));
+    }
+
+    @Test
+    public void changeWhileIterating() throws Exception {
+        createPageFileAndIndex((short) 512);
+        SortedIndex<String, Long> index = (SortedIndex<String, Long>) this.index;
+        TreeMap<String, Long> expected = new TreeMap<String, Long>();
+        for (int i = 0; i < 400; i += 2) {
+            index.put(key(i), (long)i);
+            expected.put(key(i), (long)i);
+        }
+        Predicate<String> all = new Predicate<String>() {
+            public boolean isInterestedInKeysBetween(String first, String second, Comparator comparator) {
+                return true;
+            }
+            public boolean isInterestedInKey(String key, Comparator comparator) {
+                return true;
+            }
+        };
+
+        // The nodes are still private to the transaction.
+        checkChangeWhileIterating(index, expected, index.iterator(), false);
+        checkChangeWhileIterating(index, expected, index.descendingIterator(), true);
+        checkChangeWhileIterating(index, expected, index.iterator(Predicates.lt(key(1000))), false);
+        checkChangeWhileIterating(index, expected, index.iterator(all), false);
+        checkChangeWhileIterating(index, expected, index.iterator(all, true), true);
+        tx.commit();
+        checkChangeWhileIterating(index, expected, index.iterator(), false);
+        checkChangeWhileIterating(index, expected, index.descendingIterator(), true);
+        tx.commit();
+    }
+
+    /**
+     * Removes every other entry the iterator returns and puts the odd key
+     * after the even ones.  The iterator still has to return each key the index had when it
+     * was created, once and in order.
+     */
+    private void checkChangeWhileIterating(SortedIndex<String, Long> index, TreeMap<String, Long> expected, Iterator<Map.Entry<String, Long>> iterator, boolean descending) {
+        ArrayList<String> keys = new ArrayList<String>(expected.keySet());
+        ArrayList<String> seen = new ArrayList<String>();
+        int n = 0;
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if( !seen.isEmpty() ) {
+                int order = entry.getKey().compareTo(seen.get(seen.size()-1));
+                assertTrue(entry.getKey(), descending ? order < 0 : order > 0);
+            }
+            seen.add(entry.getKey());
+            long value = entry.getValue();
+            if( n++ % 2 == 0 ) {
+                index.remove(entry.getKey());
+                expected.remove(entry.getKey());
+            }
+            if( value % 2 == 0 && !expected.containsKey(key((int)value+1)) ) {
+                index.put(key((int)value+1), value+1);
+                expected.put(key((int)value+1), value+1);
+            }
+        }
+        assertTrue(seen.containsAll(keys));
+        assertEquals(expected.size(), index.size());
+        ArrayList<String> actual = new ArrayList<String>();
+        for (Map.Entry<String, Long> entry : index) {
+            actual.add(entry.getKey());
+        }
+        assertEquals(new ArrayList<String>(expected.keySet()), actual);
+    }
+
+    @Test
+    public void load() throws Exception {
+        createPageFileAndIndex((short) 512);
+        BTreeIndex<String, Long> index = ((BTreeIndex<String, Long>)this.index);
+        final int count = 5000;
+        Iterator<Map.Entry<String, Long>> entries = new Iterator<Map.Entry<String, Long>>() {
+            int i;
+            public boolean hasNext() {
+                return i < count;
+            }
+            public Map.Entry<String, Long> next() {
+                Map.Entry<String, Long> rc = new MapEntry<String, Long>(key(i), (long)i);
+                i += 1;
+                return rc;
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        assertEquals(count, index.load(entries, 1.0f, 10));
+        tx.commit();
+        assertEquals(index.getMinLeafDepth(), index.getMaxLeafDepth());
+
+        reloadAll();
+        index = ((BTreeIndex<String, Long>)this.index);
+        assertEquals(count, index.size());
+        int i = 0;
+        for (Map.Entry<String, Long> entry : index) {
+            assertEquals(key(i), entry.getKey());
+            assertEquals(Long.valueOf(i), entry.getValue());
+            i++;
+        }
+        assertEquals(count, i);
+        checkRetrieve(count);
+
+        // The loaded tree takes updates like any other.
+        doRemove(count/2);
+        for (i = count/2; i < count; i += 3) {
+            index.put(key(i), (long)-i);
+        }
+        index.put(key(count), (long)count);
+        tx.commit();
+        assertEquals(count - count/2 + 1, index.size());
+        assertEquals(Long.valueOf(-(count-1)), index.get(key(count-1)));
+        assertEquals(Long.valueOf(count), index.getLast().getValue());
+    }
+
+    @Test
+    public void loadRejectsUnsortedEntries() throws Exception {
+        createPageFileAndIndex((short) 512);
+        BTreeIndex<String, Long> index = ((BTreeIndex<String, Long>)this.index);
+        ArrayList<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>();
+        for (int i = 0; i < 1000; i++) {
+            entries.add(new MapEntry<String, Long>(key(i), (long)i));
+        }
+        entries.add(new MapEntry<String, Long>(key(10), 10L));
+        tx.commit();
+        int pages = pf.getPagesInUse();
+        try {
+            index.load(entries.iterator(), 1.0f, 2);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        // The committed chunks were freed again, together with the index.
+        assertEquals(pages-1, pf.getPagesInUse());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void descendingIteration() throws Exception {
+        createPageFileAndIndex((short) 256);
+        BTreeIndex<String, Long> index = ((BTreeIndex<String, Long>)this.index);
+        final int count = 2000;
+        for (int i = 0; i < count; i++) {
+            index.put(key(i*2), (long)i*2);
+        }
+        tx.commit();
+        assertTrue(index.getMaxLeafDepth() > 2);
+
+        int i = count;
+        for (Iterator<Map.Entry<String, Long>> iterator = index.descendingIterator(); iterator.hasNext(); ) {
+            assertEquals(key(--i*2), iterator.next().getKey());
+        }
+        assertEquals(0, i);
+
+        // Starts at the key, or the one in front of it.
+        assertEquals(key(1000), index.iterator(key(1000), true).next().getKey());
+        Iterator<Map.Entry<String, Long>> iterator = index.iterator(key(1001), true);
+        for (i = 1000; i >= 0; i -= 2) {
+            assertEquals(key(i), iterator.next().getKey());
+        }
+        assertFalse(iterator.hasNext());
+        assertFalse(index.iterator("key:", true).hasNext());
+        assertEquals(key(count*2-2), index.iterator(key(count*2), true).next().getKey());
+
+        iterator = index.iterator(Predicates.and(Predicates.gt(key(100)), Predicates.lte(key(200))), true);
+        for (i = 200; i > 100; i -= 2) {
+            assertEquals(key(i), iterator.next().getKey());
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void rangeRemoval() throws Exception {
+        createPageFileAndIndex((short) 256);
+        BTreeIndex<String, Long> index = ((BTreeIndex<String, Long>)this.index);
+        final int count = 3000;
+        List<Integer> order = new ArrayList<Integer>(count);
+        for (int i = 0; i < count; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(0));
+        for (int i : order) {
+            index.put(key(i), (long)i);
+        }
+        tx.commit();
+        int pages = pf.getPagesInUse();
+
+        // Across many leaves, within one leaf, and the open ended ones.
+        index.removeRange(key(1000), key(2500));
+        index.removeRange(key(500), key(503));
+        index.removeRange("key:0", key(20));
+        index.removeRange(key(2900), null);
+        index.removeRange(key(100), key(50));
+        tx.commit();
+        reloadAll();
+        index = ((BTreeIndex<String, Long>)this.index);
+        assertTrue(pf.getPagesInUse() < pages/2);
+        assertEquals(index.getMinLeafDepth(), index.getMaxLeafDepth());
+
+        ArrayList<String> expected = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            if( i >= 20 && !(i >= 500 && i < 503) && !(i >= 1000 && i < 2500) && i < 2900 ) {
+                expected.add(key(i));
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        ArrayList<String> actual = new ArrayList<String>();
+        for (Map.Entry<String, Long> entry : index) {
+            actual.add(entry.getKey());
+        }
+        assertEquals(expected, actual);
+        actual.clear();
+        for (Iterator<Map.Entry<String, Long>> iterator = index.descendingIterator(); iterator.hasNext(); ) {
+            actual.add(0, iterator.next().getKey());
+        }
+        assertEquals(expected, actual);
+        assertNull(index.get(key(1000)));
+        assertEquals(2500L, (long)index.get(key(2500)));
+
+        // The index still takes updates in the range.
+        index.put(key(1200), 1200L);
+        assertEquals(key(2500), index.iterator(key(1201)).next().getKey());
+
+        index.removeRange(null, null);
+        tx.commit();
+        assertTrue(index.isEmpty());
+        assertFalse(index.iterator().hasNext());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void predicateScans() throws Exception {
+        createPageFileAndIndex((short) 256);
+        BTreeIndex<String, Long> index = ((BTreeIndex<String, Long>)this.index);
+        final int count = 2000;
+        for (int i = 0; i < count; i++) {
+            index.put(key(i), (long)i);
+        }
+        tx.commit();
+
+        Predicate<String> odd = new Predicate<String>() {
+            public boolean isInterestedInKeysBetween(String first, String second, Comparator comparator) {
+                return true;
+            }
+            public boolean isInterestedInKey(String key, Comparator comparator) {
+                return key.charAt(key.length()-1) % 2 == 1;
+            }
+        };
+        Predicate<String> ranges = Predicates.or(
+                Predicates.lt(key(10)),
+                Predicates.and(Predicates.gte(key(500)), Predicates.lte(key(600))),
+                Predicates.lte(key(550), key(700)),
+                Predicates.gt(key(1990)));
+        List<Predicates.Range<String>> plan = Predicates.ranges(ranges, null);
+        assertEquals(3, plan.size());
+        assertEquals(key(500), plan.get(1).getFirst());
+        assertEquals(key(700), plan.get(1).getLast());
+        assertFalse(plan.get(1).isLastInclusive());
+        assertNull(Predicates.ranges(Predicates.or(ranges, odd), null));
+        assertEquals(2, Predicates.ranges(Predicates.and(ranges, odd, Predicates.gte(key(600))), null).size());
+        assertEquals(0, Predicates.ranges(Predicates.and(Predicates.gt(key(5)), Predicates.lt(key(5))), null).size());
+
+        checkScan(index, count, ranges);
+        checkScan(index, count, Predicates.and(ranges, odd));
+        checkScan(index, count, odd);
+        checkScan(index, count, Predicates.and(Predicates.gt(key(100)), Predicates.lte(key(100))));
+        checkScan(index, count, Predicates.<String>all());
+        checkScan(index, count, Predicates.<String>none());
+    }
+
+    private void checkScan(BTreeIndex<String, Long> index, int count, Predicate<String> predicate) {
+        ArrayList<String> expected = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            if( predicate.isInterestedInKey(key(i), null) ) {
+                expected.add(key(i));
+            }
+        }
+        ArrayList<String> actual = new ArrayList<String>();
+        for (Iterator<Map.Entry<String, Long>> iterator = index.iterator(predicate); iterator.hasNext(); ) {
+            actual.add(iterator.next().getKey());
+        }
+        assertEquals(predicate.toString(), expected, actual);
+        actual.clear();
+        for (Iterator<Map.Entry<String, Long>> iterator = index.iterator(predicate, true); iterator.hasNext(); ) {
+            actual.add(0, iterator.next().getKey());
+        }
+        assertEquals(predicate.toString(), expected, actual);
+    }
+
+    @Test
+    public void longKeys() throws Exception {
+        createPageFileAndIndex((short) 256);
+        for (boolean deferred : new boolean[]{false, true}) {
+            BTreeIndexFactory<Long, Long> factory = new BTreeIndexFactory<Long, Long>();
+            factory.setKeyCodec(LongCodec.INSTANCE);
+            factory.setValueCodec(LongCodec.INSTANCE);
+            factory.setDeferredEncoding(deferred);
+            SortedIndex<Long, Long> index = factory.create(tx);
+            TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+            Random random = new Random(0);
+            for (int i = 0; i < 2000; i++) {
+                long key = i < 2 ? (i == 0 ? Long.MIN_VALUE : Long.MAX_VALUE) : random.nextLong() >> random.nextInt(64);
+                index.put(key, (long) i);
+                expected.put(key, (long) i);
+            }
+            for (Long key : new ArrayList<Long>(expected.keySet()).subList(0, 500)) {
+                assertEquals(expected.remove(key), index.remove(key));
+            }
+            tx.commit();
+            index = factory.open(tx, index.getIndexLocation());
+
+            for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), index.get(entry.getKey()));
+                if( !expected.containsKey(entry.getKey() + 1) ) {
+                    assertNull(index.get(entry.getKey() + 1));
+                }
+            }
+            ArrayList<Long> keys = new ArrayList<Long>();
+            for (Map.Entry<Long, Long> entry : index) {
+                keys.add(entry.getKey());
+            }
+            assertEquals(new ArrayList<Long>(expected.keySet()), keys);
+        }
+
+        BTreeIndexFactory<Integer, Long> factory = new BTreeIndexFactory<Integer, Long>();
+        factory.setKeyCodec(IntegerCodec.INSTANCE);
+        factory.setValueCodec(LongCodec.INSTANCE);
+        SortedIndex<Integer, Long> index = factory.create(tx);
+        for (int i = -1000; i < 1000; i++) {
+            index.put(i * 7, (long) i);
+        }
+        tx.commit();
+        for (int i = -1000; i < 1000; i++) {
+            assertEquals(i, (long) index.get(i * 7));
+            assertNull(index.get(i * 7 + 1));
+        }
+        assertEquals(Integer.valueOf(-7000), index.getFirst().getKey());
+    }
+
     /**
      * Yeah, the current implementation does NOT try to balance the tree.  Here is
      * a test case showing that it gets out of balance.
@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.fusesource.hawtbuf.codec.LongCodec;
+import org.fusesource.hawtbuf.codec.StringCodec;
+import org.fusesource.hawtdb.api.BTreeIndexFactory;
+import org.fusesource.hawtdb.api.Index;
+import org.fusesource.hawtdb.api.SortedIndex;
+import org.junit.Test;
+
+/**
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class CountedBTreeIndexTest extends BTreeIndexTest {
+
+    private boolean counted = true;
+
+    @Override
+    protected Index<String, Long> createIndex(int page) {
+        BTreeIndexFactory<String,Long> factory = new BTreeIndexFactory<String,Long>();
+        factory.setKeyCodec(StringCodec.INSTANCE);
+        factory.setValueCodec(LongCodec.INSTANCE);
+        factory.setDeferredEncoding(true);
+        factory.setCounted(counted);
+        if( page==-1 ) {
+            return factory.create(tx);
+        } else {
+            return factory.open(tx, page);
+        }
+    }
+
+    @Test
+    public void ranksAndOffsets() throws Exception {
+        createPageFileAndIndex((short) 256);
+        final int count = 2000;
+        List<Integer> order = new ArrayList<Integer>(count);
+        for (int i = 0; i < count; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(0));
+        for (int i : order) {
+            index.put(key(i), (long)i);
+        }
+        tx.commit();
+        checkPositions(count, 1);
+
+        // Remove every other entry, some of them in one batch.
+        List<String> batch = new ArrayList<String>();
+        for (int i : order) {
+            if( i%2==1 ) {
+                if( i < count/2 ) {
+                    index.remove(key(i));
+                } else {
+                    batch.add(key(i));
+                }
+            }
+        }
+        index.removeAll(batch);
+        tx.commit();
+        reloadAll();
+        checkPositions(count, 2);
+
+        index.clear();
+        assertEquals(0, index.size());
+        assertFalse(((SortedIndex<String, Long>)index).iteratorAt(0).hasNext());
+    }
+
+    /**
+     * The entries of the branches get counted leaf by leaf.
+     */
+    @Test
+    public void ranksAndOffsetsWithoutCounts() throws Exception {
+        counted = false;
+        ranksAndOffsets();
+    }
+
+    private void checkPositions(int count, int step) {
+        SortedIndex<String, Long> index = (SortedIndex<String, Long>)this.index;
+        assertEquals(count/step, index.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(key(i), (i+step-1)/step, index.rank(key(i)));
+        }
+        for (int i = 0; i < count/step; i += 7) {
+            Iterator<Map.Entry<String, Long>> iterator = index.iteratorAt(i);
+            assertEquals(key(i*step), iterator.next().getKey());
+        }
+        assertFalse(index.iteratorAt(count/step).hasNext());
+        assertFalse(index.iteratorAt(count).hasNext());
+    }
+
+}
@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.fusesource.hawtbuf.codec.LongCodec;
+import org.fusesource.hawtbuf.codec.StringCodec;
+import org.fusesource.hawtdb.api.BTreeIndexFactory;
+import org.fusesource.hawtdb.api.Index;
+import org.fusesource.hawtdb.api.SortedIndex;
+import org.fusesource.hawtdb.api.StringFrontCoder;
+import org.junit.Test;
+
+/**
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class FrontCodedBTreeIndexTest extends BTreeIndexTest {
+
+    @Override
+    protected Index<String, Long> createIndex(int page) {
+        return createIndex(page, true);
+    }
+
+    private Index<String, Long> createIndex(int page, boolean frontCoded) {
+        BTreeIndexFactory<String,Long> factory = new BTreeIndexFactory<String,Long>();
+        factory.setKeyCodec(StringCodec.INSTANCE);
+        factory.setValueCodec(LongCodec.INSTANCE);
+        factory.setDeferredEncoding(false);
+        if( frontCoded ) {
+            factory.setFrontCoder(new StringFrontCoder());
+        }
+        if( page==-1 ) {
+            return factory.create(tx);
+        } else {
+            return factory.open(tx, page);
+        }
+    }
+
+    @Test
+    public void sharedPrefixesTakeFewerPages() throws Exception {
+        createPageFileAndIndex((short) 512);
+        final int count = 2000;
+        String prefix = "queue://orders.europe.incoming/";
+        int pages = pf.getPagesInUse();
+        for (int i = 0; i < count; i++) {
+            index.put(prefix+key(i), (long)i);
+        }
+        tx.commit();
+        int frontCoded = pf.getPagesInUse() - pages;
+
+        pages = pf.getPagesInUse();
+        Index<String, Long> plain = createIndex(-1, false);
+        for (int i = 0; i < count; i++) {
+            plain.put(prefix+key(i), (long)i);
+        }
+        tx.commit();
+        int full = pf.getPagesInUse() - pages;
+        assertTrue(frontCoded+" pages vs. "+full, frontCoded*2 < full);
+
+        reloadAll();
+        int i = 0;
+        for (Map.Entry<String, Long> entry : (SortedIndex<String, Long>)index) {
+            assertEquals(prefix+key(i), entry.getKey());
+            assertEquals(Long.valueOf(i), entry.getValue());
+            i++;
+        }
+        assertEquals(count, i);
+    }
+
+}
@@ -22,12 +22,14 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
 
 import org.fusesource.hawtdb.api.TxPageFile;
 import org.fusesource.hawtdb.api.TxPageFileFactory;
 import org.fusesource.hawtdb.api.Index;
+import org.fusesource.hawtdb.api.Relocation;
 import org.fusesource.hawtdb.api.Transaction;
 import org.junit.After;
 import org.junit.Test;
@@ -74,9 +76,16 @@ public abstract class IndexTestSupport {
     private static final int COUNT = 10000;
 
     public void createPageFileAndIndex(short pageSize) throws Exception {
-        traceStart(LOG, "IndexTestSupport.createPageFileAndIndex(%d)", pageSize);
+        createPageFileAndIndex(pageSize, 0);
+    }
+
+    public void createPageFileAndIndex(short pageSize, int mappingSegmentSize) throws Exception {
+        traceStart(LOG, "IndexTestSupport.createPageFileAndIndex(%d, %d)", pageSize, mappingSegmentSize);
         pff = createConcurrentPageFileFactory();
         pff.setPageSize(pageSize);
+        if( mappingSegmentSize > 0 ) {
+            pff.setMappingSegementSize(mappingSegmentSize);
+        }
         pff.getFile().delete();
         pff.open();
         pf = pff.getTxPageFile();
@@ -152,6 +161,92 @@ public abstract class IndexTestSupport {
         traceEnd(LOG, "IndexTestSupport.testRandomRemove");
     }
 
+    @Test
+    public void testRelocate() throws Exception {
+        traceStart(LOG, "IndexTestSupport.testRelocate()");
+        createPageFileAndIndex((short)1024, 1024*8);
+        final int count = 1000;
+        doInsert(count);
+
+        // Most of the pages get freed, the keys left over were stored last.
+        for (int i = 0; i < count-100; i++) {
+            index.remove(key(i));
+        }
+        tx.commit();
+        long before = pf.truncate();
+
+        Relocation relocation = new Relocation(pf.getPagesInUse());
+        int moved = 0;
+        while( !relocation.isDone() ) {
+            moved += index.relocate(relocation, 10);
+            tx.commit();
+        }
+        long after = pf.truncate();
+
+        assertTrue("pages moved", moved > 0);
+        assertTrue("file shrunk from "+before+" to "+after, after < before);
+        checkRetrieveTail(count, 100);
+        reloadAll();
+        checkRetrieveTail(count, 100);
+        traceEnd(LOG, "IndexTestSupport.testRelocate");
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        traceStart(LOG, "IndexTestSupport.testBatches()");
+        createPageFileAndIndex((short)512);
+        final int count = 2000;
+        HashMap<String, Long> batch = new HashMap<String, Long>();
+        for (int i = 0; i < count; i++) {
+            batch.put(key(i), (long)i);
+        }
+        index.putAll(batch);
+        tx.commit();
+        checkRetrieve(count);
+        assertEquals(count, index.size());
+
+        // Overwrite the even keys and add more past the end.
+        batch.clear();
+        for (int i = 0; i < count+500; i += 2) {
+            batch.put(key(i), (long)-i);
+        }
+        index.putAll(batch);
+        reloadIndex();
+        for (int i = 0; i < count+500; i++) {
+            Long expected = i%2==0 ? Long.valueOf(-i) : i < count ? Long.valueOf(i) : null;
+            assertEquals(expected, index.get(key(i)));
+        }
+
+        // Remove the odd keys, some of them are not there.
+        ArrayList<String> keys = new ArrayList<String>();
+        for (int i = 1; i < count+1000; i += 2) {
+            keys.add(key(i));
+        }
+        index.removeAll(keys);
+        reloadIndex();
+        assertEquals((count+500)/2, index.size());
+        for (int i = 0; i < count+500; i++) {
+            assertEquals(i%2==0 ? Long.valueOf(-i) : null, index.get(key(i)));
+        }
+
+        keys.clear();
+        for (int i = 0; i < count+500; i += 2) {
+            keys.add(key(i));
+        }
+        index.removeAll(keys);
+        reloadIndex();
+        assertTrue(index.isEmpty());
+        assertEquals(0, index.size());
+        traceEnd(LOG, "IndexTestSupport.testBatches");
+    }
+
+    void checkRetrieveTail(int count, int tail) throws IOException {
+        for (int i = 0; i < count; i++) {
+            assertEquals(i < count-tail ? null : Long.valueOf(i), index.get(key(i)));
+        }
+        assertEquals(tail, index.size());
+    }
+
     void doInsert(int count) throws Exception {
         traceStart(LOG, "IndexTestSupport.doInsert(%d)", count);
         for (int i = 0; i < count; i++) {
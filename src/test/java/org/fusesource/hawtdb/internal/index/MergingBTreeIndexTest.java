@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.fusesource.hawtbuf.codec.LongCodec;
+import org.fusesource.hawtbuf.codec.StringCodec;
+import org.fusesource.hawtdb.api.BTreeIndexFactory;
+import org.fusesource.hawtdb.api.Index;
+import org.junit.Test;
+
+/**
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class MergingBTreeIndexTest extends BTreeIndexTest {
+
+    @Override
+    protected Index<String, Long> createIndex(int page) {
+        BTreeIndexFactory<String,Long> factory = new BTreeIndexFactory<String,Long>();
+        factory.setKeyCodec(StringCodec.INSTANCE);
+        factory.setValueCodec(LongCodec.INSTANCE);
+        factory.setDeferredEncoding(true);
+        factory.setCounted(true);
+        factory.setMergeThreshold(0.4f);
+        if( page==-1 ) {
+            return factory.create(tx);
+        } else {
+            return factory.open(tx, page);
+        }
+    }
+
+    @Test
+    public void removesMergeNodes() throws Exception {
+        createPageFileAndIndex((short) 256);
+        BTreeIndex<String, Long> index = ((BTreeIndex<String, Long>)this.index);
+        final int count = 5000;
+        List<Integer> order = new ArrayList<Integer>(count);
+        for (int i = 0; i < count; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(0));
+        int pages = pf.getPagesInUse();
+        for (int i : order) {
+            index.put(key(i), (long)i);
+        }
+        tx.commit();
+        int full = pf.getPagesInUse() - pages;
+
+        // Keep every 10th entry, remove half of the rest in batches.
+        List<String> batch = new ArrayList<String>();
+        for (int i : order) {
+            if( i%10!=0 ) {
+                if( i%2==0 ) {
+                    batch.add(key(i));
+                } else {
+                    index.remove(key(i));
+                }
+            }
+            if( batch.size()==100 ) {
+                index.removeAll(batch);
+                batch.clear();
+            }
+        }
+        index.removeAll(batch);
+        tx.commit();
+        int left = pf.getPagesInUse() - pages;
+        assertTrue(left+" of "+full+" pages left", left*5 < full);
+        assertEquals(index.getMinLeafDepth(), index.getMaxLeafDepth());
+
+        reloadAll();
+        index = ((BTreeIndex<String, Long>)this.index);
+        assertEquals(count/10, index.size());
+        int i = 0;
+        for (Map.Entry<String, Long> entry : index) {
+            assertEquals(key(i*10), entry.getKey());
+            assertEquals(i, index.rank(entry.getKey()));
+            i++;
+        }
+        assertEquals(count/10, i);
+
+        for (i = 0; i < count; i += 10) {
+            index.remove(key(i));
+        }
+        tx.commit();
+        assertEquals(0, index.size());
+        assertEquals(1, index.getMaxLeafDepth());
+    }
+
+}
@@ -0,0 +1,199 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import java.util.Random;
+
+import org.fusesource.hawtdb.api.Allocator;
+
+import org.fusesource.hawtdb.internal.util.Ranges;
+import org.junit.Test;
+
+/**
+ * Measures page allocation against a heavily fragmented free list.  Every
+ * other page of the file is allocated, so the free list holds one single page
+ * range per allocated page.  Multi page extent allocations then have to skip
+ * over all those holes.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class AllocatorBenchmark {
+
+    static final int LIMIT = 1024 * 1024;
+    static final int OPERATIONS = 1000 * 5;
+    static final int CONTENDED_OPERATIONS = 1000 * 200;
+
+    private SimpleAllocator fragmentedAllocator() {
+        SimpleAllocator allocator = new SimpleAllocator(LIMIT);
+        allocator.unfree(0, LIMIT/2);
+        for (int i = 0; i < LIMIT/2; i += 2) {
+            allocator.free(i, 1);
+        }
+        return allocator;
+    }
+
+    @Test
+    public void fragmentedExtentAllocation() throws Exception {
+        SimpleAllocator allocator = fragmentedAllocator();
+        System.out.println("free ranges: "+allocator.getFreeRanges().toArrayList().size());
+
+        // The indexed allocator.
+        Random random = new Random(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            int size = 2+random.nextInt(127);
+            int page = allocator.alloc(size);
+            if( (i & 3) != 0 ) {
+                allocator.free(page, size);
+            }
+        }
+        report("best fit (size index)", System.nanoTime()-start);
+
+        // The first fit scan the allocator used to do.
+        Ranges firstFit = new Ranges();
+        firstFit.copy(fragmentedAllocator().getFreeRanges());
+        random = new Random(0);
+        start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            int size = 2+random.nextInt(127);
+            int page = firstFit.bestFit(size);
+            firstFit.remove(page, size);
+            if( (i & 3) != 0 ) {
+                firstFit.add(page, size);
+            }
+        }
+        report("first fit (scan)", System.nanoTime()-start);
+    }
+
+    @Test
+    public void fragmentedSinglePageAllocation() throws Exception {
+        SimpleAllocator allocator = fragmentedAllocator();
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            int page = allocator.alloc(1);
+            allocator.free(page, 1);
+        }
+        report("single page", System.nanoTime()-start);
+    }
+
+    @Test
+    public void shadowLocality() throws Exception {
+        shadowLocality(false);
+        shadowLocality(true);
+    }
+
+    /**
+     * Simulates batches of page updates which each get a shadow page that is
+     * freed again once the batch is performed.  Counts how many separate runs
+     * of pages each batch has to write and how far apart they are.  The
+     * batch fragmentation uses the same measure as
+     * {@link SimpleAllocator#getFragmentation()} on the pages a batch writes,
+     * since the free space is back where it started once the shadows are
+     * freed.
+     */
+    private void shadowLocality(boolean hinted) {
+        SimpleAllocator allocator = new SimpleAllocator(LIMIT);
+        Random random = new Random(0);
+        allocator.unfree(0, 1024*64);
+        // holes of all sizes.
+        for (int i = 0; i < 1024*4; i++) {
+            allocator.free(random.nextInt(1024*64), 1+random.nextInt(8));
+        }
+        double before = allocator.getFragmentation();
+
+        int batches = 1000;
+        int updates = 100;
+        long runs = 0;
+        long gaps = 0;
+        double scattered = 0;
+        int shadows[] = new int[updates];
+        for (int b = 0; b < batches; b++) {
+            int next = -1;
+            int run = 0;
+            int largest = 0;
+            for (int u = 0; u < updates; u++) {
+                int page = random.nextInt(1024*64);
+                shadows[u] = hinted ? allocator.alloc(1, next >= 0 ? next : page) : allocator.alloc(1);
+                if( shadows[u] != next ) {
+                    runs++;
+                    if( next >= 0 ) {
+                        gaps += Math.abs(shadows[u]-next);
+                    }
+                    run = 0;
+                }
+                largest = Math.max(largest, ++run);
+                next = shadows[u]+1;
+            }
+            scattered += 1.0 - ((double)largest / updates);
+            for (int u = 0; u < updates; u++) {
+                allocator.free(shadows[u], 1);
+            }
+        }
+        System.out.println(String.format("%s: %.1f runs per %d page batch, %,.0f pages between runs, batch fragmentation %.3f, free space fragmentation %.3f -> %.3f",
+                hinted ? "hinted" : "unhinted", runs/(double)batches, updates, gaps/(double)Math.max(1, runs-batches),
+                scattered/batches, before, allocator.getFragmentation()));
+    }
+
+    @Test
+    public void contendedSinglePageAllocation() throws Exception {
+        int threads = 16;
+        report("16 threads, simple", threads*CONTENDED_OPERATIONS,
+                contended(new SimpleAllocator(LIMIT), threads));
+        report("16 threads, 32 stripes", threads*CONTENDED_OPERATIONS,
+                contended(new StripedAllocator(new SimpleAllocator(LIMIT), 32), threads));
+    }
+
+    /**
+     * Each thread allocates and frees single pages the way transactions
+     * allocate and release shadow pages.
+     */
+    private long contended(final Allocator allocator, int threadCount) throws InterruptedException {
+        Thread threads[] = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    int pages[] = new int[16];
+                    for (int i = 0; i < CONTENDED_OPERATIONS; i++) {
+                        int slot = i & 15;
+                        if( i >= 16 ) {
+                            allocator.free(pages[slot], 1);
+                        }
+                        pages[slot] = allocator.alloc(1);
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.nanoTime()-start;
+    }
+
+    private void report(String name, long nanos) {
+        report(name, OPERATIONS, nanos);
+    }
+
+    private void report(String name, int operations, long nanos) {
+        System.out.println(String.format("%s: %,d ops in %,d ms (%,.0f ops/sec)",
+                name, operations, nanos/1000000, operations/(nanos/1000000000.0)));
+    }
+
+}
@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.hawtdb.internal.page;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.fusesource.hawtdb.api.PagingException;
+import org.fusesource.hawtdb.api.Transaction;
+import org.fusesource.hawtdb.api.TxPageFileFactory;
+import org.junit.Test;
+
+/**
+ * Runs the page file tests against a page file which uses a page table.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class PageTableTxPageFileTest extends TxPageFileTest {
+
+    @Override
+    protected TxPageFileFactory createConcurrentPageFileFactory() {
+        TxPageFileFactory rc = super.createConcurrentPageFileFactory();
+        rc.setUsePageTable(true);
+        return rc;
+    }
+
+    @Override
+    @Test
+    public void pagesNotDirectlyUpdated() throws IOException, ClassNotFoundException {
+        HawtTxPageFile hpf = (HawtTxPageFile)pf;
+        Transaction tx = pf.tx();
+        assertEquals(0, store(tx, "Hello"));
+        tx.commit();
+        pf.flush();
+        hpf.performBatches();
+
+        // Updates are not copied back, the page gets pointed at the shadow page.
+        store(tx, 0, "Good");
+        tx.commit();
+        pf.flush();
+        hpf.performBatches();
+        int moved = hpf.pageTable.translate(0);
+        assertEquals(true, moved != 0);
+        assertEquals("Hello", load(getRawPageFile(), 0));
+        assertEquals("Good", load(getRawPageFile(), moved));
+        assertEquals("Good", load(tx, 0));
+        tx.commit();
+
+        // The next update moves it back home and frees the other location.
+        store(tx, 0, "Bye");
+        tx.commit();
+        pf.flush();
+        hpf.performBatches();
+        pf.flush();
+        assertEquals(0, hpf.pageTable.translate(0));
+        assertEquals(false, hpf.allocator.isAllocated(moved));
+        assertEquals("Bye", load(getRawPageFile(), 0));
+
+        store(tx, 0, "Moved again");
+        tx.commit();
+        reload();
+        tx = pf.tx();
+        assertEquals("Moved again", load(tx, 0));
+        assertEquals(true, ((HawtTxPageFile)pf).pageTable.translate(0) != 0);
+    }
+
+    @Test
+    public void pageTableChangesAreRecovered() throws Exception {
+        HawtTxPageFile hpf = (HawtTxPageFile)pf;
+        int COUNT = 1000;
+        int[] pages = new int[COUNT];
+        Transaction tx = pf.tx();
+        for (int i = 0; i < COUNT; i++) {
+            pages[i] = store(tx, "Hello "+i);
+        }
+        tx.commit();
+        pf.flush();
+        hpf.performBatches();
+
+        // Moves all the pages so that the table is too big to store on every sync..
+        for (int i = 0; i < COUNT; i++) {
+            store(tx, pages[i], "Moved "+i);
+        }
+        tx.commit();
+        pf.flush();
+        hpf.performBatches();
+        pf.flush();
+
+        // then only the changes of the next syncs get stored.
+        for (int round = 0; round < 20; round++) {
+            for (int i = round; i < COUNT; i += 100) {
+                store(tx, pages[i], "Round "+round+" "+i);
+            }
+            tx.commit();
+            pf.flush();
+            hpf.performBatches();
+        }
+        pf.flush();
+        int[] physical = new int[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            physical[i] = hpf.pageTable.translate(pages[i]);
+        }
+
+        reload();
+        hpf = (HawtTxPageFile)pf;
+        tx = pf.tx();
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(physical[i], hpf.pageTable.translate(pages[i]));
+            assertEquals(i%100 < 20 ? "Round "+(i%100)+" "+i : "Moved "+i, load(tx, pages[i]));
+        }
+        tx.commit();
+    }
+
+    @Test
+    public void settingMustMatchTheFile() throws Exception {
+        pff.close();
+        pff.setUsePageTable(false);
+        try {
+            pff.open();
+            fail("expected PagingException");
+        } catch (PagingException expected) {
+        }
+        pff.setUsePageTable(true);
+        pff.open();
+        pf = pff.getTxPageFile();
+    }
+
+}
@@ -76,6 +76,30 @@ public class TransactionBenchmark {
     }
 
     
+    @Test
+    public void concurrentAllocation() throws Exception {
+        concurrentAllocation("concurrent allocation", 0);
+    }
+
+    @Test
+    public void stripedConcurrentAllocation() throws Exception {
+        concurrentAllocation("striped concurrent allocation", 32);
+    }
+
+    private void concurrentAllocation(String name, int stripes) throws Exception {
+        benchmark.getHawtPageFileFactory().setAllocationStripes(stripes);
+        benchmark.benchmark(16, new BenchmarkAction<RandomTxActor>(name) {
+            @Override
+            protected void execute(RandomTxActor actor) {
+                int page = actor.tx().allocator().alloc(1);
+                actor.tx().write(page, new Buffer(THE_DATA));
+                actor.tx().commit();
+                actor.tx().allocator().free(page, 1);
+                actor.tx().commit();
+            }
+        });
+    }
+
     @Test
     public void read() throws Exception {
         final int INITIAL_PAGE_COUNT = 1024 * 100;
@@ -17,6 +17,7 @@
 package org.fusesource.hawtdb.internal.page;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
@@ -25,14 +26,29 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.fusesource.hawtdb.api.*;
 import org.fusesource.hawtdb.api.PagedAccessor;
+import org.fusesource.hawtdb.api.Paged.SliceType;
+import org.fusesource.hawtdb.util.IOHelper;
 import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.codec.LongCodec;
+import org.fusesource.hawtbuf.codec.StringCodec;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,8 +59,8 @@ import org.junit.Test;
  */
 public class TxPageFileTest {
 
-    private TxPageFileFactory pff;
-    private TxPageFile pf;
+    protected TxPageFileFactory pff;
+    protected TxPageFile pf;
 
     protected TxPageFileFactory createConcurrentPageFileFactory() {
         TxPageFileFactory rc = new TxPageFileFactory();
@@ -133,6 +149,70 @@ public class TxPageFileTest {
     }
     
     
+    @Test
+    public void cacheAPISpillsLargeTransactions() throws IOException, ClassNotFoundException {
+        pff.close();
+        pff.setSpillThreshold(4);
+        pff.open();
+        pf = pff.getTxPageFile();
+
+        StringPagedAccessor ENCODER = new StringPagedAccessor();
+        Transaction tx = pf.tx();
+        int hello = tx.allocator().alloc(1);
+        int world = tx.allocator().alloc(1);
+        tx.put(ENCODER, hello, "Hello");
+        tx.put(ENCODER, world, "World");
+        tx.commit();
+        pf.flush();
+        int inUse = pf.getPagesInUse();
+
+        // A rolled back transaction gives back the pages its values were spilled to.
+        tx = pf.tx();
+        for (int i = 0; i < 20; i++) {
+            tx.put(ENCODER, tx.allocator().alloc(1), "Rolled back "+i);
+        }
+        tx.put(ENCODER, hello, "Rolled back");
+        tx.rollback();
+        assertEquals(inUse, pf.getPagesInUse());
+
+        Transaction reader = pf.tx();
+        assertEquals("Hello", reader.get(ENCODER, hello));
+
+        tx = pf.tx();
+        tx.put(ENCODER, hello, "Changed");
+        tx.put(ENCODER, world, "Changed");
+        int pages[] = new int[20];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = tx.allocator().alloc(1);
+            tx.put(ENCODER, pages[i], "Value "+i);
+        }
+        tx.clear(ENCODER, world);
+        tx.put(ENCODER, pages[3], "Changed again");
+        // Spilled values are read back from their pages.
+        assertEquals("Value 0", tx.get(ENCODER, pages[0]));
+        assertEquals("Changed again", tx.get(ENCODER, pages[3]));
+        assertEquals("Changed", tx.get(ENCODER, hello));
+        tx.commit();
+
+        // Other snapshots still don't see it..
+        assertEquals("Hello", reader.get(ENCODER, hello));
+        assertEquals("World", reader.get(ENCODER, world));
+        reader.commit();
+
+        tx = pf.tx();
+        assertEquals("Changed", tx.get(ENCODER, hello));
+        assertEquals("Value 19", tx.get(ENCODER, pages[19]));
+        tx.commit();
+
+        reload();
+        tx = pf.tx();
+        assertEquals("Changed", tx.get(ENCODER, hello));
+        assertEquals("Value 0", tx.get(ENCODER, pages[0]));
+        assertEquals("Changed again", tx.get(ENCODER, pages[3]));
+        assertEquals("Value 19", tx.get(ENCODER, pages[19]));
+        tx.commit();
+    }
+
     @Test
     public void cacheAPIConflictingUpdateFails() throws IOException, ClassNotFoundException {
 
@@ -242,6 +322,456 @@ public class TxPageFileTest {
         assertEquals("Bye", load(getRawPageFile(), 1));
     }
 
+    @Test
+    public void commitAsync() throws Exception {
+        ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>();
+        Transaction tx = pf.tx();
+        int last = -1;
+        for (int i = 0; i < 2000; i++) {
+            last = store(tx, "Hello "+i);
+            futures.add(tx.commitAsync());
+        }
+
+        // a read only commit is durable right away.
+        assertEquals(true, tx.commitAsync().isDone());
+
+        // waiting on the last commit forces the tail batch to flush.
+        futures.get(futures.size()-1).get(10, TimeUnit.SECONDS);
+        for (Future<Void> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+            assertEquals(true, future.isDone());
+        }
+
+        reload();
+        tx = pf.tx();
+        assertEquals("Hello 1999", load(tx, last));
+    }
+
+    @Test
+    public void commitAsyncFailure() throws Exception {
+        Transaction tx = pf.tx();
+        tx.put(new PagedAccessor<String>() {
+            public String load(Paged paged, int page) {
+                return null;
+            }
+            public List<Integer> store(Paged paged, int page, String value) {
+                throw new IOPagingException(new IOException("disk full"));
+            }
+            public List<Integer> pagesLinked(Paged paged, int page) {
+                return Collections.emptyList();
+            }
+        }, tx.allocator().alloc(1), "Hello");
+        Future<Void> future = tx.commitAsync();
+
+        // the flush queued by the wait fails to store the batch, which fails
+        // the future instead of leaving it hanging.
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOPagingException);
+        }
+        assertEquals(true, future.isDone());
+        try {
+            future.get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOPagingException);
+        }
+    }
+
+    @Test
+    public void commitAsyncTimeout() throws Exception {
+        final CountDownLatch storing = new CountDownLatch(1);
+        final CountDownLatch stored = new CountDownLatch(1);
+        Transaction tx = pf.tx();
+        int page = tx.allocator().alloc(1);
+        tx.put(new PagedAccessor<String>() {
+            public String load(Paged paged, int page) {
+                return TxPageFileTest.this.load(paged, page);
+            }
+            public List<Integer> store(Paged paged, int page, String value) {
+                storing.countDown();
+                try {
+                    stored.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                TxPageFileTest.this.store(paged, page, value);
+                return Collections.emptyList();
+            }
+            public List<Integer> pagesLinked(Paged paged, int page) {
+                return Collections.emptyList();
+            }
+        }, page, "Hello");
+        Future<Void> future = tx.commitAsync();
+
+        // a timed wait does not flush on the waiting thread, so it can't be
+        // held up by the slow store.
+        long start = System.nanoTime();
+        try {
+            future.get(100, TimeUnit.MILLISECONDS);
+            fail("expected TimeoutException");
+        } catch (TimeoutException e) {
+        }
+        assertTrue(System.nanoTime()-start < TimeUnit.SECONDS.toNanos(5));
+
+        // but it queued the flush which stores the commit.
+        assertTrue(storing.await(10, TimeUnit.SECONDS));
+        stored.countDown();
+        future.get(10, TimeUnit.SECONDS);
+        reload();
+        assertEquals("Hello", load(pf.tx(), page));
+    }
+
+    @Test
+    public void stripedAllocation() throws Exception {
+        pff.close();
+        pff.setAllocationStripes(4);
+        pff.getFile().delete();
+        pff.open();
+        pf = pff.getTxPageFile();
+
+        final int THREADS = 16;
+        final int PAGES = 50;
+        final int pages[][] = new int[THREADS][PAGES];
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread threads[] = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int id = t;
+            threads[t] = new Thread("writer:"+t) {
+                public void run() {
+                    try {
+                        Transaction tx = pf.tx();
+                        for (int i = 0; i < PAGES; i++) {
+                            pages[id][i] = store(tx, "Hello "+id+":"+i);
+                            tx.commit();
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+
+        // No page should have been handed out twice.
+        HashSet<Integer> allocated = new HashSet<Integer>();
+        for (int t = 0; t < THREADS; t++) {
+            for (int i = 0; i < PAGES; i++) {
+                allocated.add(pages[t][i]);
+            }
+        }
+        assertEquals(THREADS*PAGES, allocated.size());
+
+        reload();
+        Transaction tx = pf.tx();
+        for (int t = 0; t < THREADS; t++) {
+            for (int i = 0; i < PAGES; i++) {
+                assertEquals("Hello "+t+":"+i, load(tx, pages[t][i]));
+            }
+        }
+    }
+
+    @Test
+    public void lazyRecovery() throws Exception {
+        StringPagedAccessor ENCODER = new StringPagedAccessor();
+        Transaction tx = pf.tx();
+        int page = store(tx, "Hello");
+        int object = tx.allocator().alloc(1);
+        tx.put(ENCODER, object, "World");
+        tx.commit();
+        pf.flush();
+
+        tx = pf.tx();
+        store(tx, page, "Good");
+        tx.put(ENCODER, object, "Bye");
+        tx.commit();
+        pf.flush();
+
+        // Open a copy of the file without closing it, like after a crash.  The
+        // copy keeps this page file from writing to the recovered one on close.
+        File copy = new File(pff.getFile().getPath()+".crashed");
+        IOHelper.copyFile(pff.getFile(), copy);
+        TxPageFileFactory crashed = createConcurrentPageFileFactory();
+        crashed.setFile(copy);
+        crashed.setLazyRecovery(true);
+        crashed.open();
+        try {
+            TxPageFile recovered = crashed.getTxPageFile();
+            tx = recovered.tx();
+            assertEquals("Good", load(tx, page));
+            assertEquals("Bye", tx.get(ENCODER, object));
+            tx.commit();
+
+            // New transactions don't get handed the pages of the recovered batches.
+            tx = recovered.tx();
+            int other = store(tx, "Other");
+            assertEquals(true, other != page && other != object);
+            tx.commit();
+            recovered.flush();
+
+            tx = recovered.tx();
+            assertEquals("Good", load(tx, page));
+            assertEquals("Bye", tx.get(ENCODER, object));
+            assertEquals("Other", load(tx, other));
+            tx.commit();
+        } finally {
+            crashed.close();
+            copy.delete();
+        }
+    }
+
+    @Test
+    public void warmUp() throws Exception {
+        BTreeIndexFactory<Long, String> factory = new BTreeIndexFactory<Long, String>();
+        factory.setKeyCodec(LongCodec.INSTANCE);
+        factory.setValueCodec(StringCodec.INSTANCE);
+
+        Transaction tx = pf.tx();
+        SortedIndex<Long, String> index = factory.create(tx);
+        int page = index.getIndexLocation();
+        for (long i = 0; i < 2000; i++) {
+            index.put(i, "value " + i);
+        }
+        tx.commit();
+
+        pff.setWarmUp(true);
+        pff.setWarmUpThreads(2);
+        pff.setWarmUpRate(10000);
+        pff.addWarmUpIndex(page, factory);
+        new File(pff.getFile().getPath()+".warm").delete();
+        reload();
+
+        // Look up every key so that all the nodes are hot.
+        tx = pf.tx();
+        index = factory.open(tx, page);
+        for (long i = 0; i < 2000; i++) {
+            assertEquals("value " + i, index.get(i));
+        }
+        tx.commit();
+        HashSet<Integer> hot = new HashSet<Integer>(((HawtTxPageFile)pf).readCache.map.keySet());
+        assertEquals(true, hot.size() > 2);
+
+        reload();
+        HawtTxPageFile hpf = (HawtTxPageFile)pf;
+        assertEquals(true, hpf.warmUp.await(30, TimeUnit.SECONDS));
+        assertEquals(hot, new HashSet<Integer>(hpf.readCache.map.keySet()));
+
+        tx = pf.tx();
+        index = factory.open(tx, page);
+        assertEquals("value 1999", index.get(1999L));
+        tx.commit();
+    }
+
+    @Test
+    public void rangeAllocations() throws Exception {
+        HawtTxPageFile hpf = (HawtTxPageFile)pf;
+
+        Transaction tx = pf.tx();
+        int extent = tx.allocator().alloc(128);
+        store(tx, extent, "first");
+        store(tx, extent+127, "last");
+        // freeing pages we allocated hands them straight back.
+        tx.allocator().free(extent+64, 2);
+        assertEquals(false, hpf.allocator.isAllocated(extent+64));
+        tx.commit();
+
+        // the allocation is tracked as ranges, not as a page update each.
+        Commit commit = hpf.openBatch.commits.getTail();
+        assertEquals(0, commit.updates.size());
+        assertEquals("[ 0-63, 66-127 ]", commit.allocated.toString());
+
+        tx = pf.tx();
+        assertEquals("first", load(tx, extent));
+        assertEquals("last", load(tx, extent+127));
+        tx.allocator().free(extent, 64);
+        tx.allocator().free(extent+66, 62);
+        tx.commit();
+
+        pf.flush();
+        reload();
+        // only the pages holding the stored free list and page table are still in use.
+        assertEquals(((HawtTxPageFile)pf).pageTable==null ? 1 : 2, pf.getPagesInUse());
+    }
+
+    @Test
+    public void longSnapshotDoesNotPinNewerBatches() throws Exception {
+        StringPagedAccessor ENCODER = new StringPagedAccessor();
+        Transaction tx = pf.tx();
+        int page = store(tx, "Hello");
+        int object = tx.allocator().alloc(1);
+        tx.put(ENCODER, object, "World");
+        tx.commit();
+        pf.flush();
+
+        // A long running reader..
+        Transaction reader = pf.tx();
+        assertEquals("Hello", load(reader, page));
+
+        int inUse = 0;
+        for (int i = 0; i < 50; i++) {
+            tx = pf.tx();
+            store(tx, page, "Hello "+i);
+            tx.put(ENCODER, object, "World "+i);
+            tx.commit();
+            pf.flush();
+            if( i == 10 ) {
+                inUse = pf.getPagesInUse();
+            }
+        }
+
+        // newer batches got performed..
+        tx = pf.tx();
+        assertEquals("Hello 49", load(tx, page));
+        assertEquals("World 49", tx.get(ENCODER, object));
+        tx.commit();
+        // but the reader still sees its snapshot, and the file did not keep growing.
+        assertEquals("Hello", load(reader, page));
+        assertEquals("World", reader.get(ENCODER, object));
+        assertEquals(inUse, pf.getPagesInUse());
+        assertEquals(true, pf.getPinnedPages() > 0);
+        assertEquals(true, pf.getOldestSnapshotAge() >= 0);
+
+        reader.commit();
+        assertEquals(0, pf.getOldestSnapshotAge());
+        pf.flush();
+        pf.flush();
+        assertEquals(0, pf.getPinnedPages());
+    }
+
+    @Test
+    public void concurrentReadersKeepTheirSnapshot() throws Exception {
+        final StringPagedAccessor ENCODER = new StringPagedAccessor();
+        final int PAGES = 8;
+        final int[] pages = new int[PAGES];
+        final int[] objects = new int[PAGES];
+        Transaction tx = pf.tx();
+        for (int i = 0; i < PAGES; i++) {
+            pages[i] = store(tx, "0");
+            objects[i] = tx.allocator().alloc(1);
+            tx.put(ENCODER, objects[i], "0");
+        }
+        tx.commit();
+        pf.flush();
+
+        // Every commit of the writer updates all the pages, so a reader sees
+        // the same value on all of them as long as its snapshot holds.
+        final AtomicBoolean done = new AtomicBoolean();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread threads[] = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread("reader:"+t) {
+                public void run() {
+                    try {
+                        while( !done.get() ) {
+                            Transaction tx = pf.tx();
+                            String expected = load(tx, pages[0]);
+                            for (int r = 0; r < 3; r++) {
+                                for (int i = 0; i < PAGES; i++) {
+                                    assertEquals(expected, load(tx, pages[i]));
+                                    assertEquals(expected, tx.get(ENCODER, objects[i]));
+                                    assertEquals(expected, sliceLoad(tx, pages[i]));
+                                }
+                                Thread.yield();
+                            }
+                            tx.commit();
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        try {
+            for (int v = 1; v <= 500 && errors.isEmpty(); v++) {
+                tx = pf.tx();
+                for (int i = 0; i < PAGES; i++) {
+                    store(tx, pages[i], ""+v);
+                    tx.put(ENCODER, objects[i], ""+v);
+                }
+                tx.commit();
+                pf.flush();
+            }
+        } finally {
+            done.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        assertEquals(Collections.emptyList(), errors);
+    }
+
+    /**
+     * Reads the string of a page through a slice, which must not change
+     * while it is being read.
+     */
+    private String sliceLoad(Paged paged, int page) throws IOException {
+        ByteBuffer slice = paged.slice(SliceType.READ, page, 1);
+        try {
+            byte[] first = new byte[pff.getPageSize()];
+            slice.duplicate().get(first);
+            Thread.yield();
+            byte[] second = new byte[pff.getPageSize()];
+            slice.duplicate().get(second);
+            assertTrue("the slice changed while it was read", Arrays.equals(first, second));
+            return new DataInputStream(new ByteArrayInputStream(first)).readUTF();
+        } finally {
+            paged.unslice(slice);
+        }
+    }
+
+    @Test
+    public void readCommitsStoredWithUpdateFlags() throws Exception {
+        // The layout of a commit before the allocated and freed pages were ranges.
+        ConcurrentHashMap<Integer, Update> updates = new ConcurrentHashMap<Integer, Update>();
+        Update shadowed = new Update();
+        shadowed.shadow = 20;
+        updates.put(5, shadowed);
+        Update allocated = new Update();
+        allocated.flags = 0x01;
+        updates.put(6, allocated);
+        Update written = new Update();
+        written.flags = 0x01;
+        written.shadow = 7;
+        updates.put(7, written);
+        Update freed = new Update();
+        freed.flags = 0x02;
+        updates.put(8, freed);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream os = new ObjectOutputStream(baos);
+        os.writeLong(3);
+        os.writeLong(4);
+        os.writeObject(updates);
+        os.close();
+
+        Commit commit = new Commit();
+        commit.readExternal(new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray())));
+        assertEquals(4, commit.getHeadRevision());
+        assertEquals(new HashSet<Integer>(Arrays.asList(5, 7)), commit.updates.keySet());
+        assertEquals(0, commit.updates.get(7).flags);
+        assertEquals(2, commit.allocated.size());
+        assertTrue(commit.allocated.contains(6));
+        assertTrue(commit.allocated.contains(7));
+        assertEquals(1, commit.freed.size());
+        assertTrue(commit.freed.contains(8));
+
+        // and the current layout round trips.
+        baos = new ByteArrayOutputStream();
+        os = new ObjectOutputStream(baos);
+        commit.writeExternal(os);
+        os.close();
+        Commit copy = new Commit();
+        copy.readExternal(new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray())));
+        assertEquals(commit.toString(), copy.toString());
+    }
+
     @Test
     public void crudOperations() throws IOException, ClassNotFoundException {
         int COUNT = 10;
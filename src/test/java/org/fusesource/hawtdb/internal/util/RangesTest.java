@@ -19,7 +19,13 @@ package org.fusesource.hawtdb.internal.util;
 import static org.fusesource.hawtdb.internal.util.Ranges.range;
 import static org.junit.Assert.assertEquals;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Random;
 
 import org.fusesource.hawtdb.internal.util.Ranges;
 import org.fusesource.hawtdb.internal.util.Ranges.Range;
@@ -63,6 +69,124 @@ public class RangesTest {
         assertEquals(ranges(range(0,20)), ranges.toArrayList());
     }
     
+    @Test
+    public void bestFit() {
+        Ranges ranges = new Ranges(true);
+        ranges.add(0, 3);
+        ranges.add(10, 1);
+        ranges.add(20, 2);
+        ranges.add(30, 2);
+        ranges.add(40, 100);
+
+        // smallest range that fits, lowest position on ties.
+        assertEquals(10, ranges.bestFit(1));
+        assertEquals(20, ranges.bestFit(2));
+        assertEquals(0, ranges.bestFit(3));
+        assertEquals(40, ranges.bestFit(4));
+        assertEquals(-1, ranges.bestFit(101));
+
+        // The size index has to track merges and splits.
+        ranges.remove(20, 1);
+        assertEquals(10, ranges.bestFit(1));
+        ranges.remove(10, 1);
+        assertEquals(21, ranges.bestFit(1));
+        ranges.add(3, 7);
+        assertEquals(0, ranges.bestFit(10));
+        ranges.remove(41, 98);
+        assertEquals(-1, ranges.bestFit(11));
+        assertEquals(21, ranges.bestFit(1));
+
+        // A un-indexed copy should agree for first fits.
+        Ranges copy = new Ranges();
+        copy.copy(ranges);
+        assertEquals(ranges.toArrayList(), copy.toArrayList());
+        assertEquals(0, copy.bestFit(2));
+    }
+
+    @Test
+    public void nearFit() {
+        Ranges ranges = new Ranges();
+        ranges.add(10, 2);
+        ranges.add(20, 10);
+        ranges.add(100, 1);
+
+        // right at the hint, even in the middle of a range.
+        assertEquals(20, ranges.nearFit(2, 20, 50));
+        assertEquals(25, ranges.nearFit(2, 25, 50));
+        // tail end of the range before the hint.
+        assertEquals(27, ranges.nearFit(2, 29, 50));
+        assertEquals(11, ranges.nearFit(1, 15, 50));
+        assertEquals(29, ranges.nearFit(1, 60, 50));
+        // the closest range after the hint.
+        assertEquals(10, ranges.nearFit(1, 5, 50));
+        assertEquals(100, ranges.nearFit(1, 90, 50));
+        // nothing within the window.
+        assertEquals(-1, ranges.nearFit(5, 200, 50));
+        assertEquals(-1, ranges.nearFit(1, 200, 50));
+    }
+
+    @Test
+    public void randomOperations() {
+        Ranges ranges = new Ranges(true);
+        BitSet expected = new BitSet();
+        Random random = new Random(0);
+        // enough ranges to span several blocks.
+        for (int i = 0; i < 50000; i++) {
+            int start = random.nextInt(20000);
+            int length = 1+random.nextInt(4);
+            if( random.nextBoolean() ) {
+                ranges.add(start, length);
+                expected.set(start, start+length);
+            } else {
+                ranges.remove(start, length);
+                expected.clear(start, start+length);
+            }
+            int probe = random.nextInt(20100);
+            assertEquals(expected.get(probe), ranges.contains(probe));
+        }
+        assertEquals(expected.cardinality(), ranges.size());
+
+        ArrayList<Range> list = new ArrayList<Range>();
+        for (int i = expected.nextSetBit(0); i >= 0; i = expected.nextSetBit(i)) {
+            int end = expected.nextClearBit(i);
+            list.add(range(i, end));
+            i = end;
+        }
+        assertEquals(list, ranges.toArrayList());
+
+        // the size index has to agree with the ranges.
+        for (int size = 1; size < 8; size++) {
+            Range fit = null;
+            for (Range r : list) {
+                if( r.size() >= size && (fit==null || r.size() < fit.size()) ) {
+                    fit = r;
+                }
+            }
+            assertEquals(fit==null ? -1 : fit.start, ranges.bestFit(size));
+        }
+    }
+
+    @Test
+    public void serialization() throws Exception {
+        Ranges ranges = new Ranges();
+        ranges.add(0, 3);
+        ranges.add(200, 1);
+        ranges.add(100000, 5000);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream os = new ObjectOutputStream(baos);
+        os.writeObject(ranges);
+        os.close();
+
+        ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        Ranges copy = (Ranges) is.readObject();
+        assertEquals(ranges.toArrayList(), copy.toArrayList());
+
+        // still usable after being loaded.
+        copy.add(3, 197);
+        assertEquals(ranges(range(0,201),range(100000,105000)), copy.toArrayList());
+    }
+
     ArrayList<Range> ranges(Range... args) {
         ArrayList<Range> rc = new ArrayList<Range>();
         for (Range range : args) {